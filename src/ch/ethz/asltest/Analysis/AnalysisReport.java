@@ -0,0 +1,344 @@
+package ch.ethz.asltest.Analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+/*
+    The AnalysisReport merges the _PJ_ files of all WorkerThreads/EventLoopThreads of one middleware run
+    (one launch time) and writes a global report, one CSV file each (with a header line, times in us):
+    <launchTime>_AN_PS.csv:      per time bucket (statistics resolution): throughput, response time and phase averages
+    <launchTime>_AN_summary.csv: per operation type (set, get, all): throughput and response time percentiles
+    <launchTime>_AN_phases.csv:  per operation type and phase: average, median, percentile and share of response time
+    Jobs are assigned to buckets by the time they were sent to the client, as in the middleware's own _PS_ files.
+    If the middleware only kept a sample of the jobs (instrumentation_level SAMPLED), the throughputs are scaled by
+    the ratio of the job count to the line count in the headers of the files (per operation type), the response
+    times are those of the sampled jobs.
+    All files are parsed in parallel on the given ForkJoinPool (see PerJobFileParser), the per-bucket
+    percentiles are computed in parallel as well.
+ */
+
+public class AnalysisReport {
+
+    private static final String[] TYPE_NAMES = new String[]{"set", "get"};
+
+    private final long launchTime;
+    private final List<File> perJobFiles;
+    private final ForkJoinPool forkJoinPool;
+    private final long resolutionNs;
+    private final double percentile;
+    private final long cutNs;
+
+    private JobTable jobTable;
+    private int malformedLineCount;
+    // The number of jobs a line stands for, by operation type
+    private final double[] typeWeights = new double[]{1, 1};
+
+    public AnalysisReport(long launchTime, List<File> perJobFiles, ForkJoinPool forkJoinPool, long resolutionMs, int percentilePercent, long cutSeconds){
+        this.launchTime = launchTime;
+        this.perJobFiles = perJobFiles;
+        this.forkJoinPool = forkJoinPool;
+        this.resolutionNs = Math.max(1, resolutionMs) * 1000 * 1000;
+        this.percentile = percentilePercent / 100D;
+        this.cutNs = cutSeconds * 1000 * 1000 * 1000;
+    }
+
+    public void parse() throws IOException{
+        List<FileChannel> fileChannels = new ArrayList<>();
+        List<PerJobFileParser> perJobFileParsers = new ArrayList<>();
+        long[] typeJobCounts = new long[TYPE_NAMES.length];
+        long[] typeLineCounts = new long[TYPE_NAMES.length];
+        try {
+            for (File perJobFile : perJobFiles){
+                FileChannel fileChannel = FileChannel.open(perJobFile.toPath(), StandardOpenOption.READ);
+                fileChannels.add(fileChannel);
+
+                // Skip the header: miss and job count, error counts, line count
+                long start = 0;
+                for (int i = 0; i < 3; i++){
+                    start = PerJobFileParser.findLineStart(fileChannel, start, fileChannel.size());
+                }
+                byte jobType = perJobFile.getName().endsWith("_get.stat") ? JobTable.TYPE_GET : JobTable.TYPE_SET;
+                long[] counts = readCounts(fileChannel, start);
+                typeJobCounts[jobType] += counts[0];
+                typeLineCounts[jobType] += counts[1];
+                perJobFileParsers.add(new PerJobFileParser(fileChannel, start, fileChannel.size(), jobType));
+            }
+
+            forkJoinPool.submit(() -> ForkJoinTask.invokeAll(perJobFileParsers)).join();
+
+            int rowCount = 0;
+            for (PerJobFileParser perJobFileParser : perJobFileParsers){
+                rowCount += perJobFileParser.join().size();
+            }
+            jobTable = new JobTable(rowCount);
+            for (PerJobFileParser perJobFileParser : perJobFileParsers){
+                jobTable.addAll(perJobFileParser.join());
+                malformedLineCount += perJobFileParser.getMalformedLineCount();
+            }
+            for (int type = 0; type < TYPE_NAMES.length; type++){
+                if (typeLineCounts[type] > 0 && typeJobCounts[type] > typeLineCounts[type]){
+                    typeWeights[type] = (double) typeJobCounts[type] / typeLineCounts[type];
+                }
+            }
+        } finally {
+            for (FileChannel fileChannel : fileChannels){
+                fileChannel.close();
+            }
+        }
+    }
+
+    /*
+     The job count (first line: miss and job count) and the line count (third line) from the header, which ends at
+     headerEnd. The rolling export pads them with zeros.
+      */
+    private static long[] readCounts(FileChannel fileChannel, long headerEnd) throws IOException{
+        ByteBuffer byteBuffer = ByteBuffer.allocate((int) headerEnd);
+        int bytesRead = 0;
+        while (bytesRead < headerEnd){
+            int read = fileChannel.read(byteBuffer, bytesRead);
+            if (read <= 0){
+                break;
+            }
+            bytesRead += read;
+        }
+        String[] lines = new String(byteBuffer.array(), 0, bytesRead, StandardCharsets.US_ASCII).split("\n");
+        try {
+            String[] missAndJobCount = lines[0].trim().split(",");
+            return new long[]{Long.parseLong(missAndJobCount[1]), Long.parseLong(lines[2].trim())};
+        } catch (RuntimeException runtimeException){
+            throw new IOException("Malformed header", runtimeException);
+        }
+    }
+
+    public int getJobCount(){
+        return jobTable.size();
+    }
+
+    // The parsed jobs of all files, e.g. to calibrate a Simulation
+    public JobTable getJobTable(){
+        return jobTable;
+    }
+
+    public int getMalformedLineCount(){
+        return malformedLineCount;
+    }
+
+    public void write(File outputDirectory) throws IOException{
+        if (jobTable.size() == 0){
+            return;
+        }
+
+        // Time range, the first and last cutNs are dropped (warm up and cool down)
+        long firstSendTime = Long.MAX_VALUE;
+        long lastSendTime = Long.MIN_VALUE;
+        for (int row = 0; row < jobTable.size(); row++){
+            firstSendTime = Math.min(firstSendTime, jobTable.getClientSendTime(row));
+            lastSendTime = Math.max(lastSendTime, jobTable.getClientSendTime(row));
+        }
+        final long rangeStart = firstSendTime + cutNs;
+        final long rangeEnd = lastSendTime - cutNs;
+        if (rangeEnd < rangeStart){
+            throw new IOException("The run is shorter than twice the cut time");
+        }
+        int bucketCount = 1 + (int) ((rangeEnd - rangeStart) / resolutionNs);
+
+        // Sort the rows by bucket (counting sort), such that each bucket is one consecutive range
+        int[] bucketStart = new int[bucketCount + 1];
+        for (int row = 0; row < jobTable.size(); row++){
+            int bucket = bucketOf(jobTable.getClientSendTime(row), rangeStart, rangeEnd);
+            if (bucket >= 0){
+                bucketStart[bucket + 1]++;
+            }
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++){
+            bucketStart[bucket + 1] += bucketStart[bucket];
+        }
+        int[] rows = new int[bucketStart[bucketCount]];
+        int[] bucketFill = Arrays.copyOf(bucketStart, bucketCount);
+        for (int row = 0; row < jobTable.size(); row++){
+            int bucket = bucketOf(jobTable.getClientSendTime(row), rangeStart, rangeEnd);
+            if (bucket >= 0){
+                rows[bucketFill[bucket]++] = row;
+            }
+        }
+
+        writePerSecond(new File(outputDirectory, launchTime + "_AN_PS.csv"), rows, bucketStart, bucketCount);
+
+        // The whole range is measured in full buckets, such that throughputs match the per bucket ones
+        double durationSeconds = bucketCount * resolutionNs / 1e9;
+        writeSummary(new File(outputDirectory, launchTime + "_AN_summary.csv"), rows, durationSeconds);
+        writePhases(new File(outputDirectory, launchTime + "_AN_phases.csv"), rows);
+    }
+
+    private int bucketOf(long clientSendTime, long rangeStart, long rangeEnd){
+        if (clientSendTime < rangeStart || clientSendTime > rangeEnd){
+            return -1;
+        }
+        return (int) ((clientSendTime - rangeStart) / resolutionNs);
+    }
+
+    private void writePerSecond(File file, int[] rows, int[] bucketStart, int bucketCount) throws IOException{
+        String[] bucketLines = new String[bucketCount];
+        double resolutionSeconds = resolutionNs / 1e9;
+
+        forkJoinPool.submit(() -> IntStream.range(0, bucketCount).parallel().forEach(bucket -> {
+            int from = bucketStart[bucket];
+            int to = bucketStart[bucket + 1];
+            int setCount = 0;
+            long[] responseTimes = new long[to - from];
+            double[] phaseSums = new double[JobTable.Phase.values().length];
+            for (int i = from; i < to; i++){
+                int row = rows[i];
+                if (jobTable.getType(row) == JobTable.TYPE_SET){
+                    setCount++;
+                }
+                responseTimes[i - from] = jobTable.getResponseTime(row);
+                for (JobTable.Phase phase : JobTable.Phase.values()){
+                    phaseSums[phase.ordinal()] += jobTable.getPhaseTime(phase, row);
+                }
+            }
+            Arrays.sort(responseTimes);
+
+            int count = to - from;
+            double setJobs = setCount * typeWeights[JobTable.TYPE_SET];
+            double getJobs = (count - setCount) * typeWeights[JobTable.TYPE_GET];
+            StringBuilder stringBuilder = new StringBuilder();
+            stringBuilder.append(format(bucket * resolutionSeconds)).append(',')
+                    .append(format((setJobs + getJobs) / resolutionSeconds)).append(',')
+                    .append(format(setJobs / resolutionSeconds)).append(',')
+                    .append(format(getJobs / resolutionSeconds)).append(',')
+                    .append(formatUs(average(responseTimes))).append(',')
+                    .append(formatUs(percentileOf(responseTimes, 0.5))).append(',')
+                    .append(formatUs(percentileOf(responseTimes, percentile))).append(',')
+                    .append(formatUs(count == 0 ? 0 : responseTimes[count - 1]));
+            for (JobTable.Phase phase : JobTable.Phase.values()){
+                stringBuilder.append(',').append(formatUs(count == 0 ? 0 : phaseSums[phase.ordinal()] / count));
+            }
+            bucketLines[bucket] = stringBuilder.toString();
+        })).join();
+
+        try (PrintWriter printWriter = new PrintWriter(file, "US-ASCII")){
+            printWriter.print("time_s,throughput_ops,set_throughput_ops,get_throughput_ops,rt_avg_us,rt_median_us,rt_p" + percentileName() + "_us,rt_max_us");
+            for (JobTable.Phase phase : JobTable.Phase.values()){
+                printWriter.print("," + phase.columnName + "_avg_us");
+            }
+            for (String bucketLine : bucketLines){
+                printWriter.println();
+                printWriter.print(bucketLine);
+            }
+            printWriter.println();
+        }
+    }
+
+    private void writeSummary(File file, int[] rows, double durationSeconds) throws IOException{
+        try (PrintWriter printWriter = new PrintWriter(file, "US-ASCII")){
+            printWriter.print("type,jobs,throughput_ops,rt_avg_us,rt_median_us,rt_p90_us,rt_p" + percentileName() + "_us,rt_p99_us,rt_max_us");
+            for (int type = -1; type < TYPE_NAMES.length; type++){
+                long[] responseTimes = collect(rows, type, null);
+                int count = responseTimes.length;
+                printWriter.println();
+                printWriter.print(typeName(type) + "," + count + "," + format(weightedCount(rows, type) / durationSeconds) + ","
+                        + formatUs(average(responseTimes)) + "," + formatUs(percentileOf(responseTimes, 0.5)) + ","
+                        + formatUs(percentileOf(responseTimes, 0.9)) + "," + formatUs(percentileOf(responseTimes, percentile)) + ","
+                        + formatUs(percentileOf(responseTimes, 0.99)) + "," + formatUs(count == 0 ? 0 : responseTimes[count - 1]));
+            }
+            printWriter.println();
+        }
+    }
+
+    private void writePhases(File file, int[] rows) throws IOException{
+        try (PrintWriter printWriter = new PrintWriter(file, "US-ASCII")){
+            printWriter.print("type,phase,avg_us,median_us,p" + percentileName() + "_us,share_percent");
+            for (int type = -1; type < TYPE_NAMES.length; type++){
+                double responseTimeAverage = average(collect(rows, type, null));
+                for (JobTable.Phase phase : JobTable.Phase.values()){
+                    long[] phaseTimes = collect(rows, type, phase);
+                    double phaseAverage = average(phaseTimes);
+                    printWriter.println();
+                    printWriter.print(typeName(type) + "," + phase.columnName + "," + formatUs(phaseAverage) + ","
+                            + formatUs(percentileOf(phaseTimes, 0.5)) + "," + formatUs(percentileOf(phaseTimes, percentile)) + ","
+                            + format(responseTimeAverage == 0 ? 0 : 100 * phaseAverage / responseTimeAverage));
+                }
+            }
+            printWriter.println();
+        }
+    }
+
+    // Collects the (sorted) response times or phase times of all rows of the given type (-1 for all)
+    private long[] collect(int[] rows, int type, JobTable.Phase phase){
+        int count = 0;
+        for (int row : rows){
+            if (type < 0 || jobTable.getType(row) == type){
+                count++;
+            }
+        }
+        long[] values = new long[count];
+        int index = 0;
+        for (int row : rows){
+            if (type < 0 || jobTable.getType(row) == type){
+                values[index++] = phase == null ? jobTable.getResponseTime(row) : jobTable.getPhaseTime(phase, row);
+            }
+        }
+        // Sorted in the given pool, parallelSort() only uses the common pool if called from outside a ForkJoinPool
+        forkJoinPool.submit(() -> Arrays.parallelSort(values)).join();
+        return values;
+    }
+
+    // The number of jobs the rows of the given type (-1 for all) stand for
+    private double weightedCount(int[] rows, int type){
+        double count = 0;
+        for (int row : rows){
+            if (type < 0 || jobTable.getType(row) == type){
+                count += typeWeights[jobTable.getType(row)];
+            }
+        }
+        return count;
+    }
+
+    private static double average(long[] values){
+        if (values.length == 0){
+            return 0;
+        }
+        double sum = 0;
+        for (long value : values){
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    // Same definition as in Statistics: the value at index (count * percentile) of the sorted values
+    private static long percentileOf(long[] sortedValues, double percentile){
+        if (sortedValues.length == 0){
+            return 0;
+        }
+        return sortedValues[Math.min(sortedValues.length - 1, (int) (sortedValues.length * percentile))];
+    }
+
+    private String percentileName(){
+        return format(percentile * 100).replace(".0", "");
+    }
+
+    private static String typeName(int type){
+        return type < 0 ? "all" : TYPE_NAMES[type];
+    }
+
+    private static String formatUs(double nanoseconds){
+        return format(nanoseconds / 1000);
+    }
+
+    private static String format(double value){
+        return String.format(Locale.US, "%.1f", value);
+    }
+}
@@ -0,0 +1,147 @@
+package ch.ethz.asltest.Analysis;
+
+import java.util.Arrays;
+
+/*
+    A JobTable holds the parsed per-job lines of _PJ_ statistics files in primitive columns (one row per Job).
+    Only the timestamps needed for the phase breakdown are kept: the server times are reduced to the last send
+    and the last arrival over all servers the Job was sent to, the number of these servers and their average
+    response time (to calibrate the Simulation).
+    Tables are filled by a single PerJobFileParser task each and then appended to one another.
+ */
+
+public class JobTable {
+
+    public static final byte TYPE_SET = 0;
+    public static final byte TYPE_GET = 1;
+
+    private byte[] type;
+    private long[] clientArrivalTime;
+    private long[] enqueueTime;
+    private long[] dequeueTime;
+    private long[] lastServerSendTime;
+    private long[] lastServerArrivalTime;
+    private long[] clientSendTime;
+    private byte[] usedServerCount;
+    private long[] serverResponseTime;
+    private int size;
+
+    public JobTable(int initialCapacity){
+        int capacity = Math.max(16, initialCapacity);
+        type = new byte[capacity];
+        clientArrivalTime = new long[capacity];
+        enqueueTime = new long[capacity];
+        dequeueTime = new long[capacity];
+        lastServerSendTime = new long[capacity];
+        lastServerArrivalTime = new long[capacity];
+        clientSendTime = new long[capacity];
+        usedServerCount = new byte[capacity];
+        serverResponseTime = new long[capacity];
+    }
+
+    public void add(byte jobType, long clientArrival, long enqueue, long dequeue, long lastServerSend, long lastServerArrival, long clientSend, int usedServers, long averageServerResponseTime){
+        ensureCapacity(size + 1);
+        type[size] = jobType;
+        clientArrivalTime[size] = clientArrival;
+        enqueueTime[size] = enqueue;
+        dequeueTime[size] = dequeue;
+        lastServerSendTime[size] = lastServerSend;
+        lastServerArrivalTime[size] = lastServerArrival;
+        clientSendTime[size] = clientSend;
+        usedServerCount[size] = (byte) Math.min(Byte.MAX_VALUE, usedServers);
+        serverResponseTime[size] = averageServerResponseTime;
+        size++;
+    }
+
+    public void addAll(JobTable other){
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.type, 0, type, size, other.size);
+        System.arraycopy(other.clientArrivalTime, 0, clientArrivalTime, size, other.size);
+        System.arraycopy(other.enqueueTime, 0, enqueueTime, size, other.size);
+        System.arraycopy(other.dequeueTime, 0, dequeueTime, size, other.size);
+        System.arraycopy(other.lastServerSendTime, 0, lastServerSendTime, size, other.size);
+        System.arraycopy(other.lastServerArrivalTime, 0, lastServerArrivalTime, size, other.size);
+        System.arraycopy(other.clientSendTime, 0, clientSendTime, size, other.size);
+        System.arraycopy(other.usedServerCount, 0, usedServerCount, size, other.size);
+        System.arraycopy(other.serverResponseTime, 0, serverResponseTime, size, other.size);
+        size += other.size;
+    }
+
+    private void ensureCapacity(int capacity){
+        if (capacity <= type.length){
+            return;
+        }
+        int newCapacity = Math.max(capacity, type.length * 2);
+        type = Arrays.copyOf(type, newCapacity);
+        clientArrivalTime = Arrays.copyOf(clientArrivalTime, newCapacity);
+        enqueueTime = Arrays.copyOf(enqueueTime, newCapacity);
+        dequeueTime = Arrays.copyOf(dequeueTime, newCapacity);
+        lastServerSendTime = Arrays.copyOf(lastServerSendTime, newCapacity);
+        lastServerArrivalTime = Arrays.copyOf(lastServerArrivalTime, newCapacity);
+        clientSendTime = Arrays.copyOf(clientSendTime, newCapacity);
+        usedServerCount = Arrays.copyOf(usedServerCount, newCapacity);
+        serverResponseTime = Arrays.copyOf(serverResponseTime, newCapacity);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public byte getType(int row){
+        return type[row];
+    }
+
+    public long getClientSendTime(int row){
+        return clientSendTime[row];
+    }
+
+    public long getResponseTime(int row){
+        return clientSendTime[row] - clientArrivalTime[row];
+    }
+
+    // The number of servers the Job was sent to
+    public int getUsedServerCount(int row){
+        return usedServerCount[row];
+    }
+
+    // The average response time of the servers the Job was sent to (0 if none)
+    public long getServerResponseTime(int row){
+        return serverResponseTime[row];
+    }
+
+    /*
+     The phases of a Job, which add up to its response time:
+     net thread (parsing until enqueued), queue, worker (until written to the last server),
+     server (until the last server answered) and write-back (merging and writing to the client).
+      */
+    public long getPhaseTime(Phase phase, int row){
+        switch (phase){
+            case NET_THREAD:
+                return enqueueTime[row] - clientArrivalTime[row];
+            case QUEUE:
+                return dequeueTime[row] - enqueueTime[row];
+            case WORKER:
+                return lastServerSendTime[row] - dequeueTime[row];
+            case SERVER:
+                return lastServerArrivalTime[row] - lastServerSendTime[row];
+            case WRITE_BACK:
+                return clientSendTime[row] - lastServerArrivalTime[row];
+            default:
+                return 0;
+        }
+    }
+
+    public enum Phase {
+        NET_THREAD("net_thread"),
+        QUEUE("queue"),
+        WORKER("worker"),
+        SERVER("server"),
+        WRITE_BACK("write_back");
+
+        public final String columnName;
+
+        Phase(String columnName){
+            this.columnName = columnName;
+        }
+    }
+}
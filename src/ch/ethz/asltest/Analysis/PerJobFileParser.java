@@ -0,0 +1,176 @@
+package ch.ethz.asltest.Analysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.RecursiveTask;
+
+/*
+    The PerJobFileParser parses a byte range of a _PJ_ statistics file into a JobTable on a ForkJoinPool.
+    Ranges above SPLIT_BYTES are split in half (at the next line break) and parsed in parallel, the leaves map
+    their range read-only and parse the numbers directly from the mapped bytes (no Strings are created).
+    The range must start at the beginning of a job line, i.e. after the three header lines (see Statistics.export()).
+
+    A job line consists of: id, serverCount, (serverArrivalTime, serverSendTime) per server, clientArrivalTime,
+    clientSendTime, queueTime, enqueueSize, dequeueSize, enqueueBytes, dequeueBytes, enqueueTime, dequeueTime.
+    Lines with a different number of fields (e.g. from middleware versions before 2.2) are counted as malformed.
+ */
+
+public class PerJobFileParser extends RecursiveTask<JobTable> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int SPLIT_BYTES = 1 << 20;
+    // Fields besides the server times
+    private static final int FIXED_FIELD_COUNT = 9;
+
+    private final FileChannel fileChannel;
+    private final long start;
+    private final long end;
+    private final byte jobType;
+
+    private int malformedLineCount;
+
+    public PerJobFileParser(FileChannel fileChannel, long start, long end, byte jobType){
+        this.fileChannel = fileChannel;
+        this.start = start;
+        this.end = end;
+        this.jobType = jobType;
+    }
+
+    public int getMalformedLineCount(){
+        return malformedLineCount;
+    }
+
+    @Override
+    protected JobTable compute() {
+        try {
+            if (end - start > SPLIT_BYTES){
+                long split = findLineStart(fileChannel, start + (end - start) / 2, end);
+                if (split > start && split < end){
+                    PerJobFileParser lowerParser = new PerJobFileParser(fileChannel, start, split, jobType);
+                    PerJobFileParser upperParser = new PerJobFileParser(fileChannel, split, end, jobType);
+                    upperParser.fork();
+                    JobTable jobTable = lowerParser.compute();
+                    jobTable.addAll(upperParser.join());
+                    malformedLineCount = lowerParser.malformedLineCount + upperParser.malformedLineCount;
+                    return jobTable;
+                }
+            }
+            return parse(fileChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        } catch (IOException iOException){
+            throw new RuntimeException("Could not read per job file: " + iOException.getMessage(), iOException);
+        }
+    }
+
+    private JobTable parse(MappedByteBuffer mappedByteBuffer){
+        // Lines are ~100 bytes, avoid growing the table in most cases
+        JobTable jobTable = new JobTable(mappedByteBuffer.limit() / 64);
+        long[] fields = new long[64];
+
+        int fieldCount = 0;
+        long value = 0;
+        boolean negative = false;
+        boolean inField = false;
+
+        while (mappedByteBuffer.hasRemaining()){
+            byte currentValue = mappedByteBuffer.get();
+            if (currentValue >= '0' && currentValue <= '9'){
+                value = value * 10 + (currentValue - '0');
+                inField = true;
+            } else if (currentValue == '-'){
+                negative = true;
+            } else if (currentValue == ','){
+                fieldCount = storeField(fields, fieldCount, negative ? -value : value);
+                value = 0;
+                negative = false;
+                inField = false;
+            } else if (currentValue == '\n'){
+                if (inField){
+                    fieldCount = storeField(fields, fieldCount, negative ? -value : value);
+                }
+                addLine(jobTable, fields, fieldCount);
+                fieldCount = 0;
+                value = 0;
+                negative = false;
+                inField = false;
+            }
+            // '\r' and anything else is skipped
+        }
+        if (inField){
+            fieldCount = storeField(fields, fieldCount, negative ? -value : value);
+        }
+        if (fieldCount > 0){
+            addLine(jobTable, fields, fieldCount);
+        }
+        return jobTable;
+    }
+
+    private static int storeField(long[] fields, int fieldCount, long value){
+        if (fieldCount < fields.length){
+            fields[fieldCount] = value;
+        }
+        return fieldCount + 1;
+    }
+
+    private void addLine(JobTable jobTable, long[] fields, int fieldCount){
+        if (fieldCount < 2){
+            malformedLineCount++;
+            return;
+        }
+        int serverCount = (int) fields[1];
+        int serverFieldCount = 2 * serverCount;
+        if (serverCount < 0 || fieldCount != 2 + serverFieldCount + FIXED_FIELD_COUNT || fieldCount > fields.length){
+            malformedLineCount++;
+            return;
+        }
+
+        long lastServerArrivalTime = 0;
+        long lastServerSendTime = 0;
+        int usedServers = 0;
+        long serverResponseTimeSum = 0;
+        for (int i = 0; i < serverCount; i++){
+            long serverArrivalTime = fields[2 + 2 * i];
+            long serverSendTime = fields[2 + 2 * i + 1];
+            lastServerArrivalTime = Math.max(lastServerArrivalTime, serverArrivalTime);
+            lastServerSendTime = Math.max(lastServerSendTime, serverSendTime);
+            // Servers the Job was not sent to have both times 0
+            if (serverSendTime > 0 && serverArrivalTime >= serverSendTime){
+                usedServers++;
+                serverResponseTimeSum += serverArrivalTime - serverSendTime;
+            }
+        }
+        int offset = 2 + serverFieldCount;
+        long clientArrivalTime = fields[offset];
+        long clientSendTime = fields[offset + 1];
+        long enqueueTime = fields[offset + 7];
+        long dequeueTime = fields[offset + 8];
+
+        jobTable.add(jobType, clientArrivalTime, enqueueTime, dequeueTime, lastServerSendTime, lastServerArrivalTime, clientSendTime,
+                usedServers, usedServers == 0 ? 0 : serverResponseTimeSum / usedServers);
+    }
+
+    /*
+     Returns the position after the first line break at or after position (or end if there is none).
+     Uses positional reads, which are safe to be used concurrently on the same FileChannel.
+      */
+    static long findLineStart(FileChannel fileChannel, long position, long end) throws IOException{
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4096);
+        while (position < end){
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(byteBuffer.capacity(), end - position));
+            int bytesRead = fileChannel.read(byteBuffer, position);
+            if (bytesRead <= 0){
+                return end;
+            }
+            for (int i = 0; i < bytesRead; i++){
+                if (byteBuffer.get(i) == '\n'){
+                    return position + i + 1;
+                }
+            }
+            position += bytesRead;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,170 @@
+package ch.ethz.asltest.Analysis;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/*
+    The ServiceTimes calibrate the Simulation from a recorded run (a JobTable parsed from its _PJ_ files):
+    per operation type, the empirical distributions of the time spent in the net thread, by the worker before
+    sending to the servers, by the servers and by the worker writing back. Samples are drawn uniformly from the
+    recorded values, such that the distributions keep their tails.
+    The server response time of a Job is the average over the servers it was sent to. The recorded times can't
+    tell the network round trip (a delay) from the server's service time (a queue): a percentile of all
+    server response times is taken as the round trip, a sampled response time is split into a delay of at most
+    the round trip and the remainder as service time.
+    The percentile is set by RunSimulation, either given or fitted such that the recorded configuration is
+    simulated at the measured throughput. Runs at low load give the most accurate calibration, since the
+    recorded times include the queueing of the recorded run.
+    The recorded configuration (servers, sharding) and the measured throughput and response times are kept to
+    check the Simulation against the run it was calibrated with.
+ */
+
+public class ServiceTimes {
+
+    private static final int TYPE_COUNT = 2;
+
+    // By type
+    private final long[][] netTimes = new long[TYPE_COUNT][];
+    private final long[][] workerTimes = new long[TYPE_COUNT][];
+    private final long[][] serverResponseTimes = new long[TYPE_COUNT][];
+    private final long[][] writeBackTimes = new long[TYPE_COUNT][];
+    private final double getShare;
+
+    // Sorted, over all jobs sent to a server
+    private final long[] sortedServerResponseTimes;
+    private long serverRoundTrip;
+    // The recorded configuration
+    private final int recordedServerCount;
+    private final double recordedServersPerGet;
+    private final boolean recordedSharded;
+
+    // The recorded performance, over all jobs
+    private final double measuredThroughput;
+    private final long[] measuredResponseTimes;
+
+    public ServiceTimes(JobTable jobTable){
+        if (jobTable.size() == 0){
+            throw new IllegalArgumentException("No jobs to calibrate from");
+        }
+        int[] typeCounts = new int[TYPE_COUNT];
+        long[] allServerResponseTimes = new long[jobTable.size()];
+        int serverSampleCount = 0;
+        int maxUsedServers = 0;
+        long getServerSum = 0;
+        long firstSendTime = Long.MAX_VALUE;
+        long lastSendTime = Long.MIN_VALUE;
+        for (int row = 0; row < jobTable.size(); row++){
+            typeCounts[jobTable.getType(row)]++;
+            if (jobTable.getUsedServerCount(row) > 0){
+                allServerResponseTimes[serverSampleCount++] = jobTable.getServerResponseTime(row);
+            }
+            maxUsedServers = Math.max(maxUsedServers, jobTable.getUsedServerCount(row));
+            if (jobTable.getType(row) == JobTable.TYPE_GET){
+                getServerSum += jobTable.getUsedServerCount(row);
+            }
+            firstSendTime = Math.min(firstSendTime, jobTable.getClientSendTime(row));
+            lastSendTime = Math.max(lastSendTime, jobTable.getClientSendTime(row));
+        }
+        sortedServerResponseTimes = Arrays.copyOf(allServerResponseTimes, serverSampleCount);
+        Arrays.parallelSort(sortedServerResponseTimes);
+
+        for (int type = 0; type < TYPE_COUNT; type++){
+            netTimes[type] = new long[typeCounts[type]];
+            workerTimes[type] = new long[typeCounts[type]];
+            serverResponseTimes[type] = new long[typeCounts[type]];
+            writeBackTimes[type] = new long[typeCounts[type]];
+        }
+        int[] typeFill = new int[TYPE_COUNT];
+        measuredResponseTimes = new long[jobTable.size()];
+        for (int row = 0; row < jobTable.size(); row++){
+            int type = jobTable.getType(row);
+            int index = typeFill[type]++;
+            netTimes[type][index] = Math.max(0, jobTable.getPhaseTime(JobTable.Phase.NET_THREAD, row));
+            workerTimes[type][index] = Math.max(0, jobTable.getPhaseTime(JobTable.Phase.WORKER, row));
+            serverResponseTimes[type][index] = jobTable.getServerResponseTime(row);
+            writeBackTimes[type][index] = Math.max(0, jobTable.getPhaseTime(JobTable.Phase.WRITE_BACK, row));
+            measuredResponseTimes[row] = jobTable.getResponseTime(row);
+        }
+        Arrays.parallelSort(measuredResponseTimes);
+
+        getShare = typeCounts[JobTable.TYPE_GET] / (double) jobTable.size();
+        recordedServerCount = Math.max(1, maxUsedServers);
+        recordedServersPerGet = typeCounts[JobTable.TYPE_GET] == 0 ? 1 : Math.max(1, getServerSum / (double) typeCounts[JobTable.TYPE_GET]);
+        // Without sharding, every get is sent to exactly one server
+        recordedSharded = recordedServersPerGet > 1.05;
+        measuredThroughput = lastSendTime > firstSendTime ? jobTable.size() * 1e9 / (lastSendTime - firstSendTime) : 0;
+    }
+
+    public byte sampleType(SplittableRandom random){
+        return random.nextDouble() < getShare ? JobTable.TYPE_GET : JobTable.TYPE_SET;
+    }
+
+    public long sampleNetTime(byte type, SplittableRandom random){
+        return sample(netTimes[type], random);
+    }
+
+    public long sampleWorkerTime(byte type, SplittableRandom random){
+        return sample(workerTimes[type], random);
+    }
+
+    public long sampleServerResponseTime(byte type, SplittableRandom random){
+        return sample(serverResponseTimes[type], random);
+    }
+
+    // The part of a sampled server response time spent in the network
+    public long getServerDelay(long serverResponseTime){
+        return Math.min(serverResponseTime, serverRoundTrip);
+    }
+
+    /*
+     The service time of one request to a server, the remainder of its response time. A recorded get was split
+     over recordedServersPerGet servers on average, a get split over splitCount servers takes the according part.
+      */
+    public long getServerServiceTime(byte type, long serverResponseTime, int splitCount){
+        long serviceTime = serverResponseTime - getServerDelay(serverResponseTime);
+        if (type == JobTable.TYPE_GET){
+            return (long) (serviceTime * recordedServersPerGet / splitCount);
+        }
+        return serviceTime;
+    }
+
+    public long sampleWriteBackTime(byte type, SplittableRandom random){
+        return sample(writeBackTimes[type], random);
+    }
+
+    private static long sample(long[] values, SplittableRandom random){
+        return values.length == 0 ? 0 : values[random.nextInt(values.length)];
+    }
+
+    // The highest delay of a server request
+    public long getServerRoundTrip(){
+        return serverRoundTrip;
+    }
+
+    // The given percentile (0 - 100) of all server response times is taken as the round trip
+    public void setServerRoundTripPercentile(double percentile){
+        if (sortedServerResponseTimes.length == 0){
+            serverRoundTrip = 0;
+            return;
+        }
+        int index = (int) (sortedServerResponseTimes.length * Math.min(100, Math.max(0, percentile)) / 100);
+        serverRoundTrip = sortedServerResponseTimes[Math.min(sortedServerResponseTimes.length - 1, index)];
+    }
+
+    public int getRecordedServerCount(){
+        return recordedServerCount;
+    }
+
+    public boolean isRecordedSharded(){
+        return recordedSharded;
+    }
+
+    public double getMeasuredThroughput(){
+        return measuredThroughput;
+    }
+
+    // Sorted
+    public long[] getMeasuredResponseTimes(){
+        return measuredResponseTimes;
+    }
+}
@@ -0,0 +1,332 @@
+package ch.ethz.asltest.Analysis;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/*
+    A Simulation is a discrete-event simulation of one Configuration of the middleware's pipeline, calibrated with
+    the ServiceTimes of a recorded run:
+    clients -> NetThread -> JobQueue -> WorkerThreads -> servers -> WorkerThread (write back) -> clients
+    The clients form a closed system: each one sends a job, waits for its answer and thinks for an exponentially
+    distributed time (thinkTime on average) before sending the next one. They are spread evenly over the
+    middleware instances, each of which has its own NetThread (one job parsed at a time), JobQueue and
+    WorkerThreads. A WorkerThread takes one job at a time from the queue and is blocked until it has written the
+    answer back. The servers are shared by all instances, each serves one request at a time (first come, first
+    served). A request's sampled response time is split into its network delay (half before, half after the
+    server) and its service time (see ServiceTimes).
+    Sets are sent to all servers, gets to one server (round robin per instance) or, if sharded, split over all
+    servers. The first warmupPercent of the jobs are not measured.
+    A Simulation runs on a single thread and is deterministic for a given seed, Configurations are simulated in
+    parallel by RunSimulation.
+ */
+
+public class Simulation {
+
+    private final Configuration configuration;
+    private final ServiceTimes serviceTimes;
+    private final long thinkTime;
+    private final int jobCount;
+    private final int warmupJobCount;
+    private final SplittableRandom random;
+
+    private final PriorityQueue<Event> eventQueue = new PriorityQueue<>();
+    private long now;
+    private long eventCount;
+
+    private Instance[] instances;
+    private Server[] servers;
+
+    // Measured after the warm up
+    private int completedJobCount;
+    private long measurementStart;
+    private long[] responseTimes;
+    private double queueTimeSum;
+
+    public Simulation(Configuration configuration, ServiceTimes serviceTimes, long thinkTime, int jobCount, int warmupPercent, long seed){
+        this.configuration = configuration;
+        this.serviceTimes = serviceTimes;
+        this.thinkTime = Math.max(0, thinkTime);
+        this.jobCount = Math.max(1, jobCount);
+        this.warmupJobCount = this.jobCount * Math.min(99, Math.max(0, warmupPercent)) / 100;
+        this.random = new SplittableRandom(seed);
+    }
+
+    public Result run(){
+        instances = new Instance[configuration.instances];
+        for (int i = 0; i < instances.length; i++){
+            instances[i] = new Instance(configuration.threads);
+        }
+        servers = new Server[configuration.servers];
+        for (int i = 0; i < servers.length; i++){
+            servers[i] = new Server();
+        }
+        responseTimes = new long[jobCount - warmupJobCount];
+
+        for (int client = 0; client < configuration.clients; client++){
+            schedule(new Event(EventType.CLIENT_SEND, new SimulatedJob(instances[client % instances.length])), sampleThinkTime());
+        }
+
+        while (completedJobCount < jobCount && !eventQueue.isEmpty()){
+            Event event = eventQueue.poll();
+            now = event.time;
+            process(event);
+        }
+        return new Result(configuration, this);
+    }
+
+    private void process(Event event){
+        SimulatedJob job = event.job;
+        Instance instance = job.instance;
+        switch (event.eventType){
+            case CLIENT_SEND:
+                job.type = serviceTimes.sampleType(random);
+                job.clientArrivalTime = now;
+                instance.netQueue.add(job);
+                startNetThread(instance);
+                break;
+            case NET_DONE:
+                instance.netThreadBusy = false;
+                job.enqueueTime = now;
+                instance.jobQueue.add(job);
+                startWorkers(instance);
+                startNetThread(instance);
+                break;
+            case WORKER_SENT:
+                sendToServers(job);
+                break;
+            case SERVER_ARRIVAL:
+                servers[event.server].queue.add(event);
+                startServer(servers[event.server]);
+                break;
+            case SERVER_DONE:
+                servers[event.server].busy = false;
+                schedule(event.reuse(EventType.REPLY_ARRIVAL), event.delay - event.delay / 2);
+                startServer(servers[event.server]);
+                break;
+            case REPLY_ARRIVAL:
+                job.pendingReplies--;
+                if (job.pendingReplies == 0){
+                    schedule(event.reuse(EventType.WRITE_BACK_DONE), serviceTimes.sampleWriteBackTime(job.type, random));
+                }
+                break;
+            case WRITE_BACK_DONE:
+                complete(job);
+                instance.idleWorkerCount++;
+                instance.workerBusyTime += now - job.dequeueTime;
+                startWorkers(instance);
+                // The client thinks before sending its next job
+                schedule(event.reuse(EventType.CLIENT_SEND), sampleThinkTime());
+                break;
+        }
+    }
+
+    private void startNetThread(Instance instance){
+        if (instance.netThreadBusy || instance.netQueue.isEmpty()){
+            return;
+        }
+        instance.netThreadBusy = true;
+        SimulatedJob job = instance.netQueue.poll();
+        schedule(new Event(EventType.NET_DONE, job), serviceTimes.sampleNetTime(job.type, random));
+    }
+
+    private void startWorkers(Instance instance){
+        while (instance.idleWorkerCount > 0 && !instance.jobQueue.isEmpty()){
+            instance.idleWorkerCount--;
+            SimulatedJob job = instance.jobQueue.poll();
+            job.dequeueTime = now;
+            schedule(new Event(EventType.WORKER_SENT, job), serviceTimes.sampleWorkerTime(job.type, random));
+        }
+    }
+
+    // The recorded server response time of a job is the average over its servers, all its requests take it
+    private void sendToServers(SimulatedJob job){
+        long serverResponseTime = serviceTimes.sampleServerResponseTime(job.type, random);
+        if (job.type == JobTable.TYPE_GET && !configuration.sharded){
+            job.pendingReplies = 1;
+            int server = job.instance.nextServer;
+            job.instance.nextServer = (server + 1) % servers.length;
+            sendToServer(job, server, serverResponseTime, 1);
+            return;
+        }
+        job.pendingReplies = servers.length;
+        for (int server = 0; server < servers.length; server++){
+            sendToServer(job, server, serverResponseTime, servers.length);
+        }
+    }
+
+    private void sendToServer(SimulatedJob job, int server, long serverResponseTime, int splitCount){
+        Event request = new Event(EventType.SERVER_ARRIVAL, job, server);
+        request.delay = serviceTimes.getServerDelay(serverResponseTime);
+        request.serviceTime = serviceTimes.getServerServiceTime(job.type, serverResponseTime, splitCount);
+        schedule(request, request.delay / 2);
+    }
+
+    private void startServer(Server server){
+        if (server.busy || server.queue.isEmpty()){
+            return;
+        }
+        server.busy = true;
+        Event request = server.queue.poll();
+        server.busyTime += request.serviceTime;
+        schedule(request.reuse(EventType.SERVER_DONE), request.serviceTime);
+    }
+
+    private void complete(SimulatedJob job){
+        if (completedJobCount == warmupJobCount){
+            measurementStart = now;
+        }
+        if (completedJobCount >= warmupJobCount){
+            responseTimes[completedJobCount - warmupJobCount] = now - job.clientArrivalTime;
+            queueTimeSum += job.dequeueTime - job.enqueueTime;
+        }
+        completedJobCount++;
+    }
+
+    private long sampleThinkTime(){
+        if (thinkTime == 0){
+            return 0;
+        }
+        return (long) (-thinkTime * Math.log(1 - random.nextDouble()));
+    }
+
+    private void schedule(Event event, long delay){
+        event.time = now + Math.max(0, delay);
+        // Events at the same time are processed in the order they were scheduled
+        event.sequence = eventCount++;
+        eventQueue.add(event);
+    }
+
+    public static class Configuration {
+
+        public final int instances;
+        public final int threads;
+        public final int servers;
+        public final boolean sharded;
+        public final int clients;
+
+        public Configuration(int instances, int threads, int servers, boolean sharded, int clients){
+            this.instances = Math.max(1, instances);
+            this.threads = Math.max(1, threads);
+            this.servers = Math.max(1, servers);
+            this.sharded = sharded;
+            this.clients = Math.max(1, clients);
+        }
+
+        public String toCsv(){
+            return instances + "," + threads + "," + servers + "," + sharded + "," + clients;
+        }
+    }
+
+    public static class Result {
+
+        public final Configuration configuration;
+        public final double throughput;
+        // Sorted
+        public final long[] responseTimes;
+        public final double queueTimeAverage;
+        public final double workerUtilization;
+        // Of the busiest server
+        public final double serverUtilization;
+
+        private Result(Configuration configuration, Simulation simulation){
+            this.configuration = configuration;
+            int measuredJobCount = Math.max(0, simulation.completedJobCount - simulation.warmupJobCount);
+            responseTimes = Arrays.copyOf(simulation.responseTimes, measuredJobCount);
+            Arrays.sort(responseTimes);
+            long duration = simulation.now - simulation.measurementStart;
+            throughput = duration > 0 ? measuredJobCount * 1e9 / duration : 0;
+            queueTimeAverage = measuredJobCount == 0 ? 0 : simulation.queueTimeSum / measuredJobCount;
+
+            long workerBusyTime = 0;
+            for (Instance instance : simulation.instances){
+                workerBusyTime += instance.workerBusyTime;
+            }
+            long serverBusyTime = 0;
+            for (Server server : simulation.servers){
+                serverBusyTime = Math.max(serverBusyTime, server.busyTime);
+            }
+            double totalTime = Math.max(1, simulation.now);
+            workerUtilization = workerBusyTime / (totalTime * configuration.instances * configuration.threads);
+            serverUtilization = serverBusyTime / totalTime;
+        }
+    }
+
+    private enum EventType {
+        CLIENT_SEND,
+        NET_DONE,
+        WORKER_SENT,
+        SERVER_ARRIVAL,
+        SERVER_DONE,
+        REPLY_ARRIVAL,
+        WRITE_BACK_DONE
+    }
+
+    private static class Event implements Comparable<Event> {
+        private EventType eventType;
+        private final SimulatedJob job;
+        private final int server;
+        // Of a server request: the network delay there and back and the service time
+        private long delay;
+        private long serviceTime;
+        private long time;
+        private long sequence;
+
+        Event(EventType eventType, SimulatedJob job){
+            this(eventType, job, -1);
+        }
+
+        Event(EventType eventType, SimulatedJob job, int server){
+            this.eventType = eventType;
+            this.job = job;
+            this.server = server;
+        }
+
+        Event reuse(EventType eventType){
+            this.eventType = eventType;
+            return this;
+        }
+
+        @Override
+        public int compareTo(Event other){
+            if (time != other.time){
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // One client's current job (reused for its next one)
+    private static class SimulatedJob {
+        private final Instance instance;
+        private byte type;
+        private long clientArrivalTime;
+        private long enqueueTime;
+        private long dequeueTime;
+        private int pendingReplies;
+
+        SimulatedJob(Instance instance){
+            this.instance = instance;
+        }
+    }
+
+    private static class Instance {
+        private final ArrayDeque<SimulatedJob> netQueue = new ArrayDeque<>();
+        private boolean netThreadBusy;
+        private final ArrayDeque<SimulatedJob> jobQueue = new ArrayDeque<>();
+        private int idleWorkerCount;
+        private int nextServer;
+        private long workerBusyTime;
+
+        Instance(int threads){
+            idleWorkerCount = threads;
+        }
+    }
+
+    private static class Server {
+        private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        private boolean busy;
+        private long busyTime;
+    }
+}
@@ -3,8 +3,8 @@ package ch.ethz.asltest.Middleware.Assembler;
 import ch.ethz.asltest.Middleware.Environment.Environment;
 import ch.ethz.asltest.Middleware.Global.Parameters;
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
 
-import javax.xml.ws.Response;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
@@ -19,6 +19,8 @@ import java.util.Arrays;
     object representing the parsed message. The Assembler can be advanced as many bytes as are available
     at a time (also more bytes than remain in one message). The Assembler allows parsing and forwarding
     messages without intermediate copies (excluding from and to SocketChannel buffers)
+    The buffer is borrowed from the BufferPool once a message starts and returned on release() (byteBuffer is null
+    while the Assembler is idle). If a message doesn't fit, it is moved to a buffer of the next slab class.
  */
 
 public abstract class Assembler {
@@ -27,12 +29,45 @@ public abstract class Assembler {
     AssemblerCompletedCallback assemblerCompletedCallback;
 
     ByteBuffer byteBuffer;
-    boolean blocked;
+    // Read by the NetThread while the Job is processed (and the Assembler released) by a WorkerThread
+    volatile boolean blocked;
 
+    // Whether the buffer may be borrowed beyond the BufferPool's ceiling
+    private final boolean mayExceedCeiling;
 
-    public Assembler(AssemblerCompletedCallback assemblerCompletedCallback){
+
+    public Assembler(AssemblerCompletedCallback assemblerCompletedCallback, boolean mayExceedCeiling){
         this.assemblerCompletedCallback = assemblerCompletedCallback;
-        byteBuffer = ByteBuffer.allocate(Parameters.getInteger("assembler_meta_rcv_buffer_size"));
+        this.mayExceedCeiling = mayExceedCeiling;
+    }
+
+    /*
+     Borrows a buffer if the Assembler is idle and moves the message to a larger buffer if the current one is full.
+     Returns false if no (larger) buffer is available since the BufferPool's ceiling is reached.
+     Throws an IOException if the message exceeds the largest buffer (assembler_meta_rcv_buffer_size).
+      */
+    boolean ensureBufferSpace() throws IOException{
+        BufferPool bufferPool = BufferPool.getInstance();
+        if (byteBuffer == null){
+            byteBuffer = bufferPool.acquire(bufferPool.getMinBufferSize(), mayExceedCeiling);
+            return byteBuffer != null;
+        }
+        if (byteBuffer.position() < byteBuffer.capacity()){
+            return true;
+        }
+        if (byteBuffer.capacity() >= bufferPool.getMaxBufferSize()){
+            throw new IOException("Message exceeds the maximal buffer size of " + bufferPool.getMaxBufferSize() + " bytes (assembler_meta_rcv_buffer_size)");
+        }
+        ByteBuffer largerByteBuffer = bufferPool.acquire(byteBuffer.capacity() + 1, mayExceedCeiling);
+        if (largerByteBuffer == null){
+            return false;
+        }
+        // Positions within the message (e.g. of keys) stay valid
+        byteBuffer.flip();
+        largerByteBuffer.put(byteBuffer);
+        bufferPool.release(byteBuffer);
+        byteBuffer = largerByteBuffer;
+        return true;
     }
 
     public static class AssemblerBlockedException extends Exception {
@@ -46,7 +81,10 @@ public abstract class Assembler {
     Needs to be called after the buffer has been used and its content can be discarded.
      */
     public void release(){
-        byteBuffer.clear();
+        if (byteBuffer != null){
+            BufferPool.getInstance().release(byteBuffer);
+            byteBuffer = null;
+        }
         blocked = false;
     }
 
@@ -3,9 +3,13 @@ package ch.ethz.asltest.Middleware.Assembler;
 import ch.ethz.asltest.Middleware.Environment.Client;
 import ch.ethz.asltest.Middleware.Environment.Server;
 import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
 import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Log.HotKeySketch;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
 import ch.ethz.asltest.Middleware.Log.Log;
 import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Log.StatsReport;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -20,6 +24,9 @@ import java.nio.charset.StandardCharsets;
     to its own ByteBuffer and parses all available data on advance(). Any amount of bytes can be read at a time.
     Once a complete query is parsed, the appropriate Job object is created and the callback is fired carrying the
     Job as argument.
+    "stats" queries (optionally followed by a group) don't create Jobs, they are answered right away by the reading
+    thread with the middleware's own counters (see StatsReport). If the client's socket doesn't take the whole
+    answer, the rest is kept (see hasPendingAnswer()) and written by the reading thread once the channel is writable.
     The query can be written to a server without any intermediate copies with the writeToServer methods.
  */
 
@@ -30,6 +37,8 @@ public class QueryAssembler extends Assembler{
     private Client submitter;
 
     private int dataBytesRemaining;
+    // The data bytes of the current set as announced in its command line
+    private int dataBytes;
 
     private ParserState currentState = ParserState.INITIAL;
 
@@ -54,14 +63,33 @@ public class QueryAssembler extends Assembler{
 
     private long jobArrivalTime;
 
+    // Position after the key of a set (the key starts after "set ")
+    private int setKeyEnd;
+
+    // Fed with the keys of all parsed sets and gets, null if disabled
+    private HotKeySketch hotKeySketch;
+
     private byte[] SET_COMPARABLE = new byte[]{0x73, 0x65, 0x74}; // set
     private byte[] GET_COMPARABLE = new byte[]{0x67, 0x65, 0x74}; // get
+    private byte[] STATS_COMPARABLE = new byte[]{0x73, 0x74, 0x61, 0x74, 0x73}; // stats
+
+    // Set while the BufferPool's ceiling keeps this assembler from reading (see isWaitingForBuffer())
+    private boolean waitingForBuffer;
 
+    // The rest of a "stats" answer the client's socket didn't take at once, null if all has been written
+    private ByteBuffer pendingAnswer;
 
+    // Position of the group following "stats" (e.g. "servers")
+    private int statsGroupStart;
+    private int statsGroupEnd;
 
-    public QueryAssembler(Client submitter, QueryAssemblerCompletedCallback messageProcessorInterface){
-        super(messageProcessorInterface);
+
+
+    public QueryAssembler(Client submitter, QueryAssemblerCompletedCallback messageProcessorInterface, HotKeySketch hotKeySketch){
+        // Clients are throttled once the BufferPool's ceiling is reached
+        super(messageProcessorInterface, false);
         this.submitter = submitter;
+        this.hotKeySketch = hotKeySketch;
         invalidCommandStringBuilder = new StringBuilder();
         keyDescriptor = new int[2 * Parameters.getInteger("assembler_max_keys_readable")];
     }
@@ -82,7 +110,7 @@ public class QueryAssembler extends Assembler{
              that the host has closed the connection only gets thrown when
              an actual write can (could) be executed (else, read just returns 0).
              */
-            byteBuffer.limit(byteBuffer.position() + 1);
+            byteBuffer.limit(Math.min(byteBuffer.capacity(), byteBuffer.position() + 1));
             try {
                 bytesRead = socketChannel.read(byteBuffer);
             } catch (IOException iOException){
@@ -99,26 +127,57 @@ public class QueryAssembler extends Assembler{
             }
         }
 
-        int startPosition = byteBuffer.position();
+        int bytesRead;
+        int startPosition;
+        try {
+            waitingForBuffer = !ensureBufferSpace();
+            if (waitingForBuffer){
+                // The BufferPool's ceiling is reached, leave the data in the socket (TCP backpressure) until buffers are returned
+                return 0;
+            }
+            startPosition = byteBuffer.position();
+            byteBuffer.limit(byteBuffer.capacity());
+            bytesRead = socketChannel.read(byteBuffer);
+        } catch (IOException iOException){
+            // The client is going to be removed, return the buffer
+            release();
+            throw iOException;
+        }
+        if (bytesRead <= 0){
+            byteBuffer.limit(byteBuffer.position());
+            if (bytesRead < 0 || startPosition == 0){
+                // Don't pin a buffer for a closed or idle connection
+                release();
+            }
+            return bytesRead;
+        }
 
         if (startPosition == 0){
-            if (timestamp == 0){
+            // The timestamp is 0 if nothing is measured (see Instrumentation)
+            if (timestamp == 0 && Instrumentation.isCounting()){
                 Log.warn("[Assembler] Setting arrival time to 0 even though it should be valid");
             }
             setJobArrivalTime(timestamp);
-            Statistics.setClientArrivalTime(socketChannel.socket().getRemoteSocketAddress().toString(), timestamp);
+            if (timestamp != 0){
+                Statistics.setClientArrivalTime(submitter, timestamp);
+            }
         }
 
-        byteBuffer.limit(byteBuffer.capacity());
-        int bytesRead = socketChannel.read(byteBuffer);
-        if (bytesRead < 0)
-            return bytesRead;
         byteBuffer.limit(byteBuffer.position());
         byteBuffer.position(startPosition);
         advance();
         return bytesRead;
     }
 
+    /*
+     Whether the last readBytes() left the data in the socket since no buffer was available. The reading thread is
+     to stop selecting the channel for reading until a buffer is returned to the BufferPool, since OP_READ stays
+     ready as long as the data is there.
+      */
+    public boolean isWaitingForBuffer(){
+        return waitingForBuffer;
+    }
+
     @Override
     public void release(){
         currentState = ParserState.INITIAL;
@@ -130,15 +189,6 @@ public class QueryAssembler extends Assembler{
             byte currentValue;
             while (byteBuffer.hasRemaining()){
 
-                if (byteBuffer.position() >= byteBuffer.limit()){
-                    // We ran out of space, increase buffer size
-                    Log.error("[QueryAssembler] Buffer space not sufficient, increasing");
-                    byteBuffer.rewind();
-                    ByteBuffer newBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
-                    newBuffer.put(byteBuffer);
-                    byteBuffer = newBuffer;
-                }
-
                 switch (currentState){
                     case INITIAL:
                         currentValue = byteBuffer.get();
@@ -159,21 +209,30 @@ public class QueryAssembler extends Assembler{
                     // set
                     case SET_0_1: case SET_0_2:
                         currentValue = byteBuffer.get();
-                        transitionToNextState(currentValue, SET_COMPARABLE, ParserState.SET_0_1);
+                        if (currentState == ParserState.SET_0_1 && currentValue == 0x74){ //t
+                            currentState = ParserState.STATS_0_2;
+                        } else {
+                            transitionToNextState(currentValue, SET_COMPARABLE, ParserState.SET_0_1);
+                        }
                         break;
 
                     case SET_0: case SET_1: case SET_2: case SET_3:
                         currentValue = byteBuffer.get();
                         if (currentValue == 0x20) { // whitespace
-                            currentState = ParserState.values()[currentState.ordinal() + 1];
+                            if (currentState == ParserState.SET_1){
+                                setKeyEnd = byteBuffer.position() - 1;
+                            }
+                            currentState = PARSER_STATES[currentState.ordinal() + 1];
                         }
                         break;
                     case SET_4:
                         currentValue = byteBuffer.get();
                         if (currentValue == 0x20){ // whitespace
                             currentState = ParserState.SET_TAIL;
+                            dataBytes = dataBytesRemaining;
                         } else if (currentValue == 0x0d) { // CR
                             currentState = ParserState.SET_TAIL;
+                            dataBytes = dataBytesRemaining;
                         } else {
                             dataBytesRemaining *= 10;
                             dataBytesRemaining += currentValue - 48;
@@ -255,6 +314,45 @@ public class QueryAssembler extends Assembler{
                         }
                         break;
 
+                        // stats
+
+                    case STATS_0_2: case STATS_0_3: case STATS_0_4:
+                        currentValue = byteBuffer.get();
+                        transitionToNextState(currentValue, STATS_COMPARABLE, currentState.ordinal() - ParserState.STATS_0_2.ordinal() + 2);
+                        break;
+
+                    case STATS_0:
+                        currentValue = byteBuffer.get();
+                        statsGroupStart = byteBuffer.position();
+                        statsGroupEnd = statsGroupStart;
+                        if (currentValue == 0x20){ // whitespace
+                            currentState = ParserState.STATS_GROUP;
+                        } else if (currentValue == 0x0d){ // CR
+                            statsGroupStart--;
+                            statsGroupEnd--;
+                            currentState = ParserState.STATS_LF;
+                        } else {
+                            transitionToInvalid("stats", currentValue);
+                        }
+                        break;
+
+                    case STATS_GROUP:
+                        currentValue = byteBuffer.get();
+                        if (currentValue == 0x0d){ // CR
+                            statsGroupEnd = byteBuffer.position() - 1;
+                            currentState = ParserState.STATS_LF;
+                        }
+                        break;
+
+                    case STATS_LF:
+                        currentValue = byteBuffer.get();
+                        if (currentValue == 0x0a) { // LF
+                            currentState = ParserState.STATS_DONE;
+                        } else {
+                            transitionToInvalid("", currentValue);
+                        }
+                        break;
+
                         //invalid
                     case INVALID:
                         currentValue = byteBuffer.get();
@@ -262,7 +360,7 @@ public class QueryAssembler extends Assembler{
                             previousCharacterCR = true;
                         } else if (currentValue == 0x0a){ //LF
                             if (previousCharacterCR){
-                                Log.error("[QueryAssembler] Received unknown operation that is neither get nor set: " + invalidCommandStringBuilder.toString());
+                                Log.error("[QueryAssembler] Received unknown operation that is neither get nor set: {}", invalidCommandStringBuilder);
                                 previousCharacterCR = false;
                             } else {
                                 invalidCommandStringBuilder.append(new String(new byte[]{0x0a}, StandardCharsets.US_ASCII));
@@ -283,7 +381,7 @@ public class QueryAssembler extends Assembler{
                         break;
                 }
 
-                if (currentState == ParserState.SET_DONE || currentState == ParserState.GET_DONE){
+                if (currentState == ParserState.SET_DONE || currentState == ParserState.GET_DONE || currentState == ParserState.STATS_DONE){
                     if (byteBuffer.hasRemaining()){
                         Log.error("[QueryAssembler] byteBuffer has remaining data after fully parsed request");
                     }
@@ -292,34 +390,100 @@ public class QueryAssembler extends Assembler{
             }
 
 
+            if (currentState == ParserState.STATS_DONE){
+                String group = new String(byteBuffer.array(), statsGroupStart, statsGroupEnd - statsGroupStart, StandardCharsets.US_ASCII).trim();
+                // Nothing is queued for this client, the buffer can be returned before answering
+                release();
+                answerStats(group);
+            }
+
             if (currentState == ParserState.SET_DONE || currentState == ParserState.GET_DONE){
                 byteBuffer.flip();
                 blocked = true;
 
+                if (hotKeySketch != null){
+                    offerKeys();
+                }
+
                 if (currentState == ParserState.SET_DONE){
                     // Construct a new set job, the full command is in byteBuffer
-                    ((QueryAssemblerCompletedCallback) assemblerCompletedCallback).callback(Job.createSetJob((Client) submitter, this, jobArrivalTime));
+                    // Requests above the thresholds are put into the bulk lane (read here since they may be tuned while running)
+                    Job.Lane lane = dataBytes > TunableParameters.getLaneBulkSetDataBytes() ? Job.Lane.BULK : Job.Lane.SMALL;
+                    ((QueryAssemblerCompletedCallback) assemblerCompletedCallback).callback(Job.createSetJob((Client) submitter, this, lane, jobArrivalTime));
                 }
 
                 if (currentState == ParserState.GET_DONE){
                     // Construct a new get job, the full command is in byteBuffer
-                    ((QueryAssemblerCompletedCallback) assemblerCompletedCallback).callback(Job.createGetJob((Client) submitter, this, keyCount, jobArrivalTime));
+                    Job.Lane lane = keyCount > TunableParameters.getLaneBulkGetKeyCount() ? Job.Lane.BULK : Job.Lane.SMALL;
+                    ((QueryAssemblerCompletedCallback) assemblerCompletedCallback).callback(Job.createGetJob((Client) submitter, this, keyCount, lane, jobArrivalTime));
                 }
 
             }
 
         } catch (Exception exception) {
-            Log.error("[QueryAssembler] An exception occured in message assembly: " + exception.getMessage());
+            Log.error("[QueryAssembler] An exception occured in message assembly: {}", exception.getMessage());
+        }
+    }
+
+    // Feeds the keys of the parsed set or get to the HotKeySketch
+    private void offerKeys(){
+        if (currentState == ParserState.SET_DONE){
+            int start = SET_COMPARABLE.length + 1;
+            hotKeySketch.offer(byteBuffer.array(), start, setKeyEnd - start);
+        } else {
+            for (int i = 0; i < keyCount; i++){
+                hotKeySketch.offer(byteBuffer.array(), keyDescriptor[2 * i], keyDescriptor[(2 * i) + 1]);
+            }
         }
     }
 
     private void transitionToNextState(byte currentValue, byte[] comparable, ParserState baseState){
-        if (comparable[currentState.ordinal() - baseState.ordinal() + 1] == currentValue){
-            currentState = ParserState.values()[currentState.ordinal() + 1];
+        transitionToNextState(currentValue, comparable, currentState.ordinal() - baseState.ordinal() + 1);
+    }
+
+    // comparableIndex is the index of the character expected in the current state
+    private void transitionToNextState(byte currentValue, byte[] comparable, int comparableIndex){
+        if (comparable[comparableIndex] == currentValue){
+            currentState = PARSER_STATES[currentState.ordinal() + 1];
         } else {
             invalidCommandStringBuilder.setLength(0);
-            transitionToInvalid(new String(comparable, 0, currentState.ordinal() - baseState.ordinal() + 1, StandardCharsets.US_ASCII), currentValue);
+            transitionToInvalid(new String(comparable, 0, comparableIndex, StandardCharsets.US_ASCII), currentValue);
+        }
+    }
+
+    /*
+     Writes the answer to a "stats" query to the client. The client waits for it before sending its next query, so
+     the socket buffer usually takes it at once. Otherwise the rest is kept for writePendingAnswer().
+      */
+    private void answerStats(String group){
+        ByteBuffer answer = ByteBuffer.wrap(StatsReport.render(group).getBytes(StandardCharsets.US_ASCII));
+        try {
+            submitter.getSocketChannel().write(answer);
+        } catch (IOException iOException){
+            Log.error("[QueryAssembler] IOException while writing stats answer to client: {}", iOException.getMessage());
+            return;
+        }
+        if (answer.hasRemaining()){
+            pendingAnswer = answer;
+            return;
+        }
+        Statistics.setClientSendTime(submitter, System.nanoTime());
+    }
+
+    // Whether the reading thread is to wait for the client's channel to be writable and call writePendingAnswer()
+    public boolean hasPendingAnswer(){
+        return pendingAnswer != null;
+    }
+
+    // Writes the rest of the "stats" answer, returns whether all of it has been written
+    public boolean writePendingAnswer() throws IOException{
+        submitter.getSocketChannel().write(pendingAnswer);
+        if (pendingAnswer.hasRemaining()){
+            return false;
         }
+        pendingAnswer = null;
+        Statistics.setClientSendTime(submitter, System.nanoTime());
+        return true;
     }
 
     private void transitionToInvalid(String previousText, byte currentValue){
@@ -332,6 +496,9 @@ public class QueryAssembler extends Assembler{
         currentState = ParserState.INVALID;
     }
 
+    // values() copies the array on every call, so it is cached for the per-byte state transitions
+    private static final ParserState[] PARSER_STATES = ParserState.values();
+
     private enum ParserState{
         // A new message has begun, we have not yet read anything
         INITIAL,
@@ -351,7 +518,15 @@ public class QueryAssembler extends Assembler{
         // GET_KEYS waits for CRLF, since there may be an arbitrary amount of keys following the command
         GET_KEYS,
         GET_LF,
-        GET_DONE
+        GET_DONE,
+
+        // "stats" is recognized after "s" (STATS_0_2 expects the "a"), STATS_0 expects a whitespace or CR,
+        // STATS_GROUP waits for CR
+        STATS_0_2, STATS_0_3, STATS_0_4,
+        STATS_0,
+        STATS_GROUP,
+        STATS_LF,
+        STATS_DONE
     }
 
     /*
@@ -368,7 +543,7 @@ public class QueryAssembler extends Assembler{
             byteBuffer.position(byteBuffer.limit());
             outputStream.flush();
         } catch (IOException iOException){
-            Log.error("[QueryAssembler] IOException while writing to server: " + iOException.getMessage());
+            Log.error("[QueryAssembler] IOException while writing to server: {}", iOException.getMessage());
         }
     }
 
@@ -401,7 +576,56 @@ public class QueryAssembler extends Assembler{
 
             }
         } catch (IOException iOException){
-            Log.error("[QueryAssembler] IOException while writing to server: " + iOException.getMessage());
+            Log.error("[QueryAssembler] IOException while writing to server: {}", iOException.getMessage());
+        }
+    }
+
+    /*
+    Returns an independent view on the whole message (position to limit), e.g. to stage
+    it on a non-blocking server connection without copying.
+     */
+    public ByteBuffer duplicateMessage(){
+        return byteBuffer.duplicate();
+    }
+
+    /*
+    Copies the first key of the parsed message (following "set " or "get "), at most target.length bytes of it,
+    and returns the number of bytes copied.
+     */
+    public int copyFirstKey(byte[] target){
+        byte[] array = byteBuffer.array();
+        int start = SET_COMPARABLE.length + 1;
+        int length = 0;
+        while (length < target.length && start + length < byteBuffer.limit()){
+            byte currentValue = array[start + length];
+            if (currentValue == 0x20 || currentValue == 0x0d){ // space or CR
+                break;
+            }
+            target[length] = currentValue;
+            length++;
+        }
+        return length;
+    }
+
+    // The length of the fully parsed message
+    public int getMessageLength(){
+        return byteBuffer.limit();
+    }
+
+    /*
+    Equivalent to writeGetToServer, but puts the next keyCount keys into the given buffer
+    (e.g. to stage them on a non-blocking server connection).
+     */
+    public void putGetKeys(ByteBuffer target, int keyCount){
+        for (int i = 0; i < keyCount; i++){
+            int position = keyDescriptor[2 * nextKeyToWrite];
+            int count = keyDescriptor[(2 * nextKeyToWrite) + 1];
+            nextKeyToWrite++;
+            target.put(byteBuffer.array(), position, count);
+            if (i < (keyCount - 1)){
+                // Another key follows, put a whitespace to separate keys
+                target.put((byte) 0x20);
+            }
         }
     }
 
@@ -11,7 +11,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 
 /*
@@ -46,6 +46,25 @@ public class ResponseAssembler extends Assembler{
 
     private int valueCount;
 
+    /*
+     If requests are pipelined, a read may also contain (the beginning of) the following responses.
+     Once a response is completed, pendingStart and pendingEnd mark these bytes, which are moved
+     to the beginning of the buffer on release(). pendingBytes then holds their count until they are parsed.
+      */
+    private int pendingStart;
+    private int pendingEnd;
+    private int pendingBytes;
+
+    // When the last read returned data (used as arrival time for pipelined responses)
+    private long lastReadTime;
+
+    // The Results handed out on completion, reused for every response
+    private final Result.StoredResult storedResult;
+    private final Result.ErrorResult errorResult;
+    private final Result.ServerErrorResult serverErrorResult;
+    private final Result.ClientErrorResult clientErrorResult;
+    private final Result.ValueResult valueResult;
+
     private byte[] STORED_COMPARABLE = new byte[]{0x53, 0x54, 0x4f, 0x52, 0x45, 0x44, 0x0d, 0x0a};// STORED\CR\LF
     private byte[] ERROR_COMPARABLE = new byte[]{0x45, 0x52, 0x52, 0x4f, 0x52, 0x0d, 0x0a}; //ERROR\CR\LF
     private byte[] SERVER_ERROR_COMPARABLE = new byte[]{0x53, 0x45, 0x52, 0x56, 0x45, 0x52, 0x5f, 0x45, 0x52, 0x52, 0x4f, 0x52, 0x20}; // SERVER_ERROR\space
@@ -56,9 +75,16 @@ public class ResponseAssembler extends Assembler{
 
 
     public ResponseAssembler(ResponseAssemblerCompletedCallback responseAssemblerCompletedCallback){
-        super(responseAssemblerCompletedCallback);
+        // Responses complete work in flight, so they are not throttled by the BufferPool's ceiling
+        super(responseAssemblerCompletedCallback, true);
         invalidCommandStringBuilder = new StringBuilder();
         errorMessageStringBuilder = new StringBuilder();
+
+        storedResult = new Result.StoredResult(this);
+        errorResult = new Result.ErrorResult(this);
+        serverErrorResult = new Result.ServerErrorResult(this);
+        clientErrorResult = new Result.ClientErrorResult(this);
+        valueResult = new Result.ValueResult(this);
     }
 
 
@@ -67,14 +93,25 @@ public class ResponseAssembler extends Assembler{
         if (blocked){
             throw new AssemblerBlockedException("The assembler is currently blocked as another query associated with the buffer is being processed");
         }
+        if (pendingBytes > 0){
+            // Parse what has been read along with the previous response first, don't block if it is complete
+            int bytesPending = advancePending();
+            if (blocked){
+                return bytesPending;
+            }
+        }
+        if (!ensureBufferSpace()){
+            return 0;
+        }
         InputStream inputStream = socket.getInputStream();
         byteBuffer.limit(byteBuffer.capacity());
         int startPosition = byteBuffer.position();
 
         int bytesRead = inputStream.read(byteBuffer.array(), byteBuffer.position(), byteBuffer.capacity() - byteBuffer.position());
 
+        lastReadTime = System.nanoTime();
         if (startPosition == 0){
-            setServerArrivalTime(System.nanoTime());
+            setServerArrivalTime(lastReadTime);
         }
 
         if (bytesRead < 0){
@@ -86,27 +123,84 @@ public class ResponseAssembler extends Assembler{
         return bytesRead;
     }
 
+    /*
+     Reads whatever is available from the given non-blocking channel and parses the received data.
+     Returns 0 if no data was available.
+      */
+    public int readBytes(SocketChannel socketChannel) throws IOException, AssemblerBlockedException {
+        if (blocked){
+            throw new AssemblerBlockedException("The assembler is currently blocked as another query associated with the buffer is being processed");
+        }
+        if (pendingBytes > 0){
+            int bytesPending = advancePending();
+            if (blocked){
+                return bytesPending;
+            }
+        }
+        if (!ensureBufferSpace()){
+            return 0;
+        }
+        byteBuffer.limit(byteBuffer.capacity());
+        int startPosition = byteBuffer.position();
+
+        int bytesRead = socketChannel.read(byteBuffer);
+
+        if (bytesRead <= 0){
+            byteBuffer.limit(startPosition);
+            byteBuffer.position(startPosition);
+            if (startPosition == 0){
+                // Don't pin a buffer for an idle connection
+                super.release();
+            }
+            return bytesRead;
+        }
+
+        lastReadTime = System.nanoTime();
+        if (startPosition == 0){
+            setServerArrivalTime(lastReadTime);
+        }
+
+        byteBuffer.limit(startPosition + bytesRead);
+        byteBuffer.position(startPosition);
+        advance();
+        return bytesRead;
+    }
+
     @Override
     public void release(){
         currentState = ParserState.INITIAL;
+        if (pendingEnd > pendingStart){
+            // Keep the bytes of the following response(s) at the beginning of the buffer
+            byteBuffer.limit(pendingEnd);
+            byteBuffer.position(pendingStart);
+            byteBuffer.compact();
+            pendingBytes = byteBuffer.position();
+            pendingStart = 0;
+            pendingEnd = 0;
+            byteBuffer.position(0);
+            blocked = false;
+            return;
+        }
         super.release();
     }
 
+    // Parses the bytes kept on release(), returns how many there were
+    private int advancePending(){
+        int bytesPending = pendingBytes;
+        pendingBytes = 0;
+        setServerArrivalTime(lastReadTime);
+        byteBuffer.limit(bytesPending);
+        byteBuffer.position(0);
+        advance();
+        return bytesPending;
+    }
+
     @Override
     void advance() {
         try{
             byte currentValue;
             while (byteBuffer.hasRemaining()){
 
-                if (byteBuffer.position() >= byteBuffer.limit()){
-                    // We ran out of space, increase buffer size
-                    Log.warn("[ResponseAssembler] Buffer space not sufficient, increasing");
-                    byteBuffer.rewind();
-                    ByteBuffer newBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
-                    newBuffer.put(byteBuffer);
-                    byteBuffer = newBuffer;
-                }
-
                 switch (currentState) {
                     case INITIAL:
                         currentValue = byteBuffer.get();
@@ -180,7 +274,7 @@ public class ResponseAssembler extends Assembler{
                     case VALUE_1: case VALUE_2:
                         currentValue = byteBuffer.get();
                         if (currentValue == 0x20) { // whitespace
-                            currentState = ParserState.values()[currentState.ordinal() + 1];
+                            currentState = PARSER_STATES[currentState.ordinal() + 1];
                         }
                         break;
                     case VALUE_3:
@@ -270,7 +364,7 @@ public class ResponseAssembler extends Assembler{
                             previousCharacterCR = true;
                         } else if (currentValue == 0x0a){ //LF
                             if (previousCharacterCR){
-                                Log.error("[ResponseAssembler] Received unknown response: " + invalidCommandStringBuilder.toString());
+                                Log.error("[ResponseAssembler] Received unknown response: {}", invalidCommandStringBuilder);
                                 previousCharacterCR = false;
                             } else {
                                 invalidCommandStringBuilder.append(new String(new byte[]{0x0a}, StandardCharsets.US_ASCII));
@@ -296,7 +390,9 @@ public class ResponseAssembler extends Assembler{
                         || currentState == ParserState.END_DONE){
                     blocked = true;
                     if (byteBuffer.hasRemaining()){
-                        Log.error("[ResponseAssembler] byteBuffer has remaining data after fully parsed response");
+                        // Pipelined responses, keep them for after release()
+                        pendingStart = byteBuffer.position();
+                        pendingEnd = byteBuffer.limit();
                     }
                     break;
                 }
@@ -313,33 +409,38 @@ public class ResponseAssembler extends Assembler{
             }
 
             if (currentState == ParserState.STORED_DONE){
-                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(new Result.StoredResult(this, byteBuffer, serverArrivalTime));
+                storedResult.reset(byteBuffer, serverArrivalTime);
+                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(storedResult);
             }
 
             if (currentState == ParserState.ERROR_DONE){
-                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(new Result.ErrorResult(this, byteBuffer, serverArrivalTime));
+                errorResult.reset(byteBuffer, serverArrivalTime);
+                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(errorResult);
             }
 
             if (currentState == ParserState.SERVER_ERROR_DONE){
-                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(new Result.ServerErrorResult(this, byteBuffer, errorMessageStringBuilder.toString(), serverArrivalTime));
+                serverErrorResult.reset(byteBuffer, errorMessageStringBuilder.toString(), serverArrivalTime);
+                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(serverErrorResult);
             }
 
             if (currentState == ParserState.CLIENT_ERROR_DONE){
-                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(new Result.ClientErrorResult(this, byteBuffer, errorMessageStringBuilder.toString(), serverArrivalTime));
+                clientErrorResult.reset(byteBuffer, errorMessageStringBuilder.toString(), serverArrivalTime);
+                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(clientErrorResult);
             }
 
             if (currentState == ParserState.END_DONE){
-                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(new Result.ValueResult(this, byteBuffer, serverArrivalTime, valueCount));
+                valueResult.reset(byteBuffer, serverArrivalTime, valueCount);
+                ((ResponseAssemblerCompletedCallback) assemblerCompletedCallback).callback(valueResult);
             }
 
         } catch (Exception exception) {
-            Log.error("[ResponseAssembler] An exception occured in message assembly: " + exception.getMessage());
+            Log.error("[ResponseAssembler] An exception occured in message assembly: {}", exception.getMessage());
         }
     }
 
     private void transitionToNextState(byte currentValue, byte[] comparable, ParserState baseState){
         if (comparable[currentState.ordinal() - baseState.ordinal() + 1] == currentValue){
-            currentState = ParserState.values()[currentState.ordinal() + 1];
+            currentState = PARSER_STATES[currentState.ordinal() + 1];
         } else {
             invalidCommandStringBuilder.setLength(0);
             transitionToInvalid(new String(comparable, 0, currentState.ordinal() - baseState.ordinal() + 1, StandardCharsets.US_ASCII), currentValue);
@@ -356,6 +457,9 @@ public class ResponseAssembler extends Assembler{
         currentState = ParserState.INVALID;
     }
 
+    // values() copies the array on every call, so it is cached for the per-byte state transitions
+    private static final ParserState[] PARSER_STATES = ParserState.values();
+
     private enum ParserState{
         // A new message has begun, we have not yet read anything
         INITIAL,
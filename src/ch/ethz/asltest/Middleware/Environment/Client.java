@@ -1,6 +1,7 @@
 package ch.ethz.asltest.Middleware.Environment;
 
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -19,11 +20,28 @@ public class Client extends Environment.Entity{
     // Keep a reference to a socket channel since there is exactly one connection to a client at any time.
     private SocketChannel socketChannel;
 
+    // The remote address (ip:port), kept for the exported statistics
+    private String address;
+
     private static final Object lock = new Object();
 
+    /*
+     When the last byte of the last response was sent (0 before the first one). Written by the thread answering the
+     client and read by the thread reading its next query, which may be different ones (volatile for visibility).
+      */
+    private volatile long lastSendTime;
+    /*
+     Thinking times and response times of this client in ns. Created with their first value (null before), such
+     that connections which never send a query don't carry two histograms. Dropped once the client has
+     disconnected (see Statistics.unregisterClient()).
+      */
+    private volatile LatencyHistogram thinkingTimeHistogram;
+    private volatile LatencyHistogram responseTimeHistogram;
+
     public Client(SocketChannel socketChannel){
         super();
         this.socketChannel = socketChannel;
+        this.address = String.valueOf(socketChannel.socket().getRemoteSocketAddress());
         synchronized (lock){
             this.name = "Client-" + clientCount;
             clientID = clientCount;
@@ -35,6 +53,62 @@ public class Client extends Environment.Entity{
         return name;
     }
 
+    public String getAddress() {
+        return address;
+    }
+
+    public long getLastSendTime() {
+        return lastSendTime;
+    }
+
+    public void setLastSendTime(long lastSendTime) {
+        this.lastSendTime = lastSendTime;
+    }
+
+    // Null if no thinking time has been recorded
+    public LatencyHistogram getThinkingTimeHistogram() {
+        return thinkingTimeHistogram;
+    }
+
+    // Null if no response time has been recorded
+    public LatencyHistogram getResponseTimeHistogram() {
+        return responseTimeHistogram;
+    }
+
+    public void recordThinkingTime(long thinkingTime) {
+        LatencyHistogram histogram = thinkingTimeHistogram;
+        if (histogram == null){
+            synchronized (this){
+                if (thinkingTimeHistogram == null){
+                    thinkingTimeHistogram = new LatencyHistogram();
+                }
+                histogram = thinkingTimeHistogram;
+            }
+        }
+        histogram.record(thinkingTime);
+    }
+
+    public void recordResponseTime(long responseTime) {
+        LatencyHistogram histogram = responseTimeHistogram;
+        if (histogram == null){
+            synchronized (this){
+                if (responseTimeHistogram == null){
+                    responseTimeHistogram = new LatencyHistogram();
+                }
+                histogram = responseTimeHistogram;
+            }
+        }
+        histogram.record(responseTime);
+    }
+
+    // Drops the histograms, once their values have been consolidated
+    public void releaseHistograms() {
+        synchronized (this){
+            thinkingTimeHistogram = null;
+            responseTimeHistogram = null;
+        }
+    }
+
     public SocketChannel getSocketChannel() {
         return socketChannel;
     }
@@ -45,7 +119,7 @@ public class Client extends Environment.Entity{
                 socketChannel.close();
             }
         } catch (IOException iOException) {
-            Log.error("I/O exception encountered when closing SocketChannel \"" + socketChannel.toString() + "\": " + iOException.getMessage());
+            Log.error("[Client] I/O exception encountered when closing SocketChannel \"{}\": {}", socketChannel, iOException.getMessage());
         }
     }
 }
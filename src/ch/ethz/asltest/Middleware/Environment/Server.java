@@ -9,11 +9,14 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
     This class represents a memcached server and does not contain connection statuses.
-    Function getNewConnection returns a new connection to a server.
+    Function getNewConnection returns a new connection to a server, getNewChannelConnection a non-blocking one.
  */
 
 public class Server extends Environment.Entity{
@@ -25,6 +28,11 @@ public class Server extends Environment.Entity{
     private String address;
     private int port;
 
+    // The currently open connections to this server (of all threads)
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    // Error responses of this server (of all threads)
+    private final LongAdder errorCount = new LongAdder();
+
     private static final Object lock = new Object();
 
     public Server(String address, int port){
@@ -42,6 +50,48 @@ public class Server extends Environment.Entity{
         return name;
     }
 
+    // The index of the server in the Environment's server list, which doesn't change if connections are removed
+    public int getServerID() {
+        return serverID;
+    }
+
+    // host:port as given on the command line
+    public String getAddress() {
+        return address + ":" + port;
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public void recordError() {
+        errorCount.increment();
+    }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /*
+     Returns a new non-blocking connection to the server (used by EventLoopThreads).
+     Connecting itself is done in blocking mode.
+      */
+    public ServerConnection getNewChannelConnection(){
+        try {
+            SocketChannel socketChannel = SocketChannel.open();
+            socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, Parameters.getBoolean("server_socket_keepalive"));
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, Parameters.getBoolean("server_socket_tcp_nodelay"));
+            socketChannel.setOption(StandardSocketOptions.SO_RCVBUF, Parameters.getInteger("server_socket_rcv_buffer_size"));
+            socketChannel.setOption(StandardSocketOptions.SO_SNDBUF, Parameters.getInteger("server_socket_snd_buffer_size"));
+            socketChannel.connect(new InetSocketAddress(address, port));
+            socketChannel.configureBlocking(false);
+            return new ServerConnection(this, socketChannel);
+        } catch (IOException iOException){
+            Log.error("[Server] I/O exception encountered when connecting to Server {}:{}: {}", address, port, iOException.getMessage());
+            return null;
+        }
+    }
+
     public ServerConnection getNewConnection(){
         try {
             Socket socket;
@@ -52,7 +102,7 @@ public class Server extends Environment.Entity{
             socket.setSendBufferSize(Parameters.getInteger("server_socket_snd_buffer_size"));
             return new ServerConnection(this, socket);
         } catch (IOException iOException){
-            Log.error("[Server] I/O exception encountered when connecting to Server " + address + ":" + port + ": " + iOException.getMessage());
+            Log.error("[Server] I/O exception encountered when connecting to Server {}:{}: {}", address, port, iOException.getMessage());
             return null;
         }
     }
@@ -64,9 +114,24 @@ public class Server extends Environment.Entity{
 
         private boolean answerExpected;
 
+        // Only set for non-blocking connections
+        private SocketChannel socketChannel;
+
+        // The data staged to be written on a non-blocking connection and a reusable buffer to stage copies in
+        private ByteBuffer outgoingBuffer;
+        private ByteBuffer stagingBuffer;
+
         ServerConnection(Server server, Socket socket){
             this.server = server;
             this.socket = socket;
+            server.connectionCount.incrementAndGet();
+        }
+
+        ServerConnection(Server server, SocketChannel socketChannel){
+            this.server = server;
+            this.socket = socketChannel.socket();
+            this.socketChannel = socketChannel;
+            server.connectionCount.incrementAndGet();
         }
 
         public Server getServer() {
@@ -77,6 +142,43 @@ public class Server extends Environment.Entity{
             return socket;
         }
 
+        public SocketChannel getSocketChannel() {
+            return socketChannel;
+        }
+
+        /*
+         Returns an empty buffer with at least the given capacity, which can be filled and then staged.
+         The buffer is kept and reused for later requests.
+          */
+        public ByteBuffer getStagingBuffer(int capacity){
+            if (stagingBuffer == null || stagingBuffer.capacity() < capacity){
+                stagingBuffer = ByteBuffer.allocate(capacity);
+            }
+            stagingBuffer.clear();
+            return stagingBuffer;
+        }
+
+        // Stages the buffer's content (position to limit) to be written with flush()
+        public void stage(ByteBuffer byteBuffer){
+            outgoingBuffer = byteBuffer;
+        }
+
+        /*
+         Writes as much of the staged data as the non-blocking channel accepts.
+         Returns true once all staged data has been written.
+          */
+        public boolean flush() throws IOException{
+            if (outgoingBuffer == null){
+                return true;
+            }
+            socketChannel.write(outgoingBuffer);
+            if (outgoingBuffer.hasRemaining()){
+                return false;
+            }
+            outgoingBuffer = null;
+            return true;
+        }
+
         public void setAnswerExpected(boolean answerExpected){
             this.answerExpected = answerExpected;
         }
@@ -89,10 +191,11 @@ public class Server extends Environment.Entity{
             try {
                 if (socket.isConnected()) {
                     socket.close();
+                    server.connectionCount.decrementAndGet();
                 }
-                Log.info("ServerConnection to server \"" + server.name + "\" closed");
+                Log.info("[Server] ServerConnection to server \"{}\" closed", server.name);
             } catch (IOException iOException) {
-                Log.error("I/O exception encountered when closing SocketChannel \"" + socket.toString() + "\": " + iOException.getMessage());
+                Log.error("[Server] I/O exception encountered when closing SocketChannel \"{}\": {}", socket, iOException.getMessage());
             }
         }
     }
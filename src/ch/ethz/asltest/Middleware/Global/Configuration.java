@@ -2,6 +2,7 @@ package ch.ethz.asltest.Middleware.Global;
 
 /*
     This class contains the MW configuraion set by the command line arguments.
+    Whether gets are sharded may be changed while running (see Management), it is read for every get.
  */
 
 import java.util.List;
@@ -26,7 +27,7 @@ public class Configuration{
     private static int port;
     private static List<String> mcAddresses;
     private static int threadCount;
-    private static boolean readSharded;
+    private static volatile boolean readSharded;
 
     public static String getIp(){
         if (!valuesSet){
@@ -65,6 +66,10 @@ public class Configuration{
         return readSharded;
     }
 
+    public static void setReadSharded(boolean readSharded){
+        Configuration.readSharded = readSharded;
+    }
+
     public static void setValues(String ip, int port, List<String> mcAddresses, int threadCount, boolean readSharded){
         Configuration.ip = ip;
         Configuration.port = port;
@@ -17,10 +17,15 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
     The Parameters class stores all parameters read from the MWParameters.xml config file located
     in resources.
+    Integer and long parameters may be changed while running (by the Autotuner). This only has an effect on
+    parameters which are read on every use, most are only read once at startup. The ones read for every Job are
+    cached by the TunableParameters, which are refreshed whenever one of them is set.
  */
 
 public class Parameters {
@@ -37,8 +42,9 @@ public class Parameters {
 
     private static HashMap<String, String> stringSettings;
     private static HashMap<String, Boolean> booleanSettings;
-    private static HashMap<String, Integer> integerSettings;
-    private static HashMap<String, Long> longSettings;
+    // Concurrent, since these may be set while running
+    private static Map<String, Integer> integerSettings;
+    private static Map<String, Long> longSettings;
 
     private static final String stringTag = "string";
     private static final String boolTag = "bool";
@@ -68,7 +74,7 @@ public class Parameters {
                 File parameterFile = new File(parameterFileProperty);
                 readParameters(new FileInputStream(parameterFile));
             } catch (FileNotFoundException fileNotFoundException){
-                Log.error("[Parameters] Property 'asl-fall18-project.configurationFile' set, but specified file '" + parameterFileProperty + "' could not be found");
+                Log.error("[Parameters] Property 'asl-fall18-project.configurationFile' set, but specified file '{}' could not be found", parameterFileProperty);
             }
         } else {
             readParameters(Parameters.class.getResourceAsStream("/MWParameters.xml"));
@@ -77,7 +83,7 @@ public class Parameters {
 
     public static String getString(String name){
         if (!stringSettings.containsKey(name)){
-            Log.error("[Parameters] String parameter '" + name + "' requested, but not available");
+            Log.error("[Parameters] String parameter '{}' requested, but not available", name);
             return "";
         }
         return stringSettings.get(name);
@@ -85,7 +91,7 @@ public class Parameters {
 
     public static Boolean getBoolean(String name){
         if (!booleanSettings.containsKey(name)){
-            Log.error("[Parameters] Boolean parameter '" + name + "' requested, but not available");
+            Log.error("[Parameters] Boolean parameter '{}' requested, but not available", name);
             return false;
         }
         return booleanSettings.get(name);
@@ -93,7 +99,7 @@ public class Parameters {
 
     public static Integer getInteger(String name){
         if (!integerSettings.containsKey(name)){
-            Log.error("[Parameters] Integer parameter '" + name + "' requested, but not available");
+            Log.error("[Parameters] Integer parameter '{}' requested, but not available", name);
             return 0;
         }
         return integerSettings.get(name);
@@ -101,17 +107,49 @@ public class Parameters {
 
     public static Long getLong(String name){
         if (!longSettings.containsKey(name)){
-            Log.error("[Parameters] Long parameter '" + name + "' requested, but not available");
+            Log.error("[Parameters] Long parameter '{}' requested, but not available", name);
             return 0L;
         }
         return longSettings.get(name);
     }
 
+    public static boolean isInteger(String name){
+        return integerSettings.containsKey(name);
+    }
+
+    public static boolean isLong(String name){
+        return longSettings.containsKey(name);
+    }
+
+    // Changes an existing integer parameter while running
+    public static void setInteger(String name, int value){
+        if (!integerSettings.containsKey(name)){
+            Log.error("[Parameters] Integer parameter '{}' set, but not available", name);
+            return;
+        }
+        integerSettings.put(name, value);
+        if (TunableParameters.isTunable(name)){
+            TunableParameters.refresh();
+        }
+    }
+
+    // Changes an existing long parameter while running
+    public static void setLong(String name, long value){
+        if (!longSettings.containsKey(name)){
+            Log.error("[Parameters] Long parameter '{}' set, but not available", name);
+            return;
+        }
+        longSettings.put(name, value);
+        if (TunableParameters.isTunable(name)){
+            TunableParameters.refresh();
+        }
+    }
+
     private static void readParameters(InputStream inputStream){
         stringSettings = new HashMap<>();
         booleanSettings = new HashMap<>();
-        integerSettings = new HashMap<>();
-        longSettings = new HashMap<>();
+        integerSettings = new ConcurrentHashMap<>();
+        longSettings = new ConcurrentHashMap<>();
 
         try {
 
@@ -180,8 +218,7 @@ public class Parameters {
 
 
         } catch (SAXParseException err){
-            Log.error("[Parameters] Parsing error" + ", line "
-                    + err.getLineNumber() + " while reading externally set parameters: " + err.getMessage());
+            Log.error("[Parameters] Parsing error, line {} while reading externally set parameters: {}", err.getLineNumber(), err.getMessage());
 
         } catch (SAXException e){
             Exception x = e.getException();
@@ -192,5 +229,6 @@ public class Parameters {
         }
 
         parsed = true;
+        TunableParameters.refresh();
     }
 }
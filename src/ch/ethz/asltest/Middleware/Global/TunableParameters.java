@@ -0,0 +1,68 @@
+package ch.ethz.asltest.Middleware.Global;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+    The TunableParameters are the parameters that may be changed while running (by the Autotuner or through
+    Management) and are read for every Job. They are cached in volatile fields, such that the per Job paths don't
+    look them up in the Parameters' maps (and unbox them) every time.
+    The cache is filled once the Parameters have been parsed and refreshed by Parameters.setInteger()/setLong()
+    whenever one of them is changed, all other parameters are only read at startup (or once per loop iteration).
+ */
+
+public class TunableParameters {
+
+    public static final Set<String> NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "worker_thread_max_jobs_in_flight",
+            "queue_capacity_bytes",
+            "queue_fair_quantum",
+            "lane_bulk_set_data_bytes",
+            "lane_bulk_get_key_count"
+    )));
+
+    private static volatile int workerThreadMaxJobsInFlight;
+    private static volatile long queueCapacityBytes;
+    private static volatile int queueFairQuantum;
+    private static volatile int laneBulkSetDataBytes;
+    private static volatile int laneBulkGetKeyCount;
+
+    private TunableParameters(){
+
+    }
+
+    public static boolean isTunable(String name){
+        return NAMES.contains(name);
+    }
+
+    // Reads all of them from the Parameters again
+    static void refresh(){
+        workerThreadMaxJobsInFlight = Parameters.getInteger("worker_thread_max_jobs_in_flight");
+        queueCapacityBytes = Parameters.getLong("queue_capacity_bytes");
+        queueFairQuantum = Parameters.getInteger("queue_fair_quantum");
+        laneBulkSetDataBytes = Parameters.getInteger("lane_bulk_set_data_bytes");
+        laneBulkGetKeyCount = Parameters.getInteger("lane_bulk_get_key_count");
+    }
+
+    public static int getWorkerThreadMaxJobsInFlight(){
+        return workerThreadMaxJobsInFlight;
+    }
+
+    public static long getQueueCapacityBytes(){
+        return queueCapacityBytes;
+    }
+
+    public static int getQueueFairQuantum(){
+        return queueFairQuantum;
+    }
+
+    public static int getLaneBulkSetDataBytes(){
+        return laneBulkSetDataBytes;
+    }
+
+    public static int getLaneBulkGetKeyCount(){
+        return laneBulkGetKeyCount;
+    }
+}
@@ -0,0 +1,201 @@
+package ch.ethz.asltest.Middleware.Job;
+
+import ch.ethz.asltest.Middleware.Environment.Client;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    The FairJobScheduler replaces the single FIFO of the JobQueue if queue_scheduling_fair is set.
+    Jobs are kept in one virtual queue per client and priority class. GETs and SETs each have a configurable
+    priority, a class with a higher priority is always served first. Within a class, the clients are served
+    with deficit round robin over the estimated cost of their Jobs:
+    - GET: queue_fair_get_key_cost per key
+    - SET: queue_fair_set_base_cost plus the length of the message (which is dominated by the data bytes)
+    Every time a client is at the front of the round, its deficit is increased by queue_fair_quantum, and it may
+    dequeue Jobs as long as their cost is covered. Clients sending large requests thus get fewer Jobs through.
+    A client's queues are dropped once they have all been drained, such that disconnected clients are not kept.
+    This class is thread safe, all access is guarded by a single lock.
+ */
+
+class FairJobScheduler {
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    private final int capacity;
+    private int size;
+
+    private final int getKeyCost;
+    private final int setBaseCost;
+
+    // The class index of gets and sets (0 is served first), both are the same if the priorities are equal
+    private final int getClass;
+    private final int setClass;
+
+    // One round of active (i.e. non-empty) client queues per class
+    private final List<ArrayDeque<ClientQueue>> activeRounds;
+    // Each client with queued jobs has one queue per class, created on its first job
+    private final HashMap<Client, ClientQueue[]> clientQueueMap;
+
+    FairJobScheduler(int capacity){
+        this.capacity = capacity;
+        lock = new ReentrantLock(Parameters.getBoolean("queue_fifo"));
+        notEmpty = lock.newCondition();
+
+        getKeyCost = Parameters.getInteger("queue_fair_get_key_cost");
+        setBaseCost = Parameters.getInteger("queue_fair_set_base_cost");
+
+        int getPriority = Parameters.getInteger("queue_fair_get_priority");
+        int setPriority = Parameters.getInteger("queue_fair_set_priority");
+        getClass = getPriority >= setPriority ? 0 : 1;
+        setClass = setPriority >= getPriority ? 0 : 1;
+
+        int classCount = getPriority == setPriority ? 1 : 2;
+        activeRounds = new ArrayList<>(classCount);
+        for (int i = 0; i < classCount; i++){
+            activeRounds.add(new ArrayDeque<>());
+        }
+        clientQueueMap = new HashMap<>();
+    }
+
+    // Returns false without waiting if the scheduler is full
+    boolean offer(Job job){
+        lock.lock();
+        try{
+            if (size >= capacity){
+                return false;
+            }
+
+            int priorityClass = job instanceof Job.SetJob ? setClass : getClass;
+            ClientQueue[] clientQueues = clientQueueMap.get(job.getSubmitter());
+            if (clientQueues == null){
+                clientQueues = new ClientQueue[activeRounds.size()];
+                clientQueueMap.put(job.getSubmitter(), clientQueues);
+            }
+            if (clientQueues[priorityClass] == null){
+                clientQueues[priorityClass] = new ClientQueue(job.getSubmitter());
+            }
+
+            ClientQueue clientQueue = clientQueues[priorityClass];
+            if (clientQueue.jobs.isEmpty()){
+                // The client joins the round at its end
+                activeRounds.get(priorityClass).addLast(clientQueue);
+            }
+            clientQueue.jobs.addLast(job);
+            size++;
+
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Job poll(long timeout, TimeUnit unit) throws InterruptedException{
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try{
+            while (size == 0){
+                if (nanos <= 0){
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int drainTo(Collection<? super Job> collection, int maxJobs){
+        lock.lock();
+        try{
+            int drainedCount = 0;
+            while (size > 0 && drainedCount < maxJobs){
+                collection.add(dequeue());
+                drainedCount++;
+            }
+            return drainedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size(){
+        lock.lock();
+        try{
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // To be called with the lock held and at least one Job queued
+    private Job dequeue(){
+        // Read on every dequeue, since it may be tuned while running
+        int quantum = Math.max(1, TunableParameters.getQueueFairQuantum());
+        for (ArrayDeque<ClientQueue> activeRound : activeRounds){
+            while (!activeRound.isEmpty()){
+                ClientQueue clientQueue = activeRound.peekFirst();
+                Job job = clientQueue.jobs.peekFirst();
+                int cost = getCost(job);
+
+                if (clientQueue.deficit < cost){
+                    // Not enough credit left, the next client's turn
+                    clientQueue.deficit += quantum;
+                    activeRound.addLast(activeRound.pollFirst());
+                    continue;
+                }
+
+                clientQueue.deficit -= cost;
+                clientQueue.jobs.pollFirst();
+                if (clientQueue.jobs.isEmpty()){
+                    // Idle clients don't keep their credit
+                    clientQueue.deficit = 0;
+                    activeRound.pollFirst();
+                    removeIfDrained(clientQueue.client);
+                }
+
+                size--;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    // Forgets the client once all its queues are empty, they are created again on its next job
+    private void removeIfDrained(Client client){
+        for (ClientQueue clientQueue : clientQueueMap.get(client)){
+            if (clientQueue != null && !clientQueue.jobs.isEmpty()){
+                return;
+            }
+        }
+        clientQueueMap.remove(client);
+    }
+
+    private int getCost(Job job){
+        if (job instanceof Job.GetJob){
+            return ((Job.GetJob) job).getKeyCount() * getKeyCost;
+        }
+        return setBaseCost + job.getRequestBytes();
+    }
+
+    private static class ClientQueue {
+        private final Client client;
+        private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        private long deficit;
+
+        ClientQueue(Client client){
+            this.client = client;
+        }
+    }
+}
@@ -4,12 +4,19 @@ import ch.ethz.asltest.Middleware.Environment.Client;
 import ch.ethz.asltest.Middleware.Environment.Environment;
 import ch.ethz.asltest.Middleware.Environment.Server;
 import ch.ethz.asltest.Middleware.Assembler.QueryAssembler;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.SlowRequestRecorder;
+import ch.ethz.asltest.Middleware.Util.ObjectPool;
 import ch.ethz.asltest.Middleware.Util.OffsetList;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
 
@@ -18,21 +25,45 @@ import java.net.Socket;
     a server with a QueryAssembler that is bound to the Job at creation time (Jobs are created by
     QueryAssembler after being parsed).
     This class also contains all statistical data concerning it (e.g. timestamps).
+    Jobs are pooled: create*Job() takes a Job from the pool and resets it, release() has to be called exactly once
+    after the Job has been answered and submitted to Statistics (which doesn't keep a reference to it).
  */
 
-public abstract class Job {
+public abstract class Job implements ObjectPool.Poolable {
+
+    private static ObjectPool<SetJob> setJobPool;
+    private static ObjectPool<GetJob> getJobPool;
+
+    // To be called once the server list is known (Jobs hold arrays sized to it)
+    public static void initializePools(){
+        int capacity = Parameters.getInteger("job_pool_capacity");
+        setJobPool = new ObjectPool<>("SetJob", capacity, SetJob::new);
+        getJobPool = new ObjectPool<>("GetJob", capacity, GetJob::new);
+    }
+
+    private final AtomicBoolean pooled = new AtomicBoolean();
 
     protected Client submitter;
     protected QueryAssembler queryAssembler;
 
     protected int roundRobinIndex;
 
+    // The lane (i.e. JobQueue and subset of WorkerThreads) the job is processed in
+    protected Lane lane;
+
+    // Whether the job is timed in all phases (see Instrumentation), the phase times stay 0 otherwise
+    protected boolean instrumented;
+    // The number of Jobs an instrumented job stands for (see Instrumentation.sampleWeight())
+    protected int sampleWeight;
+
     // When we can read the first byte
     protected long clientArrivalTime;
     // When the full job has been sent to the server
     protected long[] serverSendTime;
     // When the first data has been read from the server (before parsing)
     protected long[] serverArrivalTime;
+    // Whether the job has been written to a server and a response is expected from it
+    protected boolean[] serverAnswerExpected;
     // When the full job has been sent back to the client
     protected long clientSendTime;
 
@@ -46,15 +77,80 @@ public abstract class Job {
     // The size of the queue after removing this job
     protected int dequeueSize;
 
+    // The length of the request, which stays pinned in the QueryAssembler's buffer until the job is written
+    protected int requestBytes;
+    // The request bytes in the queue before adding this job
+    protected long enqueueBytes;
+    // The request bytes in the queue after removing this job
+    protected long dequeueBytes;
+
     // The amount of keys that have not been found on the server (zero for sets)
     protected int missCount;
 
-    private Job(Client submitter, QueryAssembler queryAssembler){
-        this.submitter = submitter;
-        this.queryAssembler = queryAssembler;
+    // The first bytes of the first key, kept for the SlowRequestRecorder once the request has been released
+    private final byte[] key;
+    private int keyLength;
+
+    private Job(){
         this.serverSendTime = new long[Environment.getServerList().size()];
         this.serverArrivalTime = new long[Environment.getServerList().size()];
+        this.serverAnswerExpected = new boolean[Environment.getServerList().size()];
+        this.key = new byte[SlowRequestRecorder.getKeyBytes()];
+    }
+
+    // Resets all state of a (possibly reused) Job
+    void initialize(Client submitter, QueryAssembler queryAssembler, Lane lane, long arrivalTime){
+        this.submitter = submitter;
+        this.queryAssembler = queryAssembler;
+        this.lane = lane;
+        this.requestBytes = queryAssembler.getMessageLength();
+        this.clientArrivalTime = arrivalTime;
+        this.sampleWeight = Instrumentation.sampleWeight();
+        this.instrumented = sampleWeight > 0;
+
+        Arrays.fill(serverSendTime, 0);
+        Arrays.fill(serverArrivalTime, 0);
+        Arrays.fill(serverAnswerExpected, false);
+        roundRobinIndex = 0;
+        clientSendTime = 0;
+        enqueueTime = 0;
+        dequeueTime = 0;
+        enqueueSize = 0;
+        dequeueSize = 0;
+        enqueueBytes = 0;
+        dequeueBytes = 0;
+        missCount = 0;
+        keyLength = 0;
+    }
+
+    // Returns the Job to its pool, it must not be used afterwards
+    public abstract void release();
+
+    @Override
+    public AtomicBoolean getPooled(){
+        return pooled;
+    }
+
+    // To be called before the QueryAssembler is released
+    public void captureKey(){
+        if (key.length > 0){
+            keyLength = queryAssembler.copyFirstKey(key);
+        }
+    }
+
+    // Copies the captured key bytes into target, returns their count
+    public int copyKey(byte[] target){
+        int length = Math.min(keyLength, target.length);
+        System.arraycopy(key, 0, target, 0, length);
+        return length;
+    }
 
+    public boolean isInstrumented(){
+        return instrumented;
+    }
+
+    public int getSampleWeight(){
+        return sampleWeight;
     }
 
     public void setRoundRobinIndex(int roundRobinIndex){
@@ -65,6 +161,10 @@ public abstract class Job {
         this.serverArrivalTime[globalServerIndex] = serverReceivedTime;
     }
 
+    public void setServerSendTime(long serverSendTime, int globalServerIndex){
+        this.serverSendTime[globalServerIndex] = serverSendTime;
+    }
+
     public void setClientSendTime(long clientSendTime){
         this.clientSendTime = clientSendTime;
     }
@@ -77,6 +177,14 @@ public abstract class Job {
         this.enqueueSize = enqueueSize;
     }
 
+    public void setDequeueBytes(long dequeueBytes){
+        this.dequeueBytes = dequeueBytes;
+    }
+
+    public void setEnqueueBytes(long enqueueBytes){
+        this.enqueueBytes = enqueueBytes;
+    }
+
     public void setEnqueueTime(long enqueueTime){
         this.enqueueTime = enqueueTime;
     }
@@ -93,6 +201,18 @@ public abstract class Job {
     }
 
 
+    public boolean isAnswerExpected(int globalServerIndex){
+        return serverAnswerExpected[globalServerIndex];
+    }
+
+    public Lane getLane(){
+        return lane;
+    }
+
+    public int getRoundRobinIndex(){
+        return roundRobinIndex;
+    }
+
     public long getServerArrivalTime(int globalServerIndex){
         return serverArrivalTime[globalServerIndex];
     }
@@ -125,6 +245,18 @@ public abstract class Job {
         return dequeueSize;
     }
 
+    public int getRequestBytes(){
+        return requestBytes;
+    }
+
+    public long getEnqueueBytes(){
+        return enqueueBytes;
+    }
+
+    public long getDequeueBytes(){
+        return dequeueBytes;
+    }
+
     public int getMissCount(){
         return missCount;
     }
@@ -137,15 +269,20 @@ public abstract class Job {
         return queryAssembler;
     }
 
-    public static SetJob createSetJob(Client submitter, QueryAssembler queryAssembler, long arrivalTime){
-        SetJob setJob = new SetJob(submitter, queryAssembler, arrivalTime);
+    public static SetJob createSetJob(Client submitter, QueryAssembler queryAssembler, Lane lane, long arrivalTime){
+        SetJob setJob = setJobPool.acquire();
+        setJob.initialize(submitter, queryAssembler, lane, arrivalTime);
 
         return setJob;
     }
 
 
-    public static GetJob createGetJob(Client submitter, QueryAssembler queryAssembler, int keyCount, long arrivalTime){
-        GetJob getJob = new GetJob(submitter, queryAssembler, keyCount, arrivalTime);
+    public static GetJob createGetJob(Client submitter, QueryAssembler queryAssembler, int keyCount, Lane lane, long arrivalTime){
+        GetJob getJob = getJobPool.acquire();
+        getJob.initialize(submitter, queryAssembler, lane, arrivalTime);
+        getJob.keyCount = keyCount;
+        getJob.missCount = keyCount;
+        getJob.isMultiEvaluated = false;
 
         return getJob;
     }
@@ -154,18 +291,39 @@ public abstract class Job {
 
     public static class SetJob extends Job{
 
-        SetJob(Client submitter, QueryAssembler queryAssembler, long arrivalTime){
-            super(submitter, queryAssembler);
-            this.clientArrivalTime = arrivalTime;
+        SetJob(){
+            super();
+        }
+
+        @Override
+        public void release(){
+            setJobPool.release(this);
         }
 
         public void writeToServers(OffsetList<Server.ServerConnection> serverConnections){
             serverConnections.setOffset(roundRobinIndex);
             for (Server.ServerConnection serverConnection : serverConnections) {
+                int serverIndex = serverConnection.getServer().getServerID();
                 queryAssembler.writeToServer(serverConnection);
-                serverSendTime[serverConnections.indexOf(serverConnection)] = System.nanoTime();
+                if (instrumented){
+                    serverSendTime[serverIndex] = System.nanoTime();
+                }
                 queryAssembler.rewind();
                 serverConnection.setAnswerExpected(true);
+                serverAnswerExpected[serverIndex] = true;
+            }
+        }
+
+        /*
+         Stages the request on all (non-blocking) server connections without writing it.
+         The send times are to be set by the caller once the connections have been flushed.
+          */
+        public void stageForServers(OffsetList<Server.ServerConnection> serverConnections){
+            serverConnections.setOffset(roundRobinIndex);
+            for (Server.ServerConnection serverConnection : serverConnections) {
+                serverConnection.stage(queryAssembler.duplicateMessage());
+                serverConnection.setAnswerExpected(true);
+                serverAnswerExpected[serverConnection.getServer().getServerID()] = true;
             }
         }
 
@@ -176,16 +334,22 @@ public abstract class Job {
         private boolean isMultiEvaluated = false;
         private boolean isMulti = false;
 
-        public final int keyCount;
+        private int keyCount;
 
         private static byte[] header = {0x67, 0x65, 0x74, 0x20};
         private static byte[] tail = {0x0d, 0x0a};
 
-        GetJob(Client submitter, QueryAssembler queryAssembler, int keyCount, long arrivalTime){
-            super(submitter, queryAssembler);
-            this.keyCount = keyCount;
-            this.missCount = keyCount;
-            this.clientArrivalTime = arrivalTime;
+        GetJob(){
+            super();
+        }
+
+        @Override
+        public void release(){
+            getJobPool.release(this);
+        }
+
+        public int getKeyCount(){
+            return keyCount;
         }
 
         /*
@@ -206,10 +370,13 @@ public abstract class Job {
 
                     if (currentKeyCount > 0){
                         writeToServer(serverConnection, currentKeyCount);
-                        serverSendTime[serverConnections.indexOf(serverConnection)] = System.nanoTime();
+                        if (instrumented){
+                            serverSendTime[serverConnection.getServer().getServerID()] = System.nanoTime();
+                        }
                     }
 
                     serverConnection.setAnswerExpected(currentKeyCount > 0);
+                    serverAnswerExpected[serverConnection.getServer().getServerID()] = currentKeyCount > 0;
 
                     if (rest > 0){
                         rest--;
@@ -221,17 +388,68 @@ public abstract class Job {
                 for (Server.ServerConnection serverConnection : serverConnections){
                   if (index == roundRobinIndex){
                       queryAssembler.writeToServer(serverConnection);
-                      serverSendTime[serverConnections.indexOf(serverConnection)] = System.nanoTime();
+                      if (instrumented){
+                          serverSendTime[serverConnection.getServer().getServerID()] = System.nanoTime();
+                      }
                       // No need to rewind the queryAssembler
                       serverConnection.setAnswerExpected(true);
                   } else {
                       serverConnection.setAnswerExpected(false);
                   }
+                  serverAnswerExpected[serverConnection.getServer().getServerID()] = (index == roundRobinIndex);
                   index++;
                 }
             }
         }
 
+        /*
+         Stages the request on one (non-sharded) or many (sharded) non-blocking server connections
+         without writing it. The send times are to be set by the caller once the connections have been flushed.
+          */
+        public void stageForServers(OffsetList<Server.ServerConnection> serverConnections, boolean sharded){
+            if (sharded) {
+                int serverCount = serverConnections.size();
+                int base = (keyCount / serverCount);
+                int rest = (keyCount % serverCount);
+                int currentKeyCount;
+
+                serverConnections.setOffset(roundRobinIndex);
+                for (Server.ServerConnection serverConnection : serverConnections){
+                    currentKeyCount = base + (rest > 0 ? 1 : 0);
+
+                    if (currentKeyCount > 0){
+                        // The keys of a part never exceed the length of the whole message
+                        ByteBuffer stagingBuffer = serverConnection.getStagingBuffer(queryAssembler.getMessageLength() + header.length + tail.length);
+                        stagingBuffer.put(header);
+                        queryAssembler.putGetKeys(stagingBuffer, currentKeyCount);
+                        stagingBuffer.put(tail);
+                        stagingBuffer.flip();
+                        serverConnection.stage(stagingBuffer);
+                    }
+
+                    serverConnection.setAnswerExpected(currentKeyCount > 0);
+                    serverAnswerExpected[serverConnection.getServer().getServerID()] = currentKeyCount > 0;
+
+                    if (rest > 0){
+                        rest--;
+                    }
+                }
+
+            } else {
+                int index = 0;
+                for (Server.ServerConnection serverConnection : serverConnections){
+                    if (index == roundRobinIndex){
+                        serverConnection.stage(queryAssembler.duplicateMessage());
+                        serverConnection.setAnswerExpected(true);
+                    } else {
+                        serverConnection.setAnswerExpected(false);
+                    }
+                    serverAnswerExpected[serverConnection.getServer().getServerID()] = (index == roundRobinIndex);
+                    index++;
+                }
+            }
+        }
+
         /*
          Sharded write, which writes the next keyCount requests to the server (including header and tail)
          Doesn't write anything for keyCount 0
@@ -250,7 +468,7 @@ public abstract class Job {
             try{
                 serverConnection.getSocket().getOutputStream().flush();
             } catch (IOException iOException){
-                Log.error("[Job] IOException while writing to server: " + iOException.getMessage());
+                Log.error("[Job] IOException while writing to server: {}", iOException.getMessage());
             }
         }
 
@@ -260,7 +478,7 @@ public abstract class Job {
                 OutputStream outputStream = socket.getOutputStream();
                 outputStream.write(buffer, 0, buffer.length);
             } catch (IOException iOException){
-                Log.error("[Job] IOException while writing to server: " + iOException.getMessage());
+                Log.error("[Job] IOException while writing to server: {}", iOException.getMessage());
             }
         }
 
@@ -275,4 +493,12 @@ public abstract class Job {
         }
     }
 
+    /*
+     Large requests (many keys or many data bytes) occupy a WorkerThread for much longer than small ones.
+     If lanes are enabled, they are queued and processed separately such that small requests don't wait behind them.
+      */
+    public enum Lane{
+        SMALL, BULK
+    }
+
 }
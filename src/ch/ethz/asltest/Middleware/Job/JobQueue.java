@@ -1,15 +1,32 @@
 package ch.ethz.asltest.Middleware.Job;
 
 import ch.ethz.asltest.Middleware.Global.Parameters;
-import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
+import ch.ethz.asltest.Middleware.Log.UtilizationAccounting;
 
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 /*
     The JobQueue contains all jobs received and parsed, but not yet processed. Gets polled by WorkerThreads.
     This class is a wrapper over a BlockingQueue of type Job, exposing a minimal interface.
+    If queue_scheduling_fair is set, the Jobs are scheduled by a FairJobScheduler instead (fair across clients).
+    Besides the number of Jobs (queue_capacity), the queue can be bound by the bytes of request data it pins
+    (queue_capacity_bytes, shared by all lanes). There is no per-client bound: a client's QueryAssembler stays
+    blocked until its Job is answered, so a client never has more than one Job queued.
+    offer() doesn't wait for the Job to fit (in Jobs and bytes), it refuses the Job instead, such that the NetThread
+    keeps serving the other clients. The producer keeps the refused Job (its client stays blocked) and offers it
+    again once the space listener (see setSpaceListener()) reports that Jobs were taken or bytes were released.
+    A Job is always admitted if nothing is queued, such that oversized requests can't be refused forever.
+    If worker_bulk_lane_thread_count is set, there is one JobQueue per Job.Lane, each with its own capacity. A full
+    lane only refuses the Jobs of that lane, the others are still admitted.
+    If the UtilizationAccounting is enabled, the queue keeps the sums of the times Jobs were put and taken (relative
+    to its creation), from which the integral of its size over time follows without locking:
+    taken time sum - put time sum + queued Jobs * now (the sums may overflow, their difference does not).
  */
 
 public class JobQueue {
@@ -19,34 +36,258 @@ public class JobQueue {
         return ourInstance;
     }
 
+    // One queue per lane, null if lanes are disabled (all lanes share ourInstance)
+    private static JobQueue[] laneInstances;
+    public static JobQueue getInstance(Job.Lane lane) {
+        if (laneInstances == null){
+            return ourInstance;
+        }
+        return laneInstances[lane.ordinal()];
+    }
+
     private BlockingQueue<Job> blockingQueue;
+    private FairJobScheduler fairJobScheduler;
+    // In Jobs
+    private final int capacity;
+
+    // Byte accounting, the bound is read on every offer() (see TunableParameters) since it may be tuned while running
+    private static long queuedBytes;
+    // Shared by the lanes, since the bound applies to the bytes of all of them
+    private static final ReentrantLock bytesLock = new ReentrantLock();
+    // Set once a Job has been refused, cleared (and the listener called) once bytes are released (guarded by bytesLock)
+    private static boolean producerWaiting;
+    private static volatile Runnable spaceListener;
+    // Set once a Job has been refused since the queue was full, cleared (and the listener called) once a Job is taken
+    private volatile boolean producerWaitingForCapacity;
+
+    // Utilization accounting (relative to origin), null if disabled
+    private final long origin;
+    private LongAdder putTimeSum;
+    private LongAdder takeTimeSum;
+    private LongAdder putCount;
+    private LongAdder takeCount;
+    // The time producers spent in offer()
+    private LongAdder putTime;
 
     public static void initialize(){
         ourInstance = new JobQueue();
+        if (Parameters.getInteger("worker_bulk_lane_thread_count") > 0){
+            laneInstances = new JobQueue[Job.Lane.values().length];
+            laneInstances[Job.Lane.SMALL.ordinal()] = ourInstance;
+            for (Job.Lane lane : Job.Lane.values()){
+                if (laneInstances[lane.ordinal()] == null){
+                    laneInstances[lane.ordinal()] = new JobQueue();
+                }
+            }
+        }
     }
 
     private JobQueue(){
-        blockingQueue = new ArrayBlockingQueue<>(Parameters.getInteger("queue_capacity"), Parameters.getBoolean("queue_fifo"));
+        capacity = Parameters.getInteger("queue_capacity");
+        if (Parameters.getBoolean("queue_scheduling_fair")){
+            fairJobScheduler = new FairJobScheduler(capacity);
+        } else {
+            blockingQueue = new ArrayBlockingQueue<>(capacity, Parameters.getBoolean("queue_fifo"));
+        }
+        origin = System.nanoTime();
+        if (UtilizationAccounting.isEnabled()){
+            putTimeSum = new LongAdder();
+            takeTimeSum = new LongAdder();
+            putCount = new LongAdder();
+            takeCount = new LongAdder();
+            putTime = new LongAdder();
+        }
+    }
+
+    // Called (by the thread releasing bytes) once a refused Job may fit, e.g. to wake up the producer's selector
+    public static void setSpaceListener(Runnable listener){
+        spaceListener = listener;
     }
 
-    public void put(Job job){
-        try {
-            blockingQueue.put(job);
-        } catch (InterruptedException interruptedException){
-            Log.warn("Interruption exception encountered in Queue draw method: " + interruptedException.getMessage());
+    // Puts the job if there is space for it and its request bytes fit, returns false without waiting otherwise
+    public boolean offer(Job job){
+        long startTime = putTime == null ? 0 : System.nanoTime();
+        if (!acquireBytes(job)){
+            return false;
+        }
+        /*
+         Accounted as put before the handoff, such that a WorkerThread never counts a Job as taken before it counts
+         as put. The occupancy integral is ahead by the time the handoff takes (or a refused offer, which is undone).
+          */
+        long putTimestamp = 0;
+        if (putTime != null){
+            putTimestamp = System.nanoTime();
+            putTimeSum.add(putTimestamp - origin);
+            putCount.increment();
         }
+        if (!enqueue(job)){
+            producerWaitingForCapacity = true;
+            // A Job may have been taken before the flag was set, without calling the listener
+            if (!enqueue(job)){
+                returnBytes(job);
+                if (putTime != null){
+                    putTimeSum.add(origin - putTimestamp);
+                    putCount.decrement();
+                }
+                return false;
+            }
+        }
+        if (putTime != null){
+            putTime.add(System.nanoTime() - startTime);
+        }
+        return true;
+    }
+
+    private boolean enqueue(Job job){
+        if (fairJobScheduler != null){
+            return fairJobScheduler.offer(job);
+        }
+        return blockingQueue.offer(job);
     }
 
     public Job poll(long timeout, TimeUnit unit) throws InterruptedException{
-        return blockingQueue.poll(timeout, unit);
+        Job job;
+        if (fairJobScheduler != null){
+            job = fairJobScheduler.poll(timeout, unit);
+        } else {
+            job = blockingQueue.poll(timeout, unit);
+        }
+        if (job != null){
+            releaseBytes(job);
+            accountTaken(1);
+            notifyTaken();
+        }
+        return job;
+    }
+
+    // Appends up to maxJobs jobs that are available right away to the given list
+    public int drainTo(List<Job> jobs, int maxJobs){
+        int firstIndex = jobs.size();
+        int drainedCount;
+        if (fairJobScheduler != null){
+            drainedCount = fairJobScheduler.drainTo(jobs, maxJobs);
+        } else {
+            drainedCount = blockingQueue.drainTo(jobs, maxJobs);
+        }
+        for (int i = firstIndex; i < jobs.size(); i++){
+            releaseBytes(jobs.get(i));
+        }
+        accountTaken(drainedCount);
+        if (drainedCount > 0){
+            notifyTaken();
+        }
+        return drainedCount;
+    }
+
+    private void notifyTaken(){
+        if (producerWaitingForCapacity){
+            producerWaitingForCapacity = false;
+            notifySpaceListener();
+        }
+    }
+
+    private static void notifySpaceListener(){
+        Runnable listener = spaceListener;
+        if (listener != null){
+            listener.run();
+        }
+    }
+
+    private void accountTaken(int count){
+        if (takeTimeSum == null || count == 0){
+            return;
+        }
+        takeTimeSum.add((System.nanoTime() - origin) * count);
+        takeCount.add(count);
+    }
+
+    // The integral of the queue size over time up to the given time (jobs * ns), 0 if not accounted
+    public long getOccupancyIntegral(long now){
+        if (putTimeSum == null){
+            return 0;
+        }
+        // Read the taken Jobs first, such that no Job counts as taken but not put
+        long takenTimeSum = takeTimeSum.sum();
+        long takenCount = takeCount.sum();
+        return takenTimeSum - putTimeSum.sum() + (putCount.sum() - takenCount) * (now - origin);
+    }
+
+    public long getPutCount(){
+        return putCount == null ? 0 : putCount.sum();
+    }
+
+    public long getTakeCount(){
+        return takeCount == null ? 0 : takeCount.sum();
+    }
+
+    // The time producers spent in offer() in ns (it never waits, refused Jobs are offered again by the producer)
+    public long getPutTime(){
+        return putTime == null ? 0 : putTime.sum();
     }
 
     public int getQueueSize(){
+        if (fairJobScheduler != null){
+            return fairJobScheduler.size();
+        }
         return blockingQueue.size();
     }
 
+    public int getCapacity(){
+        return capacity;
+    }
 
+    public long getQueuedBytes(){
+        bytesLock.lock();
+        try{
+            return queuedBytes;
+        } finally {
+            bytesLock.unlock();
+        }
+    }
 
+    // Accounts the job's request bytes if they fit into the queue, returns false otherwise
+    private static boolean acquireBytes(Job job){
+        int requestBytes = job.getRequestBytes();
+        // Zero disables the bound
+        long capacityBytes = TunableParameters.getQueueCapacityBytes();
 
+        bytesLock.lock();
+        try{
+            if (capacityBytes > 0 && queuedBytes > 0 && queuedBytes + requestBytes > capacityBytes){
+                producerWaiting = true;
+                return false;
+            }
+            job.setEnqueueBytes(queuedBytes);
+            queuedBytes += requestBytes;
+            return true;
+        } finally {
+            bytesLock.unlock();
+        }
+    }
 
+    // Takes back the bytes of a Job that was refused after all, no Job may fit now that didn't before
+    private static void returnBytes(Job job){
+        bytesLock.lock();
+        try{
+            queuedBytes -= job.getRequestBytes();
+        } finally {
+            bytesLock.unlock();
+        }
+    }
+
+    private static void releaseBytes(Job job){
+        boolean notify;
+        bytesLock.lock();
+        try{
+            queuedBytes -= job.getRequestBytes();
+            job.setDequeueBytes(queuedBytes);
+            notify = producerWaiting;
+            producerWaiting = false;
+        } finally {
+            bytesLock.unlock();
+        }
+        if (notify){
+            notifySpaceListener();
+        }
+    }
 }
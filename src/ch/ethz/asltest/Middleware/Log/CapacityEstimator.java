@@ -0,0 +1,315 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Global.Configuration;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
+
+/*
+    The CapacityEstimator turns the live Metrics into a queueing model of the middleware while it is running, to
+    show how much headroom is left before the workers (or the NetThread) saturate.
+    Every capacity_estimator_interval_ms it takes the difference of the Metrics since the previous interval:
+    the arrival rate (completed jobs per second), the service time of a worker (dequeue until the answer is written
+    back to the client, which includes the server response time), the time spent in the net thread, in the queue
+    and the response time. They are smoothed over the intervals (capacity_estimator_smoothing_percent is the weight
+    of the newest one). The clients' think time follows from the interactive response time law (clients /
+    throughput - response time).
+    A worker serves worker_thread_max_jobs_in_flight jobs at a time (an event loop event_loop_max_connection_sets),
+    the workers are modelled as an M/M/c station with c = workers * jobs per worker:
+    utilization:            arrival rate * service time / c
+    queue time (Erlang C):  the time a job is expected to wait for a worker, to be compared with the measured one
+    saturation throughput:  the lower of c / service time (workers) and 1 / net time (the NetThread, one per
+                            event loop in event loop mode)
+    The closed system of the connected clients is solved with mean value analysis (Seidmann's approximation for
+    the multi-server stations), which predicts throughput and response time for the current number of clients.
+    Its stations are the net thread(s), the workers without the server time and the memcached servers with the
+    server time: sets (replicated) and sharded gets occupy all servers at once, other gets one of them (round robin),
+    such that the servers act as 1 up to (server count) stations depending on the share of gets and the sharding.
+    The server time includes the network round trip, which the model takes as time the servers are busy, so it
+    rather underestimates what the servers can take.
+    The optimal worker count is the lowest one reaching all but capacity_estimator_knee_percent of the throughput
+    predicted for capacity_estimator_max_workers workers: more workers would only add waiting for the servers.
+    The phase times only cover the jobs timed in all phases (see Instrumentation), the estimate is read by
+    StatsReport ("stats capacity") and the Metrics. Requires metrics_enabled.
+ */
+
+public class CapacityEstimator extends Thread{
+
+    private static CapacityEstimator ourInstance;
+    public static CapacityEstimator getInstance() {
+        return ourInstance;
+    }
+
+    // workerCount: WorkerThreads or EventLoopThreads, to be called once they have been created
+    public static void initialize(int workerCount, boolean eventLoopMode){
+        if (!Parameters.getBoolean("capacity_estimator_enabled")){
+            return;
+        }
+        if (Metrics.getInstance() == null){
+            Log.warn("[CapacityEstimator] The capacity estimator requires metrics_enabled, not started");
+            return;
+        }
+        ourInstance = new CapacityEstimator(workerCount, eventLoopMode);
+        ourInstance.start();
+    }
+
+    private final int workerCount;
+    private final boolean eventLoopMode;
+    private final long interval;
+    private final double smoothing;
+
+    // The latest estimate, null until the first jobs have been timed
+    private volatile Estimate estimate;
+
+    // The smoothed measurements in seconds (NaN until measured)
+    private double arrivalRate = Double.NaN;
+    private double serviceTime = Double.NaN;
+    private double serverTime = Double.NaN;
+    private double netTime = Double.NaN;
+    private double queueTime = Double.NaN;
+    private double responseTime = Double.NaN;
+    private double thinkTime = Double.NaN;
+    // Of the completed jobs
+    private double getShare = Double.NaN;
+
+    private CapacityEstimator(int workerCount, boolean eventLoopMode){
+        super();
+        setName("capacity");
+        setDaemon(true);
+
+        this.workerCount = Math.max(1, workerCount);
+        this.eventLoopMode = eventLoopMode;
+        interval = Math.max(1, Parameters.getLong("capacity_estimator_interval_ms"));
+        smoothing = Math.min(100, Math.max(1, Parameters.getInteger("capacity_estimator_smoothing_percent"))) / 100D;
+    }
+
+    public Estimate getEstimate(){
+        return estimate;
+    }
+
+    @Override
+    public void run() {
+        Log.info("[CapacityEstimator] Estimating every {} ms for {} {}", interval, workerCount, eventLoopMode ? "event loop(s)" : "worker(s)");
+        Snapshot previous = new Snapshot();
+        while (!Global.isShuttingDown){
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException interruptedException){
+                return;
+            }
+            Snapshot current = new Snapshot();
+            update(previous, current);
+            previous = current;
+        }
+    }
+
+    private void update(Snapshot previous, Snapshot current){
+        double seconds = (current.time - previous.time) / 1e9;
+        if (seconds <= 0){
+            return;
+        }
+        arrivalRate = smooth(arrivalRate, (current.jobCount - previous.jobCount) / seconds);
+        if (current.jobCount > previous.jobCount){
+            getShare = smooth(getShare, (double) (current.getJobCount - previous.getJobCount) / (current.jobCount - previous.jobCount));
+        }
+        serviceTime = smooth(serviceTime, current.mean(previous, Metrics.Phase.WORKER) + current.mean(previous, Metrics.Phase.SERVER) + current.mean(previous, Metrics.Phase.WRITE_BACK));
+        serverTime = smooth(serverTime, current.mean(previous, Metrics.Phase.SERVER));
+        netTime = smooth(netTime, current.mean(previous, Metrics.Phase.NET_THREAD));
+        queueTime = smooth(queueTime, current.mean(previous, Metrics.Phase.QUEUE));
+        responseTime = smooth(responseTime, current.mean(previous, Metrics.Phase.RESPONSE));
+        if (current.jobCount > previous.jobCount && !Double.isNaN(responseTime)){
+            thinkTime = smooth(thinkTime, Math.max(0, current.clientCount / arrivalRate - responseTime));
+        }
+
+        if (Double.isNaN(serviceTime) || Double.isNaN(netTime)){
+            // No job has been timed yet
+            return;
+        }
+        estimate = new Estimate(current.clientCount);
+    }
+
+    // NaN (not measured in this interval) keeps the previous value
+    private double smooth(double smoothed, double measured){
+        if (Double.isNaN(measured)){
+            return smoothed;
+        }
+        if (Double.isNaN(smoothed)){
+            return measured;
+        }
+        return smoothing * measured + (1 - smoothing) * smoothed;
+    }
+
+    private int getJobsPerWorker(){
+        // Read on every estimate, since the autotuner may change it
+        return Math.max(1, Parameters.getInteger(eventLoopMode ? "event_loop_max_connection_sets" : "worker_thread_max_jobs_in_flight"));
+    }
+
+    /*
+     The time a job waits for one of servers (c) in an M/M/c queue (Erlang C), -1 if saturated.
+     Erlang B is computed iteratively, C = B / (1 - utilization * (1 - B)).
+      */
+    private static double erlangQueueTime(double arrivalRate, double serviceTime, int servers){
+        double offeredLoad = arrivalRate * serviceTime;
+        double utilization = offeredLoad / servers;
+        if (utilization >= 1){
+            return -1;
+        }
+        double erlangB = 1;
+        for (int k = 1; k <= servers; k++){
+            erlangB = offeredLoad * erlangB / (k + offeredLoad * erlangB);
+        }
+        double erlangC = erlangB / (1 - utilization * (1 - erlangB));
+        return erlangC * serviceTime / (servers - offeredLoad);
+    }
+
+    /*
+     Mean value analysis of a closed system of clients with the given think time, returns the throughput and
+     the response time. A station of m servers with demand D is approximated by a single server station with
+     demand D / m followed by a delay of D * (m - 1) / m (Seidmann).
+      */
+    private static double[] meanValueAnalysis(int clients, double thinkTime, double[] demands, double[] servers){
+        double delay = 0;
+        double[] queueDemands = new double[demands.length];
+        for (int k = 0; k < demands.length; k++){
+            queueDemands[k] = demands[k] / servers[k];
+            delay += demands[k] - queueDemands[k];
+        }
+        double[] queueLengths = new double[demands.length];
+        double[] residenceTimes = new double[demands.length];
+        double throughput = 0;
+        double responseTime = delay;
+        for (int n = 1; n <= clients; n++){
+            responseTime = delay;
+            for (int k = 0; k < demands.length; k++){
+                residenceTimes[k] = queueDemands[k] * (1 + queueLengths[k]);
+                responseTime += residenceTimes[k];
+            }
+            throughput = n / (thinkTime + responseTime);
+            for (int k = 0; k < demands.length; k++){
+                queueLengths[k] = throughput * residenceTimes[k];
+            }
+        }
+        return new double[]{throughput, responseTime};
+    }
+
+    // The Metrics at one point in time
+    private static class Snapshot {
+        private final long time;
+        private final long jobCount;
+        private final long getJobCount;
+        private final long[] phaseCounts;
+        private final long[] phaseSums;
+        private final int clientCount;
+
+        Snapshot(){
+            Metrics metrics = Metrics.getInstance();
+            time = System.nanoTime();
+            getJobCount = metrics.getGetJobCount();
+            jobCount = metrics.getSetJobCount() + getJobCount;
+            phaseCounts = new long[Metrics.Phase.values().length];
+            phaseSums = new long[phaseCounts.length];
+            for (Metrics.Phase phase : Metrics.Phase.values()){
+                LatencyHistogram latencyHistogram = metrics.getPhaseHistogram(phase);
+                phaseCounts[phase.ordinal()] = latencyHistogram.getCount();
+                phaseSums[phase.ordinal()] = latencyHistogram.getSum();
+            }
+            synchronized (Environment.getClientList()){
+                clientCount = Environment.getClientList().size();
+            }
+        }
+
+        // The average time in seconds of the phase since the previous snapshot, NaN if no job was timed
+        double mean(Snapshot previous, Metrics.Phase phase){
+            long count = phaseCounts[phase.ordinal()] - previous.phaseCounts[phase.ordinal()];
+            if (count <= 0){
+                return Double.NaN;
+            }
+            return (phaseSums[phase.ordinal()] - previous.phaseSums[phase.ordinal()]) / 1e9 / count;
+        }
+    }
+
+    // The model at one point in time, times in seconds
+    public class Estimate {
+
+        // Measured (smoothed)
+        public final double arrivalRate;
+        public final double serviceTime;
+        public final double serverTime;
+        public final double netTime;
+        public final double queueTime;
+        public final double responseTime;
+        public final double thinkTime;
+        public final int clientCount;
+        public final int workerCount;
+        public final int jobsPerWorker;
+        public final double getShare;
+
+        // Modelled
+        // The number of stations the memcached servers act as (see above)
+        public final double serverStations;
+        public final double utilization;
+        // -1 if the workers are saturated
+        public final double erlangQueueTime;
+        public final double saturationThroughput;
+        // "workers" or "net_thread"
+        public final String bottleneck;
+        // Share of the saturation throughput not used yet
+        public final double headroom;
+        public final double predictedThroughput;
+        public final double predictedResponseTime;
+        public final int optimalWorkerCount;
+
+        private Estimate(int clientCount){
+            this.arrivalRate = Double.isNaN(CapacityEstimator.this.arrivalRate) ? 0 : CapacityEstimator.this.arrivalRate;
+            this.serviceTime = CapacityEstimator.this.serviceTime;
+            this.serverTime = Double.isNaN(CapacityEstimator.this.serverTime) ? 0 : CapacityEstimator.this.serverTime;
+            this.netTime = CapacityEstimator.this.netTime;
+            this.queueTime = Double.isNaN(CapacityEstimator.this.queueTime) ? 0 : CapacityEstimator.this.queueTime;
+            this.responseTime = Double.isNaN(CapacityEstimator.this.responseTime) ? 0 : CapacityEstimator.this.responseTime;
+            this.thinkTime = Double.isNaN(CapacityEstimator.this.thinkTime) ? 0 : CapacityEstimator.this.thinkTime;
+            this.clientCount = clientCount;
+            this.workerCount = CapacityEstimator.this.workerCount;
+            this.jobsPerWorker = getJobsPerWorker();
+            this.getShare = Double.isNaN(CapacityEstimator.this.getShare) ? 0 : CapacityEstimator.this.getShare;
+
+            int servers = workerCount * jobsPerWorker;
+            int netThreads = eventLoopMode ? workerCount : 1;
+            utilization = arrivalRate * serviceTime / servers;
+            erlangQueueTime = erlangQueueTime(arrivalRate, serviceTime, servers);
+
+            double workerThroughput = servers / Math.max(serviceTime, 1e-9);
+            double netThroughput = netThreads / Math.max(netTime, 1e-9);
+            saturationThroughput = Math.min(workerThroughput, netThroughput);
+            bottleneck = workerThroughput <= netThroughput ? "workers" : "net_thread";
+            headroom = Math.max(0, 1 - arrivalRate / saturationThroughput);
+
+            // The share of the server time a single server is busy with a job
+            int serverCount = Math.max(1, Environment.getServerList().size());
+            double serverShare = (1 - getShare) + (Configuration.getReadSharded() ? getShare : getShare / serverCount);
+            serverStations = 1 / serverShare;
+
+            double[] demands = new double[]{netTime, Math.max(0, serviceTime - serverTime), serverTime};
+            double[] prediction = meanValueAnalysis(clientCount, thinkTime, demands, new double[]{netThreads, servers, serverStations});
+            predictedThroughput = prediction[0];
+            predictedResponseTime = prediction[1];
+
+            int maxWorkerCount = Math.max(1, Parameters.getInteger("capacity_estimator_max_workers"));
+            double knee = Math.min(100, Math.max(0, Parameters.getInteger("capacity_estimator_knee_percent"))) / 100D;
+            double maxThroughput = meanValueAnalysis(clientCount, thinkTime, demands, new double[]{eventLoopMode ? maxWorkerCount : 1, maxWorkerCount * jobsPerWorker, serverStations})[0];
+            int optimal = maxWorkerCount;
+            // The predicted throughput grows with the workers, the lowest count at the knee is found by bisection
+            int low = 1;
+            while (low < optimal){
+                int middle = (low + optimal) / 2;
+                double throughput = meanValueAnalysis(clientCount, thinkTime, demands, new double[]{eventLoopMode ? middle : 1, middle * jobsPerWorker, serverStations})[0];
+                if (throughput >= (1 - knee) * maxThroughput){
+                    optimal = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            optimalWorkerCount = clientCount == 0 ? workerCount : optimal;
+        }
+    }
+}
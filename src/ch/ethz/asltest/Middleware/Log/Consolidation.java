@@ -0,0 +1,367 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+    Consolidation computes the per-bucket TimeStatLines of Statistics from the rows of one or more Windows (the
+    Windows of all threads for the merged report) without boxing any value: the rows are sorted into their buckets
+    by a counting sort over row references, the values of a bucket are gathered into one primitive column at a time
+    and medians and percentiles are found by selection (expected linear time) instead of sorting the column.
+    Ranges of buckets are consolidated in parallel on shutdown, on a ForkJoinPool of its own with
+    statistics_consolidation_threads threads (created with the first parallel consolidation), such that it neither
+    competes with nor waits for other users of the common pool. While running (rolling export), the calling thread
+    consolidates all buckets itself, such that the export doesn't compete with the WorkerThreads for more than one
+    core.
+ */
+
+class Consolidation {
+
+    // Ranges of buckets with fewer rows are consolidated without forking
+    private static final int SEQUENTIAL_ROWS = 8192;
+
+    private static ForkJoinPool forkJoinPool;
+
+    // The columns consolidated per bucket, followed by the response time of each server
+    private static final int CLIENT_RESPONSE_TIME = 0;
+    private static final int QUEUE_TIME = 1;
+    private static final int ENQUEUE_SIZE = 2;
+    private static final int DEQUEUE_SIZE = 3;
+    private static final int ENQUEUE_BYTES = 4;
+    private static final int DEQUEUE_BYTES = 5;
+    private static final int NET_THREAD_TIME = 6;
+    private static final int PROCESSING_TIME = 7;
+    private static final int WORKER_TIME = 8;
+    private static final int SERVER_RESPONSE_TIME = 9;
+
+    // The values of a column summarized by summarize()
+    private static final int AVG = 0;
+    private static final int MEDIAN = 1;
+    private static final int PERCENTILE = 2;
+    private static final int MAX = 3;
+
+    private final List<Statistics.Window> parts;
+    private final int chunkRows;
+    private final int rowWidth;
+    private final int serverCount;
+    private final double percentile;
+
+    // References to the rows (index of the part in the upper, row in the part in the lower 32 bits) by bucket
+    private long[] rows;
+    // The rows of bucket i are rows[bucketStart[i]] up to (excluding) rows[bucketStart[i + 1]]
+    private int[] bucketStart;
+    private Statistics.TimeStatLine[] timeStatLines;
+    private boolean parallel;
+
+    Consolidation(List<Statistics.Window> parts, int chunkRows, int rowWidth, int serverCount, double percentile){
+        this.parts = parts;
+        this.chunkRows = chunkRows;
+        this.rowWidth = rowWidth;
+        this.serverCount = serverCount;
+        this.percentile = percentile;
+    }
+
+    /*
+     Consolidates the rows into bucketCount buckets of resolutionNs, starting at firstBucketTime, by the time the
+     Job was sent to the client. Rows outside of the buckets are left out. Forks ranges of buckets only if parallel.
+      */
+    Statistics.TimeStatLine[] consolidate(long firstBucketTime, long resolutionNs, int bucketCount, boolean parallel){
+        this.parallel = parallel;
+        bucketStart = new int[bucketCount + 1];
+        for (Statistics.Window part : parts){
+            for (int row = 0; row < part.rowCount; row++){
+                int bucket = bucketOf(part, row, firstBucketTime, resolutionNs, bucketCount);
+                if (bucket >= 0){
+                    bucketStart[bucket + 1]++;
+                }
+            }
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++){
+            bucketStart[bucket + 1] += bucketStart[bucket];
+        }
+
+        rows = new long[bucketStart[bucketCount]];
+        int[] bucketFill = Arrays.copyOf(bucketStart, bucketCount);
+        for (int partIndex = 0; partIndex < parts.size(); partIndex++){
+            Statistics.Window part = parts.get(partIndex);
+            for (int row = 0; row < part.rowCount; row++){
+                int bucket = bucketOf(part, row, firstBucketTime, resolutionNs, bucketCount);
+                if (bucket >= 0){
+                    rows[bucketFill[bucket]++] = ((long) partIndex << 32) | row;
+                }
+            }
+        }
+
+        timeStatLines = new Statistics.TimeStatLine[bucketCount];
+        if (bucketCount > 0){
+            if (parallel){
+                getForkJoinPool().invoke(new BucketRange(0, bucketCount));
+            } else {
+                for (int bucket = 0; bucket < bucketCount; bucket++){
+                    timeStatLines[bucket] = consolidateBucket(bucket);
+                }
+            }
+        }
+        return timeStatLines;
+    }
+
+    // Its threads are daemon threads, the pool isn't shut down
+    private static synchronized ForkJoinPool getForkJoinPool(){
+        if (forkJoinPool == null){
+            int threadCount = Parameters.getInteger("statistics_consolidation_threads");
+            forkJoinPool = new ForkJoinPool(threadCount > 0 ? threadCount : Runtime.getRuntime().availableProcessors());
+        }
+        return forkJoinPool;
+    }
+
+    private int bucketOf(Statistics.Window part, int row, long firstBucketTime, long resolutionNs, int bucketCount){
+        long clientSendTime = part.chunkList.get(row / chunkRows)[(row % chunkRows) * rowWidth + Statistics.CLIENT_SEND_TIME];
+        if (clientSendTime < firstBucketTime){
+            return -1;
+        }
+        long bucket = (clientSendTime - firstBucketTime) / resolutionNs;
+        return bucket < bucketCount ? (int) bucket : -1;
+    }
+
+    // Splits the buckets in halves until few enough rows are left
+    private class BucketRange extends RecursiveAction{
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        BucketRange(int from, int to){
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from > 1 && bucketStart[to] - bucketStart[from] > SEQUENTIAL_ROWS){
+                int middle = (from + to) >>> 1;
+                invokeAll(new BucketRange(from, middle), new BucketRange(middle, to));
+                return;
+            }
+            for (int bucket = from; bucket < to; bucket++){
+                timeStatLines[bucket] = consolidateBucket(bucket);
+            }
+        }
+    }
+
+    private Statistics.TimeStatLine consolidateBucket(int bucket){
+        int first = bucketStart[bucket];
+        int count = bucketStart[bucket + 1] - first;
+
+        // Resolve the references once for all columns
+        long[][] rowChunks = new long[count][];
+        int[] rowOffsets = new int[count];
+        for (int i = 0; i < count; i++){
+            long row = rows[first + i];
+            Statistics.Window part = parts.get((int) (row >>> 32));
+            int partRow = (int) row;
+            rowChunks[i] = part.chunkList.get(partRow / chunkRows);
+            rowOffsets[i] = (partRow % chunkRows) * rowWidth;
+        }
+
+        // A sampled row stands for sampleWeight Jobs in the job count, the times are summarized over the rows
+        long jobCount = 0;
+        for (int i = 0; i < count; i++){
+            jobCount += rowChunks[i][rowOffsets[i] + Statistics.SAMPLE_WEIGHT];
+        }
+
+        long[] values = new long[count];
+        long[][] summaries = new long[SERVER_RESPONSE_TIME + serverCount][4];
+        for (int column = 0; column < summaries.length; column++){
+            for (int i = 0; i < count; i++){
+                values[i] = value(column, rowChunks[i], rowOffsets[i]);
+            }
+            summarize(values, count, summaries[column]);
+        }
+
+        long[] avgServerResponseTime = new long[serverCount];
+        long[] medianServerResponseTime = new long[serverCount];
+        long[] percentileServerResponseTime = new long[serverCount];
+        for (int i = 0; i < serverCount; i++){
+            long[] summary = summaries[SERVER_RESPONSE_TIME + i];
+            avgServerResponseTime[i] = summary[AVG];
+            medianServerResponseTime[i] = summary[MEDIAN];
+            percentileServerResponseTime[i] = summary[PERCENTILE];
+        }
+
+        long[] clientResponseTime = summaries[CLIENT_RESPONSE_TIME];
+        long[] queueTime = summaries[QUEUE_TIME];
+        long[] enqueueSize = summaries[ENQUEUE_SIZE];
+        long[] dequeueSize = summaries[DEQUEUE_SIZE];
+        long[] netThreadTime = summaries[NET_THREAD_TIME];
+        long[] processingTime = summaries[PROCESSING_TIME];
+        long[] workerTime = summaries[WORKER_TIME];
+        long[] enqueueBytes = summaries[ENQUEUE_BYTES];
+        long[] dequeueBytes = summaries[DEQUEUE_BYTES];
+
+        return new Statistics.TimeStatLine(
+                (int) jobCount,
+                avgServerResponseTime,
+                medianServerResponseTime,
+                percentileServerResponseTime,
+
+                clientResponseTime[AVG],
+                clientResponseTime[MEDIAN],
+                clientResponseTime[PERCENTILE],
+
+                queueTime[AVG],
+                queueTime[MEDIAN],
+                queueTime[PERCENTILE],
+
+                (int) enqueueSize[AVG],
+                (int) enqueueSize[MEDIAN],
+                (int) enqueueSize[PERCENTILE],
+                (int) enqueueSize[MAX],
+
+                (int) dequeueSize[AVG],
+                (int) dequeueSize[MEDIAN],
+                (int) dequeueSize[PERCENTILE],
+                (int) dequeueSize[MAX],
+
+                netThreadTime[AVG],
+                netThreadTime[MEDIAN],
+                netThreadTime[PERCENTILE],
+
+                processingTime[AVG],
+                processingTime[MEDIAN],
+                processingTime[PERCENTILE],
+
+                workerTime[AVG],
+                workerTime[MEDIAN],
+                workerTime[PERCENTILE],
+
+                enqueueBytes[AVG],
+                enqueueBytes[MEDIAN],
+                enqueueBytes[PERCENTILE],
+                enqueueBytes[MAX],
+
+                dequeueBytes[AVG],
+                dequeueBytes[MEDIAN],
+                dequeueBytes[PERCENTILE],
+                dequeueBytes[MAX]
+        );
+    }
+
+    private long value(int column, long[] chunk, int offset){
+        switch (column){
+            case CLIENT_RESPONSE_TIME:
+                return chunk[offset + Statistics.CLIENT_SEND_TIME] - chunk[offset + Statistics.CLIENT_ARRIVAL_TIME];
+            case QUEUE_TIME:
+                return chunk[offset + Statistics.DEQUEUE_TIME] - chunk[offset + Statistics.ENQUEUE_TIME];
+            case ENQUEUE_SIZE:
+                return chunk[offset + Statistics.ENQUEUE_SIZE];
+            case DEQUEUE_SIZE:
+                return chunk[offset + Statistics.DEQUEUE_SIZE];
+            case ENQUEUE_BYTES:
+                return chunk[offset + Statistics.ENQUEUE_BYTES];
+            case DEQUEUE_BYTES:
+                return chunk[offset + Statistics.DEQUEUE_BYTES];
+            case NET_THREAD_TIME:
+                return chunk[offset + Statistics.ENQUEUE_TIME] - chunk[offset + Statistics.CLIENT_ARRIVAL_TIME];
+            case PROCESSING_TIME:
+                return chunk[offset + Statistics.CLIENT_SEND_TIME] - chunk[offset + Statistics.DEQUEUE_TIME];
+            case WORKER_TIME:
+                long lastServerSendTime = 0;
+                for (int i = 0; i < serverCount; i++){
+                    lastServerSendTime = Math.max(lastServerSendTime, chunk[offset + Statistics.SERVER_TIMES + 2 * i + 1]);
+                }
+                return lastServerSendTime - chunk[offset + Statistics.DEQUEUE_TIME];
+            default:
+                int server = column - SERVER_RESPONSE_TIME;
+                return chunk[offset + Statistics.SERVER_TIMES + 2 * server] - chunk[offset + Statistics.SERVER_TIMES + 2 * server + 1];
+        }
+    }
+
+    /*
+     Average, median, percentile and maximum of the first count values (reordered), as previously computed on
+     the sorted list: the median of an even count is the mean of both middle values, the percentile is the value
+     at index count * percentile.
+      */
+    private void summarize(long[] values, int count, long[] summary){
+        if (count == 0){
+            Arrays.fill(summary, 0);
+            return;
+        }
+        long sum = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++){
+            sum += values[i];
+            max = Math.max(max, values[i]);
+        }
+        summary[AVG] = sum / count;
+        summary[MAX] = max;
+
+        int upperMedianIndex = count / 2;
+        select(values, 0, count, upperMedianIndex);
+        long median = values[upperMedianIndex];
+        if (count % 2 == 0){
+            // The lower middle value is the largest one before the upper one
+            long lowerMedian = Long.MIN_VALUE;
+            for (int i = 0; i < upperMedianIndex; i++){
+                lowerMedian = Math.max(lowerMedian, values[i]);
+            }
+            median = (lowerMedian + median) / 2;
+        }
+        summary[MEDIAN] = median;
+
+        // Only the side of the median holding the percentile is searched
+        int percentileIndex = Math.min(count - 1, (int) (count * percentile));
+        if (percentileIndex > upperMedianIndex){
+            select(values, upperMedianIndex + 1, count, percentileIndex);
+        } else if (percentileIndex < upperMedianIndex){
+            select(values, 0, upperMedianIndex, percentileIndex);
+        }
+        summary[PERCENTILE] = values[percentileIndex];
+    }
+
+    /*
+     Reorders values[from, to) such that values[k] holds the value of rank k, with no larger value before and no
+     smaller value after it (Hoare's selection with a median of three pivot, which also handles sorted input and
+     runs of equal values like queue sizes well).
+      */
+    static void select(long[] values, int from, int to, int k){
+        int left = from;
+        int right = to - 1;
+        while (right > left){
+            long pivot = medianOfThree(values[left], values[(left + right) >>> 1], values[right]);
+            int i = left;
+            int j = right;
+            while (i <= j){
+                while (values[i] < pivot){
+                    i++;
+                }
+                while (values[j] > pivot){
+                    j--;
+                }
+                if (i <= j){
+                    long swap = values[i];
+                    values[i] = values[j];
+                    values[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            // values[left, j] <= pivot, values[i, right] >= pivot and everything in between equals the pivot
+            if (k <= j){
+                right = j;
+            } else if (k >= i){
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static long medianOfThree(long a, long b, long c){
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+}
@@ -0,0 +1,221 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Util.CpuTime;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+    The CpuTimeAccounting sums up the CPU time (see CpuTime) and the wall-clock time a thread spends in each phase
+    of the request path, per phase and operation type. The per-job timestamps only measure wall-clock time, the
+    ratio of both tells CPU-bound work (parsing, merging) apart from waiting on sockets.
+    Each thread handling Jobs (the NetThread, every WorkerThread or EventLoopThread) owns one. A phase is
+    started before and stopped after the measured work, with the Job it was done for (its type may not be known
+    when starting, e.g. while parsing). At most one phase is open at a time: starting another one charges the open
+    one to NONE, as is work that can't be attributed to a Job (partial queries, failed connections).
+    Only measures if cpu_time_accounting_enabled is set and the JVM supports it, since reading the CPU time of a
+    thread costs about as much as a system call. The totals of all threads are answered by "stats cpu" (see
+    StatsReport) and exported with the metrics, each thread logs its own on export. Totals are read without
+    locking, they are approximate while the threads are running.
+ */
+
+public class CpuTimeAccounting {
+
+    private static final Queue<CpuTimeAccounting> accountingQueue = new ConcurrentLinkedQueue<>();
+    // Read on first use (null before)
+    private static Boolean accountingEnabled;
+
+    // Always returns an instance, whose methods return right away if disabled
+    public static CpuTimeAccounting create(String threadName){
+        CpuTimeAccounting cpuTimeAccounting = new CpuTimeAccounting(threadName, isEnabled());
+        if (cpuTimeAccounting.enabled){
+            accountingQueue.add(cpuTimeAccounting);
+        }
+        return cpuTimeAccounting;
+    }
+
+    public static synchronized boolean isEnabled(){
+        if (accountingEnabled == null){
+            accountingEnabled = Parameters.getBoolean("cpu_time_accounting_enabled");
+            if (accountingEnabled && !CpuTime.enable()){
+                Log.warn("[CpuTimeAccounting] The JVM does not support measuring the CPU time of a thread, disabled");
+                accountingEnabled = false;
+            }
+        }
+        return accountingEnabled;
+    }
+
+    private static final int PHASE_COUNT = Phase.values().length;
+    private static final int TYPE_COUNT = OperationType.values().length;
+
+    private final String threadName;
+    private final boolean enabled;
+
+    // By phase and type (phase * TYPE_COUNT + type)
+    private final long[] cpuTimes = new long[PHASE_COUNT * TYPE_COUNT];
+    private final long[] wallTimes = new long[PHASE_COUNT * TYPE_COUNT];
+    private final long[] counts = new long[PHASE_COUNT * TYPE_COUNT];
+
+    // The open phase (null if none) and when it was started
+    private Phase openPhase;
+    private long startCpuTime;
+    private long startWallTime;
+
+    private CpuTimeAccounting(String threadName, boolean enabled){
+        this.threadName = threadName;
+        this.enabled = enabled;
+    }
+
+    public void start(Phase phase){
+        if (!enabled){
+            return;
+        }
+        if (openPhase != null){
+            stop(OperationType.NONE);
+        }
+        openPhase = phase;
+        startWallTime = System.nanoTime();
+        startCpuTime = CpuTime.getCurrentThreadCpuTime();
+    }
+
+    // Charges the open phase to the type of the Job (NONE if null), does nothing if no phase is open
+    public void stop(Job job){
+        if (!enabled){
+            return;
+        }
+        if (job instanceof Job.GetJob){
+            stop(OperationType.GET);
+        } else if (job instanceof Job.SetJob){
+            stop(OperationType.SET);
+        } else {
+            stop(OperationType.NONE);
+        }
+    }
+
+    public void stop(){
+        stop((Job) null);
+    }
+
+    private void stop(OperationType operationType){
+        if (openPhase == null){
+            return;
+        }
+        long cpuTime = CpuTime.getCurrentThreadCpuTime();
+        long wallTime = System.nanoTime();
+        int index = openPhase.ordinal() * TYPE_COUNT + operationType.ordinal();
+        cpuTimes[index] += cpuTime - startCpuTime;
+        wallTimes[index] += wallTime - startWallTime;
+        counts[index]++;
+        openPhase = null;
+    }
+
+    // To be called by the owning thread once it has stopped
+    public void export(){
+        if (!enabled){
+            return;
+        }
+        Totals totals = new Totals();
+        totals.add(this);
+        for (Phase phase : Phase.values()){
+            long count = totals.getCount(phase, null);
+            if (count == 0){
+                continue;
+            }
+            Log.info("[CpuTimeAccounting] {} {}: {}", threadName, phase.label,
+                    String.format(Locale.US, "%.2f us CPU per call, %.2f%% of its wall-clock time, %d calls",
+                            totals.getCpuTime(phase, null) / 1e3 / count, totals.getCpuShare(phase, null) * 100, count));
+        }
+    }
+
+    // The summed up totals of all threads
+    public static Totals getTotals(){
+        Totals totals = new Totals();
+        for (CpuTimeAccounting cpuTimeAccounting : accountingQueue){
+            totals.add(cpuTimeAccounting);
+        }
+        return totals;
+    }
+
+    public static class Totals {
+
+        private final long[] cpuTimes = new long[PHASE_COUNT * TYPE_COUNT];
+        private final long[] wallTimes = new long[PHASE_COUNT * TYPE_COUNT];
+        private final long[] counts = new long[PHASE_COUNT * TYPE_COUNT];
+
+        private void add(CpuTimeAccounting cpuTimeAccounting){
+            for (int i = 0; i < cpuTimes.length; i++){
+                cpuTimes[i] += cpuTimeAccounting.cpuTimes[i];
+                wallTimes[i] += cpuTimeAccounting.wallTimes[i];
+                counts[i] += cpuTimeAccounting.counts[i];
+            }
+        }
+
+        // In ns, over all phases or types if null
+        public long getCpuTime(Phase phase, OperationType operationType){
+            return sum(cpuTimes, phase, operationType);
+        }
+
+        public long getWallTime(Phase phase, OperationType operationType){
+            return sum(wallTimes, phase, operationType);
+        }
+
+        public long getCount(Phase phase, OperationType operationType){
+            return sum(counts, phase, operationType);
+        }
+
+        // The share of the wall-clock time spent on the CPU
+        public double getCpuShare(Phase phase, OperationType operationType){
+            long wallTime = getWallTime(phase, operationType);
+            return wallTime == 0 ? 0 : getCpuTime(phase, operationType) / (double) wallTime;
+        }
+
+        private static long sum(long[] values, Phase phase, OperationType operationType){
+            long sum = 0;
+            for (int phaseIndex = 0; phaseIndex < PHASE_COUNT; phaseIndex++){
+                if (phase != null && phase.ordinal() != phaseIndex){
+                    continue;
+                }
+                for (int typeIndex = 0; typeIndex < TYPE_COUNT; typeIndex++){
+                    if (operationType != null && operationType.ordinal() != typeIndex){
+                        continue;
+                    }
+                    sum += values[phaseIndex * TYPE_COUNT + typeIndex];
+                }
+            }
+            return sum;
+        }
+    }
+
+    public enum Phase {
+        // Reading and parsing queries, up to enqueueing or dispatching the Job
+        PARSE("parse"),
+        // Writing the query to the servers
+        BACKEND_WRITE("backend_write"),
+        // Reading and parsing the servers' responses
+        RESPONSE_PARSE("response_parse"),
+        MERGE("merge"),
+        // Writing the merged response to the client and recording the Job
+        WRITE_BACK("write_back");
+
+        public final String label;
+
+        Phase(String label){
+            this.label = label;
+        }
+    }
+
+    public enum OperationType {
+        SET("set"),
+        GET("get"),
+        NONE("none");
+
+        public final String label;
+
+        OperationType(String label){
+            this.label = label;
+        }
+    }
+}
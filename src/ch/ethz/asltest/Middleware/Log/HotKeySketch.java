@@ -0,0 +1,224 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+    The HotKeySketch finds the most requested keys (heavy hitters) in the stream of keys of all sets and gets,
+    such that skewed key popularity can be told apart from slow servers. Each thread parsing queries (the NetThread,
+    or every EventLoopThread) owns one, fed by its QueryAssemblers, such that offering a key takes no lock.
+
+    A key is hashed once (64 bit), the hash gives the hot_keys_sketch_depth counters of a count-min sketch of
+    hot_keys_sketch_width counters per row (double hashing, conservative update), whose minimum is the estimated
+    count of the key. The hot_keys_top_k keys with the highest estimates are kept in a space-saving list: a key
+    not in it replaces the one with the lowest estimate once its own estimate is higher.
+    All counts are halved every hot_keys_half_life_ms, the elapsed time is decayed the same way, such that the
+    estimated rate of a key (count / decayed time) follows the recent load. "stats hotkeys" (see StatsReport)
+    merges the lists of all threads.
+ */
+
+public class HotKeySketch {
+
+    // Decay is only checked every this many keys, to not read the clock per key
+    private static final int DECAY_CHECK_INTERVAL = 1024;
+
+    private static final Queue<HotKeySketch> sketchQueue = new ConcurrentLinkedQueue<>();
+
+    // Returns null if disabled (hot_keys_enabled)
+    public static HotKeySketch create(){
+        if (!Parameters.getBoolean("hot_keys_enabled")){
+            return null;
+        }
+        HotKeySketch hotKeySketch = new HotKeySketch();
+        sketchQueue.add(hotKeySketch);
+        return hotKeySketch;
+    }
+
+    public static boolean isEnabled(){
+        return !sketchQueue.isEmpty();
+    }
+
+    // The count-min sketch, row after row
+    private final long[] counters;
+    private final int depth;
+    private final int widthMask;
+
+    // The space-saving top-K list, replacing entries and decaying is done holding the lock
+    private final int topK;
+    private final int maxKeyBytes;
+    private final long[] topHashes;
+    private final long[] topCounts;
+    private final byte[][] topKeys;
+    private final int[] topKeyLengths;
+    private int topSize;
+    private int minIndex;
+
+    // All keys offered (decayed like the counters)
+    private long totalCount;
+
+    private final long halfLifeNs;
+    private long lastDecayTime;
+    // The decayed time up to lastDecayTime
+    private long decayedTimeNs;
+    private int offersSinceCheck;
+
+    private HotKeySketch(){
+        depth = Math.max(1, Parameters.getInteger("hot_keys_sketch_depth"));
+        // Rounded up to a power of two
+        int width = Integer.highestOneBit(Math.max(2, Parameters.getInteger("hot_keys_sketch_width") - 1)) << 1;
+        widthMask = width - 1;
+        counters = new long[depth * width];
+
+        topK = Math.max(1, Parameters.getInteger("hot_keys_top_k"));
+        maxKeyBytes = Math.max(1, Parameters.getInteger("hot_keys_key_bytes"));
+        topHashes = new long[topK];
+        topCounts = new long[topK];
+        topKeys = new byte[topK][maxKeyBytes];
+        topKeyLengths = new int[topK];
+
+        halfLifeNs = 1000L * 1000L * Math.max(1, Parameters.getLong("hot_keys_half_life_ms"));
+        lastDecayTime = System.nanoTime();
+    }
+
+    // To be called by the owning thread for every key of a parsed query
+    public void offer(byte[] array, int offset, int length){
+        if (++offersSinceCheck >= DECAY_CHECK_INTERVAL){
+            offersSinceCheck = 0;
+            long now = System.nanoTime();
+            if (now - lastDecayTime >= halfLifeNs){
+                decay(now);
+            }
+        }
+
+        long hash = hash(array, offset, length);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+
+        // Conservative update: only the counters at the minimum are incremented
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++){
+            estimate = Math.min(estimate, counters[row * (widthMask + 1) + ((h1 + row * h2) & widthMask)]);
+        }
+        estimate++;
+        for (int row = 0; row < depth; row++){
+            int index = row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+            if (counters[index] < estimate){
+                counters[index] = estimate;
+            }
+        }
+        totalCount++;
+
+        for (int i = 0; i < topSize; i++){
+            if (topHashes[i] == hash){
+                topCounts[i] = estimate;
+                if (i == minIndex){
+                    updateMinIndex();
+                }
+                return;
+            }
+        }
+        if (topSize < topK){
+            synchronized (this){
+                put(topSize, hash, estimate, array, offset, length);
+                topSize++;
+            }
+            updateMinIndex();
+        } else if (estimate > topCounts[minIndex]){
+            synchronized (this){
+                put(minIndex, hash, estimate, array, offset, length);
+            }
+            updateMinIndex();
+        }
+    }
+
+    private void put(int index, long hash, long count, byte[] array, int offset, int length){
+        topHashes[index] = hash;
+        topCounts[index] = count;
+        topKeyLengths[index] = Math.min(length, maxKeyBytes);
+        System.arraycopy(array, offset, topKeys[index], 0, topKeyLengths[index]);
+    }
+
+    private void updateMinIndex(){
+        int index = 0;
+        for (int i = 1; i < topSize; i++){
+            if (topCounts[i] < topCounts[index]){
+                index = i;
+            }
+        }
+        minIndex = index;
+    }
+
+    private synchronized void decay(long now){
+        for (int i = 0; i < counters.length; i++){
+            counters[i] >>>= 1;
+        }
+        for (int i = 0; i < topSize; i++){
+            topCounts[i] >>>= 1;
+        }
+        totalCount >>>= 1;
+        decayedTimeNs = (decayedTimeNs + (now - lastDecayTime)) / 2;
+        lastDecayTime = now;
+    }
+
+    // FNV-1a, followed by the finalizer of MurmurHash3 to spread the bits over both halves
+    private static long hash(byte[] array, int offset, int length){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++){
+            hash ^= array[i];
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // Adds the estimated rates (per second) of this sketch's top keys and returns the rate of all keys
+    private synchronized double addRates(Map<String, Double> rateMap){
+        double seconds = Math.max(1, decayedTimeNs + (System.nanoTime() - lastDecayTime)) / 1e9;
+        for (int i = 0; i < topSize; i++){
+            String key = new String(topKeys[i], 0, topKeyLengths[i], StandardCharsets.US_ASCII);
+            rateMap.merge(key, topCounts[i] / seconds, Double::sum);
+        }
+        return totalCount / seconds;
+    }
+
+    // The hottest keys of all threads with their estimated rates and share of all keys, hottest first
+    public static List<HotKey> getHotKeys(int count){
+        Map<String, Double> rateMap = new HashMap<>();
+        double totalRate = 0;
+        for (HotKeySketch hotKeySketch : sketchQueue){
+            totalRate += hotKeySketch.addRates(rateMap);
+        }
+        List<HotKey> hotKeyList = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : rateMap.entrySet()){
+            hotKeyList.add(new HotKey(entry.getKey(), entry.getValue(), totalRate == 0 ? 0 : entry.getValue() / totalRate));
+        }
+        hotKeyList.sort((first, second) -> Double.compare(second.rate, first.rate));
+        return hotKeyList.size() > count ? hotKeyList.subList(0, count) : hotKeyList;
+    }
+
+    public static class HotKey{
+
+        public final String key;
+        // Estimated requests per second (an upper bound, as the count-min sketch never underestimates)
+        public final double rate;
+        // Of all keys requested
+        public final double share;
+
+        HotKey(String key, double rate, double share){
+            this.key = key;
+            this.rate = rate;
+            this.share = share;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+    Instrumentation decides how much is measured per Job (instrumentation_level):
+    OFF:      nothing is timed, Jobs are neither counted nor submitted to the Statistics
+    COUNTERS: Jobs are counted and their response times recorded (client arrival and send), the phases are not timed
+    SAMPLED:  as COUNTERS, but 1 in instrumentation_sample_rate Jobs is timed in all phases and kept by the Statistics,
+              weighted by the sample rate (it stands for that many Jobs in the per bucket job counts)
+    FULL:     every Job is timed in all phases and kept by the Statistics
+    Whether a Job is timed is decided once on its creation (Job.isInstrumented()), such that the measurement points
+    only test a field. The level is read on startup and fixed while running: the per bucket job counts rely on every
+    counted Job having a row (FULL), one per sampled Job (SAMPLED) or none (COUNTERS) for the whole run, the _PJ_
+    headers only hold the totals. The sample rate may be changed while running (see Management), every row carries
+    the rate it was sampled with.
+ */
+
+public class Instrumentation {
+
+    public enum Level {
+        OFF,
+        COUNTERS,
+        SAMPLED,
+        FULL
+    }
+
+    private static volatile Level level = Level.FULL;
+    private static volatile int sampleRate = 1;
+
+    // To be called before any Job is created
+    public static void initialize(){
+        String levelName = Parameters.getString("instrumentation_level").trim().toUpperCase(Locale.US);
+        try {
+            level = Level.valueOf(levelName);
+        } catch (IllegalArgumentException illegalArgumentException){
+            Log.error("[Instrumentation] Unknown instrumentation level {}, using FULL", levelName);
+            level = Level.FULL;
+        }
+        sampleRate = Math.max(1, Parameters.getInteger("instrumentation_sample_rate"));
+        if (level == Level.SAMPLED){
+            Log.info("[Instrumentation] Level {} (1 in {} jobs)", level, sampleRate);
+        } else {
+            Log.info("[Instrumentation] Level {}", level);
+        }
+    }
+
+    public static Level getLevel(){
+        return level;
+    }
+
+    public static int getSampleRate(){
+        return sampleRate;
+    }
+
+    public static void setSampleRate(int newSampleRate){
+        sampleRate = Math.max(1, newSampleRate);
+    }
+
+    // Whether Jobs are counted and their response (and thinking) times recorded
+    public static boolean isCounting(){
+        return level != Level.OFF;
+    }
+
+    /*
+     Whether a newly created Job is to be timed in all phases: 0 if not, otherwise the number of Jobs it stands for
+     (the sample rate at the time it was sampled, such that changing the rate while running keeps the counts right).
+      */
+    public static int sampleWeight(){
+        switch (level){
+            case FULL:
+                return 1;
+            case SAMPLED:
+                int currentSampleRate = sampleRate;
+                return currentSampleRate == 1 || ThreadLocalRandom.current().nextInt(currentSampleRate) == 0 ? currentSampleRate : 0;
+            default:
+                return 0;
+        }
+    }
+
+    // The current time if Jobs are counted, 0 otherwise (saves the clock read)
+    public static long timestamp(){
+        return level != Level.OFF ? System.nanoTime() : 0;
+    }
+}
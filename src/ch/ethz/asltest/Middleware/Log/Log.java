@@ -1,11 +1,25 @@
 package ch.ethz.asltest.Middleware.Log;
 
+import ch.ethz.asltest.Middleware.Global.Parameters;
 import org.apache.logging.log4j.*;
 import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configurator;
+import org.apache.logging.log4j.util.Supplier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
     The Log class is a wrapper over a Log4j Logger instance exposing a minimal interface.
+    Besides plain messages, it takes parameterized messages ("{}" placeholders, formatted only if the level is
+    enabled) and message suppliers (only called if the level is enabled), such that hot and error paths don't build
+    strings for nothing. The appender is asynchronous (see log4j2.xml), the calling thread only enqueues the event.
+    Warnings and errors are rate limited per call site, identified by their format string (or message): at most
+    log_rate_limit_per_second of them are logged per second, the others are counted and reported once the call site
+    logs again (or on shutdown), such that a storm of failures doesn't turn logging into the bottleneck. Plain
+    messages are therefore to be constant, values are passed as arguments of the parameterized overloads.
  */
 
 public class Log {
@@ -17,11 +31,20 @@ public class Log {
 
     private static Logger logger;
 
+    // Messages per second and call site, 0 for unlimited (until configure() has been called)
+    private static int rateLimit;
+    private static final Map<String, CallSite> callSites = new ConcurrentHashMap<>();
+
     private Log() {
         logger = LogManager.getRootLogger();
         logger.info("[Log] Logging initialized");
     }
 
+    // To be called once the Parameters have been parsed
+    public static void configure(){
+        rateLimit = Math.max(0, Parameters.getInteger("log_rate_limit_per_second"));
+    }
+
     public static void trace(String message){
         logger.trace(message);
     }
@@ -30,23 +53,149 @@ public class Log {
         logger.debug(message);
     }
 
+    public static void debug(String format, Object argument){
+        logger.debug(format, argument);
+    }
+
+    public static void debug(Supplier<?> messageSupplier){
+        logger.debug(messageSupplier);
+    }
+
     public static void info(String message){
         logger.info(message);
     }
 
+    public static void info(String format, Object argument){
+        logger.info(format, argument);
+    }
+
+    public static void info(String format, Object argument1, Object argument2){
+        logger.info(format, argument1, argument2);
+    }
+
+    public static void info(String format, Object argument1, Object argument2, Object argument3){
+        logger.info(format, argument1, argument2, argument3);
+    }
+
+    public static void info(Supplier<?> messageSupplier){
+        logger.info(messageSupplier);
+    }
+
+    // A constant message, rate limited by the message itself
     public static void warn(String message){
-        logger.warn(message);
+        if (logger.isWarnEnabled() && acquire(message)){
+            logger.warn(message);
+        }
+    }
+
+    public static void warn(String format, Object argument){
+        if (logger.isWarnEnabled() && acquire(format)){
+            logger.warn(format, argument);
+        }
+    }
+
+    public static void warn(String format, Object argument1, Object argument2){
+        if (logger.isWarnEnabled() && acquire(format)){
+            logger.warn(format, argument1, argument2);
+        }
     }
 
+    public static void warn(String format, Object argument1, Object argument2, Object argument3){
+        if (logger.isWarnEnabled() && acquire(format)){
+            logger.warn(format, argument1, argument2, argument3);
+        }
+    }
+
+    // A constant message, rate limited by the message itself
     public static void error(String message){
-        logger.error(message);
+        if (logger.isErrorEnabled() && acquire(message)){
+            logger.error(message);
+        }
+    }
+
+    public static void error(String format, Object argument){
+        if (logger.isErrorEnabled() && acquire(format)){
+            logger.error(format, argument);
+        }
+    }
+
+    public static void error(String format, Object argument1, Object argument2){
+        if (logger.isErrorEnabled() && acquire(format)){
+            logger.error(format, argument1, argument2);
+        }
+    }
+
+    public static void error(String format, Object argument1, Object argument2, Object argument3){
+        if (logger.isErrorEnabled() && acquire(format)){
+            logger.error(format, argument1, argument2, argument3);
+        }
+    }
+
+    public static void error(Supplier<?> messageSupplier){
+        logger.error(messageSupplier);
     }
 
     public static void fatal(String message){
         logger.fatal(message);
     }
 
+    public static void fatal(String format, Object argument){
+        logger.fatal(format, argument);
+    }
+
     public static void shutdown() {
+        for (CallSite callSite : callSites.values()){
+            callSite.reportSuppressed();
+        }
         LogManager.shutdown();
     }
+
+    // Whether a message of the call site with the given format may be logged now
+    private static boolean acquire(String format){
+        if (rateLimit == 0){
+            return true;
+        }
+        CallSite callSite = callSites.get(format);
+        if (callSite == null){
+            callSite = callSites.computeIfAbsent(format, CallSite::new);
+        }
+        return callSite.acquire(System.currentTimeMillis() / 1000, rateLimit);
+    }
+
+    /*
+     The messages of a call site in the current second. Counted without locking, the limit may be exceeded by a
+     few messages if several threads start a new second at once.
+      */
+    private static class CallSite {
+
+        private final String format;
+        private final AtomicLong second = new AtomicLong(-1);
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong suppressedCount = new AtomicLong();
+
+        CallSite(String format){
+            this.format = format;
+        }
+
+        boolean acquire(long now, int limit){
+            long current = second.get();
+            if (now != current && second.compareAndSet(current, now)){
+                count.set(0);
+                reportSuppressed();
+            }
+            if (count.incrementAndGet() <= limit){
+                return true;
+            }
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+
+        void reportSuppressed(){
+            long suppressed = suppressedCount.getAndSet(0);
+            if (suppressed > 0){
+                // Not parameterized, the format's placeholders are to be printed as they are
+                logger.warn("[Log] Suppressed " + suppressed + " messages \"" + format + "\" (log_rate_limit_per_second)");
+            }
+        }
+    }
 }
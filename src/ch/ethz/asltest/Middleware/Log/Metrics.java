@@ -0,0 +1,289 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Environment.Server;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Result.Result;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Metrics holds live counters and latency distributions of the running middleware, which are rendered in the
+    Prometheus text format by the MetricsServer. In contrast to Statistics (per thread, exported on shutdown),
+    they are shared by all threads: counters are LongAdders (striped per thread under contention) and latencies
+    are recorded into lock free LatencyHistograms, such that the measurement points don't take any locks.
+    Jobs are recorded along with their submission to Statistics, gauges (queue depth, connections, buffers) are
+    read when rendering, as are the CapacityEstimator's model and the CpuTimeAccounting totals. The phase and server
+    latencies only cover the Jobs timed in all phases (see Instrumentation).
+    Rendering keeps no state between scrapes, such that several scrapers can't disturb each other: rates (e.g. the
+    throughput) are to be derived from the counters by the scraper, e.g. rate(mw_jobs_total[1m]).
+    Only exists if metrics_enabled is set (getInstance() returns null otherwise).
+ */
+
+public class Metrics {
+
+    private static Metrics ourInstance;
+    public static Metrics getInstance() {
+        return ourInstance;
+    }
+
+    public static void initialize(){
+        if (Parameters.getBoolean("metrics_enabled")){
+            ourInstance = new Metrics();
+        }
+    }
+
+    /*
+     The phases of a Job, which add up to its response time: net thread (parsing until enqueued), queue,
+     worker (until written to the last server), server (until the last server answered) and write-back.
+      */
+    public enum Phase {
+        NET_THREAD("net_thread"),
+        QUEUE("queue"),
+        WORKER("worker"),
+        SERVER("server"),
+        WRITE_BACK("write_back"),
+        RESPONSE("response");
+
+        public final String label;
+
+        Phase(String label){
+            this.label = label;
+        }
+    }
+
+    private static final double[] QUANTILES = new double[]{0.5, 0.9, 0.95, 0.99};
+
+    private final LongAdder setJobCount = new LongAdder();
+    private final LongAdder getJobCount = new LongAdder();
+    private final LongAdder getKeyCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder serverErrorCount = new LongAdder();
+    private final LongAdder clientErrorCount = new LongAdder();
+    private final LongAdder acceptedClientCount = new LongAdder();
+
+    private final LatencyHistogram[] phaseHistograms;
+    private final LatencyHistogram[] serverHistograms;
+
+    private Metrics(){
+        phaseHistograms = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < phaseHistograms.length; i++){
+            phaseHistograms[i] = new LatencyHistogram();
+        }
+        serverHistograms = new LatencyHistogram[Environment.getServerList().size()];
+        for (int i = 0; i < serverHistograms.length; i++){
+            serverHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    // To be called once a Job has been answered (from Statistics)
+    public void recordJob(Job job){
+        if (job instanceof Job.GetJob){
+            getJobCount.increment();
+            getKeyCount.add(((Job.GetJob) job).getKeyCount());
+            missCount.add(job.getMissCount());
+        } else {
+            setJobCount.increment();
+        }
+        phaseHistograms[Phase.RESPONSE.ordinal()].record(job.getClientSendTime() - job.getClientArrivalTime());
+        if (!job.isInstrumented()){
+            return;
+        }
+
+        long lastServerSendTime = 0;
+        long lastServerArrivalTime = 0;
+        for (int i = 0; i < serverHistograms.length; i++){
+            long serverSendTime = job.getServerSendTime(i);
+            long serverArrivalTime = job.getServerArrivalTime(i);
+            if (serverSendTime > 0 && serverArrivalTime > 0){
+                serverHistograms[i].record(serverArrivalTime - serverSendTime);
+            }
+            lastServerSendTime = Math.max(lastServerSendTime, serverSendTime);
+            lastServerArrivalTime = Math.max(lastServerArrivalTime, serverArrivalTime);
+        }
+
+        phaseHistograms[Phase.NET_THREAD.ordinal()].record(job.getEnqueueTime() - job.getClientArrivalTime());
+        phaseHistograms[Phase.QUEUE.ordinal()].record(job.getDequeueTime() - job.getEnqueueTime());
+        phaseHistograms[Phase.WORKER.ordinal()].record(lastServerSendTime - job.getDequeueTime());
+        phaseHistograms[Phase.SERVER.ordinal()].record(lastServerArrivalTime - lastServerSendTime);
+        phaseHistograms[Phase.WRITE_BACK.ordinal()].record(job.getClientSendTime() - lastServerArrivalTime);
+    }
+
+    public void recordError(Result error){
+        if (error instanceof Result.ErrorResult){
+            errorCount.increment();
+        } else if (error instanceof Result.ServerErrorResult){
+            serverErrorCount.increment();
+        } else if (error instanceof Result.ClientErrorResult){
+            clientErrorCount.increment();
+        }
+    }
+
+    public void recordAcceptedClient(){
+        acceptedClientCount.increment();
+    }
+
+    public long getSetJobCount(){
+        return setJobCount.sum();
+    }
+
+    public long getGetJobCount(){
+        return getJobCount.sum();
+    }
+
+    public long getGetKeyCount(){
+        return getKeyCount.sum();
+    }
+
+    public long getMissCount(){
+        return missCount.sum();
+    }
+
+    public long getErrorCount(){
+        return errorCount.sum() + serverErrorCount.sum() + clientErrorCount.sum();
+    }
+
+    public long getAcceptedClientCount(){
+        return acceptedClientCount.sum();
+    }
+
+    public LatencyHistogram getPhaseHistogram(Phase phase){
+        return phaseHistograms[phase.ordinal()];
+    }
+
+    public LatencyHistogram getServerHistogram(int globalServerIndex){
+        return serverHistograms[globalServerIndex];
+    }
+
+    // Renders all metrics in the Prometheus text exposition format (version 0.0.4)
+    public synchronized String render(){
+        StringBuilder stringBuilder = new StringBuilder(8192);
+
+        long setJobs = setJobCount.sum();
+        long getJobs = getJobCount.sum();
+        header(stringBuilder, "mw_jobs_total", "counter", "Completed jobs");
+        sample(stringBuilder, "mw_jobs_total{type=\"set\"}", setJobs);
+        sample(stringBuilder, "mw_jobs_total{type=\"get\"}", getJobs);
+
+        long getKeys = getKeyCount.sum();
+        long misses = missCount.sum();
+        header(stringBuilder, "mw_get_keys_total", "counter", "Keys requested by get jobs");
+        sample(stringBuilder, "mw_get_keys_total", getKeys);
+        header(stringBuilder, "mw_misses_total", "counter", "Requested keys not found on the servers");
+        sample(stringBuilder, "mw_misses_total", misses);
+        header(stringBuilder, "mw_miss_ratio", "gauge", "Misses per requested key since start");
+        sample(stringBuilder, "mw_miss_ratio", getKeys == 0 ? 0 : (double) misses / getKeys);
+
+        header(stringBuilder, "mw_errors_total", "counter", "Error responses of the servers");
+        sample(stringBuilder, "mw_errors_total{type=\"error\"}", errorCount.sum());
+        sample(stringBuilder, "mw_errors_total{type=\"server_error\"}", serverErrorCount.sum());
+        sample(stringBuilder, "mw_errors_total{type=\"client_error\"}", clientErrorCount.sum());
+
+        header(stringBuilder, "mw_phase_latency_seconds", "summary", "Time spent per phase of a job");
+        for (Phase phase : Phase.values()){
+            summary(stringBuilder, "mw_phase_latency_seconds", "phase=\"" + phase.label + "\"", phaseHistograms[phase.ordinal()]);
+        }
+
+        header(stringBuilder, "mw_server_latency_seconds", "summary", "Response time of each server");
+        for (int i = 0; i < serverHistograms.length; i++){
+            summary(stringBuilder, "mw_server_latency_seconds", "server=\"" + Environment.getServerList().get(i).getName() + "\"", serverHistograms[i]);
+        }
+
+        if (JobQueue.getInstance() != null){
+            header(stringBuilder, "mw_queue_depth", "gauge", "Jobs in the JobQueue");
+            for (Job.Lane lane : Job.Lane.values()){
+                JobQueue jobQueue = JobQueue.getInstance(lane);
+                if (lane != Job.Lane.SMALL && jobQueue == JobQueue.getInstance()){
+                    // Lanes are disabled, all share one queue
+                    continue;
+                }
+                sample(stringBuilder, "mw_queue_depth{lane=\"" + lane.name().toLowerCase(Locale.US) + "\"}", jobQueue.getQueueSize());
+            }
+            header(stringBuilder, "mw_queue_bytes", "gauge", "Request bytes pinned by the jobs in the JobQueue");
+            sample(stringBuilder, "mw_queue_bytes", JobQueue.getInstance().getQueuedBytes());
+        }
+
+        int clientCount;
+        synchronized (Environment.getClientList()){
+            clientCount = Environment.getClientList().size();
+        }
+        header(stringBuilder, "mw_client_connections", "gauge", "Open client connections");
+        sample(stringBuilder, "mw_client_connections", clientCount);
+        header(stringBuilder, "mw_client_connections_accepted_total", "counter", "Accepted client connections");
+        sample(stringBuilder, "mw_client_connections_accepted_total", acceptedClientCount.sum());
+        header(stringBuilder, "mw_server_connections", "gauge", "Open connections per server");
+        for (Server server : Environment.getServerList()){
+            sample(stringBuilder, "mw_server_connections{server=\"" + server.getName() + "\"}", server.getConnectionCount());
+        }
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        if (bufferPool != null){
+            header(stringBuilder, "mw_buffer_pool_bytes", "gauge", "Bytes of parser buffers allocated and lent by the BufferPool");
+            sample(stringBuilder, "mw_buffer_pool_bytes{state=\"allocated\"}", bufferPool.getAllocatedBytes());
+            sample(stringBuilder, "mw_buffer_pool_bytes{state=\"lent\"}", bufferPool.getLentBytes());
+            header(stringBuilder, "mw_buffer_pool_misses_total", "counter", "Buffers the BufferPool had to allocate");
+            sample(stringBuilder, "mw_buffer_pool_misses_total", bufferPool.getMissCount());
+        }
+
+        CapacityEstimator capacityEstimator = CapacityEstimator.getInstance();
+        CapacityEstimator.Estimate estimate = capacityEstimator == null ? null : capacityEstimator.getEstimate();
+        if (estimate != null){
+            header(stringBuilder, "mw_capacity_utilization", "gauge", "Modelled utilization of the workers");
+            sample(stringBuilder, "mw_capacity_utilization", estimate.utilization);
+            header(stringBuilder, "mw_capacity_saturation_throughput_ops", "gauge", "Modelled throughput at which the bottleneck saturates");
+            sample(stringBuilder, "mw_capacity_saturation_throughput_ops", estimate.saturationThroughput);
+            header(stringBuilder, "mw_capacity_headroom_ratio", "gauge", "Share of the saturation throughput not used yet");
+            sample(stringBuilder, "mw_capacity_headroom_ratio", estimate.headroom);
+            header(stringBuilder, "mw_capacity_model_throughput_ops", "gauge", "Throughput predicted by mean value analysis for the connected clients");
+            sample(stringBuilder, "mw_capacity_model_throughput_ops", estimate.predictedThroughput);
+            header(stringBuilder, "mw_capacity_optimal_workers", "gauge", "Lowest worker count reaching the knee of the predicted throughput");
+            sample(stringBuilder, "mw_capacity_optimal_workers", estimate.optimalWorkerCount);
+        }
+
+        if (CpuTimeAccounting.isEnabled()){
+            CpuTimeAccounting.Totals totals = CpuTimeAccounting.getTotals();
+            header(stringBuilder, "mw_cpu_seconds_total", "counter", "CPU time spent per phase and operation type");
+            for (CpuTimeAccounting.Phase phase : CpuTimeAccounting.Phase.values()){
+                for (CpuTimeAccounting.OperationType operationType : CpuTimeAccounting.OperationType.values()){
+                    sample(stringBuilder, "mw_cpu_seconds_total{phase=\"" + phase.label + "\",type=\"" + operationType.label + "\"}", totals.getCpuTime(phase, operationType) / 1e9);
+                }
+            }
+            header(stringBuilder, "mw_cpu_wall_seconds_total", "counter", "Wall-clock time spent per phase and operation type, over which the CPU time was measured");
+            for (CpuTimeAccounting.Phase phase : CpuTimeAccounting.Phase.values()){
+                for (CpuTimeAccounting.OperationType operationType : CpuTimeAccounting.OperationType.values()){
+                    sample(stringBuilder, "mw_cpu_wall_seconds_total{phase=\"" + phase.label + "\",type=\"" + operationType.label + "\"}", totals.getWallTime(phase, operationType) / 1e9);
+                }
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    private static void header(StringBuilder stringBuilder, String name, String type, String help){
+        stringBuilder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        stringBuilder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder stringBuilder, String name, long value){
+        stringBuilder.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder stringBuilder, String name, double value){
+        stringBuilder.append(name).append(' ').append(String.format(Locale.US, "%.6f", value)).append('\n');
+    }
+
+    // Quantiles since start in seconds, followed by the sum and count
+    private static void summary(StringBuilder stringBuilder, String name, String labels, LatencyHistogram latencyHistogram){
+        for (double quantile : QUANTILES){
+            sample(stringBuilder, name + "{" + labels + ",quantile=\"" + quantile + "\"}", latencyHistogram.getPercentile(quantile) / 1e9);
+        }
+        sample(stringBuilder, name + "_sum{" + labels + "}", latencyHistogram.getSum() / 1e9);
+        sample(stringBuilder, name + "_count{" + labels + "}", latencyHistogram.getCount());
+    }
+}
@@ -0,0 +1,363 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+    The SlowRequestRecorder keeps the slowest Jobs (by response time) of every window of slow_request_window_ms,
+    such that it can be seen which requests were slow and in which phase they spent their time. Every
+    WorkerThread/EventLoopThread owns one and records each answered Job: Jobs faster than
+    slow_request_threshold_us are dropped right away, the others compete for the slow_request_top_n places of the
+    window (a min-heap on the response time, its entries are preallocated and reused). The last
+    slow_request_windows windows are kept.
+    An entry holds the client, key and miss count, the first slow_request_key_bytes bytes of the first key, the
+    queue wait, the write-back time and the send and arrival time of every server (the phase times are 0 for Jobs
+    not timed in all phases, see Instrumentation).
+    The entries are written to result/<launchTime>_SR_<thread>.stat on shutdown and can be queried while running
+    with "stats slow" (see StatsReport). Only the owning thread modifies a recorder, it only locks to do so.
+ */
+
+public class SlowRequestRecorder {
+
+    private static boolean enabled;
+    private static int topN;
+    private static long thresholdNs;
+    private static long windowNs;
+    private static int maxWindows;
+    private static int keyBytes;
+    private static long origin;
+
+    // All recorders, for dumping on demand
+    private static final Queue<SlowRequestRecorder> recorderQueue = new ConcurrentLinkedQueue<>();
+
+    // To be called before the WorkerThreads/EventLoopThreads are created
+    public static void initialize(){
+        enabled = Parameters.getBoolean("slow_request_recorder_enabled");
+        topN = Math.max(1, Parameters.getInteger("slow_request_top_n"));
+        thresholdNs = 1000L * Parameters.getLong("slow_request_threshold_us");
+        windowNs = 1000L * 1000L * Math.max(1, Parameters.getLong("slow_request_window_ms"));
+        maxWindows = Math.max(1, Parameters.getInteger("slow_request_windows"));
+        keyBytes = Math.max(0, Parameters.getInteger("slow_request_key_bytes"));
+        origin = System.nanoTime();
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    // How many bytes of the first key Jobs are to keep for the recorders (0 if none)
+    public static int getKeyBytes(){
+        return enabled ? keyBytes : 0;
+    }
+
+    // The slowest entries of all recorders in the kept windows, slowest first
+    public static List<Entry> getSlowest(int count){
+        List<Entry> entryList = new ArrayList<>();
+        for (SlowRequestRecorder slowRequestRecorder : recorderQueue){
+            slowRequestRecorder.copyEntries(entryList);
+        }
+        entryList.sort((first, second) -> Long.compare(second.responseTime, first.responseTime));
+        return entryList.size() > count ? entryList.subList(0, count) : entryList;
+    }
+
+    private final String threadName;
+    private final int serverCount;
+
+    // The heap of the current window, the smallest response time at index 0
+    private Entry[] heap;
+    private int heapSize;
+    private long currentWindow = -1;
+
+    // The heaps of the previous windows (oldest first) and heaps to be reused
+    private final Deque<Window> windows = new ArrayDeque<>();
+    private final Deque<Entry[]> freeHeaps = new ArrayDeque<>();
+
+    public SlowRequestRecorder(String threadName){
+        this.threadName = threadName;
+        this.serverCount = Environment.getServerList().size();
+        heap = newHeap();
+        recorderQueue.add(this);
+    }
+
+    // To be called once a Job has been answered (its client send time is set)
+    public void record(Job job){
+        long responseTime = job.getClientSendTime() - job.getClientArrivalTime();
+        if (job.getClientSendTime() == 0 || responseTime < thresholdNs){
+            return;
+        }
+        long window = (job.getClientSendTime() - origin) / windowNs;
+        // Only this thread modifies the heap, no need to lock for reading it
+        if (window == currentWindow && heapSize == topN && responseTime <= heap[0].responseTime){
+            return;
+        }
+
+        synchronized (this){
+            if (window != currentWindow){
+                closeWindow(window);
+            }
+            Entry entry;
+            if (heapSize < topN){
+                entry = heap[heapSize];
+                heapSize++;
+                entry.set(job, window, responseTime);
+                siftUp(heapSize - 1);
+            } else {
+                // Replace the fastest of the slow ones
+                entry = heap[0];
+                entry.set(job, window, responseTime);
+                siftDown(0);
+            }
+        }
+    }
+
+    private void closeWindow(long nextWindow){
+        if (heapSize > 0){
+            Entry[] windowHeap = Arrays.copyOf(heap, heapSize);
+            windows.addLast(new Window(windowHeap, heap));
+            heap = freeHeaps.isEmpty() ? newHeap() : freeHeaps.pollFirst();
+            while (windows.size() > maxWindows){
+                freeHeaps.addLast(windows.pollFirst().heap);
+            }
+        }
+        heapSize = 0;
+        currentWindow = nextWindow;
+    }
+
+    private Entry[] newHeap(){
+        Entry[] newHeap = new Entry[topN];
+        for (int i = 0; i < topN; i++){
+            newHeap[i] = new Entry(serverCount, keyBytes);
+        }
+        return newHeap;
+    }
+
+    private void siftUp(int index){
+        while (index > 0){
+            int parent = (index - 1) / 2;
+            if (heap[parent].responseTime <= heap[index].responseTime){
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index){
+        while (true){
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < heapSize && heap[left].responseTime < heap[smallest].responseTime){
+                smallest = left;
+            }
+            if (right < heapSize && heap[right].responseTime < heap[smallest].responseTime){
+                smallest = right;
+            }
+            if (smallest == index){
+                return;
+            }
+            swap(smallest, index);
+            index = smallest;
+        }
+    }
+
+    private void swap(int first, int second){
+        Entry entry = heap[first];
+        heap[first] = heap[second];
+        heap[second] = entry;
+    }
+
+    // Copies of all entries (kept windows and the current one), since the owning thread reuses them
+    private synchronized void copyEntries(List<Entry> entryList){
+        for (Window window : windows){
+            for (Entry entry : window.entries){
+                entryList.add(entry.copy());
+            }
+        }
+        for (int i = 0; i < heapSize; i++){
+            entryList.add(heap[i].copy());
+        }
+    }
+
+    // To be called by the owning thread on shutdown
+    public void export(){
+        List<Entry> entryList = new ArrayList<>();
+        copyEntries(entryList);
+        if (entryList.isEmpty()){
+            return;
+        }
+        // By window, slowest first
+        entryList.sort((first, second) -> first.window != second.window ? Long.compare(first.window, second.window) : Long.compare(second.responseTime, first.responseTime));
+
+        String fileName = "./result/" + Global.launchTime + "_SR_" + threadName + ".stat";
+        try (PrintWriter printWriter = new PrintWriter(fileName, "US-ASCII")){
+            printWriter.print(entryList.size());
+            for (Entry entry : entryList){
+                printWriter.println();
+                printWriter.print(entry.toCsv());
+            }
+            printWriter.flush();
+            Log.info("[SlowRequestRecorder] Exported {} slow requests of {}", entryList.size(), threadName);
+        } catch (IOException iOException){
+            Log.error("[SlowRequestRecorder] Could not write {}: {}", fileName, iOException.getMessage());
+        }
+    }
+
+    private static class Window{
+
+        // The entries of the window (in heap order) and the heap array to reuse once dropped
+        final Entry[] entries;
+        final Entry[] heap;
+
+        Window(Entry[] entries, Entry[] heap){
+            this.entries = entries;
+            this.heap = heap;
+        }
+    }
+
+    // The values of one slow Job, times in ns
+    public static class Entry{
+
+        long window;
+        long responseTime;
+        boolean get;
+        String client;
+        int keyCount;
+        int missCount;
+        long clientArrivalTime;
+        long enqueueTime;
+        long dequeueTime;
+        long clientSendTime;
+        final long[] serverSendTime;
+        final long[] serverArrivalTime;
+        final byte[] key;
+        int keyLength;
+
+        Entry(int serverCount, int keyBytes){
+            serverSendTime = new long[serverCount];
+            serverArrivalTime = new long[serverCount];
+            key = new byte[keyBytes];
+        }
+
+        void set(Job job, long window, long responseTime){
+            this.window = window;
+            this.responseTime = responseTime;
+            get = job instanceof Job.GetJob;
+            client = job.getSubmitter() == null ? "" : job.getSubmitter().getAddress();
+            keyCount = get ? ((Job.GetJob) job).getKeyCount() : 1;
+            missCount = job.getMissCount();
+            clientArrivalTime = job.getClientArrivalTime();
+            enqueueTime = job.getEnqueueTime();
+            dequeueTime = job.getDequeueTime();
+            clientSendTime = job.getClientSendTime();
+            for (int i = 0; i < serverSendTime.length; i++){
+                serverSendTime[i] = job.getServerSendTime(i);
+                serverArrivalTime[i] = job.getServerArrivalTime(i);
+            }
+            keyLength = job.copyKey(key);
+        }
+
+        Entry copy(){
+            Entry entry = new Entry(serverSendTime.length, key.length);
+            entry.window = window;
+            entry.responseTime = responseTime;
+            entry.get = get;
+            entry.client = client;
+            entry.keyCount = keyCount;
+            entry.missCount = missCount;
+            entry.clientArrivalTime = clientArrivalTime;
+            entry.enqueueTime = enqueueTime;
+            entry.dequeueTime = dequeueTime;
+            entry.clientSendTime = clientSendTime;
+            System.arraycopy(serverSendTime, 0, entry.serverSendTime, 0, serverSendTime.length);
+            System.arraycopy(serverArrivalTime, 0, entry.serverArrivalTime, 0, serverArrivalTime.length);
+            System.arraycopy(key, 0, entry.key, 0, keyLength);
+            entry.keyLength = keyLength;
+            return entry;
+        }
+
+        public long getResponseTime(){
+            return responseTime;
+        }
+
+        // 0 if the Job has not been timed in all phases
+        public long getQueueTime(){
+            return dequeueTime == 0 ? 0 : dequeueTime - enqueueTime;
+        }
+
+        // From the last server's answer until the response has been sent to the client, 0 if not timed
+        public long getWriteBackTime(){
+            long lastServerArrivalTime = 0;
+            for (long arrivalTime : serverArrivalTime){
+                lastServerArrivalTime = Math.max(lastServerArrivalTime, arrivalTime);
+            }
+            return lastServerArrivalTime == 0 ? 0 : clientSendTime - lastServerArrivalTime;
+        }
+
+        public String getKey(){
+            return new String(key, 0, keyLength, StandardCharsets.US_ASCII);
+        }
+
+        /*
+         window, responseTime, type, client, keyCount, missCount, queueTime, writeBackTime, clientArrival, enqueue,
+         dequeue, clientSend, server count, send and arrival time per server, key (last, it may contain commas)
+          */
+        String toCsv(){
+            StringBuilder stringBuilder = new StringBuilder(256);
+            stringBuilder.append(window).append(',')
+                    .append(responseTime).append(',')
+                    .append(get ? "get" : "set").append(',')
+                    .append(client).append(',')
+                    .append(keyCount).append(',')
+                    .append(missCount).append(',')
+                    .append(getQueueTime()).append(',')
+                    .append(getWriteBackTime()).append(',')
+                    .append(clientArrivalTime).append(',')
+                    .append(enqueueTime).append(',')
+                    .append(dequeueTime).append(',')
+                    .append(clientSendTime).append(',')
+                    .append(serverSendTime.length);
+            for (int i = 0; i < serverSendTime.length; i++){
+                stringBuilder.append(',').append(serverSendTime[i]).append(',').append(serverArrivalTime[i]);
+            }
+            stringBuilder.append(',').append(getKey());
+            return stringBuilder.toString();
+        }
+
+        // A single token for the "stats slow" answer, times in us relative to the client's request
+        public String toStatValue(){
+            StringBuilder stringBuilder = new StringBuilder(256);
+            stringBuilder.append("rt_us=").append(responseTime / 1000)
+                    .append(",type=").append(get ? "get" : "set")
+                    .append(",client=").append(client)
+                    .append(",keys=").append(keyCount)
+                    .append(",misses=").append(missCount)
+                    .append(",queue_us=").append(getQueueTime() / 1000)
+                    .append(",write_back_us=").append(getWriteBackTime() / 1000);
+            for (int i = 0; i < serverSendTime.length; i++){
+                if (serverSendTime[i] != 0){
+                    stringBuilder.append(",server").append(i).append("_us=")
+                            .append((serverSendTime[i] - clientArrivalTime) / 1000).append('-')
+                            .append((serverArrivalTime[i] - clientArrivalTime) / 1000);
+                }
+            }
+            if (keyLength > 0){
+                stringBuilder.append(",key=").append(getKey());
+            }
+            return stringBuilder.toString();
+        }
+    }
+}
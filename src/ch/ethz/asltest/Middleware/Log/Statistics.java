@@ -1,5 +1,6 @@
 package ch.ethz.asltest.Middleware.Log;
 
+import ch.ethz.asltest.Middleware.Environment.Client;
 import ch.ethz.asltest.Middleware.Environment.Environment;
 import ch.ethz.asltest.Middleware.Global.Global;
 import ch.ethz.asltest.Middleware.Global.Parameters;
@@ -7,22 +8,41 @@ import ch.ethz.asltest.Middleware.Job.Job;
 import ch.ethz.asltest.Middleware.Result.Result;
 import ch.ethz.asltest.Middleware.Result.ResultMerger;
 import ch.ethz.asltest.Middleware.Threading.ShutdownThread;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
 
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /*
     This class is used by both the NetThread and WorkerThreads to output their aggregated statistics.
     The NetThread uses a static interface to put out its collected Thinking times.
     All WorkerThreads hold two instances (one for sets, one for gets) and add all Jobs to it they complete.
-    Adding a Job to Statistics is constant time and thus doesn't interfere with measurements.
+    Adding a Job to Statistics is constant time and thus doesn't interfere with measurements. The values of a Job are
+    copied into preallocated chunks of primitive columns, such that the Job can be reused and nothing is allocated
+    per Job (only per chunk of statistics_chunk_rows Jobs).
     When the middleware gets shut down, all WorkerThreads consolidate their Statistics and
     write out one file each for all set and get jobs completed by them.
+    With statistics_rolling_export, the Jobs are handed to the StatisticsExporter in windows instead: once a Job is
+    sent in a new window (or the thread is idle past the end of the window), the chunks of the closed window are
+    queued without locking, consolidated and appended to the per-job and per-second files by the exporter and
+    handed back for reuse. The headers are rewritten with fixed width after each window, such that the files are
+    complete up to the last closed window at any time.
+    Depending on the Instrumentation level, only the Jobs timed in all phases are kept (the others are only counted)
+    or nothing is recorded at all.
     The MWParameters.xml config file specifies the formats it uses.
     Per-Job, per-second and histogram outputs are available for WorkerThread exports.
+    The merged report also detects the warm-up, steady state and drain of the run from its per-second series
+    (see SteadyState).
  */
 
 public class Statistics {
@@ -35,7 +55,25 @@ public class Statistics {
     private long lowestClientSendTime = Long.MAX_VALUE;
     private long highestClientSendTime = Long.MIN_VALUE;
 
-    private List<Job> jobList;
+    /*
+     The submitted Jobs, one row per Job in chunks of chunkRows rows. A row holds the values at the
+     column offsets below, followed by the arrival and send time of each server.
+      */
+    private List<long[]> chunkList;
+    private final int chunkRows;
+    private final int rowWidth;
+    private int rowCount;
+
+    static final int CLIENT_ARRIVAL_TIME = 0;
+    static final int CLIENT_SEND_TIME = 1;
+    static final int ENQUEUE_TIME = 2;
+    static final int DEQUEUE_TIME = 3;
+    static final int ENQUEUE_SIZE = 4;
+    static final int DEQUEUE_SIZE = 5;
+    static final int ENQUEUE_BYTES = 6;
+    static final int DEQUEUE_BYTES = 7;
+    static final int SAMPLE_WEIGHT = 8;
+    static final int SERVER_TIMES = 9;
 
     // Response time histogram going from bucket to number of values in that bucket.
     private HashMap<Integer, Integer> histogram;
@@ -46,7 +84,40 @@ public class Statistics {
 
     private final double percentile;
 
+    // Live metrics fed along with the statistics, null if disabled
+    private final Metrics metrics;
+
+    // Rolling export, null if disabled
+    private final StatisticsExporter statisticsExporter;
+    // The window the current chunks belong to (-1 before the first Job, DONE after the last window has been submitted)
+    private volatile long currentWindow = -1;
+    static final long DONE = Long.MAX_VALUE;
+    // Chunks handed back by the StatisticsExporter
+    private final Queue<long[]> freeChunks = new ConcurrentLinkedQueue<>();
+    // The name of the thread submitting Jobs (used in the file names)
+    private String threadName;
+
+    // State of the rolling export, only accessed by the StatisticsExporter
+    private RollingFile perJobFile;
+    private RollingFile perSecondFile;
+    private long firstBucket = -1;
+    private long nextBucket = -1;
+    private long perJobLineCount;
+    private long perSecondLineCount;
+    // The jobs and average response time of every bucket so far, for the steady-state detection of the merged report
+    private long[] seriesJobs;
+    private double[] seriesResponseTimes;
+    private int seriesLength;
+
+    // All Statistics of the threads (not the merged ones), for the merged report
+    private static Queue<Statistics> statisticsQueue = new ConcurrentLinkedQueue<>();
+    // Whether this holds the report merged over all threads (see exportMerged())
+    private final boolean merged;
+
     public void submitError(Result error){
+        if (metrics != null){
+            metrics.recordError(error);
+        }
         if (error instanceof  Result.ErrorResult){
             errorCount++;
         } else if (error instanceof  Result.ServerErrorResult){
@@ -58,23 +129,41 @@ public class Statistics {
         }
     }
 
-    // Maps clients to their thinking times (ip:port to list of times in ns)
-    private static HashMap<String, List<Long>> thinkingTimesMap = new HashMap<>();
-
-     /*
-     Maps clients to save state about thinking time.
-     For each client, we save the timestamp of the last byte we sent.
-     On receiving the first byte, the difference consitutes approximately
-     as the thinking time. The initial value of null shall be ignored.
+    /*
+     The connected clients, for exporting their thinking and response times (which are kept in the Client itself,
+     such that recording them is a field access instead of a map lookup). Once a client has disconnected, its rows
+     are consolidated and its histograms dropped (see unregisterClient()), such that runs with many short
+     connections keep a few numbers per past connection instead of two histograms.
       */
-    private static HashMap<String, Long> clientSendTimeMap = new HashMap<>();
+    private static Queue<Client> clientQueue = new ConcurrentLinkedQueue<>();
+    private static Queue<ThinkingTimeStatLine> disconnectedThinkingTimeQueue = new ConcurrentLinkedQueue<>();
+    private static Queue<ClientResponseTimeStatLine> disconnectedResponseTimeQueue = new ConcurrentLinkedQueue<>();
+    // The response times of all clients, read while running (e.g. by the Autotuner)
+    private static LatencyHistogram responseTimeHistogram = new LatencyHistogram();
 
     public Statistics(StatisticsType statisticsType){
+        this(statisticsType, false);
+        statisticsQueue.add(this);
+    }
+
+    // The Statistics of the merged report, which only consolidate the rows of the other ones
+    static Statistics createMerged(StatisticsType statisticsType){
+        Statistics statistics = new Statistics(statisticsType, true);
+        statistics.threadName = "middleware";
+        return statistics;
+    }
+
+    private Statistics(StatisticsType statisticsType, boolean merged){
         this.statisticsType = statisticsType;
-        jobList = new LinkedList<>();
+        this.merged = merged;
+        chunkList = new ArrayList<>();
+        chunkRows = Math.max(1, Parameters.getInteger("statistics_chunk_rows"));
+        rowWidth = SERVER_TIMES + 2 * Environment.getServerList().size();
         histogram = new HashMap<>();
         // Don't do this statically to avoid race conditions on parameter class parsing
         percentile = Parameters.getInteger("statistics_percentile_percent") / 100D;
+        metrics = Metrics.getInstance();
+        statisticsExporter = StatisticsExporter.getInstance();
     }
 
 
@@ -96,24 +185,77 @@ public class Statistics {
         addJob(getJob);
     }
 
-    // To be called when the first byte of a client connection has been read.
-    // Will be used to measure the thinking time of the clients.
-    public static void setClientArrivalTime(String client, Long timestamp){
-        Long clientSendTime = clientSendTimeMap.get(client);
-        if (clientSendTime == null){
+    // To be called once a client has been accepted
+    public static void registerClient(Client client){
+        clientQueue.add(client);
+    }
+
+    /*
+     To be called once a client has been disconnected. Response times recorded afterwards (by a thread still
+     answering it) are only part of the totals (getResponseTimeHistogram()).
+      */
+    public static void unregisterClient(Client client){
+        if (!clientQueue.remove(client)){
+            return;
+        }
+        LatencyHistogram thinkingTimeHistogram = client.getThinkingTimeHistogram();
+        if (thinkingTimeHistogram != null && thinkingTimeHistogram.getCount() > 0){
+            disconnectedThinkingTimeQueue.add(extractThinkingTime(client.getAddress(), thinkingTimeHistogram));
+        }
+        LatencyHistogram clientResponseTimeHistogram = client.getResponseTimeHistogram();
+        if (clientResponseTimeHistogram != null && clientResponseTimeHistogram.getCount() > 0){
+            disconnectedResponseTimeQueue.add(extractClientResponseTime(client.getAddress(), clientResponseTimeHistogram));
+        }
+        client.releaseHistograms();
+    }
+
+    /*
+     To be called when the first byte of a client connection has been read.
+     The time since the last byte we sent to the client approximately constitutes its thinking time,
+     there is none before the first response.
+      */
+    public static void setClientArrivalTime(Client client, long timestamp){
+        long clientSendTime = client.getLastSendTime();
+        if (clientSendTime == 0){
             return;
         }
-        thinkingTimesMap.putIfAbsent(client, new LinkedList<>());
-        thinkingTimesMap.get(client).add((timestamp - clientSendTime) / (Parameters.getInteger("statistics_thinking_times_resolution_ns")));
+        client.recordThinkingTime(timestamp - clientSendTime);
     }
 
     // To be called when the last byte of a response has been written to a client connection.
     // Will be used to measure the thinking time of the clients.
-    public static void setClientSendTime(String client, long timestamp){
-        clientSendTimeMap.put(client, timestamp);
+    public static void setClientSendTime(Client client, long timestamp){
+        client.setLastSendTime(timestamp);
+    }
+
+    // To be called when the last byte of a response has been written to a client connection.
+    public static void submitClientResponseTime(Client client, long responseTime){
+        client.recordResponseTime(responseTime);
+        responseTimeHistogram.record(responseTime);
+    }
+
+    public long getJobCount(){
+        return totalJobCount;
+    }
+
+    public static LatencyHistogram getResponseTimeHistogram(){
+        return responseTimeHistogram;
     }
 
     private void addJob(Job job){
+        if (!Instrumentation.isCounting()){
+            return;
+        }
+        if (metrics != null){
+            metrics.recordJob(job);
+        }
+
+        if (statisticsExporter != null){
+            long window = statisticsExporter.getWindow(job.getClientSendTime());
+            if (window != currentWindow){
+                closeWindow(window, false);
+            }
+        }
 
         totalMissCount += job.getMissCount();
         totalJobCount += 1;
@@ -121,56 +263,137 @@ public class Statistics {
         lowestClientSendTime = Math.min(lowestClientSendTime, job.getClientSendTime());
         highestClientSendTime = Math.max(highestClientSendTime, job.getClientSendTime());
 
-        jobList.add(job);
+        if (!job.isInstrumented()){
+            return;
+        }
+
+        int rowInChunk = rowCount % chunkRows;
+        if (rowInChunk == 0){
+            long[] chunk = freeChunks.poll();
+            chunkList.add(chunk != null ? chunk : new long[chunkRows * rowWidth]);
+        }
+        long[] chunk = chunkList.get(chunkList.size() - 1);
+        int offset = rowInChunk * rowWidth;
+
+        chunk[offset + CLIENT_ARRIVAL_TIME] = job.getClientArrivalTime();
+        chunk[offset + CLIENT_SEND_TIME] = job.getClientSendTime();
+        chunk[offset + ENQUEUE_TIME] = job.getEnqueueTime();
+        chunk[offset + DEQUEUE_TIME] = job.getDequeueTime();
+        chunk[offset + ENQUEUE_SIZE] = job.getEnqueueSize();
+        chunk[offset + DEQUEUE_SIZE] = job.getDequeueSize();
+        chunk[offset + ENQUEUE_BYTES] = job.getEnqueueBytes();
+        chunk[offset + DEQUEUE_BYTES] = job.getDequeueBytes();
+        chunk[offset + SAMPLE_WEIGHT] = job.getSampleWeight();
+        for (int i = 0; i < Environment.getServerList().size(); i++){
+            chunk[offset + SERVER_TIMES + 2 * i] = job.getServerArrivalTime(i);
+            chunk[offset + SERVER_TIMES + 2 * i + 1] = job.getServerSendTime(i);
+        }
+        rowCount++;
     }
 
-    private static List<ThinkingTimeStatLine> consolidateThinkingTimes(HashMap<String, List<Long>> thinkingTimesMap){
-        List<ThinkingTimeStatLine> thinkingTimeStatLineList = new ArrayList<>();
-        List<Long> currentThinkingTimesList;
-        for (String currentClientString : thinkingTimesMap.keySet()){
-            currentThinkingTimesList = thinkingTimesMap.get(currentClientString);
-            Collections.sort(currentThinkingTimesList);
-            thinkingTimeStatLineList.add(extractThinkingTime(currentClientString, currentThinkingTimesList));
+    /*
+     To be called by the submitting thread while it is idle (and with the Jobs of the other type), such that a
+     window is exported even if no further Job is sent after it has ended, and the StatisticsExporter knows
+     how far the thread is for the merged report.
+      */
+    public void roll(long timestamp){
+        if (statisticsExporter == null || timestamp == 0 || currentWindow == DONE){
+            return;
+        }
+        long window = statisticsExporter.getWindow(timestamp);
+        if (window != currentWindow){
+            closeWindow(window, false);
         }
-        return thinkingTimeStatLineList;
     }
 
-    private List<JobStatLine> consolidatePerJob(List<Job> jobList){
-        ArrayList<JobStatLine> jobStatLineList = new ArrayList<>();
-        for (Job currentJob : jobList){
-            jobStatLineList.add(extractStatistics(currentJob));
+    // Hands the current chunks to the StatisticsExporter and continues with new ones in the given window
+    private void closeWindow(long nextWindow, boolean last){
+        if (threadName == null){
+            threadName = Thread.currentThread().getName();
         }
-        return jobStatLineList;
+        if (currentWindow >= 0 || last){
+            statisticsExporter.submit(new Window(this, currentWindow, chunkList, rowCount, last));
+        }
+        chunkList = new ArrayList<>();
+        rowCount = 0;
+        currentWindow = last ? DONE : nextWindow;
     }
 
-    private TimeStatLine[] consolidatePerSecond(List<Job> jobList){
-        int bucketCount = 1 + (int) ((highestClientSendTime - lowestClientSendTime) / (1000*1000*Parameters.getInteger("statistics_time_resolution_ms")));
+    long getCurrentWindow(){
+        return currentWindow;
+    }
 
-        TimeStatLine[] timeStatLineArray = new TimeStatLine[bucketCount];
-        HashMap<Integer, List<Job>> bucketSorter = new HashMap<>(); // For each second, we have a list of jobs that finished therein
+    static Queue<Statistics> getStatisticsQueue(){
+        return statisticsQueue;
+    }
 
-        for (int i = 0; i < bucketCount; i++){
-            bucketSorter.put(i, new ArrayList<>());
+    // Hands the chunks of an exported window back for reuse
+    void release(Window window){
+        for (long[] chunk : window.chunkList){
+            freeChunks.offer(chunk);
         }
+    }
 
-        int currentBucket = 0;
-        for (Job currentJob : jobList){
-            currentBucket = (int) ((currentJob.getClientSendTime() - lowestClientSendTime) / (1000*1000*Parameters.getInteger("statistics_time_resolution_ms")));
-            bucketSorter.get(currentBucket).add(currentJob);
+    // Creates a view on every row for consolidation (only done on export)
+    private List<JobRecord> getJobRecords(List<long[]> chunkList, int rowCount){
+        List<JobRecord> jobRecordList = new ArrayList<>(rowCount);
+        for (int row = 0; row < rowCount; row++){
+            jobRecordList.add(new JobRecord(chunkList.get(row / chunkRows), (row % chunkRows) * rowWidth));
         }
+        return jobRecordList;
+    }
 
-        for (int i = 0; i < bucketCount; i++){
-            timeStatLineArray[i] = extractStatistics(bucketSorter.get(i));
+    private static List<ThinkingTimeStatLine> consolidateThinkingTimes(){
+        List<ThinkingTimeStatLine> thinkingTimeStatLineList = new ArrayList<>(disconnectedThinkingTimeQueue);
+        for (Client client : clientQueue){
+            LatencyHistogram thinkingTimeHistogram = client.getThinkingTimeHistogram();
+            if (thinkingTimeHistogram != null && thinkingTimeHistogram.getCount() > 0){
+                thinkingTimeStatLineList.add(extractThinkingTime(client.getAddress(), thinkingTimeHistogram));
+            }
         }
+        return thinkingTimeStatLineList;
+    }
 
-        return timeStatLineArray;
+    private static List<ClientResponseTimeStatLine> consolidateClientResponseTimes(){
+        List<ClientResponseTimeStatLine> clientResponseTimeStatLineList = new ArrayList<>(disconnectedResponseTimeQueue);
+        for (Client client : clientQueue){
+            LatencyHistogram clientResponseTimeHistogram = client.getResponseTimeHistogram();
+            if (clientResponseTimeHistogram != null && clientResponseTimeHistogram.getCount() > 0){
+                clientResponseTimeStatLineList.add(extractClientResponseTime(client.getAddress(), clientResponseTimeHistogram));
+            }
+        }
+        return clientResponseTimeStatLineList;
     }
 
-    private static ThinkingTimeStatLine extractThinkingTime(String client, List<Long> thinkingTimesList){
-        return new ThinkingTimeStatLine(client, getLongAverage(thinkingTimesList), getLongMedian(thinkingTimesList), getLongPercentile(thinkingTimesList, (Parameters.getInteger("statistics_percentile_percent") / 100D)));
+    private List<JobStatLine> consolidatePerJob(List<JobRecord> jobList){
+        ArrayList<JobStatLine> jobStatLineList = new ArrayList<>();
+        for (JobRecord currentJob : jobList){
+            jobStatLineList.add(extractStatistics(currentJob));
+        }
+        return jobStatLineList;
+    }
+
+    /*
+     Consolidates the Jobs of the parts into bucketCount buckets of statistics_time_resolution_ms, starting at
+     firstBucketTime. In parallel only on shutdown, while running the calling thread does all the work.
+      */
+    private TimeStatLine[] consolidatePerSecond(List<Window> parts, long firstBucketTime, int bucketCount, boolean parallel){
+        long resolutionNs = 1000L * 1000L * Parameters.getInteger("statistics_time_resolution_ms");
+        return new Consolidation(parts, chunkRows, rowWidth, Environment.getServerList().size(), percentile).consolidate(firstBucketTime, resolutionNs, bucketCount, parallel);
+    }
+
+    // Times are in statistics_thinking_times_resolution_ns, median and percentile within the histogram's precision
+    private static ThinkingTimeStatLine extractThinkingTime(String client, LatencyHistogram thinkingTimeHistogram){
+        long resolution = Parameters.getInteger("statistics_thinking_times_resolution_ns");
+        return new ThinkingTimeStatLine(client, thinkingTimeHistogram.getAverage() / resolution, thinkingTimeHistogram.getPercentile(0.5) / resolution, thinkingTimeHistogram.getPercentile(Parameters.getInteger("statistics_percentile_percent") / 100D) / resolution);
+    }
+
+    private static ClientResponseTimeStatLine extractClientResponseTime(String client, LatencyHistogram clientResponseTimeHistogram){
+        return new ClientResponseTimeStatLine(client, clientResponseTimeHistogram.getCount(), clientResponseTimeHistogram.getAverage(), clientResponseTimeHistogram.getPercentile(0.5),
+                clientResponseTimeHistogram.getPercentile(Parameters.getInteger("statistics_percentile_percent") / 100D), clientResponseTimeHistogram.getPercentile(0.99), clientResponseTimeHistogram.getMax());
     }
 
-    private JobStatLine extractStatistics(Job job){
+    private JobStatLine extractStatistics(JobRecord job){
         long[] serverArrivalTime = new long[Environment.getServerList().size()];
         long[] serverSendTime = new long[Environment.getServerList().size()];
         long clientArrivalTime = 0;
@@ -178,6 +401,10 @@ public class Statistics {
         long queueTime = 0;
         int enqueueSize = 0;
         int dequeueSize = 0;
+        long enqueueBytes = 0;
+        long dequeueBytes = 0;
+        long enqueueTime = 0;
+        long dequeueTime = 0;
 
         for (int i = 0; i < Environment.getServerList().size(); i++) {
             serverArrivalTime[i] = job.getServerArrivalTime(i);
@@ -189,6 +416,10 @@ public class Statistics {
         queueTime = job.getDequeueTime() - job.getEnqueueTime();
         enqueueSize = job.getEnqueueSize();
         dequeueSize = job.getDequeueSize();
+        enqueueBytes = job.getEnqueueBytes();
+        dequeueBytes = job.getDequeueBytes();
+        enqueueTime = job.getEnqueueTime();
+        dequeueTime = job.getDequeueTime();
 
         // Update Histogram
 
@@ -207,362 +438,491 @@ public class Statistics {
                 clientSendTime,
                 queueTime,
                 enqueueSize,
-                dequeueSize
+                dequeueSize,
+                enqueueBytes,
+                dequeueBytes,
+                enqueueTime,
+                dequeueTime
         );
     }
 
 
-    private TimeStatLine extractStatistics(List<Job> jobList){
-
-        int consolidationCount = jobList.size();
-
-        HashMap<Integer, List<Long>> serverResponseTimeMap = new HashMap<>();
-        long[] avgServerResponseTime = new long[Environment.getServerList().size()];
-        long[] medianServerResponseTime = new long[Environment.getServerList().size()];
-        long[] percentileServerResponseTime = new long[Environment.getServerList().size()];
+    public void export(){
+        if (statisticsExporter != null){
+            // The last window is written by the StatisticsExporter, which also closes the files
+            closeWindow(-1, true);
+            return;
+        }
+        try {
+            if (rowCount == 0){
+                // Also if Jobs have been counted, but none has been timed (see Instrumentation)
+                Log.info("[Statistics] Not exporting {} statistics, no data available.", statisticsType == StatisticsType.SET ? "set" : "get");
+                return;
+            }
+            threadName = Thread.currentThread().getName();
 
-        List<Long> clientResponseTimeList = new ArrayList<>();
-        long avgClientResponseTime = 0;
-        long medianClientResponseTime = 0;
-        long percentileClientResponseTime = 0;
+            // Consolidate here to ensure all data is processed, regardless of output settings
+            Window window = new Window(this, -1, chunkList, rowCount, true);
+            List<JobRecord> jobList = getJobRecords(chunkList, rowCount);
+            List<JobStatLine> statLineListPerJob = consolidatePerJob(jobList);
+            long resolutionNs = 1000L * 1000L * Parameters.getInteger("statistics_time_resolution_ms");
+            TimeStatLine[] statLineListPerSecond = consolidatePerSecond(Collections.singletonList(window), lowestClientSendTime, 1 + (int) ((highestClientSendTime - lowestClientSendTime) / resolutionNs), true);
 
-        List<Long> queueTimeList = new ArrayList<>();
-        long avgQueueTime = 0;
-        long medianQueueTime = 0;
-        long percentileQueueTime = 0;
+            // PER JOB
+            if (Parameters.getBoolean("statistics_per_job_export")) {
 
-        List<Integer> enqueueSizeList = new ArrayList<>();
-        int avgEnqueueSize = 0;
-        int medianEnqueueSize = 0;
-        int percentileEnqueueSize = 0;
-        int maxEnqueueSize = 0;
+                PrintWriter perJobPrintWriter = new PrintWriter(getFileName("PJ"), "US-ASCII");
+                perJobPrintWriter.print(getPerJobHeader(window, statLineListPerJob.size(), false));
+                for (JobStatLine currentJobStatLine : statLineListPerJob) {
+                    printJobStatLine(perJobPrintWriter, currentJobStatLine);
+                }
 
-        List<Integer> dequeueSizeList = new ArrayList<>();
-        int avgDequeueSize = 0;
-        int medianDequeueSize = 0;
-        int percentileDequeueSize = 0;
-        int maxDequeueSize = 0;
+                perJobPrintWriter.flush();
+                perJobPrintWriter.close();
+            }
 
-        // Added for V2
-        List <Long> netThreadTimeList = new ArrayList<>();
-        long avgNetThreadTime = 0;
-        long medianNetThreadTime = 0;
-        long percentileNetThreadTime = 0;
+            // PER SECOND
+            if (Parameters.getBoolean("statistics_per_second_export")){
+                exportPerSecond(window, statLineListPerSecond);
+            }
 
-        // From the moment a worker thread takes a job from the queue until it is done
-        List <Long> processingTimeList = new ArrayList<>();
-        long avgProcessingTime = 0;
-        long medianProcessingTime = 0;
-        long percentileProcessingTime = 0;
+            // HISTOGRAM
+            if (Parameters.getBoolean("statistics_histogram_export")){
+                exportHistogram();
+            }
 
-        // From the moment a worker thread takes a job from the queue until it is sent to the server
-        List <Long> workerTimeList = new ArrayList<>();
-        long avgWorkerTime = 0;
-        long medianWorkerTime = 0;
-        long percentileWorkerTime = 0;
+            Log.info("[Statistics] All {} statistics exported successfully", statisticsType == StatisticsType.SET ? "set" : "get");
+            return;
+        } catch (Exception exception){
+            Log.error("[Statistics] Exception during export: {}", exception.getMessage());
+            Log.error("[Statistics] STACKTRACE: {}", stackTraceToString(exception));
+            // Don't system.exit, since that will just invoke ShutdownThread and have the system deadlock.
+            ShutdownThread.setReturncode(1);
+            return;
+        }
+    }
 
+    private void exportPerSecond(Window window, TimeStatLine[] statLineListPerSecond) throws IOException{
+        PrintWriter perSecondPrintWriter = new PrintWriter(getFileName("PS"), "US-ASCII");
+        perSecondPrintWriter.print(getPerSecondHeader(window, statLineListPerSecond.length, false));
+        for (int i = 0; i < statLineListPerSecond.length; i++){
+            printTimeStatLine(perSecondPrintWriter, i, statLineListPerSecond[i]);
+        }
 
+        perSecondPrintWriter.flush();
+        perSecondPrintWriter.close();
+    }
 
-        for (int i = 0; i < Environment.getServerList().size(); i++) {
-            serverResponseTimeMap.put(i, new ArrayList<>());
+    /*
+     Writes the report merged over the Statistics of all threads (statistics_merged_export): per-second and
+     histogram files as those of a single thread, named "middleware". To be called once all threads have exported.
+     With the rolling export, the StatisticsExporter writes it window by window instead.
+      */
+    public static void exportMerged(){
+        if (!Parameters.getBoolean("statistics_merged_export") || StatisticsExporter.getInstance() != null){
+            return;
+        }
+        for (StatisticsType statisticsType : StatisticsType.values()){
+            List<Window> parts = new ArrayList<>();
+            for (Statistics statistics : statisticsQueue){
+                if (statistics.statisticsType == statisticsType){
+                    parts.add(new Window(statistics, -1, statistics.chunkList, statistics.rowCount, true));
+                }
+            }
+            createMerged(statisticsType).exportMerged(parts);
         }
+    }
 
-        // Add all values
-        for (Job currentJob : jobList){
-            for (int i = 0; i < Environment.getServerList().size(); i++) {
-                serverResponseTimeMap.get(i).add(currentJob.getServerArrivalTime(i) - currentJob.getServerSendTime(i));
+    private void exportMerged(List<Window> parts){
+        try {
+            mergeTotals(parts);
+            long lowestSendTime = Long.MAX_VALUE;
+            long highestSendTime = Long.MIN_VALUE;
+            for (Window part : parts){
+                lowestSendTime = Math.min(lowestSendTime, part.statistics.lowestClientSendTime);
+                highestSendTime = Math.max(highestSendTime, part.statistics.highestClientSendTime);
+                rowCount += part.rowCount;
             }
-            clientResponseTimeList.add(currentJob.getClientSendTime() - currentJob.getClientArrivalTime());
-            queueTimeList.add(currentJob.getDequeueTime() - currentJob.getEnqueueTime());
-            enqueueSizeList.add(currentJob.getEnqueueSize());
-            dequeueSizeList.add(currentJob.getDequeueSize());
-
-            //v2
-            netThreadTimeList.add(currentJob.getEnqueueTime() - currentJob.getClientArrivalTime());
-            processingTimeList.add(currentJob.getClientSendTime() - currentJob.getDequeueTime());
-
-            long lastServerSendTime = 0;
-            for (int i = 0; i < Environment.getServerList().size(); i++) {
-                lastServerSendTime = Math.max(lastServerSendTime, currentJob.getServerSendTime(i));
+            if (rowCount == 0){
+                Log.info("[Statistics] Not exporting merged {} statistics, no data available.", statisticsType == StatisticsType.SET ? "set" : "get");
+                return;
             }
-            workerTimeList.add(lastServerSendTime - currentJob.getDequeueTime());
-        }
 
-        // Sort the values because median and percentile calculation need sorted lists.
-        for (int i = 0; i < Environment.getServerList().size(); i++) {
-            Collections.sort(serverResponseTimeMap.get(i));
+            if (Parameters.getBoolean("statistics_per_second_export") || Parameters.getBoolean("statistics_steady_state_export")){
+                long resolutionNs = 1000L * 1000L * Parameters.getInteger("statistics_time_resolution_ms");
+                TimeStatLine[] statLineListPerSecond = consolidatePerSecond(parts, lowestSendTime, 1 + (int) ((highestSendTime - lowestSendTime) / resolutionNs), true);
+                if (Parameters.getBoolean("statistics_per_second_export")){
+                    exportPerSecond(new Window(this, -1, chunkList, 0, true), statLineListPerSecond);
+                }
+                if (Parameters.getBoolean("statistics_steady_state_export")){
+                    appendSeries(statLineListPerSecond);
+                    exportSteadyState();
+                }
+            }
+            if (Parameters.getBoolean("statistics_histogram_export")){
+                mergeHistograms(parts);
+                exportHistogram();
+            }
+            Log.info("[Statistics] Merged {} statistics of {} threads exported successfully", statisticsType == StatisticsType.SET ? "set" : "get", parts.size());
+        } catch (Exception exception){
+            Log.error("[Statistics] Exception during merged export: {}", exception.getMessage());
+            Log.error("[Statistics] STACKTRACE: {}", stackTraceToString(exception));
+            ShutdownThread.setReturncode(1);
         }
-        Collections.sort(clientResponseTimeList);
-        Collections.sort(queueTimeList);
-        Collections.sort(enqueueSizeList);
-        Collections.sort(dequeueSizeList);
-
-        //v2
-        Collections.sort(netThreadTimeList);
-        Collections.sort(processingTimeList);
-        Collections.sort(workerTimeList);
+    }
 
+    /*
+     Writes one window of the merged report (called by the StatisticsExporter once all threads have passed it).
+     The headers hold the totals of the latest windows of all threads.
+      */
+    void exportMergedWindow(long index, List<Window> parts, Collection<Window> latestWindows, boolean last){
+        mergeTotals(latestWindows);
+        if (last && Parameters.getBoolean("statistics_histogram_export")){
+            mergeHistograms(latestWindows);
+        }
+        exportWindow(new Window(this, index, chunkList, 0, last), parts);
+    }
 
-        // Get the median and mean values
-        for (int i = 0; i < Environment.getServerList().size(); i++) {
-            avgServerResponseTime[i] = getLongAverage(serverResponseTimeMap.get(i));
-            medianServerResponseTime[i] = getLongMedian(serverResponseTimeMap.get(i));
-            percentileServerResponseTime[i] = getLongPercentile(serverResponseTimeMap.get(i), percentile);
-        }
-
-        avgClientResponseTime = getLongAverage(clientResponseTimeList);
-        medianClientResponseTime = getLongMedian(clientResponseTimeList);
-        percentileClientResponseTime = getLongPercentile(clientResponseTimeList, percentile);
-
-        avgQueueTime = getLongAverage(queueTimeList);
-        medianQueueTime = getLongMedian(queueTimeList);
-        percentileQueueTime = getLongPercentile(queueTimeList, percentile);
-
-        avgEnqueueSize = getIntegerAverage(enqueueSizeList);
-        medianEnqueueSize = getIntegerMedian(enqueueSizeList);
-        percentileEnqueueSize = getIntegerPercentile(enqueueSizeList, percentile);
-        maxEnqueueSize = getIntegerMax(enqueueSizeList);
-
-        avgDequeueSize = getIntegerAverage(dequeueSizeList);
-        medianDequeueSize = getIntegerMedian(dequeueSizeList);
-        percentileDequeueSize = getIntegerPercentile(dequeueSizeList, percentile);
-        maxDequeueSize = getIntegerMax(dequeueSizeList);
-
-        avgNetThreadTime = getLongAverage(netThreadTimeList);
-        medianNetThreadTime = getLongMedian(netThreadTimeList);
-        percentileNetThreadTime = getLongPercentile(netThreadTimeList, percentile);
-
-        avgProcessingTime = getLongAverage(processingTimeList);
-        medianProcessingTime = getLongMedian(processingTimeList);
-        percentileProcessingTime = getLongPercentile(processingTimeList, percentile);
-
-        avgWorkerTime = getLongAverage(workerTimeList);
-        medianWorkerTime = getLongMedian(workerTimeList);
-        percentileWorkerTime = getLongPercentile(workerTimeList, percentile);
-
-        return new TimeStatLine(
-                jobList.size(),
-                avgServerResponseTime,
-                medianServerResponseTime,
-                percentileServerResponseTime,
-
-                avgClientResponseTime,
-                medianClientResponseTime,
-                percentileClientResponseTime,
-
-                avgQueueTime,
-                medianQueueTime,
-                percentileQueueTime,
-
-                avgEnqueueSize,
-                medianEnqueueSize,
-                percentileEnqueueSize,
-                maxEnqueueSize,
-
-                avgDequeueSize,
-                medianDequeueSize,
-                percentileDequeueSize,
-                maxDequeueSize,
-
-                avgNetThreadTime,
-                medianNetThreadTime,
-                percentileNetThreadTime,
-
-                avgProcessingTime,
-                medianProcessingTime,
-                percentileProcessingTime,
-
-                avgWorkerTime,
-                medianWorkerTime,
-                percentileWorkerTime
-        );
+    private void mergeTotals(Collection<Window> windows){
+        totalMissCount = 0;
+        totalJobCount = 0;
+        errorCount = 0;
+        serverErrorCount = 0;
+        clientErrorCount = 0;
+        for (Window window : windows){
+            totalMissCount += window.missCount;
+            totalJobCount += window.jobCount;
+            errorCount += window.errorCount;
+            serverErrorCount += window.serverErrorCount;
+            clientErrorCount += window.clientErrorCount;
+        }
     }
 
+    // The histograms of the threads are complete once they have exported their last window
+    private void mergeHistograms(Collection<Window> windows){
+        histogram.clear();
+        for (Window window : windows){
+            for (Map.Entry<Integer, Integer> entry : window.statistics.histogram.entrySet()){
+                histogram.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+    }
 
-    public void export(){
+    /*
+     Writes the Jobs of the parts of a closed window (called by the StatisticsExporter, in the order of the
+     windows; a thread's window is its only part, the merged report has one part per thread). The headers hold
+     the totals of the given window. Per-second lines are written for all buckets up to the end of the window
+     (up to the last Job for the last window), including empty ones, such that line i is the i-th bucket after
+     the first Job as in export(). The chunks of the parts are handed back by the StatisticsExporter.
+      */
+    void exportWindow(Window window, List<Window> parts){
         try {
-            if (totalJobCount == 0){
-                Log.info("[Statistics] Not exporting " + (statisticsType == StatisticsType.SET ? "set" : "get") + " statistics, no data available.");
-                return;
+            long bucketsPerWindow = statisticsExporter.getBucketsPerWindow();
+            int partRowCount = 0;
+            long lowestSendTime = Long.MAX_VALUE;
+            long highestSendTime = Long.MIN_VALUE;
+            for (Window part : parts){
+                partRowCount += part.rowCount;
+                for (int row = 0; row < part.rowCount; row++){
+                    long clientSendTime = part.chunkList.get(row / chunkRows)[(row % chunkRows) * rowWidth + CLIENT_SEND_TIME];
+                    lowestSendTime = Math.min(lowestSendTime, clientSendTime);
+                    highestSendTime = Math.max(highestSendTime, clientSendTime);
+                }
             }
-            String perJobFileName = "./result/" + Global.launchTime + "_PJ_" + Thread.currentThread().getName() + "_" + (statisticsType == StatisticsType.SET ? "set" : "get" ) + ".stat";
-            String perSecondFileName = "./result/" + Global.launchTime + "_PS_" + Thread.currentThread().getName() + "_" + (statisticsType == StatisticsType.SET ? "set" : "get" ) + ".stat";
-            String histogramFileName = "./result/" + Global.launchTime + "_HG_" + Thread.currentThread().getName() + "_" + (statisticsType == StatisticsType.SET ? "set" : "get" ) + ".stat";
 
-            // Consolidate here to ensure all data is processed, regardless of output settings
-            List<JobStatLine> statLineListPerJob = consolidatePerJob(jobList);
-            TimeStatLine[] statLineListPerSecond = consolidatePerSecond(jobList);
+            if (partRowCount > 0 && nextBucket < 0){
+                firstBucket = statisticsExporter.getBucket(lowestSendTime);
+                nextBucket = firstBucket;
 
-            // PER JOB
-            if (Parameters.getBoolean("statistics_per_job_export")) {
-
-                PrintWriter perJobPrintWriter = new PrintWriter(perJobFileName, "US-ASCII");
-
-                perJobPrintWriter.print(totalMissCount);
-                perJobPrintWriter.print(",");
-                perJobPrintWriter.println(totalJobCount);
+                if (Parameters.getBoolean("statistics_per_job_export") && !merged){
+                    perJobFile = new RollingFile(getFileName("PJ"), getPerJobHeader(window, 0, true));
+                }
+                if (Parameters.getBoolean("statistics_per_second_export")){
+                    perSecondFile = new RollingFile(getFileName("PS"), getPerSecondHeader(window, 0, true));
+                }
+            }
 
-                perJobPrintWriter.print(errorCount);
-                perJobPrintWriter.print(",");
-                perJobPrintWriter.print(serverErrorCount);
-                perJobPrintWriter.print(",");
-                perJobPrintWriter.println(clientErrorCount);
+            if (nextBucket >= 0){
+                long endBucket = (window.index + 1) * bucketsPerWindow;
+                if (window.last){
+                    endBucket = partRowCount > 0 ? Math.max(nextBucket, statisticsExporter.getBucket(highestSendTime) + 1) : nextBucket;
+                }
 
-                perJobPrintWriter.print(statLineListPerJob.size());
+                // The per job lines also fill the histogram, the merged one is summed up from the threads' instead
+                List<JobStatLine> statLineListPerJob = merged ? Collections.emptyList() : consolidatePerJob(getJobRecords(window.chunkList, window.rowCount));
+                TimeStatLine[] statLineListPerSecond = consolidatePerSecond(parts, statisticsExporter.getBucketTime(nextBucket), (int) Math.max(0, endBucket - nextBucket), false);
 
-                for (JobStatLine currentJobStatLine : statLineListPerJob) {
-                    perJobPrintWriter.println();
-                    perJobPrintWriter.print(currentJobStatLine.id);
-                    perJobPrintWriter.print(",");
-                    perJobPrintWriter.print(currentJobStatLine.serverArrivalTime.length);
-                    perJobPrintWriter.print(",");
-                    for (int i = 0; i < currentJobStatLine.serverArrivalTime.length; i++) {
-                        perJobPrintWriter.print(currentJobStatLine.serverArrivalTime[i]);
-                        perJobPrintWriter.print(",");
-                        perJobPrintWriter.print(currentJobStatLine.serverSendTime[i]);
-                        perJobPrintWriter.print(",");
+                if (perJobFile != null){
+                    StringWriter stringWriter = new StringWriter();
+                    PrintWriter printWriter = new PrintWriter(stringWriter);
+                    for (JobStatLine currentJobStatLine : statLineListPerJob){
+                        printJobStatLine(printWriter, currentJobStatLine);
                     }
-
-                    perJobPrintWriter.print(currentJobStatLine.clientArrivalTime);
-                    perJobPrintWriter.print(",");
-                    perJobPrintWriter.print(currentJobStatLine.clientSendTime);
-                    perJobPrintWriter.print(",");
-                    perJobPrintWriter.print(currentJobStatLine.queueTime);
-                    perJobPrintWriter.print(",");
-
-                    perJobPrintWriter.print(currentJobStatLine.enqueueSize);
-                    perJobPrintWriter.print(",");
-                    perJobPrintWriter.print(currentJobStatLine.dequeueSize);
+                    printWriter.flush();
+                    perJobFile.append(stringWriter.toString());
+                    perJobLineCount += statLineListPerJob.size();
+                    perJobFile.writeHeader(getPerJobHeader(window, perJobLineCount, true));
                 }
-
-                perJobPrintWriter.flush();
-                perJobPrintWriter.close();
+                if (perSecondFile != null){
+                    StringWriter stringWriter = new StringWriter();
+                    PrintWriter printWriter = new PrintWriter(stringWriter);
+                    for (int i = 0; i < statLineListPerSecond.length; i++){
+                        printTimeStatLine(printWriter, (int) (nextBucket - firstBucket) + i, statLineListPerSecond[i]);
+                    }
+                    printWriter.flush();
+                    perSecondFile.append(stringWriter.toString());
+                    perSecondLineCount += statLineListPerSecond.length;
+                    perSecondFile.writeHeader(getPerSecondHeader(window, perSecondLineCount, true));
+                }
+                if (merged && Parameters.getBoolean("statistics_steady_state_export")){
+                    appendSeries(statLineListPerSecond);
+                }
+                nextBucket = Math.max(nextBucket, endBucket);
             }
 
-            // PER SECOND
-            if (Parameters.getBoolean("statistics_per_second_export")){
-
-                PrintWriter perSecondPrintWriter = new PrintWriter(perSecondFileName, "US-ASCII");
+            if (!window.last){
+                return;
+            }
+            if (perJobFile != null){
+                perJobFile.close();
+            }
+            if (perSecondFile != null){
+                perSecondFile.close();
+            }
+            if (window.jobCount == 0){
+                Log.info("[Statistics] Not exporting {}{} statistics, no data available.", merged ? "merged " : "", statisticsType == StatisticsType.SET ? "set" : "get");
+                return;
+            }
+            if (Parameters.getBoolean("statistics_histogram_export")){
+                exportHistogram();
+            }
+            if (merged && Parameters.getBoolean("statistics_steady_state_export")){
+                exportSteadyState();
+            }
+            Log.info("[Statistics] All {} statistics of {} exported successfully", statisticsType == StatisticsType.SET ? "set" : "get", threadName);
+        } catch (Exception exception){
+            Log.error("[Statistics] Exception during rolling export: {}", exception.getMessage());
+            Log.error("[Statistics] STACKTRACE: {}", stackTraceToString(exception));
+            ShutdownThread.setReturncode(1);
+        }
+    }
 
-                perSecondPrintWriter.println(statLineListPerSecond.length);
+    private void appendSeries(TimeStatLine[] statLineListPerSecond){
+        if (seriesJobs == null){
+            seriesJobs = new long[Math.max(16, statLineListPerSecond.length)];
+            seriesResponseTimes = new double[seriesJobs.length];
+        }
+        if (seriesLength + statLineListPerSecond.length > seriesJobs.length){
+            int capacity = Math.max(2 * seriesJobs.length, seriesLength + statLineListPerSecond.length);
+            seriesJobs = Arrays.copyOf(seriesJobs, capacity);
+            seriesResponseTimes = Arrays.copyOf(seriesResponseTimes, capacity);
+        }
+        for (TimeStatLine timeStatLine : statLineListPerSecond){
+            seriesJobs[seriesLength] = timeStatLine.jobsFinished;
+            seriesResponseTimes[seriesLength] = timeStatLine.avgClientResponseTime;
+            seriesLength++;
+        }
+    }
 
-                perSecondPrintWriter.print(totalMissCount);
-                perSecondPrintWriter.print(",");
-                perSecondPrintWriter.println(totalJobCount);
+    // Detects the warm-up, steady state and drain of the merged per-second series (see SteadyState)
+    private void exportSteadyState() throws IOException{
+        if (seriesLength == 0){
+            return;
+        }
+        long resolutionNs = 1000L * 1000L * Parameters.getInteger("statistics_time_resolution_ms");
+        SteadyState steadyState = new SteadyState(Arrays.copyOf(seriesJobs, seriesLength), Arrays.copyOf(seriesResponseTimes, seriesLength), resolutionNs, Parameters.getInteger("statistics_steady_state_batches"));
+        steadyState.write(getFileName("SS"));
+        Log.info("[Statistics] Steady state of {} jobs: {}", statisticsType == StatisticsType.SET ? "set" : "get", steadyState);
+    }
 
-                perSecondPrintWriter.print(errorCount);
-                perSecondPrintWriter.print(",");
-                perSecondPrintWriter.print(serverErrorCount);
-                perSecondPrintWriter.print(",");
-                perSecondPrintWriter.print(clientErrorCount);
+    private String getFileName(String type){
+        return "./result/" + Global.launchTime + "_" + type + "_" + threadName + "_" + (statisticsType == StatisticsType.SET ? "set" : "get" ) + ".stat";
+    }
 
-                TimeStatLine currentTimeStatLine;
-                for (int i = 0; i < statLineListPerSecond.length; i++){
-                    currentTimeStatLine = statLineListPerSecond[i];
+    /*
+     The headers hold the totals and the line count. The rolling export pads them with zeros to a fixed width,
+     such that they can be rewritten in place after each window.
+      */
+    private static String getPerJobHeader(Window window, long lineCount, boolean padded){
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(stringWriter);
+        printWriter.print(pad(window.missCount, padded));
+        printWriter.print(",");
+        printWriter.println(pad(window.jobCount, padded));
+
+        printWriter.print(pad(window.errorCount, padded));
+        printWriter.print(",");
+        printWriter.print(pad(window.serverErrorCount, padded));
+        printWriter.print(",");
+        printWriter.println(pad(window.clientErrorCount, padded));
+
+        printWriter.print(pad(lineCount, padded));
+        printWriter.flush();
+        return stringWriter.toString();
+    }
 
-                    perSecondPrintWriter.println();
-                    perSecondPrintWriter.print(i);
-                    perSecondPrintWriter.print(",");
+    private static String getPerSecondHeader(Window window, long lineCount, boolean padded){
+        StringWriter stringWriter = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(stringWriter);
+        printWriter.println(pad(lineCount, padded));
+
+        printWriter.print(pad(window.missCount, padded));
+        printWriter.print(",");
+        printWriter.println(pad(window.jobCount, padded));
+
+        printWriter.print(pad(window.errorCount, padded));
+        printWriter.print(",");
+        printWriter.print(pad(window.serverErrorCount, padded));
+        printWriter.print(",");
+        printWriter.print(pad(window.clientErrorCount, padded));
+        printWriter.flush();
+        return stringWriter.toString();
+    }
 
-                    perSecondPrintWriter.print(currentTimeStatLine.jobsFinished);
-                    perSecondPrintWriter.print(",");
+    private static String pad(long value, boolean padded){
+        return padded ? String.format("%019d", value) : String.valueOf(value);
+    }
 
+    private static void printJobStatLine(PrintWriter perJobPrintWriter, JobStatLine currentJobStatLine){
+        perJobPrintWriter.println();
+        perJobPrintWriter.print(currentJobStatLine.id);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.serverArrivalTime.length);
+        perJobPrintWriter.print(",");
+        for (int i = 0; i < currentJobStatLine.serverArrivalTime.length; i++) {
+            perJobPrintWriter.print(currentJobStatLine.serverArrivalTime[i]);
+            perJobPrintWriter.print(",");
+            perJobPrintWriter.print(currentJobStatLine.serverSendTime[i]);
+            perJobPrintWriter.print(",");
+        }
 
-                    perSecondPrintWriter.print(currentTimeStatLine.avgServerResponseTime.length);
-                    perSecondPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.clientArrivalTime);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.clientSendTime);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.queueTime);
+        perJobPrintWriter.print(",");
+
+        perJobPrintWriter.print(currentJobStatLine.enqueueSize);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.dequeueSize);
+        perJobPrintWriter.print(",");
+
+        perJobPrintWriter.print(currentJobStatLine.enqueueBytes);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.dequeueBytes);
+        perJobPrintWriter.print(",");
+
+        perJobPrintWriter.print(currentJobStatLine.enqueueTime);
+        perJobPrintWriter.print(",");
+        perJobPrintWriter.print(currentJobStatLine.dequeueTime);
+    }
 
-                    for (int j = 0; j < currentTimeStatLine.avgServerResponseTime.length; j++) {
-                        perSecondPrintWriter.print(currentTimeStatLine.avgServerResponseTime[j]);
-                        perSecondPrintWriter.print(",");
-                        perSecondPrintWriter.print(currentTimeStatLine.medianServerResponseTime[j]);
-                        perSecondPrintWriter.print(",");
-                        perSecondPrintWriter.print(currentTimeStatLine.percentileServerResponseTime[j]);
-                        perSecondPrintWriter.print(",");
-                    }
+    private static void printTimeStatLine(PrintWriter perSecondPrintWriter, int index, TimeStatLine currentTimeStatLine){
+        perSecondPrintWriter.println();
+        perSecondPrintWriter.print(index);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.jobsFinished);
+        perSecondPrintWriter.print(",");
 
-                    perSecondPrintWriter.print(currentTimeStatLine.avgClientResponseTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianClientResponseTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileClientResponseTime);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgQueueTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianQueueTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileQueueTime);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgEnqueueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianEnqueueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileEnqueueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.maxEnqueueSize);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgDequeueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianDequeueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileDequeueSize);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.maxDequeueSize);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgNetThreadTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianNetThreadTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileNetThreadTime);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgProcessingTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianProcessingTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileProcessingTime);
-                    perSecondPrintWriter.print(",");
-
-                    perSecondPrintWriter.print(currentTimeStatLine.avgWorkerTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.medianWorkerTime);
-                    perSecondPrintWriter.print(",");
-                    perSecondPrintWriter.print(currentTimeStatLine.percentileWorkerTime);
-                }
 
-                perSecondPrintWriter.flush();
-                perSecondPrintWriter.close();
-            }
+        perSecondPrintWriter.print(currentTimeStatLine.avgServerResponseTime.length);
+        perSecondPrintWriter.print(",");
 
-            // HISTOGRAM
-            if (Parameters.getBoolean("statistics_histogram_export")){
-                PrintWriter histogramPrintWriter = new PrintWriter(histogramFileName, "US-ASCII");
-                histogramPrintWriter.print(histogram.entrySet().size());
-                for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
-                    histogramPrintWriter.println();
-                    Integer currentBucket = entry.getKey();
-                    Integer currentBucketValue = entry.getValue();
-                    histogramPrintWriter.print(currentBucket);
-                    histogramPrintWriter.print(",");
-                    histogramPrintWriter.print(currentBucketValue);
-                }
+        for (int j = 0; j < currentTimeStatLine.avgServerResponseTime.length; j++) {
+            perSecondPrintWriter.print(currentTimeStatLine.avgServerResponseTime[j]);
+            perSecondPrintWriter.print(",");
+            perSecondPrintWriter.print(currentTimeStatLine.medianServerResponseTime[j]);
+            perSecondPrintWriter.print(",");
+            perSecondPrintWriter.print(currentTimeStatLine.percentileServerResponseTime[j]);
+            perSecondPrintWriter.print(",");
+        }
 
-                histogramPrintWriter.flush();
-                histogramPrintWriter.close();
-            }
+        perSecondPrintWriter.print(currentTimeStatLine.avgClientResponseTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianClientResponseTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileClientResponseTime);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgQueueTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianQueueTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileQueueTime);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgEnqueueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianEnqueueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileEnqueueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.maxEnqueueSize);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgDequeueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianDequeueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileDequeueSize);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.maxDequeueSize);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgNetThreadTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianNetThreadTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileNetThreadTime);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgProcessingTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianProcessingTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileProcessingTime);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgWorkerTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianWorkerTime);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileWorkerTime);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgEnqueueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianEnqueueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileEnqueueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.maxEnqueueBytes);
+        perSecondPrintWriter.print(",");
+
+        perSecondPrintWriter.print(currentTimeStatLine.avgDequeueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.medianDequeueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.percentileDequeueBytes);
+        perSecondPrintWriter.print(",");
+        perSecondPrintWriter.print(currentTimeStatLine.maxDequeueBytes);
+    }
 
-            Log.info("[Statistics] All " + (statisticsType == StatisticsType.SET ? "set" : "get") + " statistics exported successfully");
-            return;
-        } catch (Exception exception){
-            Log.error("[Statistics] Exception during export: " + exception.getMessage());
-            Log.error("[Statistics] STACKTRACE: " + stackTraceToString(exception));
-            // Don't system.exit, since that will just invoke ShutdownThread and have the system deadlock.
-            ShutdownThread.setReturncode(1);
-            return;
+    private void exportHistogram() throws IOException{
+        PrintWriter histogramPrintWriter = new PrintWriter(getFileName("HG"), "US-ASCII");
+        histogramPrintWriter.print(histogram.entrySet().size());
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            histogramPrintWriter.println();
+            Integer currentBucket = entry.getKey();
+            Integer currentBucketValue = entry.getValue();
+            histogramPrintWriter.print(currentBucket);
+            histogramPrintWriter.print(",");
+            histogramPrintWriter.print(currentBucketValue);
         }
+
+        histogramPrintWriter.flush();
+        histogramPrintWriter.close();
     }
 
     public static void exportThinkingTimes(){
@@ -572,7 +932,7 @@ public class Statistics {
             }
             String thinkingTimesFileName = "./result/" + Global.launchTime + "_TT.stat";
 
-            List<ThinkingTimeStatLine> thinkingTimeStatLineList = consolidateThinkingTimes(thinkingTimesMap);
+            List<ThinkingTimeStatLine> thinkingTimeStatLineList = consolidateThinkingTimes();
             PrintWriter thinkingTimesPrintWriter = new PrintWriter(thinkingTimesFileName, "US-ASCII");
 
             thinkingTimesPrintWriter.print(thinkingTimeStatLineList.size());
@@ -595,8 +955,51 @@ public class Statistics {
             Log.info("[Statistics] Thinking time statistics exported successfully");
 
         } catch (Exception exception) {
-            Log.error("[Statistics] Exception during export: " + exception.getMessage());
-            Log.error("[Statistics] STACKTRACE: " + stackTraceToString(exception));
+            Log.error("[Statistics] Exception during export: {}", exception.getMessage());
+            Log.error("[Statistics] STACKTRACE: {}", stackTraceToString(exception));
+            // Don't system.exit, since that will just invoke ShutdownThread and have the system deadlock.
+            ShutdownThread.setReturncode(1);
+            return;
+        }
+    }
+
+    public static void exportClientResponseTimes(){
+        try {
+            if (!Parameters.getBoolean("statistics_client_response_times_export")){
+                return;
+            }
+            String clientResponseTimesFileName = "./result/" + Global.launchTime + "_CR.stat";
+
+            PrintWriter clientResponseTimesPrintWriter = new PrintWriter(clientResponseTimesFileName, "US-ASCII");
+
+            List<ClientResponseTimeStatLine> clientResponseTimeStatLineList = consolidateClientResponseTimes();
+            clientResponseTimesPrintWriter.print(clientResponseTimeStatLineList.size());
+
+            for (ClientResponseTimeStatLine currentClientResponseTimeStatLine : clientResponseTimeStatLineList){
+                clientResponseTimesPrintWriter.println();
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.client);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.count);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.avgResponseTime);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.medianResponseTime);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.percentileResponseTime);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.p99ResponseTime);
+                clientResponseTimesPrintWriter.print(",");
+                clientResponseTimesPrintWriter.print(currentClientResponseTimeStatLine.maxResponseTime);
+            }
+
+            clientResponseTimesPrintWriter.flush();
+            clientResponseTimesPrintWriter.close();
+
+            Log.info("[Statistics] Client response time statistics exported successfully");
+
+        } catch (Exception exception) {
+            Log.error("[Statistics] Exception during export: {}", exception.getMessage());
+            Log.error("[Statistics] STACKTRACE: {}", stackTraceToString(exception));
             // Don't system.exit, since that will just invoke ShutdownThread and have the system deadlock.
             ShutdownThread.setReturncode(1);
             return;
@@ -614,6 +1017,123 @@ public class Statistics {
         SET, GET
     }
 
+    /*
+     The chunks of one closed window along with the totals at the time it was closed (for the headers).
+     Created by the submitting thread, owned by the StatisticsExporter once submitted.
+      */
+    static class Window{
+
+        final Statistics statistics;
+        final long index;
+        final List<long[]> chunkList;
+        final int rowCount;
+        final boolean last;
+
+        final long missCount;
+        final long jobCount;
+        final int errorCount;
+        final int serverErrorCount;
+        final int clientErrorCount;
+
+        Window(Statistics statistics, long index, List<long[]> chunkList, int rowCount, boolean last){
+            this.statistics = statistics;
+            this.index = index;
+            this.chunkList = chunkList;
+            this.rowCount = rowCount;
+            this.last = last;
+
+            this.missCount = statistics.totalMissCount;
+            this.jobCount = statistics.totalJobCount;
+            this.errorCount = statistics.errorCount;
+            this.serverErrorCount = statistics.serverErrorCount;
+            this.clientErrorCount = statistics.clientErrorCount;
+        }
+    }
+
+    // A file of the rolling export: lines are appended, the (fixed width) header is rewritten in place
+    private static class RollingFile{
+
+        private final FileChannel fileChannel;
+        private long position;
+
+        RollingFile(String fileName, String header) throws IOException{
+            fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeHeader(header);
+            position = header.length();
+        }
+
+        void append(String text) throws IOException{
+            ByteBuffer byteBuffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+            while (byteBuffer.hasRemaining()){
+                position += fileChannel.write(byteBuffer, position);
+            }
+        }
+
+        void writeHeader(String header) throws IOException{
+            ByteBuffer byteBuffer = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            long headerPosition = 0;
+            while (byteBuffer.hasRemaining()){
+                headerPosition += fileChannel.write(byteBuffer, headerPosition);
+            }
+        }
+
+        void close() throws IOException{
+            fileChannel.close();
+        }
+    }
+
+    // A view on one row of submitted Job values, offering the getters of Job used for consolidation
+    private static class JobRecord{
+
+        private final long[] chunk;
+        private final int offset;
+
+        JobRecord(long[] chunk, int offset){
+            this.chunk = chunk;
+            this.offset = offset;
+        }
+
+        long getClientArrivalTime(){
+            return chunk[offset + CLIENT_ARRIVAL_TIME];
+        }
+
+        long getClientSendTime(){
+            return chunk[offset + CLIENT_SEND_TIME];
+        }
+
+        long getEnqueueTime(){
+            return chunk[offset + ENQUEUE_TIME];
+        }
+
+        long getDequeueTime(){
+            return chunk[offset + DEQUEUE_TIME];
+        }
+
+        int getEnqueueSize(){
+            return (int) chunk[offset + ENQUEUE_SIZE];
+        }
+
+        int getDequeueSize(){
+            return (int) chunk[offset + DEQUEUE_SIZE];
+        }
+
+        long getEnqueueBytes(){
+            return chunk[offset + ENQUEUE_BYTES];
+        }
+
+        long getDequeueBytes(){
+            return chunk[offset + DEQUEUE_BYTES];
+        }
+
+        long getServerArrivalTime(int globalServerIndex){
+            return chunk[offset + SERVER_TIMES + 2 * globalServerIndex];
+        }
+
+        long getServerSendTime(int globalServerIndex){
+            return chunk[offset + SERVER_TIMES + 2 * globalServerIndex + 1];
+        }
+    }
+
     public static class ThinkingTimeStatLine{
 
         public final String client;
@@ -630,6 +1150,28 @@ public class Statistics {
         }
     }
 
+    public static class ClientResponseTimeStatLine{
+
+        public final String client;
+
+        public final long count;
+        public final long avgResponseTime;
+        public final long medianResponseTime;
+        public final long percentileResponseTime;
+        public final long p99ResponseTime;
+        public final long maxResponseTime;
+
+        public ClientResponseTimeStatLine(String client, long count, long avgResponseTime, long medianResponseTime, long percentileResponseTime, long p99ResponseTime, long maxResponseTime){
+            this.client = client;
+            this.count = count;
+            this.avgResponseTime = avgResponseTime;
+            this.medianResponseTime = medianResponseTime;
+            this.percentileResponseTime = percentileResponseTime;
+            this.p99ResponseTime = p99ResponseTime;
+            this.maxResponseTime = maxResponseTime;
+        }
+    }
+
     public static class JobStatLine{
 
         // Keep track of how many lines have been written already (both set and get globally)
@@ -648,7 +1190,13 @@ public class Statistics {
         public final int enqueueSize;
         public final int dequeueSize;
 
-        public JobStatLine(long[] serverArrivalTime, long[] serverSendTime, long clientArrivalTime, long clientSendTime, long queueTime, int enqueueSize, int dequeueSize){
+        public final long enqueueBytes;
+        public final long dequeueBytes;
+
+        public final long enqueueTime;
+        public final long dequeueTime;
+
+        public JobStatLine(long[] serverArrivalTime, long[] serverSendTime, long clientArrivalTime, long clientSendTime, long queueTime, int enqueueSize, int dequeueSize, long enqueueBytes, long dequeueBytes, long enqueueTime, long dequeueTime){
 
             synchronized (lock){
                 this.id = nextId;
@@ -663,6 +1211,12 @@ public class Statistics {
 
             this.enqueueSize = enqueueSize;
             this.dequeueSize = dequeueSize;
+
+            this.enqueueBytes = enqueueBytes;
+            this.dequeueBytes = dequeueBytes;
+
+            this.enqueueTime = enqueueTime;
+            this.dequeueTime = dequeueTime;
         }
     }
 
@@ -705,10 +1259,19 @@ public class Statistics {
         public final long medianWorkerTime;
         public final long percentileWorkerTime;
 
+        public final long avgEnqueueBytes;
+        public final long medianEnqueueBytes;
+        public final long percentileEnqueueBytes;
+        public final long maxEnqueueBytes;
 
+        public final long avgDequeueBytes;
+        public final long medianDequeueBytes;
+        public final long percentileDequeueBytes;
+        public final long maxDequeueBytes;
 
         public TimeStatLine(int jobsFinished, long[] avgServerResponseTime, long[] medianServerResponseTime, long[] percentileServerResponseTime, long avgClientResponseTime, long medianClientResponseTime, long percentileClientResponseTime, long avgQueueTime, long medianQueueTime, long percentileQueueTime, int avgEnqueueSize, int medianEnqueueSize, int percentileEnqueueSize,
-                             int maxEnqueueSize, int avgDequeueSize, int medianDequeueSize, int percentileDequeueSize, int maxDequeueSize,long avgNetThreadTime, long medianNetThreadTime, long percentileNetThreadTime, long avgProcessingTime, long medianProcessingTime, long percentileProcessingTime,long avgWorkerTime, long medianWorkerTime, long percentileWorkerTime){
+                             int maxEnqueueSize, int avgDequeueSize, int medianDequeueSize, int percentileDequeueSize, int maxDequeueSize,long avgNetThreadTime, long medianNetThreadTime, long percentileNetThreadTime, long avgProcessingTime, long medianProcessingTime, long percentileProcessingTime,long avgWorkerTime, long medianWorkerTime, long percentileWorkerTime,
+                            long avgEnqueueBytes, long medianEnqueueBytes, long percentileEnqueueBytes, long maxEnqueueBytes, long avgDequeueBytes, long medianDequeueBytes, long percentileDequeueBytes, long maxDequeueBytes){
 
             this.jobsFinished = jobsFinished;
 
@@ -744,96 +1307,16 @@ public class Statistics {
             this.avgWorkerTime = avgWorkerTime;
             this.medianWorkerTime = medianWorkerTime;
             this.percentileWorkerTime = percentileWorkerTime;
-        }
-    }
-
-
-    static Long getLongMedian(List<Long> list){
-        Long median;
-        if (list.size() == 0){
-            return 0L;
-        }
-        if ((list.size() % 2) == 1){
-            median = list.get(list.size() / 2);
-        } else {
-            Long lowerMedian = list.get((list.size() / 2) - 1);
-            Long upperMedian = list.get(list.size() / 2);
-            median = (upperMedian + lowerMedian) / 2;
-        }
-        return median;
-    }
-    static Integer getIntegerMedian(List<Integer> list){
-        Integer median;
-        if (list.size() == 0){
-            return 0;
-        }
-        if ((list.size() % 2) == 1){
-            median = list.get(list.size() / 2);
-        } else {
-            Integer lowerMedian = list.get((list.size() / 2) - 1);
-            Integer upperMedian = list.get(list.size() / 2);
-            median = (upperMedian + lowerMedian) / 2;
-        }
-        return median;
-    }
-
-    static Long getLongPercentile(List<Long> list, double percentile){
-        if (list.size() == 0){
-            return 0L;
-        }
-        return list.get((int) (list.size() * percentile));
-    }
-
-    static Integer getIntegerPercentile(List<Integer> list, double percentile){
-        if (list.size() == 0){
-            return 0;
-        }
-        return list.get((int) (list.size() * percentile));
-    }
-
-    static Long getLongMax(List<Long> list){
-        Long max = Long.MIN_VALUE;
-        if (list.size() == 0){
-            return 0L;
-        }
-        for (Long currentLong : list){
-            max = Math.max(max, currentLong);
-        }
-        return max;
-    }
-
-    static Integer getIntegerMax(List<Integer> list){
-        Integer max = Integer.MIN_VALUE;
-        if (list.size() == 0){
-            return 0;
-        }
-        for (Integer currentInteger : list){
-            max = Math.max(max, currentInteger);
-        }
-        return max;
-    }
 
-    static Long getLongAverage(List<Long> list){
-        Long sum = 0L;
-        if (list.size() == 0){
-            return 0L;
-        }
-        for (Long currentLong : list){
-            sum += currentLong;
-        }
-        return sum / list.size();
-    }
+            this.avgEnqueueBytes = avgEnqueueBytes;
+            this.medianEnqueueBytes = medianEnqueueBytes;
+            this.percentileEnqueueBytes = percentileEnqueueBytes;
+            this.maxEnqueueBytes = maxEnqueueBytes;
 
-    static Integer getIntegerAverage(List<Integer> list){
-        Integer sum = 0;
-        if (list.size() == 0){
-            return 0;
-        }
-        for (Integer currentInteger : list){
-            sum += currentInteger;
+            this.avgDequeueBytes = avgDequeueBytes;
+            this.medianDequeueBytes = medianDequeueBytes;
+            this.percentileDequeueBytes = percentileDequeueBytes;
+            this.maxDequeueBytes = maxDequeueBytes;
         }
-        return sum / list.size();
     }
-
-
 }
@@ -0,0 +1,196 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    The StatisticsExporter writes the Statistics of all WorkerThreads/EventLoopThreads while the middleware is
+    running (statistics_rolling_export). Time is divided into windows of statistics_rolling_window_buckets buckets
+    of statistics_time_resolution_ms each, aligned for all threads. Whenever a thread's Statistics close a window,
+    its chunks are queued here (lock free), consolidated and appended to the thread's files, and handed back.
+    This keeps the heap use flat, makes the results readable while running and leaves only the last window to be
+    written on shutdown. See Statistics.exportWindow() for the file contents.
+    The export runs on this single thread at the lowest priority, such that it takes spare CPU time from the
+    WorkerThreads rather than competing with them. It is disabled by default, since it still costs CPU time while
+    measuring.
+    With statistics_merged_export, the windows of all threads are also consolidated together into one report
+    ("middleware" files). A window is merged once all threads have passed it (or it has ended two windows ago,
+    rows of threads stalled for longer are left out of the merged report), its chunks are handed back afterwards.
+ */
+
+public class StatisticsExporter extends Thread{
+
+    private static StatisticsExporter ourInstance;
+    public static StatisticsExporter getInstance() {
+        return ourInstance;
+    }
+
+    // To be called before the Statistics objects are created
+    public static void initialize() {
+        if (!Parameters.getBoolean("statistics_rolling_export")){
+            return;
+        }
+        ourInstance = new StatisticsExporter();
+        ourInstance.start();
+    }
+
+    private final Queue<Statistics.Window> windowQueue = new ConcurrentLinkedQueue<>();
+
+    // Buckets and windows are counted from here
+    private final long origin;
+    private final long resolutionNs;
+    private final long bucketsPerWindow;
+    private final long pollTimeoutNs;
+
+    private volatile boolean isShuttingDown;
+
+    // The merged report by StatisticsType, null if disabled (created on the first window, see mergeWindows())
+    private final boolean mergedExport;
+    private Statistics[] mergedStatistics;
+    // The windows of all threads not merged yet, by StatisticsType and window index
+    private final List<TreeMap<Long, List<Statistics.Window>>> pendingWindows = new ArrayList<>();
+    // The latest window of each thread's Statistics, for the totals in the headers
+    private final List<Map<Statistics, Statistics.Window>> latestWindows = new ArrayList<>();
+
+    private StatisticsExporter(){
+        super();
+        setName("statistics");
+        setPriority(Thread.MIN_PRIORITY);
+
+        origin = System.nanoTime();
+        resolutionNs = 1000L * 1000L * Parameters.getInteger("statistics_time_resolution_ms");
+        bucketsPerWindow = Math.max(1, Parameters.getInteger("statistics_rolling_window_buckets"));
+        // Windows are picked up within a tenth of their length
+        pollTimeoutNs = Math.max(10L * 1000L * 1000L, resolutionNs * bucketsPerWindow / 10);
+
+        mergedExport = Parameters.getBoolean("statistics_merged_export");
+        for (int i = 0; i < Statistics.StatisticsType.values().length; i++){
+            pendingWindows.add(new TreeMap<>());
+            latestWindows.add(new HashMap<>());
+        }
+    }
+
+    public long getWindow(long timestamp){
+        return getBucket(timestamp) / bucketsPerWindow;
+    }
+
+    public long getBucket(long timestamp){
+        return Math.max(0, timestamp - origin) / resolutionNs;
+    }
+
+    public long getBucketTime(long bucket){
+        return origin + bucket * resolutionNs;
+    }
+
+    public long getBucketsPerWindow(){
+        return bucketsPerWindow;
+    }
+
+    void submit(Statistics.Window window){
+        windowQueue.offer(window);
+    }
+
+    @Override
+    public void run() {
+        while (!isShuttingDown){
+            exportWindows();
+            LockSupport.parkNanos(this, pollTimeoutNs);
+        }
+        // The threads have submitted their last windows before shutdown() is called
+        exportWindows();
+        if (mergedExport){
+            mergeWindows(null, true);
+        }
+        Log.info("[StatisticsExporter] Rolling export done");
+    }
+
+    private void exportWindows(){
+        // Taken before draining the queue, such that all windows the threads have passed have been submitted
+        long[] passedWindows = mergedExport ? getPassedWindows() : null;
+
+        Statistics.Window window;
+        while ((window = windowQueue.poll()) != null){
+            window.statistics.exportWindow(window, Collections.singletonList(window));
+            if (!mergedExport){
+                window.statistics.release(window);
+                continue;
+            }
+            int type = window.statistics.statisticsType.ordinal();
+            latestWindows.get(type).put(window.statistics, window);
+            if (window.index >= 0){
+                pendingWindows.get(type).computeIfAbsent(window.index, index -> new ArrayList<>()).add(window);
+            } else {
+                // The thread never had a Job
+                window.statistics.release(window);
+            }
+        }
+
+        if (mergedExport && !isShuttingDown){
+            mergeWindows(passedWindows, false);
+        }
+    }
+
+    // The lowest window any thread is still in, by StatisticsType
+    private long[] getPassedWindows(){
+        long[] passedWindows = new long[Statistics.StatisticsType.values().length];
+        Arrays.fill(passedWindows, Statistics.DONE);
+        for (Statistics statistics : Statistics.getStatisticsQueue()){
+            int type = statistics.statisticsType.ordinal();
+            passedWindows[type] = Math.min(passedWindows[type], statistics.getCurrentWindow());
+        }
+        return passedWindows;
+    }
+
+    // Exports the pending windows all threads have passed, or all of them on shutdown (last)
+    private void mergeWindows(long[] passedWindows, boolean last){
+        if (mergedStatistics == null){
+            mergedStatistics = new Statistics[Statistics.StatisticsType.values().length];
+            for (Statistics.StatisticsType statisticsType : Statistics.StatisticsType.values()){
+                mergedStatistics[statisticsType.ordinal()] = Statistics.createMerged(statisticsType);
+            }
+        }
+
+        long clockWindow = getWindow(System.nanoTime());
+        for (int type = 0; type < mergedStatistics.length; type++){
+            TreeMap<Long, List<Statistics.Window>> pending = pendingWindows.get(type);
+            boolean lastExported = false;
+            while (!pending.isEmpty()){
+                long index = pending.firstKey();
+                if (!last && index >= passedWindows[type] && index + 2 > clockWindow){
+                    break;
+                }
+                List<Statistics.Window> parts = pending.pollFirstEntry().getValue();
+                lastExported = last && pending.isEmpty();
+                mergedStatistics[type].exportMergedWindow(index, parts, latestWindows.get(type).values(), lastExported);
+                for (Statistics.Window part : parts){
+                    part.statistics.release(part);
+                }
+            }
+            if (last && !lastExported){
+                // No window left, only close the files
+                mergedStatistics[type].exportMergedWindow(-1, Collections.emptyList(), latestWindows.get(type).values(), true);
+            }
+        }
+    }
+
+    // To be called once all threads submitting Statistics have exported them
+    public void shutdown(){
+        isShuttingDown = true;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException interruptedException){
+            Log.warn("[StatisticsExporter] Interrupted while waiting for the rolling export to finish");
+        }
+    }
+}
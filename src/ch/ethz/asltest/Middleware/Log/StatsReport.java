@@ -0,0 +1,307 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Environment.Server;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
+
+import java.util.List;
+import java.util.Locale;
+
+/*
+    The StatsReport renders the middleware's answer to the memcached "stats" command (STAT <name> <value> lines
+    terminated by END), such that memcached tooling can query the middleware like a server:
+    "stats":            general counters (uptime, connections, operations, hits and misses, throughput, response time)
+    "stats middleware": the phases of a job, the JobQueue and the BufferPool
+    "stats servers":    connections and response times per server
+    "stats slow":       the slowest recorded requests with their phases (see SlowRequestRecorder)
+    "stats hotkeys":    the most requested keys with their estimated rates (see HotKeySketch)
+    "stats capacity":   utilization, saturation throughput and optimal worker count (see CapacityEstimator)
+    "stats cpu":        CPU time per phase and operation type (see CpuTimeAccounting)
+    "stats utilization": queue occupancy and the time the workers spent idle, busy or blocked in the latest window
+                        (see UtilizationAccounting)
+    Other groups are answered with ERROR. Counters and latencies are taken from the live Metrics, they are left
+    out if metrics_enabled is not set. Latencies are in us.
+ */
+
+public class StatsReport {
+
+    private static final String END = "END\r\n";
+    private static final String ERROR = "ERROR\r\n";
+
+    // Throughput since the previous "stats" request (of any client)
+    private static long previousRequestTime;
+    private static long previousJobCount;
+
+    public static String render(String group){
+        StringBuilder stringBuilder = new StringBuilder(2048);
+        Metrics metrics = Metrics.getInstance();
+
+        switch (group){
+            case "":
+                renderGeneral(stringBuilder, metrics);
+                break;
+            case "middleware":
+                renderMiddleware(stringBuilder, metrics);
+                break;
+            case "servers":
+                renderServers(stringBuilder, metrics);
+                break;
+            case "slow":
+                renderSlow(stringBuilder);
+                break;
+            case "hotkeys":
+                renderHotKeys(stringBuilder);
+                break;
+            case "capacity":
+                renderCapacity(stringBuilder);
+                break;
+            case "cpu":
+                renderCpu(stringBuilder);
+                break;
+            case "utilization":
+                renderUtilization(stringBuilder);
+                break;
+            default:
+                Log.warn("[StatsReport] Unknown stats group: {}", group);
+                return ERROR;
+        }
+
+        stringBuilder.append(END);
+        return stringBuilder.toString();
+    }
+
+    private static void renderGeneral(StringBuilder stringBuilder, Metrics metrics){
+        long now = System.currentTimeMillis() / 1000L;
+        stat(stringBuilder, "uptime", now - Global.launchTime);
+        stat(stringBuilder, "time", now);
+        stat(stringBuilder, "version", "middleware-" + Parameters.getInteger("version_major") + "." + Parameters.getInteger("version_minor") + "." + Parameters.getInteger("version_revision"));
+        synchronized (Environment.getClientList()){
+            stat(stringBuilder, "curr_connections", Environment.getClientList().size());
+        }
+        stat(stringBuilder, "queue_depth", getQueueDepth());
+
+        if (metrics == null){
+            return;
+        }
+        long setJobCount = metrics.getSetJobCount();
+        long getJobCount = metrics.getGetJobCount();
+        long getKeyCount = metrics.getGetKeyCount();
+        long missCount = metrics.getMissCount();
+        stat(stringBuilder, "total_connections", metrics.getAcceptedClientCount());
+        stat(stringBuilder, "cmd_get", getJobCount);
+        stat(stringBuilder, "cmd_set", setJobCount);
+        stat(stringBuilder, "get_keys", getKeyCount);
+        stat(stringBuilder, "get_hits", getKeyCount - missCount);
+        stat(stringBuilder, "get_misses", missCount);
+        stat(stringBuilder, "hit_rate", format(getKeyCount == 0 ? 0 : (double) (getKeyCount - missCount) / getKeyCount));
+        stat(stringBuilder, "errors", metrics.getErrorCount());
+        stat(stringBuilder, "ops_per_sec", format(getThroughput(setJobCount + getJobCount)));
+        latency(stringBuilder, "response", metrics.getPhaseHistogram(Metrics.Phase.RESPONSE));
+    }
+
+    private static void renderMiddleware(StringBuilder stringBuilder, Metrics metrics){
+        if (JobQueue.getInstance() != null){
+            for (Job.Lane lane : Job.Lane.values()){
+                JobQueue jobQueue = JobQueue.getInstance(lane);
+                if (lane != Job.Lane.SMALL && jobQueue == JobQueue.getInstance()){
+                    // Lanes are disabled, all share one queue
+                    continue;
+                }
+                stat(stringBuilder, "queue_depth_" + lane.name().toLowerCase(Locale.US), jobQueue.getQueueSize());
+            }
+            stat(stringBuilder, "queue_bytes", JobQueue.getInstance().getQueuedBytes());
+        }
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        if (bufferPool != null){
+            stat(stringBuilder, "buffer_pool_allocated_bytes", bufferPool.getAllocatedBytes());
+            stat(stringBuilder, "buffer_pool_lent_bytes", bufferPool.getLentBytes());
+            stat(stringBuilder, "buffer_pool_misses", bufferPool.getMissCount());
+            stat(stringBuilder, "buffer_pool_refused", bufferPool.getRefusedCount());
+        }
+
+        if (metrics == null){
+            return;
+        }
+        for (Metrics.Phase phase : Metrics.Phase.values()){
+            latency(stringBuilder, phase.label, metrics.getPhaseHistogram(phase));
+        }
+    }
+
+    private static void renderServers(StringBuilder stringBuilder, Metrics metrics){
+        for (int i = 0; i < Environment.getServerList().size(); i++){
+            Server server = Environment.getServerList().get(i);
+            String prefix = "server:" + i + ":";
+            int connectionCount = server.getConnectionCount();
+            stat(stringBuilder, prefix + "name", server.getName());
+            stat(stringBuilder, prefix + "address", server.getAddress());
+            stat(stringBuilder, prefix + "connections", connectionCount);
+            // A server is down once all connections to it have been closed (connections are only closed on failure)
+            stat(stringBuilder, prefix + "health", connectionCount > 0 ? "up" : "down");
+            if (metrics != null){
+                LatencyHistogram latencyHistogram = metrics.getServerHistogram(i);
+                stat(stringBuilder, prefix + "responses", latencyHistogram.getCount());
+                latency(stringBuilder, prefix + "response", latencyHistogram);
+            }
+        }
+    }
+
+    private static void renderSlow(StringBuilder stringBuilder){
+        if (!SlowRequestRecorder.isEnabled()){
+            return;
+        }
+        List<SlowRequestRecorder.Entry> entryList = SlowRequestRecorder.getSlowest(Parameters.getInteger("slow_request_top_n"));
+        for (int i = 0; i < entryList.size(); i++){
+            stat(stringBuilder, "slow:" + i, entryList.get(i).toStatValue());
+        }
+    }
+
+    private static void renderHotKeys(StringBuilder stringBuilder){
+        if (!HotKeySketch.isEnabled()){
+            return;
+        }
+        List<HotKeySketch.HotKey> hotKeyList = HotKeySketch.getHotKeys(Parameters.getInteger("hot_keys_top_k"));
+        for (int i = 0; i < hotKeyList.size(); i++){
+            HotKeySketch.HotKey hotKey = hotKeyList.get(i);
+            stat(stringBuilder, "hotkey:" + i, "key=" + hotKey.key + ",rate=" + format(hotKey.rate) + ",share_pct=" + format(hotKey.share * 100));
+        }
+    }
+
+    private static void renderCapacity(StringBuilder stringBuilder){
+        CapacityEstimator capacityEstimator = CapacityEstimator.getInstance();
+        if (capacityEstimator == null || capacityEstimator.getEstimate() == null){
+            return;
+        }
+        CapacityEstimator.Estimate estimate = capacityEstimator.getEstimate();
+        stat(stringBuilder, "arrival_rate", format(estimate.arrivalRate));
+        stat(stringBuilder, "service_time_us", format(estimate.serviceTime * 1e6));
+        stat(stringBuilder, "server_time_us", format(estimate.serverTime * 1e6));
+        stat(stringBuilder, "net_time_us", format(estimate.netTime * 1e6));
+        stat(stringBuilder, "queue_time_us", format(estimate.queueTime * 1e6));
+        stat(stringBuilder, "response_time_us", format(estimate.responseTime * 1e6));
+        stat(stringBuilder, "think_time_us", format(estimate.thinkTime * 1e6));
+        stat(stringBuilder, "clients", estimate.clientCount);
+        stat(stringBuilder, "workers", estimate.workerCount);
+        stat(stringBuilder, "jobs_per_worker", estimate.jobsPerWorker);
+        stat(stringBuilder, "get_share", format(estimate.getShare));
+        stat(stringBuilder, "server_stations", format(estimate.serverStations));
+        stat(stringBuilder, "utilization", format(estimate.utilization));
+        stat(stringBuilder, "model_queue_time_us", estimate.erlangQueueTime < 0 ? "saturated" : format(estimate.erlangQueueTime * 1e6));
+        stat(stringBuilder, "saturation_throughput", format(estimate.saturationThroughput));
+        stat(stringBuilder, "bottleneck", estimate.bottleneck);
+        stat(stringBuilder, "headroom_pct", format(estimate.headroom * 100));
+        stat(stringBuilder, "model_throughput", format(estimate.predictedThroughput));
+        stat(stringBuilder, "model_response_time_us", format(estimate.predictedResponseTime * 1e6));
+        stat(stringBuilder, "optimal_workers", estimate.optimalWorkerCount);
+    }
+
+    // Per phase and type, then per phase and per type over all others, CPU times in ms
+    private static void renderCpu(StringBuilder stringBuilder){
+        if (!CpuTimeAccounting.isEnabled()){
+            return;
+        }
+        CpuTimeAccounting.Totals totals = CpuTimeAccounting.getTotals();
+        long totalCpuTime = totals.getCpuTime(null, null);
+        stat(stringBuilder, "cpu_ms", format(totalCpuTime / 1e6));
+        for (CpuTimeAccounting.Phase phase : CpuTimeAccounting.Phase.values()){
+            for (CpuTimeAccounting.OperationType operationType : CpuTimeAccounting.OperationType.values()){
+                cpu(stringBuilder, phase.label + ":" + operationType.label, totals, phase, operationType, totalCpuTime);
+            }
+        }
+        for (CpuTimeAccounting.Phase phase : CpuTimeAccounting.Phase.values()){
+            cpu(stringBuilder, phase.label, totals, phase, null, totalCpuTime);
+        }
+        for (CpuTimeAccounting.OperationType operationType : CpuTimeAccounting.OperationType.values()){
+            cpu(stringBuilder, operationType.label, totals, null, operationType, totalCpuTime);
+        }
+    }
+
+    private static void cpu(StringBuilder stringBuilder, String name, CpuTimeAccounting.Totals totals, CpuTimeAccounting.Phase phase, CpuTimeAccounting.OperationType operationType, long totalCpuTime){
+        long count = totals.getCount(phase, operationType);
+        if (count == 0){
+            return;
+        }
+        long cpuTime = totals.getCpuTime(phase, operationType);
+        stat(stringBuilder, "cpu:" + name, "cpu_ms=" + format(cpuTime / 1e6)
+                + ",wall_ms=" + format(totals.getWallTime(phase, operationType) / 1e6)
+                + ",calls=" + count
+                + ",cpu_per_call_us=" + format(cpuTime / 1e3 / count)
+                + ",cpu_of_wall_pct=" + format(totals.getCpuShare(phase, operationType) * 100)
+                + ",share_pct=" + format(totalCpuTime == 0 ? 0 : cpuTime * 100.0 / totalCpuTime));
+    }
+
+    private static void renderUtilization(StringBuilder stringBuilder){
+        UtilizationAccounting utilizationAccounting = UtilizationAccounting.getInstance();
+        if (utilizationAccounting == null || utilizationAccounting.getLatestWindow() == null){
+            return;
+        }
+        UtilizationAccounting.Window window = utilizationAccounting.getLatestWindow();
+        stat(stringBuilder, "window", window.index);
+        stat(stringBuilder, "window_ms", format(window.length / 1e6));
+        for (int i = 0; i < window.laneNames.length; i++){
+            String prefix = "queue:" + window.laneNames[i] + ":";
+            stat(stringBuilder, prefix + "occupancy_avg", format(window.averageOccupancy[i]));
+            stat(stringBuilder, prefix + "put", window.putCounts[i]);
+            stat(stringBuilder, prefix + "taken", window.takeCounts[i]);
+            stat(stringBuilder, prefix + "producer_blocked_pct", format(window.putShares[i] * 100));
+        }
+        for (UtilizationAccounting.State state : UtilizationAccounting.State.values()){
+            stat(stringBuilder, "workers_" + state.label + "_pct", format(window.getShare(state) * 100));
+        }
+        for (int i = 0; i < window.workerNames.length; i++){
+            StringBuilder valueBuilder = new StringBuilder();
+            for (UtilizationAccounting.State state : UtilizationAccounting.State.values()){
+                if (valueBuilder.length() > 0){
+                    valueBuilder.append(',');
+                }
+                valueBuilder.append(state.label).append("_pct=").append(format(window.workerShares[i][state.ordinal()] * 100));
+            }
+            stat(stringBuilder, "worker:" + window.workerNames[i], valueBuilder);
+        }
+    }
+
+    private static int getQueueDepth(){
+        if (JobQueue.getInstance() == null){
+            return 0;
+        }
+        int queueDepth = JobQueue.getInstance().getQueueSize();
+        if (JobQueue.getInstance(Job.Lane.BULK) != JobQueue.getInstance()){
+            queueDepth += JobQueue.getInstance(Job.Lane.BULK).getQueueSize();
+        }
+        return queueDepth;
+    }
+
+    // Queries may be parsed by multiple threads (event loop mode)
+    private static synchronized double getThroughput(long jobCount){
+        long now = System.nanoTime();
+        double throughput;
+        if (previousRequestTime == 0){
+            throughput = jobCount / (double) Math.max(1, System.currentTimeMillis() / 1000L - Global.launchTime);
+        } else {
+            throughput = (jobCount - previousJobCount) * 1e9 / Math.max(1, now - previousRequestTime);
+        }
+        previousRequestTime = now;
+        previousJobCount = jobCount;
+        return throughput;
+    }
+
+    private static void latency(StringBuilder stringBuilder, String name, LatencyHistogram latencyHistogram){
+        stat(stringBuilder, name + "_avg_us", latencyHistogram.getAverage() / 1000);
+        stat(stringBuilder, name + "_p50_us", latencyHistogram.getPercentile(0.5) / 1000);
+        stat(stringBuilder, name + "_p90_us", latencyHistogram.getPercentile(0.9) / 1000);
+        stat(stringBuilder, name + "_p99_us", latencyHistogram.getPercentile(0.99) / 1000);
+    }
+
+    private static void stat(StringBuilder stringBuilder, String name, Object value){
+        stringBuilder.append("STAT ").append(name).append(' ').append(value).append("\r\n");
+    }
+
+    private static String format(double value){
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
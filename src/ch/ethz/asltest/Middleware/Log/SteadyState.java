@@ -0,0 +1,193 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/*
+    Detects the steady-state interval of a run from its per bucket (statistics_time_resolution_ms) series of
+    throughput and average response time, instead of trimming the warm-up and drain from the _PS_ files by hand.
+    The end of the warm-up is found with MSER-5 (marginal standard error rule on batches of 5 buckets): the
+    truncation point minimizing the standard error of the mean of the rest of the series, searched over the first
+    half. The start of the drain is found the same way on the reversed series after the warm-up. Both series are
+    searched, the steady state is the interval that is steady in both.
+    The confidence interval of the steady-state throughput is computed with batch means: the steady buckets are
+    split into statistics_steady_state_batches batches, whose throughputs are taken as independent samples
+    (Student's t at 95%). Series shorter than MIN_BUCKETS are taken as steady as a whole.
+    Written by the merged Statistics (see Statistics.exportMerged()) to
+    result/<launchTime>_SS_middleware_<set|get>.stat, one line per phase and one for the interval:
+    warmup|steady|drain, first bucket, buckets, jobs, throughput (jobs/s), average response time (ns)
+    steady_ci, mean throughput, lower bound, upper bound, batches
+ */
+
+public class SteadyState {
+
+    private static final int MSER_BATCH = 5;
+    private static final int MIN_BUCKETS = 4 * MSER_BATCH;
+
+    // Two-sided 95% quantiles of Student's t by degrees of freedom (1 to 30), the normal quantile above
+    private static final double[] T_QUANTILES = new double[]{
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private static final double NORMAL_QUANTILE = 1.960;
+
+    private final long[] jobs;
+    private final double[] responseTimes;
+    private final double resolutionSeconds;
+
+    // The steady buckets are [steadyStart, drainStart)
+    private final int steadyStart;
+    private final int drainStart;
+
+    // Of the steady-state throughput, NaN if there are too few batches
+    private final int batchCount;
+    private final double mean;
+    private final double halfWidth;
+
+    /*
+     Takes the jobs and the average response time of each bucket, buckets without jobs are part of the series
+     (a stall is not steady).
+      */
+    public SteadyState(long[] jobs, double[] responseTimes, long resolutionNs, int batches){
+        this.jobs = jobs;
+        this.responseTimes = responseTimes;
+        this.resolutionSeconds = resolutionNs / 1e9;
+
+        int bucketCount = jobs.length;
+        double[] throughputs = new double[bucketCount];
+        for (int i = 0; i < bucketCount; i++){
+            throughputs[i] = jobs[i] / resolutionSeconds;
+        }
+
+        if (bucketCount < MIN_BUCKETS){
+            steadyStart = 0;
+            drainStart = bucketCount;
+        } else {
+            steadyStart = Math.max(truncate(throughputs, 0, bucketCount, false), truncate(responseTimes, 0, bucketCount, false));
+            drainStart = Math.min(truncate(throughputs, steadyStart, bucketCount, true), truncate(responseTimes, steadyStart, bucketCount, true));
+        }
+
+        int steadyCount = drainStart - steadyStart;
+        batchCount = Math.min(Math.max(2, batches), steadyCount);
+        if (batchCount < 2){
+            mean = steadyCount == 1 ? throughputs[steadyStart] : Double.NaN;
+            halfWidth = Double.NaN;
+            return;
+        }
+        // The batches are of equal length, the first steadyCount % batchCount buckets are left out
+        int batchLength = steadyCount / batchCount;
+        int first = drainStart - batchCount * batchLength;
+        double[] batchMeans = new double[batchCount];
+        double sum = 0;
+        for (int batch = 0; batch < batchCount; batch++){
+            for (int i = 0; i < batchLength; i++){
+                batchMeans[batch] += throughputs[first + batch * batchLength + i];
+            }
+            batchMeans[batch] /= batchLength;
+            sum += batchMeans[batch];
+        }
+        mean = sum / batchCount;
+        double squareSum = 0;
+        for (double batchMean : batchMeans){
+            squareSum += (batchMean - mean) * (batchMean - mean);
+        }
+        double standardError = Math.sqrt(squareSum / (batchCount - 1) / batchCount);
+        halfWidth = tQuantile(batchCount - 1) * standardError;
+    }
+
+    /*
+     MSER-5 on values[from, to): returns the first bucket after the truncated warm-up (from the front) or the
+     first bucket of the truncated drain (from the back, if reversed). Only truncates whole batches, at most half
+     of the range.
+      */
+    private static int truncate(double[] values, int from, int to, boolean reversed){
+        int batchCount = (to - from) / MSER_BATCH;
+        if (batchCount < 2){
+            return reversed ? to : from;
+        }
+        double[] batchMeans = new double[batchCount];
+        for (int batch = 0; batch < batchCount; batch++){
+            for (int i = 0; i < MSER_BATCH; i++){
+                int index = reversed ? to - 1 - batch * MSER_BATCH - i : from + batch * MSER_BATCH + i;
+                batchMeans[batch] += values[index];
+            }
+            batchMeans[batch] /= MSER_BATCH;
+        }
+
+        // Suffix sums, such that every truncation point is evaluated in constant time
+        double[] sums = new double[batchCount + 1];
+        double[] squareSums = new double[batchCount + 1];
+        for (int batch = batchCount - 1; batch >= 0; batch--){
+            sums[batch] = sums[batch + 1] + batchMeans[batch];
+            squareSums[batch] = squareSums[batch + 1] + batchMeans[batch] * batchMeans[batch];
+        }
+        int best = 0;
+        double bestStatistic = Double.MAX_VALUE;
+        for (int truncated = 0; truncated <= batchCount / 2; truncated++){
+            int remaining = batchCount - truncated;
+            double mean = sums[truncated] / remaining;
+            double squaredDeviations = Math.max(0, squareSums[truncated] - remaining * mean * mean);
+            double statistic = squaredDeviations / ((double) remaining * remaining);
+            if (statistic < bestStatistic){
+                bestStatistic = statistic;
+                best = truncated;
+            }
+        }
+        return reversed ? to - best * MSER_BATCH : from + best * MSER_BATCH;
+    }
+
+    private static double tQuantile(int degreesOfFreedom){
+        return degreesOfFreedom <= T_QUANTILES.length ? T_QUANTILES[degreesOfFreedom - 1] : NORMAL_QUANTILE;
+    }
+
+    public int getSteadyStart(){
+        return steadyStart;
+    }
+
+    public int getDrainStart(){
+        return drainStart;
+    }
+
+    public double getThroughput(){
+        return mean;
+    }
+
+    public double getThroughputLowerBound(){
+        return mean - halfWidth;
+    }
+
+    public double getThroughputUpperBound(){
+        return mean + halfWidth;
+    }
+
+    public void write(String fileName) throws IOException{
+        try (PrintWriter printWriter = new PrintWriter(fileName, "US-ASCII")){
+            printPhase(printWriter, "warmup", 0, steadyStart);
+            printPhase(printWriter, "steady", steadyStart, drainStart);
+            printPhase(printWriter, "drain", drainStart, jobs.length);
+            printWriter.println("steady_ci," + format(mean) + "," + format(getThroughputLowerBound()) + "," + format(getThroughputUpperBound()) + "," + batchCount);
+        }
+    }
+
+    private void printPhase(PrintWriter printWriter, String phase, int from, int to){
+        long jobCount = 0;
+        double responseTimeSum = 0;
+        for (int i = from; i < to; i++){
+            jobCount += jobs[i];
+            responseTimeSum += jobs[i] * responseTimes[i];
+        }
+        double throughput = to > from ? jobCount / ((to - from) * resolutionSeconds) : 0;
+        printWriter.println(phase + "," + from + "," + (to - from) + "," + jobCount + "," + format(throughput) + "," + (jobCount == 0 ? 0 : Math.round(responseTimeSum / jobCount)));
+    }
+
+    private static String format(double value){
+        return String.format(Locale.US, "%.2f", value);
+    }
+
+    @Override
+    public String toString(){
+        return "buckets " + steadyStart + " to " + drainStart + " of " + jobs.length + ", throughput " + format(mean)
+                + " jobs/s (95% CI " + format(getThroughputLowerBound()) + " to " + format(getThroughputUpperBound()) + ")";
+    }
+}
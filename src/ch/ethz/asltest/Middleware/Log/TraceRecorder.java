@@ -0,0 +1,154 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+    The TraceRecorder appends the timestamps and sizes of every completed Job to memory-mapped files while the
+    middleware is running, such that the per-job data is available even if the middleware crashes (the mapped pages
+    belong to the page cache, not to the process). Every WorkerThread/EventLoopThread owns one, so recording is
+    single threaded and costs a few absolute stores into the mapping per Job.
+
+    The trace is written to result/<launchTime>_TR_<thread>_<segment>.trace, each segment of trace_file_bytes bytes.
+    Once a segment is full, the next one is mapped and the segment trace_max_files before it is deleted (rolling).
+    A segment consists of a header of HEADER_BYTES bytes followed by the columns, each holding rowCapacity longs
+    (column-major, such that a column can be read as one block). All values are in native byte order, readers can
+    detect it with the magic number.
+
+    Header (offset: value):
+    0: magic (ASLTRACE), 8: format version (int), 12: column count (int), 16: row capacity (int),
+    20: server count (int), 24: launch time (long, s), 32: committed row count (long)
+    The row count is only incremented after all columns of a row have been written.
+
+    Columns (in this order):
+    type (0 set, 1 get), clientArrival, enqueue, dequeue, clientSend, enqueueSize, dequeueSize, keyCount, missCount,
+    followed by serverSend and serverArrival of every server (0 if a server was not involved). Times in ns.
+ */
+
+public class TraceRecorder {
+
+    public static final long MAGIC = 0x41534C5452414345L; // ASLTRACE
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_BYTES = 64;
+
+    private static final int ROW_COUNT_OFFSET = 32;
+
+    private static final int TYPE = 0;
+    private static final int CLIENT_ARRIVAL_TIME = 1;
+    private static final int ENQUEUE_TIME = 2;
+    private static final int DEQUEUE_TIME = 3;
+    private static final int CLIENT_SEND_TIME = 4;
+    private static final int ENQUEUE_SIZE = 5;
+    private static final int DEQUEUE_SIZE = 6;
+    private static final int KEY_COUNT = 7;
+    private static final int MISS_COUNT = 8;
+    private static final int SERVER_TIMES = 9;
+
+    private final String threadName;
+    private final int serverCount;
+    private final int columnCount;
+    private final int rowCapacity;
+    private final int maxFiles;
+
+    private MappedByteBuffer mappedByteBuffer;
+    private int segment = -1;
+    private int rowCount;
+
+    public TraceRecorder(String threadName){
+        this.threadName = threadName;
+        this.serverCount = Environment.getServerList().size();
+        this.columnCount = SERVER_TIMES + 2 * serverCount;
+        // A mapping is limited to 2 GB
+        long fileBytes = Math.min(Integer.MAX_VALUE, Parameters.getLong("trace_file_bytes"));
+        this.rowCapacity = (int) Math.max(1, (fileBytes - HEADER_BYTES) / (8L * columnCount));
+        this.maxFiles = Math.max(1, Parameters.getInteger("trace_max_files"));
+        mapNextSegment();
+    }
+
+    public void record(Job job){
+        if (mappedByteBuffer == null){
+            return;
+        }
+        if (rowCount == rowCapacity){
+            mapNextSegment();
+            if (mappedByteBuffer == null){
+                return;
+            }
+        }
+
+        put(TYPE, job instanceof Job.GetJob ? 1 : 0);
+        put(CLIENT_ARRIVAL_TIME, job.getClientArrivalTime());
+        put(ENQUEUE_TIME, job.getEnqueueTime());
+        put(DEQUEUE_TIME, job.getDequeueTime());
+        put(CLIENT_SEND_TIME, job.getClientSendTime());
+        put(ENQUEUE_SIZE, job.getEnqueueSize());
+        put(DEQUEUE_SIZE, job.getDequeueSize());
+        put(KEY_COUNT, job instanceof Job.GetJob ? ((Job.GetJob) job).getKeyCount() : 1);
+        put(MISS_COUNT, job.getMissCount());
+        for (int i = 0; i < serverCount; i++){
+            put(SERVER_TIMES + 2 * i, job.getServerSendTime(i));
+            put(SERVER_TIMES + 2 * i + 1, job.getServerArrivalTime(i));
+        }
+
+        rowCount++;
+        mappedByteBuffer.putLong(ROW_COUNT_OFFSET, rowCount);
+    }
+
+    // Flushes the current segment to disk
+    public void close(){
+        if (mappedByteBuffer != null){
+            mappedByteBuffer.force();
+            mappedByteBuffer = null;
+        }
+    }
+
+    private void put(int column, long value){
+        mappedByteBuffer.putLong(HEADER_BYTES + ((column * rowCapacity) + rowCount) * 8, value);
+    }
+
+    private void mapNextSegment(){
+        if (mappedByteBuffer != null){
+            mappedByteBuffer.force();
+        }
+        segment++;
+        rowCount = 0;
+
+        File obsoleteFile = getFile(segment - maxFiles);
+        if (segment >= maxFiles && obsoleteFile.exists() && !obsoleteFile.delete()){
+            Log.warn("[TraceRecorder] Could not delete {}", obsoleteFile.getName());
+        }
+
+        File file = getFile(segment);
+        long fileBytes = HEADER_BYTES + 8L * columnCount * rowCapacity;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")){
+            // The mapping stays valid after closing the file
+            mappedByteBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+        } catch (IOException iOException){
+            Log.error("[TraceRecorder] Could not map {}, tracing stopped: {}", file.getName(), iOException.getMessage());
+            mappedByteBuffer = null;
+            return;
+        }
+
+        mappedByteBuffer.order(ByteOrder.nativeOrder());
+        mappedByteBuffer.putLong(0, MAGIC);
+        mappedByteBuffer.putInt(8, FORMAT_VERSION);
+        mappedByteBuffer.putInt(12, columnCount);
+        mappedByteBuffer.putInt(16, rowCapacity);
+        mappedByteBuffer.putInt(20, serverCount);
+        mappedByteBuffer.putLong(24, Global.launchTime);
+        mappedByteBuffer.putLong(ROW_COUNT_OFFSET, 0);
+    }
+
+    private File getFile(int segment){
+        return new File("./result/" + Global.launchTime + "_TR_" + threadName + "_" + segment + ".trace");
+    }
+}
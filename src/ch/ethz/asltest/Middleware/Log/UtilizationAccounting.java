@@ -0,0 +1,336 @@
+package ch.ethz.asltest.Middleware.Log;
+
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Job.JobQueue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    The UtilizationAccounting measures where the time of the JobQueue and the WorkerThreads goes, such that
+    saturation can be seen directly rather than inferred from the per Job queue sizes:
+    JobQueue:       the time-weighted occupancy (integral of the queue size over time, see JobQueue), the jobs put
+                    and taken and the time producers (the NetThread) spent in offer() (refused jobs are held back)
+    WorkerThread:   the time spent in each State: idle (polling the JobQueue), busy, blocked on the backend
+                    (reading the servers' responses, including parsing them) and blocked on the client (waiting
+                    for the client's socket to take the rest of the response)
+    The states are switched by their thread (one System.nanoTime() per switch), the times are read by this thread
+    every utilization_window_ms, which appends the difference to the previous window (also of a state still
+    running) to result/<launchTime>_QU.stat (one line per lane) and result/<launchTime>_UT.stat (one line per
+    WorkerThread), flushed after every window:
+    _QU.stat:   window, lane, window length, occupancy integral (jobs * ns), jobs put, jobs taken, time in offer()
+    _UT.stat:   window, thread, window length, idle, busy, backend, client (in ns)
+    The latest window is answered by "stats utilization" (see StatsReport). Not used in event loop mode.
+ */
+
+public class UtilizationAccounting extends Thread {
+
+    private static UtilizationAccounting ourInstance;
+    public static UtilizationAccounting getInstance() {
+        return ourInstance;
+    }
+
+    private static boolean enabled;
+    private static final Queue<WorkerUtilization> workerQueue = new ConcurrentLinkedQueue<>();
+
+    // To be called before the JobQueue and the WorkerThreads are created
+    public static void initialize(){
+        enabled = Parameters.getBoolean("utilization_accounting_enabled") && !Parameters.getBoolean("event_loop_mode");
+        if (!enabled){
+            return;
+        }
+        ourInstance = new UtilizationAccounting();
+        ourInstance.start();
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    // Always returns an instance, which does nothing if disabled
+    public static WorkerUtilization register(String threadName){
+        WorkerUtilization workerUtilization = new WorkerUtilization(threadName, enabled);
+        if (enabled){
+            workerQueue.add(workerUtilization);
+        }
+        return workerUtilization;
+    }
+
+    private final long windowNs;
+    private final long origin;
+
+    // The latest closed window, null before
+    private volatile Window latestWindow;
+
+    private UtilizationAccounting(){
+        super();
+        setName("utilization");
+        setDaemon(true);
+        windowNs = 1000L * 1000L * Math.max(1, Parameters.getLong("utilization_window_ms"));
+        origin = System.nanoTime();
+    }
+
+    public Window getLatestWindow(){
+        return latestWindow;
+    }
+
+    @Override
+    public void run() {
+        String queueFileName = "./result/" + Global.launchTime + "_QU.stat";
+        String workerFileName = "./result/" + Global.launchTime + "_UT.stat";
+        try (PrintWriter queuePrintWriter = new PrintWriter(queueFileName, "US-ASCII");
+             PrintWriter workerPrintWriter = new PrintWriter(workerFileName, "US-ASCII")){
+            Log.info("[UtilizationAccounting] Accounting windows of {} ms", windowNs / 1000000);
+            Snapshot previous = new Snapshot(origin);
+            long window = 0;
+            while (!Global.isShuttingDown){
+                long sleepNs = origin + (window + 1) * windowNs - System.nanoTime();
+                if (sleepNs > 0){
+                    try {
+                        Thread.sleep(sleepNs / 1000000, (int) (sleepNs % 1000000));
+                    } catch (InterruptedException interruptedException){
+                        break;
+                    }
+                }
+                Snapshot current = new Snapshot(System.nanoTime());
+                Window closedWindow = new Window(window, previous, current);
+                closedWindow.write(queuePrintWriter, workerPrintWriter);
+                latestWindow = closedWindow;
+                previous = current;
+                window++;
+            }
+        } catch (IOException iOException){
+            Log.error("[UtilizationAccounting] Could not write {} or {}: {}", queueFileName, workerFileName, iOException.getMessage());
+        }
+    }
+
+    // The JobQueues of all lanes (one if lanes are disabled), empty before the JobQueue has been initialized
+    private static List<JobQueue> getJobQueues(){
+        List<JobQueue> jobQueueList = new ArrayList<>();
+        if (JobQueue.getInstance() == null){
+            return jobQueueList;
+        }
+        for (Job.Lane lane : Job.Lane.values()){
+            JobQueue jobQueue = JobQueue.getInstance(lane);
+            if (!jobQueueList.contains(jobQueue)){
+                jobQueueList.add(jobQueue);
+            }
+        }
+        return jobQueueList;
+    }
+
+    // The totals of all queues and workers at a time
+    private static class Snapshot {
+
+        final long time;
+        final List<JobQueue> jobQueues;
+        final long[][] queueTotals;
+        final List<WorkerUtilization> workers = new ArrayList<>();
+        final List<long[]> workerTotals = new ArrayList<>();
+
+        Snapshot(long time){
+            this.time = time;
+            jobQueues = getJobQueues();
+            queueTotals = new long[jobQueues.size()][];
+            for (int i = 0; i < jobQueues.size(); i++){
+                JobQueue jobQueue = jobQueues.get(i);
+                queueTotals[i] = new long[]{jobQueue.getOccupancyIntegral(time), jobQueue.getPutCount(), jobQueue.getTakeCount(), jobQueue.getPutTime()};
+            }
+            for (WorkerUtilization workerUtilization : workerQueue){
+                workers.add(workerUtilization);
+                workerTotals.add(workerUtilization.getTimes(time));
+            }
+        }
+
+        // The totals of a queue or worker of this snapshot in the given one (zeros if it did not exist yet)
+        long[] find(Snapshot snapshot, int index, boolean queue){
+            if (queue){
+                int previousIndex = snapshot.jobQueues.indexOf(jobQueues.get(index));
+                return previousIndex < 0 ? new long[queueTotals[index].length] : snapshot.queueTotals[previousIndex];
+            }
+            int previousIndex = snapshot.workers.indexOf(workers.get(index));
+            return previousIndex < 0 ? new long[State.values().length] : snapshot.workerTotals.get(previousIndex);
+        }
+    }
+
+    public static class Window {
+
+        public final long index;
+        public final long length;
+
+        // By lane
+        public final String[] laneNames;
+        public final double[] averageOccupancy;
+        public final long[] putCounts;
+        public final long[] takeCounts;
+        // The share of the window producers spent in offer()
+        public final double[] putShares;
+
+        // By worker, then State
+        public final String[] workerNames;
+        public final double[][] workerShares;
+
+        private final long[][] queueDeltas;
+        private final long[][] workerDeltas;
+
+        private Window(long index, Snapshot previous, Snapshot current){
+            this.index = index;
+            this.length = Math.max(1, current.time - previous.time);
+
+            int queueCount = current.jobQueues.size();
+            laneNames = new String[queueCount];
+            averageOccupancy = new double[queueCount];
+            putCounts = new long[queueCount];
+            takeCounts = new long[queueCount];
+            putShares = new double[queueCount];
+            queueDeltas = new long[queueCount][];
+            for (int i = 0; i < queueCount; i++){
+                laneNames[i] = getLaneName(current.jobQueues.get(i));
+                queueDeltas[i] = delta(current.queueTotals[i], current.find(previous, i, true));
+                averageOccupancy[i] = queueDeltas[i][0] / (double) length;
+                putCounts[i] = queueDeltas[i][1];
+                takeCounts[i] = queueDeltas[i][2];
+                putShares[i] = queueDeltas[i][3] / (double) length;
+            }
+
+            int workerCount = current.workers.size();
+            workerNames = new String[workerCount];
+            workerShares = new double[workerCount][];
+            workerDeltas = new long[workerCount][];
+            for (int i = 0; i < workerCount; i++){
+                workerNames[i] = current.workers.get(i).threadName;
+                workerDeltas[i] = delta(current.workerTotals.get(i), current.find(previous, i, false));
+                workerShares[i] = new double[workerDeltas[i].length];
+                for (int state = 0; state < workerDeltas[i].length; state++){
+                    workerShares[i][state] = workerDeltas[i][state] / (double) length;
+                }
+            }
+        }
+
+        // The share of the window all workers together spent in the given State
+        public double getShare(State state){
+            if (workerShares.length == 0){
+                return 0;
+            }
+            double sum = 0;
+            for (double[] shares : workerShares){
+                sum += shares[state.ordinal()];
+            }
+            return sum / workerShares.length;
+        }
+
+        private void write(PrintWriter queuePrintWriter, PrintWriter workerPrintWriter){
+            for (int i = 0; i < queueDeltas.length; i++){
+                queuePrintWriter.println(index + "," + laneNames[i] + "," + length + "," + queueDeltas[i][0] + "," + queueDeltas[i][1] + "," + queueDeltas[i][2] + "," + queueDeltas[i][3]);
+            }
+            queuePrintWriter.flush();
+            for (int i = 0; i < workerDeltas.length; i++){
+                StringBuilder stringBuilder = new StringBuilder(96);
+                stringBuilder.append(index).append(',').append(workerNames[i]).append(',').append(length);
+                for (long time : workerDeltas[i]){
+                    stringBuilder.append(',').append(time);
+                }
+                workerPrintWriter.println(stringBuilder);
+            }
+            workerPrintWriter.flush();
+        }
+
+        private static long[] delta(long[] current, long[] previous){
+            long[] delta = new long[current.length];
+            for (int i = 0; i < current.length; i++){
+                delta[i] = Math.max(0, current[i] - previous[i]);
+            }
+            return delta;
+        }
+
+        private static String getLaneName(JobQueue jobQueue){
+            for (Job.Lane lane : Job.Lane.values()){
+                if (JobQueue.getInstance(lane) == jobQueue){
+                    return lane.name().toLowerCase(Locale.US);
+                }
+            }
+            return "unknown";
+        }
+    }
+
+    public enum State {
+        IDLE("idle"),
+        BUSY("busy"),
+        BACKEND("backend"),
+        CLIENT("client");
+
+        public final String label;
+
+        State(String label){
+            this.label = label;
+        }
+    }
+
+    /*
+     The time a WorkerThread spent in each State. Only the owning thread switches states, the accounting thread
+     reads the times consistently by retrying while a switch is in progress (the version is odd) or has happened
+     during the read (the version has changed). The times are volatile (AtomicLongArray) as well, such that their
+     reads are ordered between both reads of the version.
+      */
+    public static class WorkerUtilization {
+
+        private final String threadName;
+        private final boolean enabled;
+
+        private final AtomicLongArray times = new AtomicLongArray(State.values().length);
+        private volatile State state = State.BUSY;
+        private volatile long since = System.nanoTime();
+        private volatile long version;
+
+        private WorkerUtilization(String threadName, boolean enabled){
+            this.threadName = threadName;
+            this.enabled = enabled;
+        }
+
+        public void enter(State nextState){
+            if (!enabled || nextState == state){
+                return;
+            }
+            long now = System.nanoTime();
+            version++;
+            // Only written by this thread, no atomic update needed
+            times.set(state.ordinal(), times.get(state.ordinal()) + now - since);
+            since = now;
+            state = nextState;
+            version++;
+        }
+
+        // Null if disabled
+        public State getState(){
+            return enabled ? state : null;
+        }
+
+        // Including the time spent in the current state up to now
+        private long[] getTimes(long now){
+            long[] copy = new long[times.length()];
+            while (true){
+                long versionBefore = version;
+                if ((versionBefore & 1) == 0){
+                    for (int i = 0; i < copy.length; i++){
+                        copy[i] = times.get(i);
+                    }
+                    State currentState = state;
+                    long currentSince = since;
+                    if (version == versionBefore){
+                        copy[currentState.ordinal()] += Math.max(0, now - currentSince);
+                        return copy;
+                    }
+                }
+                Thread.yield();
+            }
+        }
+    }
+}
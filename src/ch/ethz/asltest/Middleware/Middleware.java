@@ -5,12 +5,24 @@ import ch.ethz.asltest.Middleware.Environment.Server;
 import ch.ethz.asltest.Middleware.Global.Configuration;
 import ch.ethz.asltest.Middleware.Global.Global;
 import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
 import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Log.CapacityEstimator;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Metrics;
+import ch.ethz.asltest.Middleware.Log.SlowRequestRecorder;
 import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Log.StatisticsExporter;
+import ch.ethz.asltest.Middleware.Log.UtilizationAccounting;
+import ch.ethz.asltest.Middleware.Threading.Autotuner;
+import ch.ethz.asltest.Middleware.Threading.EventLoopPool;
+import ch.ethz.asltest.Middleware.Threading.Management;
+import ch.ethz.asltest.Middleware.Threading.MetricsServer;
 import ch.ethz.asltest.Middleware.Threading.NetThread;
 import ch.ethz.asltest.Middleware.Threading.ShutdownThread;
 import ch.ethz.asltest.Middleware.Threading.WorkerPool;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
 
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -35,6 +47,7 @@ public class Middleware{
         // Parse parameters
         Parameters.initialize();
         Parameters.parse();
+        Log.configure();
 
         // Shutdown hook
         Runtime runtime = Runtime.getRuntime();
@@ -47,17 +60,38 @@ public class Middleware{
             Environment.getServerList().add(new Server(splitAddress[0], Integer.parseInt(splitAddress[1])));
         }
 
-        JobQueue.initialize();
-
-        WorkerPool.initialize();
+        Instrumentation.initialize();
+        SlowRequestRecorder.initialize();
+        UtilizationAccounting.initialize();
+        Job.initializePools();
+        BufferPool.initialize();
+        // Before any Statistics object is created, since they feed the metrics and the rolling export
+        Metrics.initialize();
+        StatisticsExporter.initialize();
+
+        if (Parameters.getBoolean("event_loop_mode")){
+            // Event loops own their clients and server connections, no JobQueue or WorkerPool needed
+            EventLoopPool.initialize();
+            CapacityEstimator.initialize(EventLoopPool.getInstance().getLoopCount(), true);
+        } else {
+            JobQueue.initialize();
+            WorkerPool.initialize();
+            CapacityEstimator.initialize(Configuration.getThreadCount(), false);
+        }
 
         NetThread.initialize();
+        MetricsServer.initialize();
+
+        if (Parameters.getBoolean("autotuner_enabled")){
+            Autotuner.initialize();
+        }
+        Management.initialize();
 
     }
 
 
     public void run(){
-        Log.info("Starting middleware version " + Parameters.getInteger("version_major") + "." + Parameters.getInteger("version_minor") + "." + Parameters.getInteger("version_revision"));
+        Log.info("Starting middleware version {}.{}.{}", Parameters.getInteger("version_major"), Parameters.getInteger("version_minor"), Parameters.getInteger("version_revision"));
         NetThread.getInstance().run();
     }
 
@@ -1,6 +1,7 @@
 package ch.ethz.asltest.Middleware.Result;
 
 import ch.ethz.asltest.Middleware.Assembler.ResponseAssembler;
+import ch.ethz.asltest.Middleware.Log.Log;
 
 import java.nio.ByteBuffer;
 
@@ -8,6 +9,8 @@ import java.nio.ByteBuffer;
     The abstract Result class represents the answer of a server to a query. It is extended by concrete
     responses like StoredResult (returned on successful set operation) or ValueResult. The response can be forwarded
     to clients using the bound ResponseAssembler (Result objects are created upon completing parsing therein).
+    Since a ResponseAssembler holds at most one response at a time, it owns one instance of each Result type and
+    reuses it for every response (reset()). release() hands the Result and the assembler back, exactly once per reset().
  */
 
 public abstract class Result{
@@ -18,12 +21,31 @@ public abstract class Result{
 
     protected long serverArrivalTime;
 
-    Result(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, long serverArrivalTime){
+    // Whether the Result has been handed out and not yet released
+    private boolean inUse;
+
+    Result(ResponseAssembler responseAssembler){
         this.responseAssembler = responseAssembler;
+    }
+
+    // To be called by the owning ResponseAssembler before handing out the Result for a new response
+    public void reset(ByteBuffer byteBuffer, long serverArrivalTime){
         this.byteBuffer = byteBuffer;
         this.serverArrivalTime = serverArrivalTime;
+        this.inUse = true;
     }
 
+    // Releases the ResponseAssembler (and thus this Result) for the next response
+    public void release(){
+        if (!inUse){
+            Log.error("[Result] Result released twice, ignoring it");
+            return;
+        }
+        inUse = false;
+        // The buffer goes back to the BufferPool
+        byteBuffer = null;
+        responseAssembler.release();
+    }
 
     public ResponseAssembler getResponseAssembler(){
         return responseAssembler;
@@ -35,14 +57,14 @@ public abstract class Result{
 
 
     public static class StoredResult extends Result{
-        public StoredResult(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, long serverArrivalTime){
-            super(responseAssembler, byteBuffer, serverArrivalTime);
+        public StoredResult(ResponseAssembler responseAssembler){
+            super(responseAssembler);
         }
     }
 
     public static class ErrorResult extends Result{
-        public ErrorResult(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, long serverArrivalTime){
-            super(responseAssembler, byteBuffer, serverArrivalTime);
+        public ErrorResult(ResponseAssembler responseAssembler){
+            super(responseAssembler);
         }
 
     }
@@ -51,8 +73,12 @@ public abstract class Result{
 
         public String errorMessage;
 
-        public ClientErrorResult(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, String errorMessage, long serverArrivalTime){
-            super(responseAssembler, byteBuffer, serverArrivalTime);
+        public ClientErrorResult(ResponseAssembler responseAssembler){
+            super(responseAssembler);
+        }
+
+        public void reset(ByteBuffer byteBuffer, String errorMessage, long serverArrivalTime){
+            reset(byteBuffer, serverArrivalTime);
             this.errorMessage = errorMessage;
         }
     }
@@ -61,18 +87,26 @@ public abstract class Result{
 
         public String errorMessage;
 
-        public ServerErrorResult(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, String errorMessage, long serverArrivalTime){
-            super(responseAssembler, byteBuffer, serverArrivalTime);
+        public ServerErrorResult(ResponseAssembler responseAssembler){
+            super(responseAssembler);
+        }
+
+        public void reset(ByteBuffer byteBuffer, String errorMessage, long serverArrivalTime){
+            reset(byteBuffer, serverArrivalTime);
             this.errorMessage = errorMessage;
         }
     }
 
     public static class ValueResult extends Result{
 
-        public final int valueCount;
+        public int valueCount;
+
+        public ValueResult(ResponseAssembler responseAssembler){
+            super(responseAssembler);
+        }
 
-        public ValueResult(ResponseAssembler responseAssembler, ByteBuffer byteBuffer, long serverArrivalTime, int valueCount){
-            super(responseAssembler, byteBuffer, serverArrivalTime);
+        public void reset(ByteBuffer byteBuffer, long serverArrivalTime, int valueCount){
+            reset(byteBuffer, serverArrivalTime);
             this.valueCount = valueCount;
         }
 
@@ -80,4 +114,4 @@ public abstract class Result{
             responseAssembler.setLimitToEnd();
         }
     }
-}
\ No newline at end of file
+}
@@ -7,7 +7,6 @@ import ch.ethz.asltest.Middleware.Log.Statistics;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
 
 /*
     The ResultMerger class is used to merge multiple responses from servers into one response that gets forwarded
@@ -20,7 +19,9 @@ import java.util.LinkedList;
 
 public class ResultMerger {
 
-    private LinkedList<Result> resultList;
+    // The added Results in order (an array, such that adding doesn't allocate)
+    private Result[] results;
+    private int resultCount;
 
     private boolean merged;
     private int valueResultCount;
@@ -43,8 +44,7 @@ public class ResultMerger {
     private int sourceCount;
 
     public ResultMerger(){
-        // The linked hash set preserves order
-        resultList = new LinkedList<>();
+        results = new Result[Parameters.getInteger("assembler_max_responses_mergeable")];
         sourceByteBuffers = new ByteBuffer[Parameters.getInteger("assembler_max_responses_mergeable")];
     }
 
@@ -52,11 +52,19 @@ public class ResultMerger {
         if (merged){
             throw new AlreadyMergedException("[ResultMerger] Attempting operation on already merged result set");
         }
-        resultList.add(result);
+        if (resultCount >= results.length){
+            Log.error("[ResultMerger] Cannot add result to merger, run out of space (increase assembler_max_responses_mergeable)");
+            return;
+        }
+        results[resultCount] = result;
+        resultCount++;
     }
 
     public void clear(){
-        resultList.clear();
+        for (int i = 0; i < resultCount; i++){
+            results[i] = null;
+        }
+        resultCount = 0;
         merged = false;
         valueResultCount = 0;
         storedResultCount = 0;
@@ -72,9 +80,26 @@ public class ResultMerger {
         if (!merged){
             throw new NotMergedException("[ResultMerger] Attempting operation on not yet merged result set");
         }
-        for (Result result : resultList){
-            result.getResponseAssembler().release();
+        // Hands the Results back to their ResponseAssemblers and forgets them, such that they are released once only
+        for (int i = 0; i < resultCount; i++){
+            results[i].release();
+            results[i] = null;
+        }
+        resultCount = 0;
+    }
+
+    // Hands the Results back to their ResponseAssemblers whether merged or not (e.g. if the Job is abandoned)
+    public void discard(){
+        for (int i = 0; i < resultCount; i++){
+            results[i].release();
+            results[i] = null;
+        }
+        resultCount = 0;
+        for (int i = 0; i < sourceCount; i++){
+            sourceByteBuffers[i] = null;
         }
+        sourceCount = 0;
+        previousHasRemainingResultValid = false;
     }
 
     public class NotMergedException extends Exception{
@@ -95,12 +120,13 @@ public class ResultMerger {
             return;
         }
 
-        if (resultList.isEmpty()){
+        if (resultCount == 0){
             Log.warn("[ResultMerger] Result set is empty");
             return;
         }
 
-        for (Result currentResult : resultList){
+        for (int i = 0; i < resultCount; i++){
+            Result currentResult = results[i];
 
             if (currentResult instanceof Result.ErrorResult) {
                 sourceByteBuffers[0] = currentResult.byteBuffer;
@@ -132,13 +158,13 @@ public class ResultMerger {
         }
 
         // Make sure we don't have a mix of STORED and VALUE responses
-        if (!((valueResultCount == 0 && storedResultCount == resultList.size()) || (valueResultCount == resultList.size() && storedResultCount == 0))){
+        if (!((valueResultCount == 0 && storedResultCount == resultCount) || (valueResultCount == resultCount && storedResultCount == 0))){
             Log.error("[ResultMerger] Received results of both value and stored, or another unknown type has occured");
             return;
         }
 
         if (valueResultCount > 0){
-            Result lastResult = resultList.getLast();
+            Result lastResult = results[resultCount - 1];
             ((Result.ValueResult) lastResult).setLimitToEnd();
         }
 
@@ -191,7 +217,7 @@ public class ResultMerger {
             }
             return bytesWritten;
         } catch (IOException iOException){
-            Log.error("[ResultMerger] IOError on writing merged result back to client: " + iOException.getMessage());
+            Log.error("[ResultMerger] IOError on writing merged result back to client: {}", iOException.getMessage());
         }
         return 0;
     }
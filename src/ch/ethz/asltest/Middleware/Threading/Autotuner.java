@@ -0,0 +1,284 @@
+package ch.ethz.asltest.Middleware.Threading;
+
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
+import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    The Autotuner optimizes a chosen subset of integer/long parameters while the middleware is running.
+    It hill-climbs one parameter at a time: each experiment applies a candidate value (the current one multiplied or
+    divided by the step factor), waits for the system to settle and measures throughput and response time with the
+    middleware's own response time histogram. A candidate is kept if it satisfies the p99 constraint and improves
+    the throughput by at least autotuner_min_improvement_percent, else the previous value is restored.
+    Tuning stops once a full pass over all parameters brings no improvement, after autotuner_max_experiments
+    experiments or on shutdown. The chosen values are then written to result/<launchTime>_autotuned.xml in the
+    format of MWParameters.xml.
+    Only the TunableParameters can be tuned, the others (e.g. queue_capacity or buffer sizes) are fixed once the
+    buffers and queues have been allocated.
+    Since the load may drift while tuning, the current values are measured again after every
+    autotuner_rebaseline_experiments experiments and the candidates are compared against that measurement.
+ */
+
+public class Autotuner extends Thread{
+
+    private static Autotuner ourInstance;
+    public static Autotuner getInstance() {
+        return ourInstance;
+    }
+
+    public static void initialize() {
+        ourInstance = new Autotuner();
+        ourInstance.start();
+    }
+
+    private List<TunedParameter> tunedParameters;
+
+    private final long settleTime;
+    private final long experimentTime;
+    private final long p99Limit;
+    private final double stepFactor;
+    private final double minImprovement;
+    private final int maxExperiments;
+    private final int rebaselineExperiments;
+
+    private Autotuner(){
+        super();
+        setName("autotuner");
+        setDaemon(true);
+
+        settleTime = Parameters.getLong("autotuner_settle_ms");
+        experimentTime = Parameters.getLong("autotuner_experiment_ms");
+        p99Limit = Parameters.getLong("autotuner_p99_limit_us") * 1000;
+        stepFactor = Math.max(101, Parameters.getInteger("autotuner_step_percent")) / 100D;
+        minImprovement = Parameters.getInteger("autotuner_min_improvement_percent") / 100D;
+        maxExperiments = Parameters.getInteger("autotuner_max_experiments");
+        rebaselineExperiments = Parameters.getInteger("autotuner_rebaseline_experiments");
+
+        tunedParameters = new ArrayList<>();
+        for (String name : Parameters.getString("autotuner_parameters").split(",")){
+            name = name.trim();
+            if (name.isEmpty()){
+                continue;
+            }
+            if (!TunableParameters.isTunable(name)){
+                Log.warn("[Autotuner] Parameter '{}' is only read at startup and can't be tuned, ignoring it", name);
+                continue;
+            }
+            TunedParameter tunedParameter = new TunedParameter(name);
+            if (tunedParameter.initialValue <= 0){
+                Log.warn("[Autotuner] Parameter '{}' is disabled (0), ignoring it", name);
+                continue;
+            }
+            tunedParameters.add(tunedParameter);
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.info("[Autotuner] Tuning {} parameter(s)", tunedParameters.size());
+        if (tunedParameters.isEmpty()){
+            return;
+        }
+
+        // Experiments are only meaningful under load, so wait for the clients first
+        Measurement best = measure();
+        while (best != null && best.jobCount == 0){
+            best = measure();
+        }
+        if (best == null){
+            return;
+        }
+        Log.info("[Autotuner] Baseline: {}", best);
+
+        int experimentCount = 0;
+        int baselineExperimentCount = 0;
+        boolean improvedInPass = true;
+
+        tuning:
+        while (improvedInPass){
+            improvedInPass = false;
+            for (TunedParameter tunedParameter : tunedParameters){
+                long currentValue = tunedParameter.get();
+                long[] candidates = new long[]{
+                        Math.min(tunedParameter.maxValue, Math.max(currentValue + 1, (long) (currentValue * stepFactor))),
+                        Math.max(1, (long) (currentValue / stepFactor))
+                };
+
+                for (long candidate : candidates){
+                    if (candidate == currentValue){
+                        continue;
+                    }
+                    if (experimentCount >= maxExperiments){
+                        break tuning;
+                    }
+                    if (rebaselineExperiments > 0 && experimentCount - baselineExperimentCount >= rebaselineExperiments){
+                        // The previous best was measured under an older load, measure the current values again
+                        Measurement baseline = measure();
+                        if (baseline == null || baseline.jobCount == 0){
+                            break tuning;
+                        }
+                        best = baseline;
+                        baselineExperimentCount = experimentCount;
+                        Log.info("[Autotuner] Baseline: {}", best);
+                    }
+                    experimentCount++;
+
+                    tunedParameter.set(candidate);
+                    Measurement measurement = measure();
+                    if (measurement == null || measurement.jobCount == 0){
+                        // Shutting down or the clients are gone
+                        tunedParameter.set(currentValue);
+                        break tuning;
+                    }
+                    Log.info("[Autotuner] {}={}: {}", tunedParameter.name, candidate, measurement);
+
+                    if (measurement.isBetterThan(best)){
+                        best = measurement;
+                        improvedInPass = true;
+                        break;
+                    }
+                    tunedParameter.set(currentValue);
+                }
+            }
+        }
+
+        Log.info("[Autotuner] Tuning done after {} experiment(s), best: {}", experimentCount, best);
+        export(best);
+    }
+
+    // Waits until the chosen parameters have been written
+    public void shutdown(){
+        try {
+            join(Parameters.getLong("autotuner_join_timeout_ms"));
+        } catch (InterruptedException interruptedException){
+            Log.warn("[Autotuner] Autotuner could not be joined: {}", interruptedException.getMessage());
+        }
+    }
+
+    // Returns null if shutting down
+    private Measurement measure(){
+        if (!sleepUnlessShuttingDown(settleTime)){
+            return null;
+        }
+        LatencyHistogram responseTimeHistogram = Statistics.getResponseTimeHistogram();
+        long[] startBucketCounts = responseTimeHistogram.getBucketCounts();
+        long startTime = System.nanoTime();
+
+        if (!sleepUnlessShuttingDown(experimentTime)){
+            return null;
+        }
+        long[] bucketCounts = responseTimeHistogram.getBucketCounts();
+        long duration = System.nanoTime() - startTime;
+
+        long jobCount = 0;
+        for (int i = 0; i < bucketCounts.length; i++){
+            bucketCounts[i] -= startBucketCounts[i];
+            jobCount += bucketCounts[i];
+        }
+        return new Measurement(jobCount, jobCount * 1e9 / duration, LatencyHistogram.getPercentile(bucketCounts, 0.99));
+    }
+
+    private boolean sleepUnlessShuttingDown(long milliseconds){
+        try {
+            long end = System.currentTimeMillis() + milliseconds;
+            while (System.currentTimeMillis() < end){
+                if (Global.isShuttingDown){
+                    return false;
+                }
+                Thread.sleep(Math.min(100, Math.max(1, end - System.currentTimeMillis())));
+            }
+        } catch (InterruptedException interruptedException){
+            return false;
+        }
+        return !Global.isShuttingDown;
+    }
+
+    private void export(Measurement best){
+        String autotunedFileName = "./result/" + Global.launchTime + "_autotuned.xml";
+        try {
+            PrintWriter autotunedPrintWriter = new PrintWriter(autotunedFileName, "US-ASCII");
+            autotunedPrintWriter.println("<parameters>");
+            autotunedPrintWriter.println();
+            autotunedPrintWriter.println("\t<!-- Chosen by the Autotuner: " + best + " -->");
+            for (TunedParameter tunedParameter : tunedParameters){
+                String tag = tunedParameter.isLong ? "long" : "int";
+                autotunedPrintWriter.println("\t<" + tag + ">");
+                autotunedPrintWriter.println("\t\t<name>" + tunedParameter.name + "</name>");
+                autotunedPrintWriter.println("\t\t<value>" + tunedParameter.get() + "</value>");
+                autotunedPrintWriter.println("\t</" + tag + ">");
+            }
+            autotunedPrintWriter.println();
+            autotunedPrintWriter.println("</parameters>");
+            autotunedPrintWriter.flush();
+            autotunedPrintWriter.close();
+            Log.info("[Autotuner] Chosen parameters written to {}", autotunedFileName);
+        } catch (Exception exception){
+            Log.error("[Autotuner] Exception when writing chosen parameters: {}", exception.getMessage());
+        }
+    }
+
+    private static class TunedParameter {
+        private final String name;
+        private final boolean isLong;
+        private final long initialValue;
+        private final long maxValue;
+
+        TunedParameter(String name){
+            this.name = name;
+            this.isLong = Parameters.isLong(name);
+            this.initialValue = get();
+            this.maxValue = initialValue * Math.max(1, Parameters.getInteger("autotuner_max_factor"));
+        }
+
+        long get(){
+            return isLong ? Parameters.getLong(name) : Parameters.getInteger(name);
+        }
+
+        void set(long value){
+            if (isLong){
+                Parameters.setLong(name, value);
+            } else {
+                Parameters.setInteger(name, (int) Math.min(Integer.MAX_VALUE, value));
+            }
+        }
+    }
+
+    private class Measurement {
+        private final long jobCount;
+        private final double throughput;
+        private final long p99ResponseTime;
+
+        Measurement(long jobCount, double throughput, long p99ResponseTime){
+            this.jobCount = jobCount;
+            this.throughput = throughput;
+            this.p99ResponseTime = p99ResponseTime;
+        }
+
+        boolean meetsConstraint(){
+            return p99Limit <= 0 || p99ResponseTime <= p99Limit;
+        }
+
+        boolean isBetterThan(Measurement other){
+            if (meetsConstraint() != other.meetsConstraint()){
+                return meetsConstraint();
+            }
+            if (!meetsConstraint()){
+                // Both violate the constraint, get closer to it first
+                return p99ResponseTime < other.p99ResponseTime;
+            }
+            return throughput > other.throughput * (1 + minImprovement);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f ops/s, p99 %d us", throughput, p99ResponseTime / 1000);
+        }
+    }
+}
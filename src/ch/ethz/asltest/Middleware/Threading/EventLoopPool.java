@@ -0,0 +1,74 @@
+package ch.ethz.asltest.Middleware.Threading;
+
+import ch.ethz.asltest.Middleware.Environment.Client;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    The EventLoopPool holds all EventLoopThreads (only used if event_loop_mode is set). The NetThread hands newly
+    accepted clients to the pool, which assigns them to its loops in round robin order. On shutdown this class
+    orchestrates the shutdown of all its EventLoopThreads.
+ */
+
+public class EventLoopPool {
+
+    private static EventLoopPool ourInstance;
+    public static EventLoopPool getInstance() {
+        return ourInstance;
+    }
+
+    public static void initialize() {
+        int loopCount = Parameters.getInteger("event_loop_count");
+        if (loopCount <= 0){
+            loopCount = Runtime.getRuntime().availableProcessors();
+        }
+        ourInstance = new EventLoopPool(loopCount);
+    }
+
+    List<EventLoopThread> eventLoopThreadList;
+
+    private int currentAssignmentIndex = 0;
+
+    private EventLoopPool(int loopCount){
+        Log.info("[EventLoopPool] Instantiating EventLoopPool with {} loop(s)", loopCount);
+        eventLoopThreadList = new ArrayList<>();
+        EventLoopThread currentEventLoopThread;
+        for (int i = 0; i < loopCount; i++){
+            currentEventLoopThread = new EventLoopThread();
+            eventLoopThreadList.add(currentEventLoopThread);
+            currentEventLoopThread.start();
+        }
+        Log.info("[EventLoopPool] EventLoopThreads created successfully");
+    }
+
+    public int getLoopCount(){
+        return eventLoopThreadList.size();
+    }
+
+    // Only called by the NetThread
+    public void assign(Client client){
+        eventLoopThreadList.get(currentAssignmentIndex).assign(client);
+        currentAssignmentIndex = (currentAssignmentIndex + 1) % eventLoopThreadList.size();
+    }
+
+    public void shutdown(){
+        Log.info("[EventLoopPool] Shutting down EventLoopPool");
+        for (EventLoopThread eventLoopThread : eventLoopThreadList){
+            try {
+                eventLoopThread.join(Parameters.getLong("worker_pool_join_timeout_ms"));
+                if (eventLoopThread.isAlive()) {
+                    eventLoopThread.interrupt();
+                    Log.info("[EventLoopPool] EventLoopThread \"{}\" has been interrupted.", eventLoopThread.getName());
+                    eventLoopThread.join();
+                }
+            } catch (InterruptedException interruptedException){
+                Log.warn("[EventLoopPool] EventLoopThread \"{}\" could not be joined: {}", eventLoopThread.getName(), interruptedException.getMessage());
+            }
+        }
+        Log.info("[EventLoopPool] All EventLoopThreads joined, EventLoopPool shutdown done");
+    }
+
+}
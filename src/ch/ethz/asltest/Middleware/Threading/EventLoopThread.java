@@ -0,0 +1,763 @@
+package ch.ethz.asltest.Middleware.Threading;
+
+import ch.ethz.asltest.Middleware.Assembler.Assembler;
+import ch.ethz.asltest.Middleware.Assembler.QueryAssembler;
+import ch.ethz.asltest.Middleware.Assembler.ResponseAssembler;
+import ch.ethz.asltest.Middleware.Environment.Client;
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Environment.Server;
+import ch.ethz.asltest.Middleware.Global.Configuration;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Log.CpuTimeAccounting;
+import ch.ethz.asltest.Middleware.Log.HotKeySketch;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
+import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.SlowRequestRecorder;
+import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Log.TraceRecorder;
+import ch.ethz.asltest.Middleware.Result.Result;
+import ch.ethz.asltest.Middleware.Result.ResultMerger;
+import ch.ethz.asltest.Middleware.Util.Allocation;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
+import ch.ethz.asltest.Middleware.Util.OffsetList;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    EventLoopThreads are used instead of the JobQueue and WorkerThreads if event_loop_mode is set (one loop per core).
+    The NetThread only accepts new clients and hands each of them over to one EventLoopThread, which owns the client
+    from then on. The loop parses the client's queries, writes them to its own non-blocking server connections,
+    merges the responses and writes them back to the client, all on the same thread and without any queue handoff.
+    A loop holds up to event_loop_max_connection_sets ConnectionSets (one connection to every server each). A
+    ConnectionSet carries one Job at a time, such that responses never have to be demultiplexed. Jobs for which
+    no ConnectionSet is available wait in a loop-local queue.
+    Clients whose QueryAssembler can't get a buffer (see BufferPool) are not selected for reading until a buffer is
+    returned, since their channel would be selected again right away.
+ */
+
+public class EventLoopThread extends Thread {
+
+    private static int eventLoopThreadCount = 0;
+    private volatile int eventLoopThreadID = -1;
+
+    private static final Object lock = new Object();
+
+    private Selector selector;
+    private long selectorTimeout;
+
+    // Clients handed over by the NetThread that are not yet registered with the selector
+    private ConcurrentLinkedQueue<Client> newClients;
+
+    private List<ClientContext> clientContexts;
+
+    // Keys of clients not selected for reading while their QueryAssembler waits for a buffer
+    private final ArrayList<SelectionKey> bufferWaitingKeys = new ArrayList<>();
+    // Set by the BufferPool once a buffer has been returned
+    private final AtomicBoolean buffersReturned = new AtomicBoolean();
+
+    private ArrayDeque<ConnectionSet> idleConnectionSets;
+    private List<ConnectionSet> connectionSets;
+    private int maxConnectionSetCount;
+
+    // Clients whose Job waits for a ConnectionSet to become available
+    private ArrayDeque<ClientContext> pendingClientContexts;
+
+    private int currentRoundRobinIndex = 0;
+
+    private Statistics getStatistics;
+    private Statistics setStatistics;
+
+    // Records every completed Job to a memory-mapped trace (null if disabled)
+    private TraceRecorder traceRecorder;
+    // Keeps the slowest Jobs per window (null if disabled)
+    private SlowRequestRecorder slowRequestRecorder;
+    // Shared by the QueryAssemblers of all clients of this loop (null if disabled)
+    private HotKeySketch hotKeySketch;
+    // Sums up the CPU time per phase (does nothing if disabled)
+    private CpuTimeAccounting cpuTimeAccounting;
+
+    // The bytes allocated by this thread before processing the first Job (-1 if not measurable)
+    private long allocatedBytesAtStart = -1;
+
+    public EventLoopThread(){
+        super();
+        synchronized(lock){
+            eventLoopThreadID = eventLoopThreadCount;
+            eventLoopThreadCount++;
+        }
+        setName("eventloop" + eventLoopThreadID);
+
+        newClients = new ConcurrentLinkedQueue<>();
+        clientContexts = new ArrayList<>();
+        idleConnectionSets = new ArrayDeque<>();
+        connectionSets = new ArrayList<>();
+        pendingClientContexts = new ArrayDeque<>();
+        maxConnectionSetCount = Math.max(1, Parameters.getInteger("event_loop_max_connection_sets"));
+
+        try{
+            selector = Selector.open();
+            selectorTimeout = Parameters.getLong("event_loop_selector_timeout_ms");
+            BufferPool.getInstance().addReleaseListener(() -> {
+                buffersReturned.set(true);
+                selector.wakeup();
+            });
+        } catch (IOException iOException){
+            Log.error("[EventLoopThread] Selector could not be opened: {}", iOException.getMessage());
+        }
+
+        setStatistics = new Statistics(Statistics.StatisticsType.SET);
+        getStatistics = new Statistics(Statistics.StatisticsType.GET);
+        if (Parameters.getBoolean("trace_recorder_enabled")){
+            traceRecorder = new TraceRecorder(getName());
+        }
+        if (SlowRequestRecorder.isEnabled()){
+            slowRequestRecorder = new SlowRequestRecorder(getName());
+        }
+        hotKeySketch = HotKeySketch.create();
+        cpuTimeAccounting = CpuTimeAccounting.create(getName());
+
+        // Connect one set right away to fail early if a server is not reachable
+        ConnectionSet connectionSet = createConnectionSet();
+        if (connectionSet == null){
+            Log.fatal("[EventLoopThread] At least one server connection could not be established");
+            ShutdownThread.panic(-1);
+        }
+        idleConnectionSets.add(connectionSet);
+    }
+
+    // Called by the NetThread to hand over a newly accepted client
+    public void assign(Client client){
+        newClients.add(client);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        allocatedBytesAtStart = Allocation.getAllocatedBytes();
+
+        while (true){
+            registerNewClients();
+
+            try{
+
+                int selectedCount = selector.select(selectorTimeout);
+                rearmBufferWaitingKeys(selectedCount < 1);
+                if (selectedCount < 1) {
+                    if (Global.isShuttingDown){
+                        break;
+                    }
+                    long timestamp = System.nanoTime();
+                    setStatistics.roll(timestamp);
+                    getStatistics.roll(timestamp);
+                    continue;
+                }
+
+                Set<SelectionKey> selectionKeySet = selector.selectedKeys();
+                Iterator<SelectionKey> selectionKeyIterator = selectionKeySet.iterator();
+
+                while (selectionKeyIterator.hasNext()){
+                    SelectionKey selectionKey = selectionKeyIterator.next();
+                    selectionKeyIterator.remove();
+
+                    if (!selectionKey.isValid()){
+                        continue;
+                    }
+
+                    Object attachment = selectionKey.attachment();
+                    if (attachment instanceof ClientContext){
+                        ClientContext clientContext = (ClientContext) attachment;
+                        if (selectionKey.isReadable()){
+                            readClient(clientContext, Instrumentation.timestamp());
+                        }
+                        if (selectionKey.isValid() && selectionKey.isWritable()){
+                            writeToClient(clientContext);
+                        }
+                    } else if (attachment instanceof Backend){
+                        Backend backend = (Backend) attachment;
+                        if (selectionKey.isWritable()){
+                            cpuTimeAccounting.start(CpuTimeAccounting.Phase.BACKEND_WRITE);
+                            Job job = getJob(backend.connectionSet);
+                            flushBackend(backend);
+                            cpuTimeAccounting.stop(job);
+                        }
+                        if (selectionKey.isValid() && selectionKey.isReadable()){
+                            // Stopped by complete() once all responses have been parsed
+                            cpuTimeAccounting.start(CpuTimeAccounting.Phase.RESPONSE_PARSE);
+                            Job job = getJob(backend.connectionSet);
+                            readBackend(backend);
+                            cpuTimeAccounting.stop(job);
+                        }
+                    }
+                }
+
+                if (Global.isShuttingDown)
+                    break;
+
+            } catch (IOException iOException){
+                Log.error("[EventLoopThread] I/O exception encountered when selecting channel: {}", iOException.getMessage());
+            }
+        }
+
+        cleanup();
+        export();
+    }
+
+    private void registerNewClients(){
+        Client client;
+        while ((client = newClients.poll()) != null){
+            ClientContext clientContext = new ClientContext(client);
+            try {
+                clientContext.selectionKey = client.getSocketChannel().register(selector, SelectionKey.OP_READ, clientContext);
+                clientContexts.add(clientContext);
+            } catch (ClosedChannelException closedChannelException){
+                Log.error("[EventLoopThread] Channel closed before the client could be registered: {}", closedChannelException.getMessage());
+                removeClient(clientContext);
+            }
+        }
+    }
+
+    private void readClient(ClientContext clientContext, long arrivalTime){
+        SocketChannel socketChannel = clientContext.client.getSocketChannel();
+        try {
+            // Parsing is charged to the completed Job in dispatch(), the rest (partial queries) to none
+            cpuTimeAccounting.start(CpuTimeAccounting.Phase.PARSE);
+            int readCount = clientContext.queryAssembler.readBytes(socketChannel, arrivalTime);
+            cpuTimeAccounting.stop();
+            if (readCount < 0){
+                // The channel has been closed by the remote host
+                removeClient(clientContext);
+                Log.info("[EventLoopThread] The connection to a client has been invalidated and removed.");
+            } else if (clientContext.queryAssembler.isWaitingForBuffer()){
+                // The client waits for a query to be read, there is no answer to be written in the meantime
+                setInterest(clientContext.selectionKey, 0);
+                bufferWaitingKeys.add(clientContext.selectionKey);
+            } else if (clientContext.queryAssembler.hasPendingAnswer()){
+                // The rest of a "stats" answer is written by writeToClient()
+                setInterest(clientContext.selectionKey, SelectionKey.OP_WRITE);
+            }
+        } catch (IOException iOException){
+            Log.error("[EventLoopThread] I/O exception encountered when reading from client socket channel: {}", iOException.getMessage());
+            removeClient(clientContext);
+            Log.info("[EventLoopThread] The connection to a client has been invalidated and removed.");
+        } catch (Assembler.AssemblerBlockedException assemblerBlockedException){
+            Log.error("[EventLoopThread] AssemblerBlockedException exception encountered when reading from client socket channel: {}", assemblerBlockedException.getMessage());
+        }
+    }
+
+    private void removeClient(ClientContext clientContext){
+        if (clientContext.selectionKey != null){
+            clientContext.selectionKey.cancel();
+        }
+        pendingClientContexts.remove(clientContext);
+        clientContexts.remove(clientContext);
+        clientContext.client.closeConnection();
+        synchronized (Environment.getClientList()){
+            Environment.getClientList().remove(clientContext.client);
+        }
+        Statistics.unregisterClient(clientContext.client);
+    }
+
+    /*
+     Called once a client's query has been parsed. The client is not read from until the response
+     has been written back, since its QueryAssembler is blocked until then anyway.
+      */
+    private void dispatch(ClientContext clientContext, Job job){
+        cpuTimeAccounting.stop(job);
+        if (job.isInstrumented()){
+            job.setEnqueueSize(pendingClientContexts.size());
+            job.setEnqueueTime(System.nanoTime());
+        }
+
+        clientContext.job = job;
+        setInterest(clientContext.selectionKey, 0);
+
+        ConnectionSet connectionSet = acquireConnectionSet();
+        if (connectionSet == null){
+            pendingClientContexts.add(clientContext);
+            return;
+        }
+        start(connectionSet, clientContext);
+    }
+
+    private void start(ConnectionSet connectionSet, ClientContext clientContext){
+        Job job = clientContext.job;
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.BACKEND_WRITE);
+        if (job.isInstrumented()){
+            job.setDequeueTime(System.nanoTime());
+            job.setDequeueSize(pendingClientContexts.size());
+        }
+
+        incrementRoundRobinIndex();
+        job.setRoundRobinIndex(currentRoundRobinIndex);
+
+        connectionSet.clientContext = clientContext;
+        clientContext.connectionSet = connectionSet;
+
+        if (job instanceof Job.SetJob){
+            ((Job.SetJob) job).stageForServers(connectionSet.serverConnections);
+        } else if (job instanceof Job.GetJob){
+            ((Job.GetJob) job).stageForServers(connectionSet.serverConnections, Configuration.getReadSharded());
+        } else {
+            Log.error("[EventLoopThread] Invalid job dispatched");
+            return;
+        }
+        job.captureKey();
+
+        connectionSet.outstandingWrites = 0;
+        connectionSet.outstandingResponses = 0;
+        for (Backend backend : connectionSet.backends){
+            if (!backend.serverConnection.getAnswerExpected()){
+                continue;
+            }
+            connectionSet.outstandingWrites++;
+            connectionSet.outstandingResponses++;
+        }
+
+        for (Backend backend : connectionSet.backends){
+            if (connectionSet.closed){
+                break;
+            }
+            if (backend.serverConnection.getAnswerExpected()){
+                flushBackend(backend);
+            }
+        }
+        cpuTimeAccounting.stop(job);
+    }
+
+    private void flushBackend(Backend backend){
+        ConnectionSet connectionSet = backend.connectionSet;
+        if (connectionSet.closed){
+            return;
+        }
+        try {
+            if (!backend.serverConnection.flush()){
+                setInterest(backend.selectionKey, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        } catch (IOException iOException){
+            Log.error("[EventLoopThread] I/O exception encountered when writing to {}: {}", backend.serverConnection.getServer().getName(), iOException.getMessage());
+            abandon(connectionSet);
+            return;
+        }
+
+        setInterest(backend.selectionKey, SelectionKey.OP_READ);
+
+        if (connectionSet.clientContext == null){
+            return;
+        }
+
+        if (connectionSet.clientContext.job.isInstrumented()){
+            connectionSet.clientContext.job.setServerSendTime(System.nanoTime(), backend.serverIndex);
+        }
+        connectionSet.outstandingWrites--;
+        if (connectionSet.outstandingWrites == 0){
+            // The query has been written to all servers, its data is not needed anymore
+            connectionSet.clientContext.queryAssembler.release();
+        }
+    }
+
+    private void readBackend(Backend backend){
+        ConnectionSet connectionSet = backend.connectionSet;
+        if (connectionSet.closed){
+            return;
+        }
+        try {
+            if (backend.responseAssembler.readBytes(backend.serverConnection.getSocketChannel()) < 0){
+                // The socket has been closed by the remote host
+                Log.error("[EventLoopThread] The connection to {} has been closed by the remote host", backend.serverConnection.getServer().getName());
+                abandon(connectionSet);
+                return;
+            }
+        } catch (IOException iOException){
+            Log.error("[EventLoopThread] IOException on readBytes for responseAssembler: {}", iOException.getMessage());
+            abandon(connectionSet);
+            return;
+        } catch (Assembler.AssemblerBlockedException assemblerBlockedException){
+            Log.error("[EventLoopThread] AssemblerBlockedException on readBytes for responseAssembler: {}", assemblerBlockedException.getMessage());
+            return;
+        }
+
+        // A backend counts once per Job, even if it is read again while others are still outstanding
+        if (backend.result == null || backend.completed){
+            return;
+        }
+
+        if (connectionSet.clientContext == null){
+            Log.error("[EventLoopThread] Received a response from {} without a pending job", backend.serverConnection.getServer().getName());
+            backend.result = null;
+            backend.responseAssembler.release();
+            return;
+        }
+
+        backend.completed = true;
+        connectionSet.outstandingResponses--;
+        if (connectionSet.outstandingResponses == 0){
+            complete(connectionSet);
+        }
+    }
+
+    private void complete(ConnectionSet connectionSet){
+        Job job = connectionSet.clientContext.job;
+        ResultMerger resultMerger = connectionSet.resultMerger;
+        // All responses have been parsed
+        cpuTimeAccounting.stop(job);
+
+        resultMerger.clear();
+
+        // Don't set the offset (has been set when staging)
+        for (Server.ServerConnection serverConnection : connectionSet.serverConnections){
+            if (!serverConnection.getAnswerExpected()){
+                continue;
+            }
+
+            int serverIndex = connectionSet.serverConnections.indexOf(serverConnection);
+            Backend backend = connectionSet.backends[serverIndex];
+            Result result = backend.result;
+            backend.result = null;
+            backend.completed = false;
+
+            try {
+                resultMerger.addResult(result);
+            } catch (ResultMerger.AlreadyMergedException alreadyMergedException){
+                Log.error("[EventLoopThread] AlreadyMergedException when adding result to ResultMerger: {}", alreadyMergedException.getMessage());
+            }
+
+            if (job.isInstrumented()){
+                job.setServerArrivalTime(result.getServerArrivalTime(), serverIndex);
+            }
+            if (result instanceof Result.ValueResult && job instanceof Job.GetJob){
+                job.reduceMissCount(((Result.ValueResult) result).valueCount);
+            }
+            if (result instanceof Result.ErrorResult || result instanceof Result.ServerErrorResult || result instanceof Result.ClientErrorResult) {
+                serverConnection.getServer().recordError();
+                if (job instanceof Job.SetJob){
+                    setStatistics.submitError(result);
+                } else if (job instanceof Job.GetJob){
+                    getStatistics.submitError(result);
+                }
+            }
+        }
+
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.MERGE);
+        resultMerger.merge();
+        cpuTimeAccounting.stop(job);
+        writeToClient(connectionSet.clientContext);
+    }
+
+    private void writeToClient(ClientContext clientContext){
+        if (clientContext.queryAssembler.hasPendingAnswer()){
+            writePendingAnswer(clientContext);
+            return;
+        }
+        ConnectionSet connectionSet = clientContext.connectionSet;
+        if (connectionSet == null){
+            setInterest(clientContext.selectionKey, SelectionKey.OP_READ);
+            return;
+        }
+
+        Job job = clientContext.job;
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.WRITE_BACK);
+        ResultMerger resultMerger = connectionSet.resultMerger;
+        boolean clientRemoved = clientContext.selectionKey == null || !clientContext.selectionKey.isValid();
+        try {
+            if (!clientRemoved){
+                resultMerger.writeToClient(clientContext.client.getSocketChannel());
+                if (resultMerger.hasRemaining()){
+                    setInterest(clientContext.selectionKey, SelectionKey.OP_WRITE);
+                    cpuTimeAccounting.stop(job);
+                    return;
+                }
+            }
+        } catch (ResultMerger.NotMergedException notMergedException){
+            Log.error("[EventLoopThread] Not merged exception: {}", notMergedException.getMessage());
+        }
+
+        // Jobs of clients that have been removed in the meantime are dropped
+        if (!clientRemoved && Instrumentation.isCounting()){
+            long timestamp = System.nanoTime();
+            job.setClientSendTime(timestamp);
+            Statistics.setClientSendTime(clientContext.client, timestamp);
+            Statistics.submitClientResponseTime(clientContext.client, timestamp - job.getClientArrivalTime());
+
+            if (job instanceof Job.SetJob){
+                setStatistics.submit((Job.SetJob) job);
+                getStatistics.roll(timestamp);
+            } else if (job instanceof Job.GetJob){
+                getStatistics.submit((Job.GetJob) job);
+                setStatistics.roll(timestamp);
+            }
+            if (traceRecorder != null && job.isInstrumented()){
+                traceRecorder.record(job);
+            }
+            if (slowRequestRecorder != null){
+                slowRequestRecorder.record(job);
+            }
+        }
+
+        try{
+            resultMerger.release();
+        } catch (ResultMerger.NotMergedException notMergedException){
+            Log.error("[EventLoopThread] Attempted release on ResultMerger threw NotMergedException: {}", notMergedException.getMessage());
+        }
+
+        cpuTimeAccounting.stop(job);
+        job.release();
+        clientContext.job = null;
+        clientContext.connectionSet = null;
+        setInterest(clientContext.selectionKey, SelectionKey.OP_READ);
+
+        releaseConnectionSet(connectionSet);
+    }
+
+    /*
+     Purges the state of a ConnectionSet whose connection failed. The set is closed and
+     the client of its current Job (if any) will be read from again.
+      */
+    private void abandon(ConnectionSet connectionSet){
+        connectionSet.closed = true;
+        // Hands back the Results whether merged or not (release() would throw if the Job was not merged yet)
+        connectionSet.resultMerger.discard();
+        for (Backend backend : connectionSet.backends){
+            backend.result = null;
+            backend.completed = false;
+            backend.responseAssembler.release();
+            if (backend.selectionKey != null){
+                backend.selectionKey.cancel();
+            }
+            backend.serverConnection.closeConnection();
+        }
+        connectionSets.remove(connectionSet);
+        idleConnectionSets.remove(connectionSet);
+
+        ClientContext clientContext = connectionSet.clientContext;
+        if (clientContext != null){
+            clientContext.queryAssembler.release();
+            if (clientContext.job != null){
+                cpuTimeAccounting.stop(clientContext.job);
+                clientContext.job.release();
+            }
+            clientContext.job = null;
+            clientContext.connectionSet = null;
+            setInterest(clientContext.selectionKey, SelectionKey.OP_READ);
+        }
+        connectionSet.clientContext = null;
+        Log.info("[EventLoopThread] Purged all state data with current Job");
+
+        // Waiting jobs may need a new set
+        ConnectionSet replacement = acquireConnectionSet();
+        if (replacement != null){
+            releaseConnectionSet(replacement);
+        }
+    }
+
+    private ConnectionSet acquireConnectionSet(){
+        ConnectionSet connectionSet = idleConnectionSets.poll();
+        if (connectionSet != null){
+            return connectionSet;
+        }
+        if (connectionSets.size() < maxConnectionSetCount){
+            return createConnectionSet();
+        }
+        return null;
+    }
+
+    private void releaseConnectionSet(ConnectionSet connectionSet){
+        connectionSet.clientContext = null;
+        ClientContext clientContext = pendingClientContexts.poll();
+        if (clientContext != null){
+            start(connectionSet, clientContext);
+        } else {
+            idleConnectionSets.push(connectionSet);
+        }
+    }
+
+    private ConnectionSet createConnectionSet(){
+        ConnectionSet connectionSet = new ConnectionSet();
+        List<Server> serverList = Environment.getServerList();
+        for (int i = 0; i < serverList.size(); i++){
+            Server.ServerConnection serverConnection = serverList.get(i).getNewChannelConnection();
+            if (serverConnection == null){
+                for (Backend backend : connectionSet.backends){
+                    if (backend != null){
+                        backend.serverConnection.closeConnection();
+                    }
+                }
+                Log.error("[EventLoopThread] Could not open a new set of server connections");
+                return null;
+            }
+            Backend backend = new Backend(connectionSet, serverConnection, i);
+            try {
+                backend.selectionKey = serverConnection.getSocketChannel().register(selector, SelectionKey.OP_READ, backend);
+            } catch (ClosedChannelException closedChannelException){
+                Log.error("[EventLoopThread] Channel to {} closed before it could be registered: {}", serverConnection.getServer().getName(), closedChannelException.getMessage());
+            }
+            connectionSet.serverConnections.add(serverConnection);
+            connectionSet.backends[i] = backend;
+        }
+        connectionSets.add(connectionSet);
+        return connectionSet;
+    }
+
+    // Writes the rest of a "stats" answer, which is not a Job and thus has no ConnectionSet
+    private void writePendingAnswer(ClientContext clientContext){
+        try {
+            if (clientContext.queryAssembler.writePendingAnswer()){
+                setInterest(clientContext.selectionKey, SelectionKey.OP_READ);
+            }
+        } catch (IOException iOException){
+            Log.error("[EventLoopThread] I/O exception encountered when writing to client socket channel: {}", iOException.getMessage());
+            removeClient(clientContext);
+            Log.info("[EventLoopThread] The connection to a client has been invalidated and removed.");
+        }
+    }
+
+    // Selects the clients waiting for a buffer again once one has been returned (or on a timeout, in case it was missed)
+    private void rearmBufferWaitingKeys(boolean timedOut){
+        if (bufferWaitingKeys.isEmpty() || !(buffersReturned.getAndSet(false) || timedOut)){
+            return;
+        }
+        for (SelectionKey selectionKey : bufferWaitingKeys){
+            setInterest(selectionKey, SelectionKey.OP_READ);
+        }
+        bufferWaitingKeys.clear();
+    }
+
+    private void setInterest(SelectionKey selectionKey, int interestOps){
+        if (selectionKey != null && selectionKey.isValid()){
+            selectionKey.interestOps(interestOps);
+        }
+    }
+
+    private void incrementRoundRobinIndex(){
+        currentRoundRobinIndex = (currentRoundRobinIndex + 1) % Environment.getServerList().size();
+    }
+
+    private void cleanup(){
+        Log.info("[EventLoopThread] Disconnecting");
+        try{
+            selector.close();
+        } catch (IOException iOException){
+            Log.warn("[EventLoopThread] Closing the selector has thrown an exception: {}", iOException.getMessage());
+        }
+
+        for (ClientContext clientContext : clientContexts){
+            clientContext.client.closeConnection();
+        }
+
+        for (ConnectionSet connectionSet : connectionSets){
+            for (Backend backend : connectionSet.backends){
+                backend.serverConnection.closeConnection();
+            }
+        }
+    }
+
+    private void export(){
+        Log.info("[EventLoopThread] Exporting statistics");
+        // Measured before exporting, which allocates itself
+        long allocatedBytes = Allocation.getAllocatedBytes() - allocatedBytesAtStart;
+        long jobCount = setStatistics.getJobCount() + getStatistics.getJobCount();
+        if (allocatedBytesAtStart >= 0 && jobCount > 0){
+            Log.info("[EventLoopThread] Allocated {} bytes per job on average", allocatedBytes / jobCount);
+        }
+
+        setStatistics.export();
+        getStatistics.export();
+        if (traceRecorder != null){
+            traceRecorder.close();
+        }
+        if (slowRequestRecorder != null){
+            slowRequestRecorder.export();
+        }
+        cpuTimeAccounting.export();
+    }
+
+    private Job getJob(ConnectionSet connectionSet){
+        return connectionSet.clientContext == null ? null : connectionSet.clientContext.job;
+    }
+
+    // The state the loop holds for each of its clients
+    private class ClientContext{
+
+        final Client client;
+        final QueryAssembler queryAssembler;
+        SelectionKey selectionKey;
+
+        Job job;
+        ConnectionSet connectionSet;
+
+        ClientContext(Client client){
+            this.client = client;
+            this.queryAssembler = new QueryAssembler(client, new QueryProcessor(this), hotKeySketch);
+        }
+    }
+
+    // One connection to every server, carrying one Job at a time
+    private class ConnectionSet{
+
+        final OffsetList<Server.ServerConnection> serverConnections;
+        final Backend[] backends;
+        final ResultMerger resultMerger;
+
+        ClientContext clientContext;
+        int outstandingWrites;
+        int outstandingResponses;
+        boolean closed;
+
+        ConnectionSet(){
+            serverConnections = new OffsetList<>();
+            backends = new Backend[Environment.getServerList().size()];
+            resultMerger = new ResultMerger();
+        }
+    }
+
+    // A single non-blocking server connection of a ConnectionSet with its ResponseAssembler
+    private class Backend implements ResponseAssembler.ResponseAssemblerCompletedCallback{
+
+        final ConnectionSet connectionSet;
+        final Server.ServerConnection serverConnection;
+        final ResponseAssembler responseAssembler;
+        final int serverIndex;
+        SelectionKey selectionKey;
+
+        Result result;
+        // Whether result has been counted against outstandingResponses (cleared once the Job is completed)
+        boolean completed;
+
+        Backend(ConnectionSet connectionSet, Server.ServerConnection serverConnection, int serverIndex){
+            this.connectionSet = connectionSet;
+            this.serverConnection = serverConnection;
+            this.serverIndex = serverIndex;
+            this.responseAssembler = new ResponseAssembler(this);
+        }
+
+        @Override
+        public void callback(Result result) {
+            this.result = result;
+        }
+    }
+
+    private class QueryProcessor implements QueryAssembler.QueryAssemblerCompletedCallback {
+
+        private final ClientContext clientContext;
+
+        QueryProcessor(ClientContext clientContext){
+            this.clientContext = clientContext;
+        }
+
+        @Override
+        public void callback(Job job) {
+            dispatch(clientContext, job);
+            cpuTimeAccounting.start(CpuTimeAccounting.Phase.PARSE);
+        }
+    }
+
+}
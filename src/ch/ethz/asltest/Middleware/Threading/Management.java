@@ -0,0 +1,537 @@
+package ch.ethz.asltest.Middleware.Threading;
+
+import ch.ethz.asltest.Middleware.Environment.Environment;
+import ch.ethz.asltest.Middleware.Environment.Server;
+import ch.ethz.asltest.Middleware.Global.Configuration;
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
+import ch.ethz.asltest.Middleware.Job.Job;
+import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
+import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Metrics;
+import ch.ethz.asltest.Middleware.Log.UtilizationAccounting;
+import ch.ethz.asltest.Middleware.Util.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+    Management registers MBeans with the platform MBeanServer (if jmx_enabled is set), such that standard JVM
+    tooling (jconsole, VisualVM, jmxterm) can monitor and tune a running middleware, in the domain
+    ch.ethz.asltest.Middleware:
+    type=Middleware:            uptime, sharding of gets, instrumentation level (read-only) and sample rate, any
+                                integer or long parameter (getParameter), those read on every use (setParameter)
+    type=JobQueue,lane=<lane>:  depth, capacity and the byte bound of each lane's JobQueue (worker mode)
+    type=WorkerPool:            the WorkerThreads with their lane and state, jobs in flight, poll and selector timeouts
+    type=NetThread:             connections and loop counters, selector timeout
+    type=Server,name=<server>:  connections, errors and response time percentiles of each server
+    type=Statistics:            job counters and live response time percentiles (requires metrics_enabled)
+    Setting an attribute changes the parameter or setting it is read from, it takes effect where that is read on
+    every use (e.g. the selector timeouts, the byte bound of the JobQueue, worker_thread_max_jobs_in_flight).
+    Latencies are in us, percentiles are taken from the live Metrics (0 if metrics_enabled is not set).
+    Remote access is configured with the usual com.sun.management.jmxremote system properties.
+ */
+
+public class Management {
+
+    private static final String DOMAIN = "ch.ethz.asltest.Middleware";
+
+    /*
+     The parameters setParameter() may change: the TunableParameters and the others that are read on every use.
+     All other ones are only read at startup (or sized something on startup), changing them would have no effect
+     or leave the middleware inconsistent.
+      */
+    private static final Set<String> SETTABLE_PARAMETERS;
+    static {
+        Set<String> names = new HashSet<>(TunableParameters.NAMES);
+        names.addAll(Arrays.asList(
+                "netthread_selector_timeout_ms",
+                "worker_thread_selector_timeout_ms",
+                "worker_thread_poll_timeout_ms",
+                "capacity_estimator_max_workers",
+                "capacity_estimator_knee_percent"
+        ));
+        SETTABLE_PARAMETERS = Collections.unmodifiableSet(names);
+    }
+
+    // To be called once all other components have been initialized
+    public static void initialize(){
+        if (!Parameters.getBoolean("jmx_enabled")){
+            return;
+        }
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        int registeredCount = 0;
+
+        registeredCount += register(mBeanServer, "type=Middleware", new MiddlewareView(), MiddlewareMBean.class);
+        if (JobQueue.getInstance() != null){
+            List<JobQueue> jobQueueList = new ArrayList<>();
+            for (Job.Lane lane : Job.Lane.values()){
+                JobQueue jobQueue = JobQueue.getInstance(lane);
+                if (jobQueueList.contains(jobQueue)){
+                    // Lanes are disabled, all share one queue
+                    continue;
+                }
+                jobQueueList.add(jobQueue);
+                registeredCount += register(mBeanServer, "type=JobQueue,lane=" + lane.name().toLowerCase(Locale.US), new JobQueueView(jobQueue), JobQueueMBean.class);
+            }
+        }
+        if (WorkerPool.getInstance() != null){
+            registeredCount += register(mBeanServer, "type=WorkerPool", new WorkerPoolView(), WorkerPoolMBean.class);
+        }
+        if (NetThread.getInstance() != null){
+            registeredCount += register(mBeanServer, "type=NetThread", new NetThreadView(), NetThreadMBean.class);
+        }
+        for (int i = 0; i < Environment.getServerList().size(); i++){
+            Server server = Environment.getServerList().get(i);
+            registeredCount += register(mBeanServer, "type=Server,name=" + server.getName(), new ServerView(server, i), ServerMBean.class);
+        }
+        if (Metrics.getInstance() != null){
+            registeredCount += register(mBeanServer, "type=Statistics", new StatisticsView(), StatisticsMBean.class);
+        }
+        Log.info("[Management] Registered {} MBeans in {}", registeredCount, DOMAIN);
+    }
+
+    // Returns 1 if registered
+    private static <T> int register(MBeanServer mBeanServer, String properties, T implementation, Class<T> mBeanInterface){
+        try {
+            mBeanServer.registerMBean(new StandardMBean(implementation, mBeanInterface), new ObjectName(DOMAIN + ":" + properties));
+            return 1;
+        } catch (JMException jMException){
+            Log.error("[Management] Could not register MBean {}: {}", properties, jMException.getMessage());
+            return 0;
+        }
+    }
+
+    private static void setLong(String name, long value){
+        Parameters.setLong(name, value);
+        Log.info("[Management] Set {} to {}", name, value);
+    }
+
+    private static void setInteger(String name, int value){
+        Parameters.setInteger(name, value);
+        Log.info("[Management] Set {} to {}", name, value);
+    }
+
+    private static double toMicroseconds(LatencyHistogram latencyHistogram, double percentile){
+        return latencyHistogram == null ? 0 : latencyHistogram.getPercentile(percentile) / 1e3;
+    }
+
+    public interface MiddlewareMBean {
+        long getUptimeSeconds();
+        boolean isReadSharded();
+        void setReadSharded(boolean readSharded);
+        // OFF, COUNTERS, SAMPLED or FULL, fixed while running (see Instrumentation)
+        String getInstrumentationLevel();
+        int getInstrumentationSampleRate();
+        void setInstrumentationSampleRate(int instrumentationSampleRate);
+        String getParameter(String name);
+        // Only the parameters read on every use (see SETTABLE_PARAMETERS)
+        void setParameter(String name, String value);
+    }
+
+    private static class MiddlewareView implements MiddlewareMBean {
+
+        @Override
+        public long getUptimeSeconds(){
+            return System.currentTimeMillis() / 1000L - Global.launchTime;
+        }
+
+        @Override
+        public boolean isReadSharded(){
+            return Configuration.getReadSharded();
+        }
+
+        @Override
+        public void setReadSharded(boolean readSharded){
+            Configuration.setReadSharded(readSharded);
+            Log.info("[Management] Set sharded reads to {}", readSharded);
+        }
+
+        @Override
+        public String getInstrumentationLevel(){
+            return Instrumentation.getLevel().name();
+        }
+
+        @Override
+        public int getInstrumentationSampleRate(){
+            return Instrumentation.getSampleRate();
+        }
+
+        @Override
+        public void setInstrumentationSampleRate(int instrumentationSampleRate){
+            Instrumentation.setSampleRate(instrumentationSampleRate);
+            Log.info("[Management] Set the instrumentation sample rate to {}", Instrumentation.getSampleRate());
+        }
+
+        @Override
+        public String getParameter(String name){
+            if (Parameters.isInteger(name)){
+                return String.valueOf(Parameters.getInteger(name));
+            }
+            if (Parameters.isLong(name)){
+                return String.valueOf(Parameters.getLong(name));
+            }
+            throw new IllegalArgumentException("No integer or long parameter " + name);
+        }
+
+        @Override
+        public void setParameter(String name, String value){
+            if (!SETTABLE_PARAMETERS.contains(name)){
+                throw new IllegalArgumentException("The parameter " + name + " can't be changed while running");
+            }
+            try {
+                if (Parameters.isInteger(name)){
+                    setInteger(name, Integer.parseInt(value.trim()));
+                } else if (Parameters.isLong(name)){
+                    setLong(name, Long.parseLong(value.trim()));
+                } else {
+                    throw new IllegalArgumentException("No integer or long parameter " + name);
+                }
+            } catch (NumberFormatException numberFormatException){
+                throw new IllegalArgumentException("Not a number: " + value);
+            }
+        }
+    }
+
+    public interface JobQueueMBean {
+        int getDepth();
+        int getCapacity();
+        long getQueuedBytes();
+        // Shared by all lanes, 0 disables the bound
+        long getCapacityBytes();
+        void setCapacityBytes(long capacityBytes);
+        // 0 if the UtilizationAccounting is disabled
+        long getPutCount();
+        long getTakeCount();
+    }
+
+    private static class JobQueueView implements JobQueueMBean {
+
+        private final JobQueue jobQueue;
+
+        JobQueueView(JobQueue jobQueue){
+            this.jobQueue = jobQueue;
+        }
+
+        @Override
+        public int getDepth(){
+            return jobQueue.getQueueSize();
+        }
+
+        @Override
+        public int getCapacity(){
+            return jobQueue.getCapacity();
+        }
+
+        @Override
+        public long getQueuedBytes(){
+            return jobQueue.getQueuedBytes();
+        }
+
+        @Override
+        public long getCapacityBytes(){
+            return Parameters.getLong("queue_capacity_bytes");
+        }
+
+        @Override
+        public void setCapacityBytes(long capacityBytes){
+            setLong("queue_capacity_bytes", Math.max(0, capacityBytes));
+        }
+
+        @Override
+        public long getPutCount(){
+            return jobQueue.getPutCount();
+        }
+
+        @Override
+        public long getTakeCount(){
+            return jobQueue.getTakeCount();
+        }
+    }
+
+    public interface WorkerPoolMBean {
+        int getSize();
+        // name: lane, thread state and (if the UtilizationAccounting is enabled) idle, busy, backend or client
+        String[] getWorkerStates();
+        int getMaxJobsInFlight();
+        void setMaxJobsInFlight(int maxJobsInFlight);
+        long getPollTimeoutMs();
+        void setPollTimeoutMs(long pollTimeoutMs);
+        long getSelectorTimeoutMs();
+        void setSelectorTimeoutMs(long selectorTimeoutMs);
+    }
+
+    private static class WorkerPoolView implements WorkerPoolMBean {
+
+        @Override
+        public int getSize(){
+            return WorkerPool.getInstance().getWorkerThreads().size();
+        }
+
+        @Override
+        public String[] getWorkerStates(){
+            List<String> workerStateList = new ArrayList<>();
+            for (WorkerThread workerThread : WorkerPool.getInstance().getWorkerThreads()){
+                UtilizationAccounting.State utilizationState = workerThread.getUtilizationState();
+                workerStateList.add(workerThread.getName() + ": " + workerThread.getLane().name().toLowerCase(Locale.US)
+                        + ", " + workerThread.getState().name().toLowerCase(Locale.US)
+                        + (utilizationState == null ? "" : ", " + utilizationState.label));
+            }
+            workerStateList.sort(null);
+            return workerStateList.toArray(new String[0]);
+        }
+
+        @Override
+        public int getMaxJobsInFlight(){
+            return Parameters.getInteger("worker_thread_max_jobs_in_flight");
+        }
+
+        @Override
+        public void setMaxJobsInFlight(int maxJobsInFlight){
+            setInteger("worker_thread_max_jobs_in_flight", Math.max(1, maxJobsInFlight));
+        }
+
+        @Override
+        public long getPollTimeoutMs(){
+            return Parameters.getLong("worker_thread_poll_timeout_ms");
+        }
+
+        @Override
+        public void setPollTimeoutMs(long pollTimeoutMs){
+            setLong("worker_thread_poll_timeout_ms", Math.max(1, pollTimeoutMs));
+        }
+
+        @Override
+        public long getSelectorTimeoutMs(){
+            return Parameters.getLong("worker_thread_selector_timeout_ms");
+        }
+
+        @Override
+        public void setSelectorTimeoutMs(long selectorTimeoutMs){
+            setLong("worker_thread_selector_timeout_ms", Math.max(1, selectorTimeoutMs));
+        }
+    }
+
+    public interface NetThreadMBean {
+        int getClientConnections();
+        long getAcceptedConnections();
+        long getSelectCount();
+        long getReadCount();
+        boolean isEventLoopMode();
+        long getSelectorTimeoutMs();
+        void setSelectorTimeoutMs(long selectorTimeoutMs);
+    }
+
+    private static class NetThreadView implements NetThreadMBean {
+
+        @Override
+        public int getClientConnections(){
+            synchronized (Environment.getClientList()){
+                return Environment.getClientList().size();
+            }
+        }
+
+        @Override
+        public long getAcceptedConnections(){
+            return NetThread.getInstance().getAcceptedCount();
+        }
+
+        @Override
+        public long getSelectCount(){
+            return NetThread.getInstance().getSelectCount();
+        }
+
+        @Override
+        public long getReadCount(){
+            return NetThread.getInstance().getReadCount();
+        }
+
+        @Override
+        public boolean isEventLoopMode(){
+            return EventLoopPool.getInstance() != null;
+        }
+
+        @Override
+        public long getSelectorTimeoutMs(){
+            return Parameters.getLong("netthread_selector_timeout_ms");
+        }
+
+        @Override
+        public void setSelectorTimeoutMs(long selectorTimeoutMs){
+            setLong("netthread_selector_timeout_ms", Math.max(1, selectorTimeoutMs));
+        }
+    }
+
+    public interface ServerMBean {
+        String getAddress();
+        int getConnections();
+        // A server is down once all connections to it have been closed
+        boolean isUp();
+        long getErrors();
+        long getResponses();
+        double getResponseTimeAverageUs();
+        double getResponseTimeP50Us();
+        double getResponseTimeP90Us();
+        double getResponseTimeP99Us();
+    }
+
+    private static class ServerView implements ServerMBean {
+
+        private final Server server;
+        private final int serverIndex;
+
+        ServerView(Server server, int serverIndex){
+            this.server = server;
+            this.serverIndex = serverIndex;
+        }
+
+        private LatencyHistogram getHistogram(){
+            Metrics metrics = Metrics.getInstance();
+            return metrics == null ? null : metrics.getServerHistogram(serverIndex);
+        }
+
+        @Override
+        public String getAddress(){
+            return server.getAddress();
+        }
+
+        @Override
+        public int getConnections(){
+            return server.getConnectionCount();
+        }
+
+        @Override
+        public boolean isUp(){
+            return server.getConnectionCount() > 0;
+        }
+
+        @Override
+        public long getErrors(){
+            return server.getErrorCount();
+        }
+
+        @Override
+        public long getResponses(){
+            LatencyHistogram latencyHistogram = getHistogram();
+            return latencyHistogram == null ? 0 : latencyHistogram.getCount();
+        }
+
+        @Override
+        public double getResponseTimeAverageUs(){
+            LatencyHistogram latencyHistogram = getHistogram();
+            return latencyHistogram == null ? 0 : latencyHistogram.getAverage() / 1e3;
+        }
+
+        @Override
+        public double getResponseTimeP50Us(){
+            return toMicroseconds(getHistogram(), 0.5);
+        }
+
+        @Override
+        public double getResponseTimeP90Us(){
+            return toMicroseconds(getHistogram(), 0.9);
+        }
+
+        @Override
+        public double getResponseTimeP99Us(){
+            return toMicroseconds(getHistogram(), 0.99);
+        }
+    }
+
+    public interface StatisticsMBean {
+        long getSetCount();
+        long getGetCount();
+        long getGetKeyCount();
+        long getMissCount();
+        double getHitRate();
+        long getErrors();
+        double getResponseTimeAverageUs();
+        double getResponseTimeP50Us();
+        double getResponseTimeP90Us();
+        double getResponseTimeP99Us();
+        // phase: average, p50, p90, p99 (us) for every phase of a job
+        String[] getPhaseLatencies();
+    }
+
+    private static class StatisticsView implements StatisticsMBean {
+
+        private LatencyHistogram getResponseHistogram(){
+            return Metrics.getInstance().getPhaseHistogram(Metrics.Phase.RESPONSE);
+        }
+
+        @Override
+        public long getSetCount(){
+            return Metrics.getInstance().getSetJobCount();
+        }
+
+        @Override
+        public long getGetCount(){
+            return Metrics.getInstance().getGetJobCount();
+        }
+
+        @Override
+        public long getGetKeyCount(){
+            return Metrics.getInstance().getGetKeyCount();
+        }
+
+        @Override
+        public long getMissCount(){
+            return Metrics.getInstance().getMissCount();
+        }
+
+        @Override
+        public double getHitRate(){
+            long getKeyCount = getGetKeyCount();
+            return getKeyCount == 0 ? 0 : (getKeyCount - getMissCount()) / (double) getKeyCount;
+        }
+
+        @Override
+        public long getErrors(){
+            return Metrics.getInstance().getErrorCount();
+        }
+
+        @Override
+        public double getResponseTimeAverageUs(){
+            return getResponseHistogram().getAverage() / 1e3;
+        }
+
+        @Override
+        public double getResponseTimeP50Us(){
+            return toMicroseconds(getResponseHistogram(), 0.5);
+        }
+
+        @Override
+        public double getResponseTimeP90Us(){
+            return toMicroseconds(getResponseHistogram(), 0.9);
+        }
+
+        @Override
+        public double getResponseTimeP99Us(){
+            return toMicroseconds(getResponseHistogram(), 0.99);
+        }
+
+        @Override
+        public String[] getPhaseLatencies(){
+            List<String> phaseLatencyList = new ArrayList<>();
+            for (Metrics.Phase phase : Metrics.Phase.values()){
+                LatencyHistogram latencyHistogram = Metrics.getInstance().getPhaseHistogram(phase);
+                phaseLatencyList.add(String.format(Locale.US, "%s: %.2f, %.2f, %.2f, %.2f", phase.label,
+                        latencyHistogram.getAverage() / 1e3, toMicroseconds(latencyHistogram, 0.5),
+                        toMicroseconds(latencyHistogram, 0.9), toMicroseconds(latencyHistogram, 0.99)));
+            }
+            return phaseLatencyList.toArray(new String[0]);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ch.ethz.asltest.Middleware.Threading;
+
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+    The MetricsServer serves the live Metrics over HTTP (GET /metrics, Prometheus text format) on
+    metrics_bind_address:metrics_port. Requests are handled by its own single thread, such that scraping
+    never competes with the NetThread or the WorkerThreads for more than one core.
+    Failing to bind is not fatal, the middleware runs on without the endpoint.
+ */
+
+public class MetricsServer {
+
+    private static MetricsServer ourInstance;
+    public static MetricsServer getInstance() {
+        return ourInstance;
+    }
+
+    public static void initialize() {
+        if (Metrics.getInstance() == null){
+            return;
+        }
+        ourInstance = new MetricsServer();
+    }
+
+    private HttpServer httpServer;
+    private ExecutorService executorService;
+
+    private MetricsServer(){
+        String bindAddress = Parameters.getString("metrics_bind_address");
+        int port = Parameters.getInteger("metrics_port");
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        } catch (IOException iOException){
+            Log.error("[MetricsServer] Could not bind to {}:{}, metrics are not served: {}", bindAddress, port, iOException.getMessage());
+            return;
+        }
+
+        executorService = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executorService);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.start();
+        Log.info("[MetricsServer] Serving metrics on http://{}:{}/metrics", bindAddress, port);
+    }
+
+    private void handle(HttpExchange httpExchange) throws IOException{
+        try {
+            if (!"GET".equals(httpExchange.getRequestMethod())){
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.getInstance().render().getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            httpExchange.sendResponseHeaders(200, body.length);
+            try (OutputStream outputStream = httpExchange.getResponseBody()){
+                outputStream.write(body);
+            }
+        } catch (Exception exception){
+            Log.error("[MetricsServer] Exception while serving metrics: {}", exception.getMessage());
+            throw exception;
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    public void shutdown(){
+        if (httpServer != null){
+            httpServer.stop(0);
+            executorService.shutdownNow();
+        }
+    }
+}
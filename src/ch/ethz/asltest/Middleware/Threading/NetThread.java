@@ -7,21 +7,36 @@ import ch.ethz.asltest.Middleware.Global.Configuration;
 import ch.ethz.asltest.Middleware.Global.Parameters;
 import ch.ethz.asltest.Middleware.Job.Job;
 import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Log.CpuTimeAccounting;
+import ch.ethz.asltest.Middleware.Log.HotKeySketch;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Metrics;
 import ch.ethz.asltest.Middleware.Assembler.QueryAssembler;
 import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Util.BufferPool;
 
 import java.io.IOException;
 import java.net.*;
 import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
     The NetThread will hold all incoming connections from clients. It holds one QueryAssembler for each client,
     which it uses to parse incoming queries. Once the callback is called from the QueryAssembler with a completed
     Job, the NetThread will put it into the JobQueue.
+    Jobs the JobQueue refuses (see JobQueue.offer()) are held back in order, their clients stay blocked, and are
+    offered again after every select. The JobQueue wakes up the selector once it has space again, such that the
+    other clients are served in the meantime. Refused Jobs are held back per JobQueue, such that a full bulk lane
+    doesn't hold back the small requests.
+    Clients whose QueryAssembler can't get a buffer (see BufferPool) are not selected for reading until a buffer is
+    returned, since their channel would be selected again right away.
+    In event loop mode, the NetThread only accepts new connections and hands them over to the EventLoopPool.
  */
 
 public class NetThread {
@@ -43,9 +58,38 @@ public class NetThread {
 
     private int currentRoundRobinIndex = 0;
 
+    // Jobs refused by their JobQueue, in the order they were parsed (one deque per JobQueue)
+    private final HashMap<JobQueue, ArrayDeque<Job>> pendingJobMap = new HashMap<>();
+
+    // Keys of clients not selected for reading while their QueryAssembler waits for a buffer
+    private final ArrayList<SelectionKey> bufferWaitingKeys = new ArrayList<>();
+    // Set by the BufferPool once a buffer has been returned
+    private final AtomicBoolean buffersReturned = new AtomicBoolean();
+
+    // Loop statistics, only written by the NetThread (see Management)
+    private volatile long selectCount;
+    private volatile long readCount;
+    private volatile long acceptedCount;
+
+    // Shared by all QueryAssemblers of this thread (null if disabled or in event loop mode)
+    private HotKeySketch hotKeySketch;
+    // Sums up the CPU time spent parsing (does nothing if disabled, not used in event loop mode)
+    private CpuTimeAccounting cpuTimeAccounting;
+
     private NetThread(){
         queryAssemblerMap = new HashMap<>();
+        if (EventLoopPool.getInstance() == null){
+            hotKeySketch = HotKeySketch.create();
+            cpuTimeAccounting = CpuTimeAccounting.create("netthread");
+        }
         setupServerSocketChanel();
+        if (EventLoopPool.getInstance() == null && selector != null){
+            JobQueue.setSpaceListener(selector::wakeup);
+            BufferPool.getInstance().addReleaseListener(() -> {
+                buffersReturned.set(true);
+                selector.wakeup();
+            });
+        }
     }
 
     private void setupServerSocketChanel() {
@@ -55,35 +99,38 @@ public class NetThread {
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.setOption(StandardSocketOptions.SO_RCVBUF, Parameters.getInteger("server_socket_channel_rcv_buffer_size"));
         } catch (IOException iOException) {
-            Log.error("[NetThread] I/O exception encountered when configuring server socket channel: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered when configuring server socket channel: {}", iOException.getMessage());
         }
 
         try{
             InetSocketAddress inetSocketAddress = new InetSocketAddress(InetAddress.getByName(Configuration.getIp()), Configuration.getPort());
             serverSocketChannel.bind(inetSocketAddress, Parameters.getInteger("server_socket_channel_backlog"));
         } catch (UnknownHostException unknownHostException){
-            Log.error("[NetThread] Unknown host exception encountered in accept() method: " +unknownHostException.getMessage());
+            Log.error("[NetThread] Unknown host exception encountered in accept() method: {}", unknownHostException.getMessage());
         } catch (IOException iOException){
-            Log.error("[NetThread] I/O exception encountered in accept() method: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered in accept() method: {}", iOException.getMessage());
         }
 
         try{
             selector = Selector.open();
             serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
         } catch (IOException iOException){
-            Log.error("[NetThread] I/O exception encountered when configuring the nio selector: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered when configuring the nio selector: {}", iOException.getMessage());
         }
     }
 
     public void run() {
 
         Log.info("[NetThread] NetThread run started");
-        long selectorTimeout = Parameters.getLong("netthread_selector_timeout_ms");
-
         while (true){
             try{
 
-                if (selector.select(selectorTimeout) < 1) {
+                // Read on every select, since it may be changed while running
+                int selectedCount = selector.select(Parameters.getLong("netthread_selector_timeout_ms"));
+                selectCount++;
+                offerPendingJobs();
+                rearmBufferWaitingKeys(selectedCount < 1);
+                if (selectedCount < 1) {
                     if (Global.isShuttingDown){
                         break;
                     }
@@ -100,7 +147,7 @@ public class NetThread {
                         // A connection was accepted by a ServerSocketChannel.
                         acceptNew(selectionKey);
                     } else if (selectionKey.isReadable()) {
-                        long arrivalTime = System.nanoTime();
+                        long arrivalTime = Instrumentation.timestamp();
                         // A channel is ready for reading
                         SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
                         if (!socketChannel.isConnected()){
@@ -109,9 +156,13 @@ public class NetThread {
                         } else {
                             // Check whether the parser is ready
                             if (!queryAssemblerMap.get(socketChannel).isBlocked()) {
+                                readCount++;
                                 readChannel(selectionKey, arrivalTime);
                             }
                         }
+                    } else if (selectionKey.isWritable()) {
+                        // The rest of a "stats" answer can be written
+                        writePendingAnswer(selectionKey);
                     }
                     selectionKeyIterator.remove();
                 }
@@ -120,13 +171,24 @@ public class NetThread {
                     break;
 
             } catch (IOException iOException){
-                Log.error("[NetThread] I/O exception encountered when selecting channel: " + iOException.getMessage());
+                Log.error("[NetThread] I/O exception encountered when selecting channel: {}", iOException.getMessage());
             }
         }
 
         // Cleanup in separate function
+        for (ArrayDeque<Job> pendingJobs : pendingJobMap.values()){
+            for (Job pendingJob : pendingJobs){
+                pendingJob.release();
+            }
+        }
+        pendingJobMap.clear();
         cleanup();
         Statistics.exportThinkingTimes();
+        Statistics.exportClientResponseTimes();
+        BufferPool.getInstance().export();
+        if (cpuTimeAccounting != null){
+            cpuTimeAccounting.export();
+        }
     }
 
     private void acceptNew(SelectionKey selectionKey){
@@ -134,7 +196,8 @@ public class NetThread {
             ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey.channel();
             SocketChannel socketChannel = serverSocketChannel.accept();
 
-            Log.info("[NetThread] New socket accepted: " + socketChannel.socket().getRemoteSocketAddress().toString());
+            Log.info("[NetThread] New socket accepted: {}", socketChannel.socket().getRemoteSocketAddress());
+            acceptedCount++;
 
             try {
                 socketChannel.configureBlocking(false);
@@ -146,19 +209,33 @@ public class NetThread {
                 //socketChannel.setOption(StandardSocketOptions.SO_LINGER, Parameters.getInteger("inferred_server_socket_channel_linger_timeout_s"));
                 socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, Parameters.getBoolean("inferred_server_socket_channel_tcp_nodelay"));
             } catch (IOException iOException){
-                Log.error("I/O exception encountered when configuring inferred server socket channel: " + iOException.getMessage());
+                Log.error("[NetThread] I/O exception encountered when configuring inferred server socket channel: {}", iOException.getMessage());
             }
 
             Client client = new Client(socketChannel);
-            Environment.getClientList().add(client);
+            synchronized (Environment.getClientList()){
+                Environment.getClientList().add(client);
+            }
+            Statistics.registerClient(client);
+            Metrics metrics = Metrics.getInstance();
+            if (metrics != null){
+                metrics.recordAcceptedClient();
+            }
+
+            EventLoopPool eventLoopPool = EventLoopPool.getInstance();
+            if (eventLoopPool != null){
+                // The client is owned by an event loop from here on
+                eventLoopPool.assign(client);
+                return;
+            }
 
             SelectionKey clientSelectionKey = socketChannel.register(selector, SelectionKey.OP_READ);
             clientSelectionKey.attach(client);
 
-            queryAssemblerMap.put(socketChannel, new QueryAssembler(client, new QueryProcessor()));
+            queryAssemblerMap.put(socketChannel, new QueryAssembler(client, new QueryProcessor(), hotKeySketch));
 
         } catch (IOException iOException) {
-            Log.error("[NetThread] I/O exception encountered when accepting new connection: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered when accepting new connection: {}", iOException.getMessage());
         }
     }
 
@@ -168,27 +245,97 @@ public class NetThread {
 
         try {
             QueryAssembler queryAssembler = queryAssemblerMap.get(socketChannel);
-            if (queryAssembler.readBytes(socketChannel, arrivalTime) < 0){
+            // Parsing is charged to each completed Job in the callback, the rest (partial queries) to none
+            cpuTimeAccounting.start(CpuTimeAccounting.Phase.PARSE);
+            int readCount = queryAssembler.readBytes(socketChannel, arrivalTime);
+            cpuTimeAccounting.stop();
+            if (readCount < 0){
                 // The channel has been closed by the remote host
                 removeClient(client);
                 selectionKey.cancel();
                 Log.info("[NetThread] The connection to a client has been invalidated and removed.");
+            } else if (queryAssembler.isWaitingForBuffer()){
+                selectionKey.interestOps(0);
+                bufferWaitingKeys.add(selectionKey);
+            } else if (queryAssembler.hasPendingAnswer()){
+                // The client doesn't send anything before it has the whole answer
+                selectionKey.interestOps(SelectionKey.OP_WRITE);
             }
         } catch (IOException iOException){
-            Log.error("[NetThread] I/O exception encountered when reading from client socket channel: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered when reading from client socket channel: {}", iOException.getMessage());
             removeClient(client);
             selectionKey.cancel();
             Log.info("[NetThread] The connection to a client has been invalidated and removed.");
 
         } catch (QueryAssembler.AssemblerBlockedException assemblerBlockedException){
-            Log.error("[NetThread] AssemblerBlockedException exception encountered when reading from inferred server socket channel: " + assemblerBlockedException.getMessage());
+            Log.error("[NetThread] AssemblerBlockedException exception encountered when reading from inferred server socket channel: {}", assemblerBlockedException.getMessage());
         }
     }
 
+    // Offers the held back Jobs again in order, per JobQueue until the first one that is still refused
+    private void offerPendingJobs(){
+        if (pendingJobMap.isEmpty()){
+            return;
+        }
+        for (JobQueue jobQueue : new ArrayList<>(pendingJobMap.keySet())){
+            ArrayDeque<Job> pendingJobs = pendingJobMap.get(jobQueue);
+            Job pendingJob;
+            while ((pendingJob = pendingJobs.peekFirst()) != null && jobQueue.offer(pendingJob)){
+                pendingJobs.pollFirst();
+            }
+            if (pendingJobs.isEmpty()){
+                pendingJobMap.remove(jobQueue);
+            }
+        }
+    }
+
+    private void writePendingAnswer(SelectionKey selectionKey){
+        Client client = (Client) selectionKey.attachment();
+        try {
+            if (queryAssemblerMap.get(client.getSocketChannel()).writePendingAnswer()){
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException iOException){
+            Log.error("[NetThread] I/O exception encountered when writing to client socket channel: {}", iOException.getMessage());
+            removeClient(client);
+            selectionKey.cancel();
+            Log.info("[NetThread] The connection to a client has been invalidated and removed.");
+        }
+    }
+
+    // Selects the clients waiting for a buffer again once one has been returned (or on a timeout, in case it was missed)
+    private void rearmBufferWaitingKeys(boolean timedOut){
+        if (bufferWaitingKeys.isEmpty() || !(buffersReturned.getAndSet(false) || timedOut)){
+            return;
+        }
+        for (SelectionKey selectionKey : bufferWaitingKeys){
+            if (selectionKey.isValid()){
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        bufferWaitingKeys.clear();
+    }
+
+    public long getSelectCount(){
+        return selectCount;
+    }
+
+    // Reads of client channels (in event loop mode, the EventLoopThreads read)
+    public long getReadCount(){
+        return readCount;
+    }
+
+    public long getAcceptedCount(){
+        return acceptedCount;
+    }
+
     private void removeClient(Client client){
         queryAssemblerMap.remove(client.getSocketChannel());
         client.closeConnection();
-        Environment.getClientList().remove(client);
+        synchronized (Environment.getClientList()){
+            Environment.getClientList().remove(client);
+        }
+        Statistics.unregisterClient(client);
     }
 
     private void cleanup(){
@@ -197,12 +344,14 @@ public class NetThread {
             selector.close();
             serverSocketChannel.close();
         } catch (IOException iOException){
-            Log.error("[NetThread] I/O exception encountered when closing serverSocketChannel: " + iOException.getMessage());
+            Log.error("[NetThread] I/O exception encountered when closing serverSocketChannel: {}", iOException.getMessage());
         }
 
-        for (Client client : Environment.getClientList()){
-            client.closeConnection();
-            Log.info("[NetThread] Closed connection to \"" + client.getName() + "\"");
+        synchronized (Environment.getClientList()){
+            for (Client client : Environment.getClientList()){
+                client.closeConnection();
+                Log.info("[NetThread] Closed connection to \"{}\"", client.getName());
+            }
         }
         Log.info("[NetThread] NetThread shutdown done");
     }
@@ -218,9 +367,23 @@ public class NetThread {
             incrementRoundRobinIndex();
             job.setRoundRobinIndex(currentRoundRobinIndex);
 
-            job.setEnqueueSize(JobQueue.getInstance().getQueueSize());
-            job.setEnqueueTime(System.nanoTime());
-            JobQueue.getInstance().put(job);
+            JobQueue jobQueue = JobQueue.getInstance(job.getLane());
+            if (job.isInstrumented()){
+                job.setEnqueueSize(jobQueue.getQueueSize());
+                job.setEnqueueTime(System.nanoTime());
+            }
+            // Before the handoff, once offered the Job may already be answered and reused by a WorkerThread
+            cpuTimeAccounting.stop(job);
+            // Jobs are held back behind earlier refused ones of the same JobQueue, such that its order is kept
+            ArrayDeque<Job> pendingJobs = pendingJobMap.get(jobQueue);
+            if (pendingJobs != null){
+                pendingJobs.addLast(job);
+            } else if (!jobQueue.offer(job)){
+                pendingJobs = new ArrayDeque<>();
+                pendingJobs.addLast(job);
+                pendingJobMap.put(jobQueue, pendingJobs);
+            }
+            cpuTimeAccounting.start(CpuTimeAccounting.Phase.PARSE);
         }
     }
 
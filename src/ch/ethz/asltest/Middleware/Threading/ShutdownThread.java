@@ -3,6 +3,8 @@ package ch.ethz.asltest.Middleware.Threading;
 import ch.ethz.asltest.Middleware.Global.Global;
 import ch.ethz.asltest.Middleware.Global.Parameters;
 import ch.ethz.asltest.Middleware.Log.Log;
+import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Log.StatisticsExporter;
 
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -25,7 +27,7 @@ public class ShutdownThread extends Thread{
     }
 
     public static void panic(int returncode){
-        Log.fatal("PANIC SHUTDOWN CODE " + returncode);
+        Log.fatal("PANIC SHUTDOWN CODE {}", returncode);
         System.exit(returncode);
     }
 
@@ -45,12 +47,39 @@ public class ShutdownThread extends Thread{
         // Causes NetThread and WorkerThreads to shut down
         Global.isShuttingDown = true;
 
+        // Let the Autotuner write out the chosen parameters
+        Autotuner autotuner = Autotuner.getInstance();
+        if (autotuner != null) {
+            autotuner.shutdown();
+        }
+
+        // Stop serving metrics
+        MetricsServer metricsServer = MetricsServer.getInstance();
+        if (metricsServer != null) {
+            metricsServer.shutdown();
+        }
+
         // Shut down WorkerPool
         WorkerPool workerPool = WorkerPool.getInstance();
         if (workerPool != null) {
             workerPool.shutdown();
         }
 
+        // Shut down EventLoopPool (only exists in event loop mode)
+        EventLoopPool eventLoopPool = EventLoopPool.getInstance();
+        if (eventLoopPool != null) {
+            eventLoopPool.shutdown();
+        }
+
+        // Write the statistics merged over all threads (done by the StatisticsExporter with the rolling export)
+        Statistics.exportMerged();
+
+        // Write the last windows of the rolling statistics export
+        StatisticsExporter statisticsExporter = StatisticsExporter.getInstance();
+        if (statisticsExporter != null) {
+            statisticsExporter.shutdown();
+        }
+
 
         // Shut down NetThread
         try {
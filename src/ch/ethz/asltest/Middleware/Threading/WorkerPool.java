@@ -2,6 +2,7 @@ package ch.ethz.asltest.Middleware.Threading;
 
 import ch.ethz.asltest.Middleware.Global.Configuration;
 import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Job.Job;
 import ch.ethz.asltest.Middleware.Log.Log;
 
 import java.util.HashSet;
@@ -14,6 +15,7 @@ import java.util.concurrent.TimeUnit;
 /*
     The WorkerPool class holds a set of WorkerThreads, which are all instantiated in this class. On shutdown this class
     orchestrates the shutdown of all its WorkerThreads.
+    If worker_bulk_lane_thread_count is set, that many of the threads serve the bulk lane, the rest the small lane.
  */
 
 public class WorkerPool {
@@ -30,11 +32,22 @@ public class WorkerPool {
     Set<WorkerThread> workerThreadSet;
 
     private WorkerPool(int threadCount){
-        Log.info("[WorkerPool] Instantiating WorkerPool with " + threadCount + " thread(s)");
+        Log.info("[WorkerPool] Instantiating WorkerPool with {} thread(s)", threadCount);
         workerThreadSet = new HashSet<>();
+
+        int bulkLaneThreadCount = Parameters.getInteger("worker_bulk_lane_thread_count");
+        if (bulkLaneThreadCount > 0 && bulkLaneThreadCount >= threadCount){
+            // The small lane needs at least one thread
+            bulkLaneThreadCount = threadCount - 1;
+            Log.warn("[WorkerPool] Not enough threads for both lanes, using {} thread(s) for the bulk lane", bulkLaneThreadCount);
+        }
+        if (bulkLaneThreadCount > 0){
+            Log.info("[WorkerPool] {} thread(s) serve the bulk lane", bulkLaneThreadCount);
+        }
+
         WorkerThread currentWorkerThread;
         for (int i = 0; i < threadCount; i++){
-            currentWorkerThread = new WorkerThread();
+            currentWorkerThread = new WorkerThread(i < threadCount - bulkLaneThreadCount ? Job.Lane.SMALL : Job.Lane.BULK);
             workerThreadSet.add(currentWorkerThread);
             currentWorkerThread.start();
         }
@@ -42,6 +55,10 @@ public class WorkerPool {
     }
 
 
+    public Set<WorkerThread> getWorkerThreads(){
+        return workerThreadSet;
+    }
+
     public void shutdown(){
         Log.info("[WorkerPool] Shutting down WorkerPool");
         for (WorkerThread workerThread : workerThreadSet){
@@ -49,11 +66,11 @@ public class WorkerPool {
                 workerThread.join(Parameters.getLong("worker_pool_join_timeout_ms"));
                 if (workerThread.isAlive()) {
                     workerThread.interrupt();
-                    Log.info("[WorkerPool] WorkerThread \"" + workerThread.getName() + "\" has been interrupted.");
+                    Log.info("[WorkerPool] WorkerThread \"{}\" has been interrupted.", workerThread.getName());
                     workerThread.join();
                 }
             } catch (InterruptedException interruptedException){
-                Log.warn("[WorkerPool] WorkerThread \"" + workerThread.getName() + "\" could not be joined: " + interruptedException.getMessage());
+                Log.warn("[WorkerPool] WorkerThread \"{}\" could not be joined: {}", workerThread.getName(), interruptedException.getMessage());
             }
         }
         Log.info("[WorkerPool] All WorkerThreads joined, WorkerPool shutdown done");
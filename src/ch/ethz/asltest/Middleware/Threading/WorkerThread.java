@@ -5,14 +5,21 @@ import ch.ethz.asltest.Middleware.Environment.Server;
 import ch.ethz.asltest.Middleware.Global.Configuration;
 import ch.ethz.asltest.Middleware.Global.Global;
 import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Global.TunableParameters;
 import ch.ethz.asltest.Middleware.Job.Job;
 import ch.ethz.asltest.Middleware.Job.JobQueue;
+import ch.ethz.asltest.Middleware.Log.CpuTimeAccounting;
+import ch.ethz.asltest.Middleware.Log.Instrumentation;
 import ch.ethz.asltest.Middleware.Log.Log;
 import ch.ethz.asltest.Middleware.Assembler.Assembler;
 import ch.ethz.asltest.Middleware.Assembler.ResponseAssembler;
+import ch.ethz.asltest.Middleware.Log.SlowRequestRecorder;
 import ch.ethz.asltest.Middleware.Log.Statistics;
+import ch.ethz.asltest.Middleware.Log.TraceRecorder;
+import ch.ethz.asltest.Middleware.Log.UtilizationAccounting;
 import ch.ethz.asltest.Middleware.Result.Result;
 import ch.ethz.asltest.Middleware.Result.ResultMerger;
+import ch.ethz.asltest.Middleware.Util.Allocation;
 import ch.ethz.asltest.Middleware.Util.OffsetList;
 
 import java.io.IOException;
@@ -28,6 +35,12 @@ import java.util.concurrent.TimeUnit;
     the Job's QueryAssembler) and parse the response(s) in one or more ResponseAssemblers (one per server). Upon having
     parsed all responses, the gathered Result objects will be merged in a ResultMerger and its merged result will
     be written back to the client.
+    A WorkerThread may take up to worker_thread_max_jobs_in_flight Jobs at once. All of them are written to the
+    servers first, then their responses are read in the same order (servers answer in order per connection).
+    The server sockets are blocking, so the request bytes of a batch are capped to what fits into the socket send
+    buffer (and worker_thread_max_bytes_in_flight): writing a batch then never blocks on a server that is itself
+    blocked writing responses we don't read yet. The Jobs beyond the cap are deferred to the next batch.
+    If a Job fails, only its own Results are dropped, the responses of the following Jobs are kept.
  */
 
 public class WorkerThread extends Thread {
@@ -39,7 +52,6 @@ public class WorkerThread extends Thread {
     private static final Object lock = new Object();
 
     private Selector selector;
-    private long selectorTimeout;
 
     private OffsetList<Server.ServerConnection> serverConnections;
 
@@ -48,11 +60,34 @@ public class WorkerThread extends Thread {
 
     Result currentResult;
 
+    // The Jobs taken from the JobQueue at once, in order
+    private ArrayList<Job> jobBatch;
+    // Jobs taken from the JobQueue that didn't fit into the previous batch, processed before polling again
+    private final ArrayDeque<Job> deferredJobs = new ArrayDeque<>();
+    // The request bytes a batch may write before reading the first response
+    private int maxBytesInFlight;
+
     private Statistics getStatistics;
     private Statistics setStatistics;
 
-    public WorkerThread(){
+    // Records every completed Job to a memory-mapped trace (null if disabled)
+    private TraceRecorder traceRecorder;
+    // Keeps the slowest Jobs per window (null if disabled)
+    private SlowRequestRecorder slowRequestRecorder;
+    // Sums up the CPU time per phase (does nothing if disabled)
+    private CpuTimeAccounting cpuTimeAccounting;
+    // The time spent idle, busy and blocked on the servers or the client (does nothing if disabled)
+    private UtilizationAccounting.WorkerUtilization workerUtilization;
+
+    // The bytes allocated by this thread before processing the first Job (-1 if not measurable)
+    private long allocatedBytesAtStart = -1;
+
+    // The lane whose JobQueue this thread polls
+    private final Job.Lane lane;
+
+    public WorkerThread(Job.Lane lane){
         super();
+        this.lane = lane;
         synchronized(lock){
             workerThreadID = workerThreadCount;
             workerThreadCount++;
@@ -62,14 +97,22 @@ public class WorkerThread extends Thread {
         resultMerger = new ResultMerger();
         try{
             selector = Selector.open();
-            selectorTimeout = Parameters.getLong("worker_thread_selector_timeout_ms");
-
         } catch (IOException iOException){
-            Log.error("[WorkerThread] Selector could not be opened: " + iOException.getMessage());
+            Log.error("[WorkerThread] Selector could not be opened: {}", iOException.getMessage());
         }
 
+        jobBatch = new ArrayList<>();
+
         setStatistics = new Statistics(Statistics.StatisticsType.SET);
         getStatistics = new Statistics(Statistics.StatisticsType.GET);
+        if (Parameters.getBoolean("trace_recorder_enabled")){
+            traceRecorder = new TraceRecorder(getName());
+        }
+        if (SlowRequestRecorder.isEnabled()){
+            slowRequestRecorder = new SlowRequestRecorder(getName());
+        }
+        cpuTimeAccounting = CpuTimeAccounting.create(getName());
+        workerUtilization = UtilizationAccounting.register(getName());
 
         serverConnections = new OffsetList<>();
         connect();
@@ -89,6 +132,19 @@ public class WorkerThread extends Thread {
             Log.fatal("[WorkerThread] At least one server connection could not be established");
             ShutdownThread.panic(-1);
         }
+
+        // Half of the send buffer, since the kernel counts its bookkeeping against the size it reports
+        maxBytesInFlight = Integer.MAX_VALUE;
+        for (Server.ServerConnection serverConnection : serverConnections){
+            try{
+                maxBytesInFlight = Math.min(maxBytesInFlight, serverConnection.getSocket().getSendBufferSize() / 2);
+            } catch (IOException iOException){
+                Log.warn("[WorkerThread] Could not read the send buffer size: {}", iOException.getMessage());
+            }
+        }
+        if (Parameters.getInteger("worker_thread_max_bytes_in_flight") > 0){
+            maxBytesInFlight = Math.min(maxBytesInFlight, Parameters.getInteger("worker_thread_max_bytes_in_flight"));
+        }
     }
 
     private synchronized void disconnect(){
@@ -97,64 +153,148 @@ public class WorkerThread extends Thread {
         }
     }
 
+    public Job.Lane getLane(){
+        return lane;
+    }
+
+    // Null if the UtilizationAccounting is disabled
+    public UtilizationAccounting.State getUtilizationState(){
+        return workerUtilization.getState();
+    }
+
     private OffsetList<Server.ServerConnection> getServerConnections() {
         return serverConnections;
     }
 
     private void export(){
         Log.info("[WorkerThread] Exporting statistics");
+        // Measured before exporting, which allocates itself
+        long allocatedBytes = Allocation.getAllocatedBytes() - allocatedBytesAtStart;
+        long jobCount = setStatistics.getJobCount() + getStatistics.getJobCount();
+        if (allocatedBytesAtStart >= 0 && jobCount > 0){
+            Log.info("[WorkerThread] Allocated {} bytes per job on average", allocatedBytes / jobCount);
+        }
+
         setStatistics.export();
         getStatistics.export();
+        if (traceRecorder != null){
+            traceRecorder.close();
+        }
+        if (slowRequestRecorder != null){
+            slowRequestRecorder.export();
+        }
+        cpuTimeAccounting.export();
     }
 
     @Override
     public void run() {
+        allocatedBytesAtStart = Allocation.getAllocatedBytes();
 
         Job currentJob = null;
-        JobQueue jobQueue = JobQueue.getInstance();
+        JobQueue jobQueue = JobQueue.getInstance(lane);
 
         while (true){
 
-            try {
-                currentJob = jobQueue.poll(Parameters.getLong("worker_thread_poll_timeout_ms"), TimeUnit.MILLISECONDS);
-            } catch (InterruptedException interruptedException){
-                if (Global.isShuttingDown) {
-                    break;
+            currentJob = deferredJobs.poll();
+            if (currentJob == null){
+                workerUtilization.enter(UtilizationAccounting.State.IDLE);
+                try {
+                    currentJob = jobQueue.poll(Parameters.getLong("worker_thread_poll_timeout_ms"), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException interruptedException){
+                    if (Global.isShuttingDown) {
+                        break;
+                    }
+                    // NULL is expected on shutdown
+                    Log.warn("[WorkerThread] Interruption exception encountered in Queue draw method: {}", interruptedException.getMessage());
                 }
-                // NULL is expected on shutdown
-                Log.warn("[WorkerThread] Interruption exception encountered in Queue draw method: " + interruptedException.getMessage());
             }
 
             if (currentJob == null){
                 if (Global.isShuttingDown) {
                     break;
                 }
+                long timestamp = System.nanoTime();
+                setStatistics.roll(timestamp);
+                getStatistics.roll(timestamp);
                 continue;
             }
+            workerUtilization.enter(UtilizationAccounting.State.BUSY);
 
-            currentJob.setDequeueTime(System.nanoTime());
-            currentJob.setDequeueSize(jobQueue.getQueueSize());
-
-            if (currentJob instanceof Job.GetJob){
-                Job.GetJob getJob = (Job.GetJob) currentJob;
-                processGetJob(getJob);
-            } else if (currentJob instanceof Job.SetJob){
-                Job.SetJob setJob = (Job.SetJob) currentJob;
-                processSetJob(setJob);
-            } else {
-                Log.error("[WorkerThread] Invalid job in RunnableJob");
-                continue;
+            // Deferred Jobs have been timed when they were taken
+            if (currentJob.isInstrumented() && currentJob.getDequeueTime() == 0){
+                currentJob.setDequeueTime(System.nanoTime());
+                currentJob.setDequeueSize(jobQueue.getQueueSize());
+            }
+
+            jobBatch.clear();
+            jobBatch.add(currentJob);
+            // Read on every Job, since it may be tuned while running
+            int maxJobsInFlight = TunableParameters.getWorkerThreadMaxJobsInFlight();
+            if (maxJobsInFlight > 1){
+                // The deferred Jobs first, they have been taken before the ones still queued
+                while (jobBatch.size() < maxJobsInFlight && !deferredJobs.isEmpty()){
+                    jobBatch.add(deferredJobs.poll());
+                }
+                // Take the Jobs that are waiting already as well, without blocking
+                int firstDrained = jobBatch.size();
+                int drainedCount = jobQueue.drainTo(jobBatch, maxJobsInFlight - firstDrained);
+                for (int i = firstDrained; i < firstDrained + drainedCount; i++){
+                    if (jobBatch.get(i).isInstrumented()){
+                        jobBatch.get(i).setDequeueTime(System.nanoTime());
+                        jobBatch.get(i).setDequeueSize(jobQueue.getQueueSize());
+                    }
+                }
+                deferBeyondBytesInFlight();
+            }
+
+            // Write all Jobs first, such that the servers work on them while we wait for the first responses
+            Iterator<Job> jobIterator = jobBatch.iterator();
+            while (jobIterator.hasNext()){
+                Job job = jobIterator.next();
+                if (serverConnections.size() > 0){
+                    // Connections may have been removed since the index has been assigned
+                    job.setRoundRobinIndex(job.getRoundRobinIndex() % serverConnections.size());
+                }
+                if (job instanceof Job.GetJob){
+                    writeGetJob((Job.GetJob) job);
+                } else if (job instanceof Job.SetJob){
+                    writeSetJob((Job.SetJob) job);
+                } else {
+                    Log.error("[WorkerThread] Invalid job in RunnableJob");
+                    jobIterator.remove();
+                }
+            }
+
+            for (int i = 0; i < jobBatch.size(); i++){
+                Job job = jobBatch.get(i);
+                if (job instanceof Job.GetJob){
+                    processGetJob((Job.GetJob) job);
+                } else {
+                    processSetJob((Job.SetJob) job);
+                }
+
+                if (Global.isShuttingDown){
+                    // The responses of the remaining Jobs are not read anymore
+                    for (int j = i + 1; j < jobBatch.size(); j++){
+                        jobBatch.get(j).release();
+                    }
+                    break;
+                }
             }
 
             if (Global.isShuttingDown)
                 break;
 
         }
+        for (Job deferredJob : deferredJobs){
+            deferredJob.release();
+        }
+        deferredJobs.clear();
         Log.info("[WorkerThread] Disconnecting");
         try{
             selector.close();
         } catch (IOException iOException){
-            Log.warn("[WorkerThread] Closing the selector has thrown an exception: " + iOException.getMessage());
+            Log.warn("[WorkerThread] Closing the selector has thrown an exception: {}", iOException.getMessage());
         }
 
         disconnect();
@@ -162,24 +302,73 @@ public class WorkerThread extends Thread {
     }
 
 
-    private void processSetJob(Job.SetJob setJob){
+    /*
+     Defers the Jobs of the batch beyond maxBytesInFlight request bytes (keeping their order). The first Job is
+     always kept, it is written on its own if it is larger.
+      */
+    private void deferBeyondBytesInFlight(){
+        long bytesInFlight = jobBatch.get(0).getRequestBytes();
+        for (int i = 1; i < jobBatch.size(); i++){
+            bytesInFlight += jobBatch.get(i).getRequestBytes();
+            if (bytesInFlight > maxBytesInFlight){
+                for (int j = jobBatch.size() - 1; j >= i; j--){
+                    deferredJobs.addFirst(jobBatch.remove(j));
+                }
+                return;
+            }
+        }
+    }
 
+    private void writeSetJob(Job.SetJob setJob){
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.BACKEND_WRITE);
         setJob.writeToServers(serverConnections);
+        setJob.captureKey();
         setJob.getQueryAssembler().release();
+        cpuTimeAccounting.stop(setJob);
+    }
+
+    private void writeGetJob(Job.GetJob getJob){
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.BACKEND_WRITE);
+        getJob.writeToServers(serverConnections, Configuration.getReadSharded());
+        getJob.captureKey();
+        getJob.getQueryAssembler().release();
+        cpuTimeAccounting.stop(getJob);
+    }
+
+    // To be called after writing the job to the servers
+    private void processSetJob(Job.SetJob setJob){
 
         getAndProcessResponses(setJob);
 
         setStatistics.submit(setJob);
+        getStatistics.roll(setJob.getClientSendTime());
+        if (traceRecorder != null && setJob.isInstrumented()){
+            traceRecorder.record(setJob);
+        }
+        if (slowRequestRecorder != null){
+            slowRequestRecorder.record(setJob);
+        }
+        // Stops the phase left open by getAndProcessResponses
+        cpuTimeAccounting.stop(setJob);
+        setJob.release();
     }
 
+    // To be called after writing the job to the servers
     private void processGetJob(Job.GetJob getJob){
 
-        getJob.writeToServers(serverConnections, Configuration.getReadSharded());
-        getJob.getQueryAssembler().release();
-
         getAndProcessResponses(getJob);
 
         getStatistics.submit(getJob);
+        setStatistics.roll(getJob.getClientSendTime());
+        if (traceRecorder != null && getJob.isInstrumented()){
+            traceRecorder.record(getJob);
+        }
+        if (slowRequestRecorder != null){
+            slowRequestRecorder.record(getJob);
+        }
+        // Stops the phase left open by getAndProcessResponses
+        cpuTimeAccounting.stop(getJob);
+        getJob.release();
     }
 
     private void getAndProcessResponses(Job job){
@@ -189,24 +378,30 @@ public class WorkerThread extends Thread {
             return;
         }
 
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.RESPONSE_PARSE);
         resultMerger.clear();
+        // Set if a connection failed, the responses of the other servers are read anyway to stay in order
+        boolean failed = false;
+        int resultCount = 0;
 
-        // Don't set the offset (has been set in write to servers)
+        // Reset the offset, since other Jobs may have been written after this one (connections may have been removed since)
+        getServerConnections().setOffset(job.getRoundRobinIndex() % getServerConnections().size());
         Iterator<Server.ServerConnection> serverConnectionIterator = getServerConnections().iterator();
         while (serverConnectionIterator.hasNext()){
             Server.ServerConnection serverConnection = serverConnectionIterator.next();
 
-            if (!serverConnection.getAnswerExpected()){
+            if (!job.isAnswerExpected(serverConnection.getServer().getServerID())){
                 continue;
             }
 
             try{
                 ResponseAssembler responseAssembler = responseAssemblerMap.get(serverConnection);
+                workerUtilization.enter(UtilizationAccounting.State.BACKEND);
                 while (currentResult == null) {
 
                     if (responseAssembler.readBytes(serverConnection.getSocket()) < 0){
                         // The socket has been closed by the remote host
-                        Log.error("[WorkerThread] The connection to " + serverConnection.getServer().getName() + " has been closed by the remote host");
+                        Log.error("[WorkerThread] The connection to {} has been closed by the remote host", serverConnection.getServer().getName());
                         serverConnectionIterator.remove();
                         break;
                     }
@@ -214,15 +409,20 @@ public class WorkerThread extends Thread {
                     if (Global.isShuttingDown)
                         return;
                 }
+                workerUtilization.enter(UtilizationAccounting.State.BUSY);
 
                 // The response has been fully parsed
                 if (currentResult != null) {
                     resultMerger.addResult(currentResult);
-                    job.setServerArrivalTime(currentResult.getServerArrivalTime(), getServerConnections().indexOf(serverConnection));
+                    resultCount++;
+                    if (job.isInstrumented()){
+                        job.setServerArrivalTime(currentResult.getServerArrivalTime(), serverConnection.getServer().getServerID());
+                    }
                     if (currentResult instanceof Result.ValueResult && job instanceof Job.GetJob){
                         job.reduceMissCount(((Result.ValueResult) currentResult).valueCount);
                     }
                     if (currentResult instanceof Result.ErrorResult ||  currentResult instanceof Result.ServerErrorResult || currentResult instanceof  Result.ClientErrorResult) {
+                        serverConnection.getServer().recordError();
                         if (job instanceof Job.SetJob){
                             setStatistics.submitError(currentResult);
                         } else if (job instanceof  Job.GetJob){
@@ -233,13 +433,17 @@ public class WorkerThread extends Thread {
 
                 currentResult = null;
             } catch (IOException iOException){
-                Log.error("[WorkerThread] IOException on readBytes for responseAssembler: " + iOException.getMessage());
-                abandon();
-                return;
+                workerUtilization.enter(UtilizationAccounting.State.BUSY);
+                Log.error("[WorkerThread] IOException on readBytes for responseAssembler: {}", iOException.getMessage());
+                // The connection is unusable, as for one closed by the remote host
+                responseAssemblerMap.get(serverConnection).release();
+                serverConnectionIterator.remove();
+                failed = true;
             } catch (Assembler.AssemblerBlockedException assemblerBlockedException){
-                Log.error("[WorkerThread] AssemblerBlockedException on readBytes for responseAssembler: " + assemblerBlockedException.getMessage());
+                workerUtilization.enter(UtilizationAccounting.State.BUSY);
+                Log.error("[WorkerThread] AssemblerBlockedException on readBytes for responseAssembler: {}", assemblerBlockedException.getMessage());
             } catch (ResultMerger.AlreadyMergedException alreadyMergedException){
-                Log.error("[WorkerThread] AlreadyMergedException when adding result to ResultMerger: " + alreadyMergedException.getMessage());
+                Log.error("[WorkerThread] AlreadyMergedException when adding result to ResultMerger: {}", alreadyMergedException.getMessage());
             }
         }
 
@@ -249,27 +453,51 @@ public class WorkerThread extends Thread {
             abandon();
             return;
         }
+        if (failed || resultCount == 0){
+            // Also if all servers expected to answer have been removed
+            abandon();
+            return;
+        }
 
+        cpuTimeAccounting.stop(job);
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.MERGE);
         resultMerger.merge();
+        cpuTimeAccounting.stop(job);
+
+        // Writing back is stopped by the caller, since it returns in many places
+        cpuTimeAccounting.start(CpuTimeAccounting.Phase.WRITE_BACK);
+        // Usually the whole response fits into the socket's send buffer, so try writing right away
+        try {
+            resultMerger.writeToClient(job.getSubmitter().getSocketChannel());
+            if (!resultMerger.hasRemaining()){
+                setClientSendTime(job);
+                resultMerger.release();
+                return;
+            }
+        } catch (ResultMerger.NotMergedException notMergedException){
+            // Merging failed, it is logged and released below
+        }
 
         // Since the connection to the submitter is asynchronous, we need to register a selector
-        // and wait until the channel is writable to send back the result
+        // and wait until the channel is writable to send back the rest of the result
         try{
             // Call selectNow() first to clear all cancelled SelectionKeys from previous writes
             selector.selectNow();
             job.getSubmitter().getSocketChannel().register(selector, SelectionKey.OP_WRITE);
         } catch (ClosedChannelException closedChannelException){
-            Log.error("[WorkerThread] Channel closed on getAndProcessResponses: " + closedChannelException.getMessage());
+            Log.error("[WorkerThread] Channel closed on getAndProcessResponses: {}", closedChannelException.getMessage());
             abandon();
             return;
         } catch (IOException iOException){
-            Log.error("[WorkerThread] IOException on selector: " + iOException.getMessage());
+            Log.error("[WorkerThread] IOException on selector: {}", iOException.getMessage());
         }
+        workerUtilization.enter(UtilizationAccounting.State.CLIENT);
         try {
             while (resultMerger.hasRemaining()){
                 try{
 
-                    if (selector.select(selectorTimeout) < 1) {
+                    // Read on every select, since it may be changed while running
+                    if (selector.select(Parameters.getLong("worker_thread_selector_timeout_ms")) < 1) {
                         if (Global.isShuttingDown){
                             break;
                         }
@@ -288,15 +516,13 @@ public class WorkerThread extends Thread {
                             }
                             // Unregister the selector again if everything was written
                             if (!resultMerger.hasRemaining()) {
-                                Long timestamp = System.nanoTime();
-                                job.setClientSendTime(timestamp);
-                                Statistics.setClientSendTime(((SocketChannel) selectionKey.channel()).socket().getRemoteSocketAddress().toString(), timestamp);
+                                setClientSendTime(job);
                                 selectionKey.cancel();
                             }
 
                             selectionKeyIterator.remove();
                         } catch (ResultMerger.NotMergedException notMergedException){
-                            Log.error("[WorkerThread] Not merged exception: " + notMergedException.getMessage());
+                            Log.error("[WorkerThread] Not merged exception: {}", notMergedException.getMessage());
                         }
                     }
 
@@ -304,33 +530,38 @@ public class WorkerThread extends Thread {
                         break;
 
                 } catch (IOException iOException){
-                    Log.error("[WorkerThread] I/O exception encountered when selecting channel: " + iOException.getMessage());
+                    Log.error("[WorkerThread] I/O exception encountered when selecting channel: {}", iOException.getMessage());
                     abandon();
+                    break;
                 }
             }
         } catch (ResultMerger.NotMergedException notMergedException) {
-            Log.error("[WorkerThread] Not merged exception: " + notMergedException.getMessage());
+            Log.error("[WorkerThread] Not merged exception: {}", notMergedException.getMessage());
         } finally {
-            try{
-                resultMerger.release();
-            } catch (ResultMerger.NotMergedException notMergedException){
-                Log.error("[WorkerThread] Attempted release on ResultMerger threw NotMergedException: " + notMergedException.getMessage());
-            }
+            // Also hands back the Results if merging failed
+            resultMerger.discard();
+            workerUtilization.enter(UtilizationAccounting.State.BUSY);
         }
 
     }
 
-    private void abandon(){
-        // Purge all data
-        for (ResponseAssembler responseAssembler : responseAssemblerMap.values()){
-            responseAssembler.release();
-        }
-        try{
-            resultMerger.release();
-        } catch (ResultMerger.NotMergedException notMergedException){
-            Log.error("[WorkerThread] Attempted release on ResultMerger threw NotMergedException during abandon: " + notMergedException.getMessage());
+    // To be called once the response has been fully written to the client
+    private void setClientSendTime(Job job){
+        if (!Instrumentation.isCounting()){
+            return;
         }
-        export();
+        long timestamp = System.nanoTime();
+        job.setClientSendTime(timestamp);
+        Statistics.setClientSendTime(job.getSubmitter(), timestamp);
+        Statistics.submitClientResponseTime(job.getSubmitter(), timestamp - job.getClientArrivalTime());
+    }
+
+    /*
+     Drops the Results of the current Job. The ResponseAssemblers keep the bytes of the following responses,
+     such that the other Jobs of the batch still get their own. The statistics are exported once the thread stops.
+      */
+    private void abandon(){
+        resultMerger.discard();
         Log.info("[WorkerThread] Purged all state data with current Job");
         // No panic here
     }
@@ -0,0 +1,25 @@
+package ch.ethz.asltest.Middleware.Util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+    Measures the bytes allocated on the heap by the current thread (where supported by the JVM, e.g. HotSpot).
+    Used to report the allocation rate of the request path per Job.
+ */
+
+public class Allocation {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // Returns the bytes allocated by the current thread so far, or -1 if not supported
+    public static long getAllocatedBytes(){
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean){
+            com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()){
+                return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,279 @@
+package ch.ethz.asltest.Middleware.Util;
+
+import ch.ethz.asltest.Middleware.Global.Global;
+import ch.ethz.asltest.Middleware.Global.Parameters;
+import ch.ethz.asltest.Middleware.Log.Log;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    The BufferPool lends ByteBuffers to the Assemblers while they hold a message, such that idle connections
+    don't pin a buffer. Buffers are grouped in slab classes of power of two sizes, from buffer_pool_min_buffer_size
+    up to assembler_meta_rcv_buffer_size. An Assembler borrows a buffer of the smallest class and moves to the next
+    class once a message doesn't fit (see Assembler.ensureBufferSpace()).
+    Returned buffers are kept for reuse. The bytes of all buffers allocated by the pool (lent or idle) are bound by
+    buffer_pool_max_bytes: if a class has no idle buffer and allocating one would exceed the ceiling, idle buffers
+    of the other classes are dropped first, and if that doesn't suffice, the request is refused. Borrowers which
+    complete work in flight (server responses) may exceed the ceiling, their number is bound by the connections.
+    Refused borrowers stop reading their connection until a buffer is returned: the release listeners (see
+    addReleaseListener()) are called on the first release after a refusal, e.g. to wake up the reading selector.
+    The buffers are heap buffers, since the Assemblers forward messages from their backing arrays.
+    This class is thread safe, buffers are borrowed and returned by the NetThread, WorkerThreads and EventLoopThreads.
+ */
+
+public class BufferPool {
+
+    private static BufferPool ourInstance;
+    public static BufferPool getInstance() {
+        return ourInstance;
+    }
+
+    public static void initialize(){
+        ourInstance = new BufferPool();
+    }
+
+    private final SlabClass[] slabClasses;
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    // Zero disables the ceiling
+    private final long maxBytes;
+
+    // Bytes of all buffers currently allocated by the pool, lent or idle
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    // Set once a request has been refused, cleared (and the listeners called) once a buffer is returned
+    private volatile boolean borrowerWaiting;
+    private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+
+    private BufferPool(){
+        minBufferSize = Integer.highestOneBit(Math.max(64, Parameters.getInteger("buffer_pool_min_buffer_size")));
+        maxBufferSize = Math.max(minBufferSize, Parameters.getInteger("assembler_meta_rcv_buffer_size"));
+        maxBytes = Parameters.getLong("buffer_pool_max_bytes");
+
+        int slabClassCount = 1;
+        while ((long) minBufferSize << (slabClassCount - 1) < maxBufferSize){
+            slabClassCount++;
+        }
+        slabClasses = new SlabClass[slabClassCount];
+        for (int i = 0; i < slabClassCount; i++){
+            // The largest class is exactly the configured maximum (which need not be a power of two)
+            slabClasses[i] = new SlabClass((int) Math.min(maxBufferSize, (long) minBufferSize << i));
+        }
+        Log.info("[BufferPool] {} slab classes from {} to {} bytes", slabClassCount, minBufferSize, maxBufferSize);
+    }
+
+    public int getMinBufferSize(){
+        return minBufferSize;
+    }
+
+    public int getMaxBufferSize(){
+        return maxBufferSize;
+    }
+
+    /*
+     Lends a cleared buffer with a capacity of at least minCapacity bytes.
+     Returns null if minCapacity exceeds the largest class, or if the ceiling is reached (unless mayExceedCeiling).
+      */
+    public ByteBuffer acquire(int minCapacity, boolean mayExceedCeiling){
+        SlabClass slabClass = slabClassOf(minCapacity);
+        if (slabClass == null){
+            return null;
+        }
+
+        ByteBuffer byteBuffer = tryAcquire(slabClass, mayExceedCeiling);
+        if (byteBuffer == null){
+            borrowerWaiting = true;
+            // A buffer may have been returned before the flag was set, without calling the listeners
+            byteBuffer = tryAcquire(slabClass, mayExceedCeiling);
+            if (byteBuffer == null){
+                refusedCount.incrementAndGet();
+            }
+        }
+        return byteBuffer;
+    }
+
+    private ByteBuffer tryAcquire(SlabClass slabClass, boolean mayExceedCeiling){
+        ByteBuffer byteBuffer = slabClass.poll();
+        if (byteBuffer != null){
+            slabClass.hitCount.incrementAndGet();
+            slabClass.lentCount.incrementAndGet();
+            return byteBuffer;
+        }
+
+        if (!reserve(slabClass.bufferSize, mayExceedCeiling)){
+            return null;
+        }
+        slabClass.missCount.incrementAndGet();
+        slabClass.lentCount.incrementAndGet();
+        return ByteBuffer.allocate(slabClass.bufferSize);
+    }
+
+    // Returns a buffer lent by acquire(), it must not be used afterwards
+    public void release(ByteBuffer byteBuffer){
+        SlabClass slabClass = slabClassOf(byteBuffer.capacity());
+        if (slabClass == null || slabClass.bufferSize != byteBuffer.capacity()){
+            Log.error("[BufferPool] Released a buffer of {} bytes which is not from the pool, ignoring it", byteBuffer.capacity());
+            return;
+        }
+        byteBuffer.clear();
+        slabClass.lentCount.decrementAndGet();
+        slabClass.offer(byteBuffer);
+        if (borrowerWaiting){
+            borrowerWaiting = false;
+            for (Runnable releaseListener : releaseListeners){
+                releaseListener.run();
+            }
+        }
+    }
+
+    // Called (by the thread returning a buffer) on the first release after a request has been refused
+    public void addReleaseListener(Runnable releaseListener){
+        releaseListeners.add(releaseListener);
+    }
+
+    private SlabClass slabClassOf(int capacity){
+        if (capacity > maxBufferSize){
+            return null;
+        }
+        int slabClassIndex = 0;
+        while (slabClasses[slabClassIndex].bufferSize < capacity){
+            slabClassIndex++;
+        }
+        return slabClasses[slabClassIndex];
+    }
+
+    // Accounts the bytes of a new buffer, dropping idle buffers of all classes if the ceiling would be exceeded
+    private boolean reserve(int bufferSize, boolean mayExceedCeiling){
+        while (true){
+            long currentBytes = allocatedBytes.get();
+            if (maxBytes > 0 && currentBytes + bufferSize > maxBytes && !mayExceedCeiling){
+                if (!evictIdle()){
+                    return false;
+                }
+                continue;
+            }
+            if (allocatedBytes.compareAndSet(currentBytes, currentBytes + bufferSize)){
+                return true;
+            }
+        }
+    }
+
+    // Drops one idle buffer (largest class first), returns false if there is none
+    private boolean evictIdle(){
+        for (int i = slabClasses.length - 1; i >= 0; i--){
+            if (slabClasses[i].poll() != null){
+                allocatedBytes.addAndGet(-slabClasses[i].bufferSize);
+                evictedCount.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getAllocatedBytes(){
+        return allocatedBytes.get();
+    }
+
+    public long getLentBytes(){
+        long lentBytes = 0;
+        for (SlabClass slabClass : slabClasses){
+            lentBytes += slabClass.lentCount.get() * slabClass.bufferSize;
+        }
+        return lentBytes;
+    }
+
+    public long getRefusedCount(){
+        return refusedCount.get();
+    }
+
+    public long getMissCount(){
+        long missCount = 0;
+        for (SlabClass slabClass : slabClasses){
+            missCount += slabClass.missCount.get();
+        }
+        return missCount;
+    }
+
+    /*
+     Writes one line per slab class (bufferSize,lent,idle,hits,misses) and a summary line
+     (allocatedBytes,maxBytes,refused,evicted) to result/<launchTime>_BP.stat
+      */
+    public void export(){
+        if (!Parameters.getBoolean("statistics_buffer_pool_export")){
+            return;
+        }
+        String bufferPoolFileName = "./result/" + Global.launchTime + "_BP.stat";
+        try {
+            PrintWriter bufferPoolPrintWriter = new PrintWriter(bufferPoolFileName, "US-ASCII");
+            bufferPoolPrintWriter.print(slabClasses.length);
+            for (SlabClass slabClass : slabClasses){
+                bufferPoolPrintWriter.println();
+                bufferPoolPrintWriter.print(slabClass.bufferSize);
+                bufferPoolPrintWriter.print(",");
+                bufferPoolPrintWriter.print(slabClass.lentCount.get());
+                bufferPoolPrintWriter.print(",");
+                bufferPoolPrintWriter.print(slabClass.getIdleCount());
+                bufferPoolPrintWriter.print(",");
+                bufferPoolPrintWriter.print(slabClass.hitCount.get());
+                bufferPoolPrintWriter.print(",");
+                bufferPoolPrintWriter.print(slabClass.missCount.get());
+            }
+            bufferPoolPrintWriter.println();
+            bufferPoolPrintWriter.print(allocatedBytes.get() + "," + maxBytes + "," + refusedCount.get() + "," + evictedCount.get());
+            bufferPoolPrintWriter.flush();
+            bufferPoolPrintWriter.close();
+            Log.info("[BufferPool] Buffer pool statistics exported successfully ({} bytes allocated, {} misses, {} refused)",
+                    allocatedBytes.get(), getMissCount(), refusedCount.get());
+        } catch (Exception exception){
+            Log.error("[BufferPool] Exception during export: {}", exception.getMessage());
+        }
+    }
+
+    /*
+     The idle buffers of one size. They are kept on a stack (the most recently used buffer is likely still cached),
+     which grows on demand and is guarded by the SlabClass' monitor.
+      */
+    private static class SlabClass {
+        private final int bufferSize;
+        private ByteBuffer[] idleBuffers;
+        private int idleCount;
+
+        private final AtomicLong lentCount = new AtomicLong();
+        private final AtomicLong hitCount = new AtomicLong();
+        private final AtomicLong missCount = new AtomicLong();
+
+        SlabClass(int bufferSize){
+            this.bufferSize = bufferSize;
+            this.idleBuffers = new ByteBuffer[16];
+        }
+
+        synchronized ByteBuffer poll(){
+            if (idleCount == 0){
+                return null;
+            }
+            idleCount--;
+            ByteBuffer byteBuffer = idleBuffers[idleCount];
+            idleBuffers[idleCount] = null;
+            return byteBuffer;
+        }
+
+        synchronized void offer(ByteBuffer byteBuffer){
+            if (idleCount == idleBuffers.length){
+                idleBuffers = Arrays.copyOf(idleBuffers, idleBuffers.length * 2);
+            }
+            idleBuffers[idleCount] = byteBuffer;
+            idleCount++;
+        }
+
+        synchronized int getIdleCount(){
+            return idleCount;
+        }
+    }
+}
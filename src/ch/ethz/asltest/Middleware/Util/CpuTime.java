@@ -0,0 +1,34 @@
+package ch.ethz.asltest.Middleware.Util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+    Measures the CPU time (user and system) consumed by the current thread, where supported by the JVM.
+    Used to tell the CPU spent in a phase of the request path apart from the time spent waiting in it.
+ */
+
+public class CpuTime {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // Enables the measurement if supported, returns whether getCurrentThreadCpuTime() can be used
+    public static boolean enable(){
+        if (!threadMXBean.isCurrentThreadCpuTimeSupported()){
+            return false;
+        }
+        if (!threadMXBean.isThreadCpuTimeEnabled()){
+            try{
+                threadMXBean.setThreadCpuTimeEnabled(true);
+            } catch (UnsupportedOperationException unsupportedOperationException){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the CPU time of the current thread in ns so far, or -1 if not enabled
+    public static long getCurrentThreadCpuTime(){
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+}
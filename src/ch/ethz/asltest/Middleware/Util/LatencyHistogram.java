@@ -0,0 +1,121 @@
+package ch.ethz.asltest.Middleware.Util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    A log-linear histogram for latencies in ns with constant memory and a relative error of at most 1/16.
+    Values below 32 get their own bucket. Above, every power of two is split into 16 linear sub buckets.
+    Recording is lock free, so a histogram may be written by several threads (e.g. WorkerThreads serving
+    the same client) while being read for export. The count, sum and maximum are recorded for every value by every
+    thread, they are striped per thread under contention (LongAdder, LongAccumulator) instead of being a single
+    shared cache line. The buckets are spread over the array by the values already.
+ */
+
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKET_COUNT = 32;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Enough buckets for any positive long value
+    private static final int BUCKET_COUNT = LINEAR_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sum;
+    private final LongAccumulator max;
+
+    public LatencyHistogram(){
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    public void record(long value){
+        if (value < 0){
+            value = 0;
+        }
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    public long getAverage(){
+        long currentCount = count.sum();
+        return currentCount == 0 ? 0 : sum.sum() / currentCount;
+    }
+
+    public long getSum(){
+        return sum.sum();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    // Returns the upper bound of the bucket holding the given percentile (0 < percentile <= 1)
+    public long getPercentile(double percentile){
+        if (count.sum() == 0){
+            return 0;
+        }
+        return Math.min(getPercentile(getBucketCounts(), percentile), max.get());
+    }
+
+    /*
+     Returns a copy of the bucket counts. The difference of two copies describes the values recorded
+     in between, which allows to evaluate intervals without resetting the histogram.
+      */
+    public long[] getBucketCounts(){
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++){
+            bucketCounts[i] = buckets.get(i);
+        }
+        return bucketCounts;
+    }
+
+    // Same as getPercentile(double), for bucket counts taken from getBucketCounts()
+    public static long getPercentile(long[] bucketCounts, double percentile){
+        long totalCount = 0;
+        for (long bucketCount : bucketCounts){
+            totalCount += bucketCount;
+        }
+        if (totalCount == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * totalCount));
+
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length; i++){
+            seen += bucketCounts[i];
+            if (seen >= rank){
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(bucketCounts.length - 1);
+    }
+
+    private static int bucketOf(long value){
+        if (value < LINEAR_BUCKET_COUNT){
+            return (int) value;
+        }
+        // Shift such that the remaining value is in [SUB_BUCKET_COUNT, 2 * SUB_BUCKET_COUNT)
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+    }
+
+    private static long upperBoundOf(int bucket){
+        if (bucket < LINEAR_BUCKET_COUNT){
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (bucket - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,52 @@
+package ch.ethz.asltest.Middleware.Util;
+
+import ch.ethz.asltest.Middleware.Log.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/*
+    A bounded pool of reusable objects, used to keep the request path free of allocations.
+    acquire() takes an object from the pool or creates a new one if the pool is empty, release() puts it back
+    (or drops it if the pool is full). Objects which are never released (e.g. Jobs of removed clients) are
+    simply collected by the GC, the pool refills with new objects.
+    Every object has to be released exactly once per acquire(), releasing an object twice is detected and refused
+    (the object could otherwise be handed out to two users at once).
+    This class is thread safe, objects may be acquired and released by different threads.
+ */
+
+public class ObjectPool<T extends ObjectPool.Poolable> {
+
+    private final String name;
+    private final ArrayBlockingQueue<T> pool;
+    private final Supplier<T> factory;
+
+    public ObjectPool(String name, int capacity, Supplier<T> factory){
+        this.name = name;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.factory = factory;
+    }
+
+    public T acquire(){
+        T object = pool.poll();
+        if (object == null){
+            object = factory.get();
+        }
+        object.getPooled().set(false);
+        return object;
+    }
+
+    public void release(T object){
+        if (!object.getPooled().compareAndSet(false, true)){
+            Log.error("[ObjectPool] {} released twice, ignoring it", name);
+            return;
+        }
+        pool.offer(object);
+    }
+
+    public interface Poolable {
+        // Whether the object is currently in the pool (new objects are not)
+        AtomicBoolean getPooled();
+    }
+}
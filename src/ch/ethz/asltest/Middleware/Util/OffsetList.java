@@ -89,10 +89,10 @@ public class OffsetList<T>implements Iterable<T>{
         private OffsetList<T> offsetList;
         int offset;
         int currentIndex;
+        int lastIndex;
 
-        T lastElement;
-
-        boolean hasNext;
+        // The elements not yet visited, such that removing elements doesn't change where iterating ends
+        int remaining;
 
         OffsetListIterator(OffsetList<T> offsetList){
             this.offsetList = offsetList;
@@ -104,31 +104,37 @@ public class OffsetList<T>implements Iterable<T>{
 
         void reset(){
             currentIndex = offset;
-            if (offsetList.size() > 0){
-                hasNext = true;
-            }
+            remaining = offsetList.size();
         }
 
         @Override
         public boolean hasNext() {
-            return hasNext;
+            return remaining > 0;
         }
 
         @Override
         public T next() {
             T value = offsetList.get(currentIndex);
+            lastIndex = currentIndex;
             currentIndex = (currentIndex + 1) % offsetList.size();
-            if (currentIndex == offset){
-                hasNext = false;
-            }
-            lastElement = value;
+            remaining--;
             return value;
         }
 
+        // Removes the last element returned, the following ones are still visited
         @Override
         public void remove() {
-            offsetList.remove(lastElement);
-            currentIndex--;
+            offsetList.getList().remove(lastIndex);
+            if (currentIndex > lastIndex){
+                currentIndex--;
+            }
+            // Keep the offset on the same element (or the first one, if it was the last and has been removed)
+            if (offsetList.offset > lastIndex){
+                offsetList.offset--;
+            } else if (offsetList.offset >= offsetList.size()){
+                offsetList.offset = 0;
+            }
+            offset = offsetList.offset;
         }
     }
 
@@ -0,0 +1,87 @@
+package ch.ethz.asltest;
+
+import ch.ethz.asltest.Analysis.AnalysisReport;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+	Command line entry point of the analysis tool, which merges the per job statistics (_PJ_ files) of all
+	threads of a middleware run into a global report (see AnalysisReport). Every run (launch time) found in
+	the result directory is analysed separately. Run with:
+	java -cp middleware.jar ch.ethz.asltest.RunAnalysis -d <resultDirectory> [-o <outputDirectory>]
+		[-r <resolutionMs>] [-p <percentilePercent>] [-c <cutSeconds>] [-j <parallelism>]
+ */
+
+public class RunAnalysis {
+
+	private static final Pattern PER_JOB_FILE_PATTERN = Pattern.compile("(\\d+)_PJ_.+_(set|get)\\.stat");
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> params = parseArguments(args);
+
+		File resultDirectory = new File(params.getOrDefault("d", "./result"));
+		File outputDirectory = new File(params.getOrDefault("o", resultDirectory.getPath()));
+		long resolutionMs = Long.parseLong(params.getOrDefault("r", "1000"));
+		int percentilePercent = Integer.parseInt(params.getOrDefault("p", "95"));
+		long cutSeconds = Long.parseLong(params.getOrDefault("c", "0"));
+		int parallelism = Integer.parseInt(params.getOrDefault("j", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+		File[] files = resultDirectory.listFiles();
+		if (files == null) {
+			printUsageWithError("Result directory " + resultDirectory + " does not exist");
+			System.exit(1);
+		}
+
+		// Group the per job files by run
+		SortedMap<Long, List<File>> perJobFilesByLaunch = new TreeMap<>();
+		for (File file : files) {
+			Matcher matcher = PER_JOB_FILE_PATTERN.matcher(file.getName());
+			if (matcher.matches()) {
+				perJobFilesByLaunch.computeIfAbsent(Long.parseLong(matcher.group(1)), launchTime -> new ArrayList<>()).add(file);
+			}
+		}
+		if (perJobFilesByLaunch.isEmpty()) {
+			printUsageWithError("No per job statistics (_PJ_ files, enable statistics_per_job_export) found in " + resultDirectory);
+			System.exit(1);
+		}
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, parallelism));
+		for (Map.Entry<Long, List<File>> entry : perJobFilesByLaunch.entrySet()) {
+			long startTime = System.nanoTime();
+			AnalysisReport analysisReport = new AnalysisReport(entry.getKey(), entry.getValue(), forkJoinPool, resolutionMs, percentilePercent, cutSeconds);
+			analysisReport.parse();
+			analysisReport.write(outputDirectory);
+			System.out.println("Run " + entry.getKey() + ": " + analysisReport.getJobCount() + " jobs from " + entry.getValue().size()
+					+ " files analysed in " + (System.nanoTime() - startTime) / 1000000 + " ms"
+					+ (analysisReport.getMalformedLineCount() > 0 ? " (" + analysisReport.getMalformedLineCount() + " malformed lines skipped)" : ""));
+		}
+		forkJoinPool.shutdown();
+	}
+
+	private static Map<String, String> parseArguments(String[] args) {
+		Map<String, String> params = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			final String a = args[i];
+			if (a.length() < 2 || a.charAt(0) != '-' || i + 1 >= args.length) {
+				printUsageWithError("Error at argument " + a);
+				System.exit(1);
+			}
+			params.put(a.substring(1), args[++i]);
+		}
+		return params;
+	}
+
+	private static void printUsageWithError(String errorMessage) {
+		System.err.println();
+		System.err.println(
+				"Usage: -d <ResultDirectory> [-o <OutputDirectory>] [-r <ResolutionMs>] [-p <PercentilePercent>] [-c <CutSeconds>] [-j <Parallelism>]");
+		if (errorMessage != null) {
+			System.err.println();
+			System.err.println("Error message: " + errorMessage);
+		}
+	}
+}
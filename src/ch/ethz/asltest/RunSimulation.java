@@ -0,0 +1,301 @@
+package ch.ethz.asltest;
+
+import ch.ethz.asltest.Analysis.AnalysisReport;
+import ch.ethz.asltest.Analysis.ServiceTimes;
+import ch.ethz.asltest.Analysis.Simulation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/*
+	Command line entry point of the capacity simulator. It calibrates a discrete-event Simulation of the middleware
+	with the per job statistics (_PJ_ files) of a recorded run (see ServiceTimes) and simulates every combination
+	of the given middleware instances, worker threads, servers, sharding and client counts in parallel.
+	Lists are comma separated, each defaults to the recorded value (threads: number of threads with _PJ_ files,
+	servers and sharding: from the servers the jobs were sent to, clients: lines of the _TT file). The think time
+	defaults to the clients' average thinking time in the _TT file (recorded in statistics_thinking_times_resolution_ns,
+	see -zr). The percentile of the server response times taken as network round trip (-rt, see ServiceTimes) is
+	fitted by bisection unless given: the recorded configuration is simulated at the measured throughput, the
+	response times remain to check the model. Runs recorded in event loop mode are simulated as if their loops
+	were WorkerThreads. For every run (launch time) in the result directory, it writes
+	(times in us):
+	<launchTime>_SIM.csv:            predicted throughput, response times and utilizations per configuration
+	<launchTime>_SIM_validation.csv: the recorded configuration simulated next to the measured throughput and
+	                                 response times, to check the calibration against the real run
+	Run with:
+	java -cp middleware.jar ch.ethz.asltest.RunSimulation -d <resultDirectory> [-o <outputDirectory>]
+		[-i <instances>] [-t <threads>] [-s <servers>] [-h <sharded>] [-c <clients>] [-z <thinkTimeUs>]
+		[-zr <thinkTimeResolutionNs>] [-n <jobs>] [-w <warmupPercent>] [-rt <roundTripPercent>]
+		[-p <percentilePercent>] [-x <seed>] [-j <parallelism>]
+ */
+
+public class RunSimulation {
+
+	private static final Pattern PER_JOB_FILE_PATTERN = Pattern.compile("(\\d+)_PJ_(.+)_(set|get)\\.stat");
+	private static final int FIT_ITERATIONS = 8;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> params = parseArguments(args);
+
+		File resultDirectory = new File(params.getOrDefault("d", "./result"));
+		File outputDirectory = new File(params.getOrDefault("o", resultDirectory.getPath()));
+		int jobCount = Integer.parseInt(params.getOrDefault("n", "200000"));
+		int warmupPercent = Integer.parseInt(params.getOrDefault("w", "10"));
+		int percentilePercent = Integer.parseInt(params.getOrDefault("p", "95"));
+		long seed = Long.parseLong(params.getOrDefault("x", "1"));
+		int parallelism = Integer.parseInt(params.getOrDefault("j", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+		File[] files = resultDirectory.listFiles();
+		if (files == null) {
+			printUsageWithError("Result directory " + resultDirectory + " does not exist");
+			System.exit(1);
+		}
+
+		// Group the per job files by run
+		SortedMap<Long, List<File>> perJobFilesByLaunch = new TreeMap<>();
+		Map<Long, Set<String>> threadNamesByLaunch = new HashMap<>();
+		for (File file : files) {
+			Matcher matcher = PER_JOB_FILE_PATTERN.matcher(file.getName());
+			if (matcher.matches()) {
+				long launchTime = Long.parseLong(matcher.group(1));
+				perJobFilesByLaunch.computeIfAbsent(launchTime, key -> new ArrayList<>()).add(file);
+				threadNamesByLaunch.computeIfAbsent(launchTime, key -> new HashSet<>()).add(matcher.group(2));
+			}
+		}
+		if (perJobFilesByLaunch.isEmpty()) {
+			printUsageWithError("No per job statistics (_PJ_ files, enable statistics_per_job_export) found in " + resultDirectory);
+			System.exit(1);
+		}
+
+		ForkJoinPool forkJoinPool = new ForkJoinPool(Math.max(1, parallelism));
+		for (Map.Entry<Long, List<File>> entry : perJobFilesByLaunch.entrySet()) {
+			long startTime = System.nanoTime();
+			long launchTime = entry.getKey();
+			AnalysisReport analysisReport = new AnalysisReport(launchTime, entry.getValue(), forkJoinPool, 1000, percentilePercent, 0);
+			analysisReport.parse();
+			if (analysisReport.getJobCount() == 0) {
+				System.out.println("Run " + launchTime + ": no jobs, skipped");
+				continue;
+			}
+			ServiceTimes serviceTimes = new ServiceTimes(analysisReport.getJobTable());
+
+			// The recorded clients and think time
+			File thinkingTimeFile = new File(resultDirectory, launchTime + "_TT.stat");
+			double[] thinkingTimes = thinkingTimeFile.exists() ? readThinkingTimes(thinkingTimeFile) : new double[0];
+			long thinkingTimeResolution = Long.parseLong(params.getOrDefault("zr", "1"));
+			long thinkTime;
+			if (params.containsKey("z")) {
+				thinkTime = Long.parseLong(params.get("z")) * 1000;
+			} else if (thinkingTimes.length > 0) {
+				thinkTime = (long) (Arrays.stream(thinkingTimes).average().orElse(0) * thinkingTimeResolution);
+			} else {
+				printUsageWithError("No thinking times (_TT file) found for run " + launchTime + ", provide the think time with -z");
+				System.exit(1);
+				return;
+			}
+			if (thinkingTimes.length == 0 && !params.containsKey("c")) {
+				printUsageWithError("No thinking times (_TT file) found for run " + launchTime + ", provide the client counts with -c");
+				System.exit(1);
+			}
+
+			Simulation.Configuration recordedConfiguration = new Simulation.Configuration(1, threadNamesByLaunch.get(launchTime).size(),
+					serviceTimes.getRecordedServerCount(), serviceTimes.isRecordedSharded(), thinkingTimes.length);
+			double roundTripPercentile;
+			if (params.containsKey("rt")) {
+				roundTripPercentile = Double.parseDouble(params.get("rt"));
+			} else if (thinkingTimes.length > 0) {
+				roundTripPercentile = fitRoundTripPercentile(serviceTimes, recordedConfiguration, thinkTime, jobCount, warmupPercent, seed);
+			} else {
+				printUsageWithError("No thinking times (_TT file) found for run " + launchTime + ", provide the round trip percentile with -rt");
+				System.exit(1);
+				return;
+			}
+			serviceTimes.setServerRoundTripPercentile(roundTripPercentile);
+			System.out.println("Run " + launchTime + ": server round trip " + formatUs(serviceTimes.getServerRoundTrip()) + " us (percentile "
+					+ format(roundTripPercentile) + (params.containsKey("rt") ? ")" : ", fitted)"));
+
+			List<Simulation.Configuration> configurations = new ArrayList<>();
+			for (int instances : parseList(params.get("i"), 1)) {
+				for (int threads : parseList(params.get("t"), recordedConfiguration.threads)) {
+					for (int servers : parseList(params.get("s"), recordedConfiguration.servers)) {
+						for (boolean sharded : parseBooleanList(params.get("h"), recordedConfiguration.sharded)) {
+							for (int clients : parseList(params.get("c"), recordedConfiguration.clients)) {
+								configurations.add(new Simulation.Configuration(instances, threads, servers, sharded, clients));
+							}
+						}
+					}
+				}
+			}
+
+			// Every configuration is simulated on its own (deterministic) random sequence
+			List<Simulation.Result> results = forkJoinPool.submit(() -> IntStream.range(0, configurations.size()).parallel()
+					.mapToObj(index -> new Simulation(configurations.get(index), serviceTimes, thinkTime, jobCount, warmupPercent, seed * 31 + index).run())
+					.collect(Collectors.toList())).join();
+
+			writeResults(new File(outputDirectory, launchTime + "_SIM.csv"), results, percentilePercent);
+			if (thinkingTimes.length > 0) {
+				Simulation.Result recordedResult = new Simulation(recordedConfiguration, serviceTimes, thinkTime, jobCount, warmupPercent, seed).run();
+				writeValidation(new File(outputDirectory, launchTime + "_SIM_validation.csv"), serviceTimes, recordedResult, percentilePercent);
+				System.out.println("Run " + launchTime + " (" + recordedConfiguration.toCsv() + "): measured " + format(serviceTimes.getMeasuredThroughput())
+						+ " ops/s, " + formatUs(average(serviceTimes.getMeasuredResponseTimes())) + " us, simulated "
+						+ format(recordedResult.throughput) + " ops/s, " + formatUs(average(recordedResult.responseTimes)) + " us");
+			}
+			System.out.println("Run " + launchTime + ": " + configurations.size() + " configuration(s) simulated in "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		}
+		forkJoinPool.shutdown();
+	}
+
+	/*
+	 A higher round trip percentile leaves less service time to the servers and raises the simulated throughput,
+	 the percentile at which the recorded configuration reaches the measured throughput is found by bisection.
+	  */
+	private static double fitRoundTripPercentile(ServiceTimes serviceTimes, Simulation.Configuration recordedConfiguration, long thinkTime,
+			int jobCount, int warmupPercent, long seed) {
+		double low = 0;
+		double high = 100;
+		for (int i = 0; i < FIT_ITERATIONS; i++) {
+			double middle = (low + high) / 2;
+			serviceTimes.setServerRoundTripPercentile(middle);
+			Simulation.Result result = new Simulation(recordedConfiguration, serviceTimes, thinkTime, jobCount, warmupPercent, seed).run();
+			if (result.throughput < serviceTimes.getMeasuredThroughput()) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		return (low + high) / 2;
+	}
+
+	// The average thinking time of every client (first line: client count, then client,average,median,percentile)
+	private static double[] readThinkingTimes(File thinkingTimeFile) throws IOException {
+		List<Double> thinkingTimes = new ArrayList<>();
+		try (BufferedReader bufferedReader = new BufferedReader(new FileReader(thinkingTimeFile))) {
+			bufferedReader.readLine();
+			String line;
+			while ((line = bufferedReader.readLine()) != null) {
+				String[] fields = line.split(",");
+				if (fields.length >= 4) {
+					thinkingTimes.add(Double.parseDouble(fields[fields.length - 3]));
+				}
+			}
+		}
+		return thinkingTimes.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	private static void writeResults(File file, List<Simulation.Result> results, int percentilePercent) throws IOException {
+		try (PrintWriter printWriter = new PrintWriter(file, "US-ASCII")) {
+			printWriter.print("instances,threads,servers,sharded,clients,throughput_ops,rt_avg_us,rt_median_us,rt_p" + percentilePercent
+					+ "_us,rt_p99_us,queue_avg_us,worker_utilization_percent,server_utilization_percent");
+			for (Simulation.Result result : results) {
+				printWriter.println();
+				printWriter.print(result.configuration.toCsv() + "," + format(result.throughput) + "," + formatUs(average(result.responseTimes)) + ","
+						+ formatUs(percentileOf(result.responseTimes, 0.5)) + "," + formatUs(percentileOf(result.responseTimes, percentilePercent / 100D)) + ","
+						+ formatUs(percentileOf(result.responseTimes, 0.99)) + "," + formatUs(result.queueTimeAverage) + ","
+						+ format(100 * result.workerUtilization) + "," + format(100 * result.serverUtilization));
+			}
+			printWriter.println();
+		}
+	}
+
+	private static void writeValidation(File file, ServiceTimes serviceTimes, Simulation.Result recordedResult, int percentilePercent) throws IOException {
+		try (PrintWriter printWriter = new PrintWriter(file, "US-ASCII")) {
+			printWriter.print("source,instances,threads,servers,sharded,clients,throughput_ops,rt_avg_us,rt_median_us,rt_p" + percentilePercent + "_us,rt_p99_us");
+			long[] measuredResponseTimes = serviceTimes.getMeasuredResponseTimes();
+			printWriter.println();
+			printWriter.print("measured," + recordedResult.configuration.toCsv() + "," + format(serviceTimes.getMeasuredThroughput()) + ","
+					+ formatUs(average(measuredResponseTimes)) + "," + formatUs(percentileOf(measuredResponseTimes, 0.5)) + ","
+					+ formatUs(percentileOf(measuredResponseTimes, percentilePercent / 100D)) + "," + formatUs(percentileOf(measuredResponseTimes, 0.99)));
+			printWriter.println();
+			printWriter.print("simulated," + recordedResult.configuration.toCsv() + "," + format(recordedResult.throughput) + ","
+					+ formatUs(average(recordedResult.responseTimes)) + "," + formatUs(percentileOf(recordedResult.responseTimes, 0.5)) + ","
+					+ formatUs(percentileOf(recordedResult.responseTimes, percentilePercent / 100D)) + "," + formatUs(percentileOf(recordedResult.responseTimes, 0.99)));
+			printWriter.println();
+		}
+	}
+
+	private static List<Integer> parseList(String list, int defaultValue) {
+		List<Integer> values = new ArrayList<>();
+		if (list == null) {
+			values.add(defaultValue);
+			return values;
+		}
+		for (String value : list.split(",")) {
+			values.add(Integer.parseInt(value.trim()));
+		}
+		return values;
+	}
+
+	private static List<Boolean> parseBooleanList(String list, boolean defaultValue) {
+		List<Boolean> values = new ArrayList<>();
+		if (list == null) {
+			values.add(defaultValue);
+			return values;
+		}
+		for (String value : list.split(",")) {
+			values.add(Boolean.parseBoolean(value.trim()));
+		}
+		return values;
+	}
+
+	private static double average(long[] values) {
+		if (values.length == 0) {
+			return 0;
+		}
+		double sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+
+	// Same definition as in Statistics: the value at index (count * percentile) of the sorted values
+	private static long percentileOf(long[] sortedValues, double percentile) {
+		if (sortedValues.length == 0) {
+			return 0;
+		}
+		return sortedValues[Math.min(sortedValues.length - 1, (int) (sortedValues.length * percentile))];
+	}
+
+	private static String formatUs(double nanoseconds) {
+		return format(nanoseconds / 1000);
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.1f", value);
+	}
+
+	private static Map<String, String> parseArguments(String[] args) {
+		Map<String, String> params = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			final String a = args[i];
+			if (a.length() < 2 || a.charAt(0) != '-' || i + 1 >= args.length) {
+				printUsageWithError("Error at argument " + a);
+				System.exit(1);
+			}
+			params.put(a.substring(1), args[++i]);
+		}
+		return params;
+	}
+
+	private static void printUsageWithError(String errorMessage) {
+		System.err.println();
+		System.err.println(
+				"Usage: -d <ResultDirectory> [-o <OutputDirectory>] [-i <Instances>] [-t <Threads>] [-s <Servers>] [-h <Sharded>] [-c <Clients>]"
+						+ " [-z <ThinkTimeUs>] [-zr <ThinkTimeResolutionNs>] [-n <Jobs>] [-w <WarmupPercent>] [-rt <RoundTripPercent>]"
+						+ " [-p <PercentilePercent>] [-x <Seed>] [-j <Parallelism>]");
+		if (errorMessage != null) {
+			System.err.println();
+			System.err.println("Error message: " + errorMessage);
+		}
+	}
+}